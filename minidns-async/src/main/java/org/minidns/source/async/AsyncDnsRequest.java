@@ -33,6 +33,7 @@ import org.minidns.dnsqueryresult.DnsQueryResult;
 import org.minidns.dnsqueryresult.DnsQueryResult.QueryMethod;
 import org.minidns.dnsqueryresult.StandardDnsQueryResult;
 import org.minidns.source.DnsDataSource.OnResponseCallback;
+import org.minidns.source.UpstreamStatistics;
 import org.minidns.source.AbstractDnsDataSource.QueryMode;
 import org.minidns.util.MultipleIoException;
 
@@ -49,18 +50,33 @@ public class AsyncDnsRequest {
         }
     };
 
-    private final DnsMessage request;
+    final DnsMessage request;
 
     private final int udpPayloadSize;
 
-    private final InetSocketAddress socketAddress;
+    final InetSocketAddress socketAddress;
 
-    private final AsyncNetworkDataSource asyncNds;
+    private final AsyncNetworkDataSource.Reactor reactor;
 
     private final OnResponseCallback onResponseCallback;
 
     private final boolean skipUdp;
 
+    private final boolean useSharedUdpChannels;
+
+    /**
+     * The shared UDP channel awaiting the response to this request, if any.
+     */
+    private volatile SharedUdpChannels.SharedChannel sharedUdpChannel;
+
+    private final UpstreamStatistics upstreamStatistics;
+
+    /**
+     * The time the UDP datagram of the query was written, as returned by {@link System#nanoTime()}. Only accessed by
+     * the reactor thread.
+     */
+    private long udpSendTime;
+
     private ByteBuffer writeBuffer;
 
     private List<IOException> exceptions;
@@ -69,6 +85,11 @@ public class AsyncDnsRequest {
 
     final long deadline;
 
+    /**
+     * The entry in the deadline wheel of the reactor. Only accessed by the reactor thread.
+     */
+    DeadlineWheel.Entry<AsyncDnsRequest> deadlineEntry;
+
     /**
      * Creates a new AsyncDnsRequest instance.
      *
@@ -77,12 +98,14 @@ public class AsyncDnsRequest {
      * @param port The port of the DNS server to ask.
      * @param udpPayloadSize The configured UDP payload size.
      * @param asyncNds A reference to the {@link AsyncNetworkDataSource} instance manageing the requests.
+     * @param reactor The reactor handling this request.
      * @param onResponseCallback the optional callback when a response was received.
      */
-    AsyncDnsRequest(DnsMessage request, InetAddress inetAddress, int port, int udpPayloadSize, AsyncNetworkDataSource asyncNds, OnResponseCallback onResponseCallback) {
+    AsyncDnsRequest(DnsMessage request, InetAddress inetAddress, int port, int udpPayloadSize, AsyncNetworkDataSource asyncNds,
+            AsyncNetworkDataSource.Reactor reactor, OnResponseCallback onResponseCallback) {
         this.request = request;
         this.udpPayloadSize = udpPayloadSize;
-        this.asyncNds = asyncNds;
+        this.reactor = reactor;
         this.onResponseCallback = onResponseCallback;
 
         final QueryMode queryMode = asyncNds.getQueryMode();
@@ -98,6 +121,9 @@ public class AsyncDnsRequest {
             throw new IllegalStateException("Unsupported query mode: " + queryMode);
 
         }
+        useSharedUdpChannels = asyncNds.isSharedUdpChannelsEnabled();
+        upstreamStatistics = asyncNds.getUpstreamStatistics();
+        // The deadline also covers a possible fallback to TCP, hence the adaptive UDP timeout is not used here.
         deadline = System.currentTimeMillis() + asyncNds.getTimeout();
         socketAddress = new InetSocketAddress(inetAddress, port);
     }
@@ -116,7 +142,18 @@ public class AsyncDnsRequest {
         if (selectionKey != null) {
             selectionKey.cancel();
         }
-        asyncNds.cancelled(this);
+        releaseSharedUdpChannel();
+        // The deadline of the request is not removed here, as only the reactor thread may access the deadline wheel.
+        // The reactor drops the request once its deadline is reached.
+    }
+
+    private void releaseSharedUdpChannel() {
+        SharedUdpChannels.SharedChannel channel = sharedUdpChannel;
+        if (channel == null) {
+            return;
+        }
+        sharedUdpChannel = null;
+        channel.remove(this);
     }
 
     private synchronized void registerWithSelector(SelectableChannel channel, int ops, ChannelSelectedHandler handler)
@@ -124,7 +161,7 @@ public class AsyncDnsRequest {
         if (future.isCancelled()) {
             return;
         }
-        selectionKey = asyncNds.registerWithSelector(channel, ops, handler);
+        selectionKey = reactor.registerWithSelector(channel, ops, handler);
     }
 
     private void addException(IOException e) {
@@ -138,7 +175,7 @@ public class AsyncDnsRequest {
         if (onResponseCallback != null) {
             onResponseCallback.onResponse(request, result);
         }
-        asyncNds.finished(this);
+        reactor.finished(this);
         future.setResult(result);
     }
 
@@ -151,6 +188,10 @@ public class AsyncDnsRequest {
             return false;
         }
 
+        releaseSharedUdpChannel();
+        if (upstreamStatistics != null && !future.isCancelled()) {
+            upstreamStatistics.recordFailure(socketAddress.getAddress());
+        }
         future.setException(new IOException("Timeout"));
         return true;
     }
@@ -186,6 +227,19 @@ public class AsyncDnsRequest {
             return;
         }
 
+        if (useSharedUdpChannels) {
+            SharedUdpChannels.SharedChannel channel = reactor.getSharedUdpChannels().send(this);
+            if (channel != null) {
+                sharedUdpChannel = channel;
+                if (future.isCancelled()) {
+                    // The request was cancelled before the shared channel was recorded.
+                    releaseSharedUdpChannel();
+                }
+                return;
+            }
+            // Fall back to a dedicated channel.
+        }
+
         DatagramChannel datagramChannel;
         try {
             datagramChannel = DatagramChannel.open();
@@ -245,6 +299,7 @@ public class AsyncDnsRequest {
                 }
                 return;
             }
+            udpDatagramSent();
 
             try {
                 registerWithSelector(datagramChannel, SelectionKey.OP_READ, new UdpReadableChannelSelectedHandler(future));
@@ -283,9 +338,10 @@ public class AsyncDnsRequest {
                 addException(e);
             }
 
+            byteBuffer.flip();
             DnsMessage response;
             try {
-                response = new DnsMessage(byteBuffer.array());
+                response = new DnsMessage(byteBuffer);
             } catch (IOException e) {
                 abortUdpRequestAndCleanup(datagramChannel, "Exception constructing dns message from datagram channel", e);
                 return;
@@ -297,6 +353,8 @@ public class AsyncDnsRequest {
                 return;
             }
 
+            recordUdpRtt();
+
             if (response.truncated) {
                 startTcpRequest();
                 return;
@@ -308,6 +366,41 @@ public class AsyncDnsRequest {
         }
     }
 
+    /**
+     * Handle the response received via a shared UDP channel. The response was already matched to this request.
+     *
+     * @param response the response.
+     */
+    void handleSharedUdpResponse(DnsMessage response) {
+        sharedUdpChannel = null;
+
+        recordUdpRtt();
+
+        if (response.truncated) {
+            startTcpRequest();
+            return;
+        }
+
+        DnsQueryResult result = new StandardDnsQueryResult(socketAddress.getAddress(), socketAddress.getPort(),
+                QueryMethod.asyncUdp, request, response);
+        gotResult(result);
+    }
+
+    /**
+     * Invoked once the UDP datagram of the query was written, so that the round-trip time does not include the time the
+     * request waited for the reactor or for the channel to become writable.
+     */
+    void udpDatagramSent() {
+        udpSendTime = System.nanoTime();
+    }
+
+    private void recordUdpRtt() {
+        if (upstreamStatistics == null) {
+            return;
+        }
+        upstreamStatistics.recordSuccess(socketAddress.getAddress(), (System.nanoTime() - udpSendTime) / 1000000);
+    }
+
     private void abortTcpRequestAndCleanup(SocketChannel socketChannel, String errorMessage, IOException exception) {
         if (exception == null) {
             exception = new IOException(errorMessage);
@@ -525,9 +618,10 @@ public class AsyncDnsRequest {
                 addException(e);
             }
 
+            byteBuffer.flip();
             DnsMessage response;
             try {
-                response = new DnsMessage(byteBuffer.array());
+                response = new DnsMessage(byteBuffer);
             } catch (IOException e) {
                 abortTcpRequestAndCleanup(socketChannel, "Exception creating DNS message form socket channel bytes", e);
                 return;
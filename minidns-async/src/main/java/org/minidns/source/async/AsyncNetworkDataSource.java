@@ -19,14 +19,12 @@ import java.nio.channels.Selector;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -41,54 +39,90 @@ public class AsyncNetworkDataSource extends AbstractDnsDataSource {
 
     protected static final Logger LOGGER = Logger.getLogger(AsyncNetworkDataSource.class.getName());
 
-    private static final int REACTOR_THREAD_COUNT = 1;
+    private static int reactorThreadCount = 1;
 
-    private static final Queue<AsyncDnsRequest> INCOMING_REQUESTS = new ConcurrentLinkedQueue<>();
+    private static volatile Reactor[] reactors;
 
-    private static final Selector SELECTOR;
+    private static final AtomicInteger NEXT_REACTOR = new AtomicInteger();
 
-    private static final Lock REGISTRATION_LOCK = new ReentrantLock();
-
-    private static final Queue<SelectionKey> PENDING_SELECTION_KEYS = new ConcurrentLinkedQueue<>();
+    /**
+     * Set the number of reactor threads. Every reactor thread has its own {@link Selector} and handles the requests
+     * assigned to it, the requests are distributed over the reactor threads in a round-robin fashion. The reactor
+     * threads are shared by all instances of this class and are started on the first query, hence the number of
+     * reactor threads can only be set before that. The default is one reactor thread.
+     *
+     * @param threadCount the number of reactor threads.
+     * @throws IllegalStateException if the reactor threads were already started.
+     */
+    public static synchronized void setReactorThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("The reactor thread count must be at least one");
+        }
+        if (reactors != null) {
+            throw new IllegalStateException("The reactor threads were already started");
+        }
+        reactorThreadCount = threadCount;
+    }
 
-    private static final Thread[] REACTOR_THREADS = new Thread[REACTOR_THREAD_COUNT];
+    public static synchronized int getReactorThreadCount() {
+        return reactorThreadCount;
+    }
 
-    private static final PriorityQueue<AsyncDnsRequest> DEADLINE_QUEUE = new PriorityQueue<>(16, new Comparator<AsyncDnsRequest>() {
-        @Override
-        public int compare(AsyncDnsRequest o1, AsyncDnsRequest o2) {
-            if (o1.deadline > o2.deadline) {
-                return 1;
-            } else if (o1.deadline < o2.deadline) {
-                return -1;
+    private static Reactor[] getReactors() {
+        Reactor[] reactors = AsyncNetworkDataSource.reactors;
+        if (reactors != null) {
+            return reactors;
+        }
+        synchronized (AsyncNetworkDataSource.class) {
+            if (AsyncNetworkDataSource.reactors == null) {
+                reactors = new Reactor[reactorThreadCount];
+                for (int i = 0; i < reactors.length; i++) {
+                    reactors[i] = new Reactor(i);
+                }
+                AsyncNetworkDataSource.reactors = reactors;
             }
-            return 0;
+            return AsyncNetworkDataSource.reactors;
         }
-    });
+    }
 
-    static {
-        try {
-            SELECTOR = Selector.open();
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+    private static Reactor nextReactor() {
+        Reactor[] reactors = getReactors();
+        if (reactors.length == 1) {
+            return reactors[0];
         }
+        int index = (NEXT_REACTOR.getAndIncrement() & Integer.MAX_VALUE) % reactors.length;
+        return reactors[index];
+    }
 
-        for (int i = 0; i < REACTOR_THREAD_COUNT; i++) {
-            Thread reactorThread = new Thread(new Reactor());
-            reactorThread.setDaemon(true);
-            reactorThread.setName("MiniDNS Reactor Thread #" + i);
-            reactorThread.start();
-            REACTOR_THREADS[i] = reactorThread;
-        }
+    private volatile boolean sharedUdpChannelsEnabled;
+
+    /**
+     * Enable or disable the use of shared UDP channels. By default, every UDP query opens, connects and registers its
+     * own datagram channel. If shared UDP channels are enabled, every reactor thread sends the UDP queries via a small
+     * set of long-lived, unconnected datagram channels, each bound to a random source port, and matches the responses
+     * to the queries by the server address and port, the message id and the question. The channels are replaced by
+     * new ones with different source ports after they have been used for a couple of queries.
+     *
+     * @param enabled <code>true</code> to enable shared UDP channels.
+     */
+    public void setSharedUdpChannelsEnabled(boolean enabled) {
+        sharedUdpChannelsEnabled = enabled;
+    }
+
+    public boolean isSharedUdpChannelsEnabled() {
+        return sharedUdpChannelsEnabled;
+    }
+
+    @Override
+    public boolean isAsyncQueryNonBlocking() {
+        return true;
     }
 
     @Override
     public MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage message, InetAddress address, int port, OnResponseCallback onResponseCallback) {
-        AsyncDnsRequest asyncDnsRequest = new AsyncDnsRequest(message, address, port, udpPayloadSize, this, onResponseCallback);
-        INCOMING_REQUESTS.add(asyncDnsRequest);
-        synchronized (DEADLINE_QUEUE) {
-            DEADLINE_QUEUE.add(asyncDnsRequest);
-        }
-        SELECTOR.wakeup();
+        Reactor reactor = nextReactor();
+        AsyncDnsRequest asyncDnsRequest = new AsyncDnsRequest(message, address, port, udpPayloadSize, this, reactor, onResponseCallback);
+        reactor.submit(asyncDnsRequest);
         return asyncDnsRequest.getFuture();
     }
 
@@ -110,36 +144,88 @@ public class AsyncNetworkDataSource extends AbstractDnsDataSource {
         }
     }
 
-    SelectionKey registerWithSelector(SelectableChannel channel, int ops, Object attachment) throws ClosedChannelException {
-        REGISTRATION_LOCK.lock();
-        try {
-            SELECTOR.wakeup();
-            return channel.register(SELECTOR, ops, attachment);
-        } finally {
-            REGISTRATION_LOCK.unlock();
+    /**
+     * A reactor thread with its own selector, incoming request queue and deadline wheel. All channels of a request are
+     * registered with the selector of the reactor the request was assigned to, so the reactors do not share any state.
+     * <p>
+     * Only the incoming request queue is accessed by other threads. The deadlines of the requests are added to the
+     * deadline wheel by the reactor thread when it takes the requests from the incoming request queue, and removed by
+     * it when the requests are finished. Requests which are cancelled by other threads stay in the deadline wheel until
+     * their deadline, where they are simply dropped.
+     * </p>
+     */
+    static final class Reactor implements Runnable {
+
+        private final Queue<AsyncDnsRequest> incomingRequests = new ConcurrentLinkedQueue<>();
+
+        private final Selector selector;
+
+        private final Lock registrationLock = new ReentrantLock();
+
+        private final DeadlineWheel<AsyncDnsRequest> deadlineWheel = new DeadlineWheel<>(System.currentTimeMillis(),
+                DeadlineWheel.DEFAULT_TICK_DURATION, DeadlineWheel.DEFAULT_SLOT_COUNT);
+
+        private final List<AsyncDnsRequest> expiredRequests = new ArrayList<>();
+
+        /**
+         * The shared UDP channels of this reactor, lazily created and only accessed by the reactor thread.
+         */
+        private SharedUdpChannels sharedUdpChannels;
+
+        private Reactor(int number) {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+
+            Thread reactorThread = new Thread(this);
+            reactorThread.setDaemon(true);
+            reactorThread.setName("MiniDNS Reactor Thread #" + number);
+            reactorThread.start();
         }
-    }
 
-    void finished(AsyncDnsRequest asyncDnsRequest) {
-        synchronized (DEADLINE_QUEUE) {
-            DEADLINE_QUEUE.remove(asyncDnsRequest);
+        private void submit(AsyncDnsRequest asyncDnsRequest) {
+            incomingRequests.add(asyncDnsRequest);
+            selector.wakeup();
         }
-    }
 
-    void cancelled(AsyncDnsRequest asyncDnsRequest) {
-        finished(asyncDnsRequest);
-        // Wakeup since the async DNS request was removed from the deadline queue.
-        SELECTOR.wakeup();
-    }
+        SelectionKey registerWithSelector(SelectableChannel channel, int ops, Object attachment) throws ClosedChannelException {
+            registrationLock.lock();
+            try {
+                selector.wakeup();
+                return channel.register(selector, ops, attachment);
+            } finally {
+                registrationLock.unlock();
+            }
+        }
+
+        SharedUdpChannels getSharedUdpChannels() {
+            if (sharedUdpChannels == null) {
+                sharedUdpChannels = new SharedUdpChannels(this, SharedUdpChannels.DEFAULT_CHANNEL_COUNT,
+                        SharedUdpChannels.DEFAULT_MAX_USES_PER_CHANNEL);
+            }
+            return sharedUdpChannels;
+        }
+
+        /**
+         * Remove the deadline of a finished request. Must only be called by the reactor thread.
+         *
+         * @param asyncDnsRequest the finished request.
+         */
+        void finished(AsyncDnsRequest asyncDnsRequest) {
+            DeadlineWheel.Entry<AsyncDnsRequest> deadlineEntry = asyncDnsRequest.deadlineEntry;
+            if (deadlineEntry != null) {
+                asyncDnsRequest.deadlineEntry = null;
+                deadlineWheel.remove(deadlineEntry);
+            }
+        }
 
-    private static class Reactor implements Runnable {
         @Override
         public void run() {
             while (!Thread.interrupted()) {
-                Collection<SelectionKey> mySelectedKeys = performSelect();
-                handleSelectedKeys(mySelectedKeys);
-
-                handlePendingSelectionKeys();
+                Collection<SelectionKey> selectedKeys = performSelect();
+                handleSelectedKeys(selectedKeys);
 
                 handleIncomingRequests();
             }
@@ -153,141 +239,65 @@ public class AsyncNetworkDataSource extends AbstractDnsDataSource {
             }
         }
 
-        private static Collection<SelectionKey> performSelect() {
-            AsyncDnsRequest nearestDeadline = null;
-            AsyncDnsRequest nextInQueue;
-
-            synchronized (DEADLINE_QUEUE) {
-                while ((nextInQueue = DEADLINE_QUEUE.peek()) != null) {
-                    if (nextInQueue.wasDeadlineMissedAndFutureNotified()) {
-                        // We notified the future, associated with the AsyncDnsRequest nearestDeadline,
-                        // that the deadline has passed, hence remove it from the queue.
-                        DEADLINE_QUEUE.poll();
-                    } else {
-                        // We found a nearest deadline that has not yet passed, break out of the loop.
-                        nearestDeadline = nextInQueue;
-                        break;
+        private Collection<SelectionKey> performSelect() {
+            long now = System.currentTimeMillis();
+            deadlineWheel.expire(now, expiredRequests);
+            if (!expiredRequests.isEmpty()) {
+                for (AsyncDnsRequest asyncDnsRequest : expiredRequests) {
+                    asyncDnsRequest.deadlineEntry = null;
+                    if (!asyncDnsRequest.wasDeadlineMissedAndFutureNotified()) {
+                        // Should not happen, as the wheel never expires a deadline early. But be safe and re-add it.
+                        asyncDnsRequest.deadlineEntry = deadlineWheel.add(asyncDnsRequest, asyncDnsRequest.deadline);
                     }
                 }
-
+                expiredRequests.clear();
             }
 
-            long selectWait;
-            if (nearestDeadline == null) {
-                // There is no deadline, wait indefinitely in select().
-                selectWait = 0;
-            } else {
-                // There is a deadline in the future, only block in select() until the deadline.
-                selectWait = nextInQueue.deadline - System.currentTimeMillis();
-                if (selectWait < 0) {
-                    // We already have a missed deadline. Do not call select() and handle the tasks which are past their
-                    // deadline.
-                    return Collections.emptyList();
-                }
-            }
+            // Only block in select() until the next tick of the deadline wheel with a deadline, or indefinitely if
+            // there are no deadlines.
+            long selectWait = deadlineWheel.getTimeUntilNextTick(now);
 
-            List<SelectionKey> selectedKeys;
-            int newSelectedKeysCount;
-            synchronized (SELECTOR) {
-                // Ensure that a wakeup() in registerWithSelector() gives the corresponding
-                // register() in the same method the chance to actually register the channel. In
-                // other words: This construct ensure that there is never another select()
-                // between a corresponding wakeup() and register() calls.
-                // See also https://stackoverflow.com/a/1112809/194894
-                REGISTRATION_LOCK.lock();
-                REGISTRATION_LOCK.unlock();
-
-                try {
-                    newSelectedKeysCount = SELECTOR.select(selectWait);
-                } catch (IOException e) {
-                    LOGGER.log(Level.WARNING, "IOException while using select()", e);
-                    return Collections.emptyList();
-                }
-
-                if (newSelectedKeysCount == 0) {
-                    return Collections.emptyList();
-                }
-
-                Set<SelectionKey> selectedKeySet = SELECTOR.selectedKeys();
-                for (SelectionKey selectionKey : selectedKeySet) {
-                    selectionKey.interestOps(0);
-                }
+            // Ensure that a wakeup() in registerWithSelector() gives the corresponding
+            // register() in the same method the chance to actually register the channel. In
+            // other words: This construct ensure that there is never another select()
+            // between a corresponding wakeup() and register() calls.
+            // See also https://stackoverflow.com/a/1112809/194894
+            registrationLock.lock();
+            registrationLock.unlock();
 
-                selectedKeys = new ArrayList<>(selectedKeySet.size());
-                selectedKeys.addAll(selectedKeySet);
-                selectedKeySet.clear();
-            }
-
-            int selectedKeysCount = selectedKeys.size();
-
-            final Level LOG_LEVEL = Level.FINER;
-            if (LOGGER.isLoggable(LOG_LEVEL)) {
-                LOGGER.log(LOG_LEVEL, "New selected key count: " + newSelectedKeysCount + ". Total selected key count "
-                        + selectedKeysCount);
-            }
-
-            int myKeyCount = selectedKeysCount / REACTOR_THREAD_COUNT;
-            Collection<SelectionKey> mySelectedKeys = new ArrayList<>(myKeyCount);
-            Iterator<SelectionKey> it = selectedKeys.iterator();
-            for (int i = 0; i < myKeyCount; i++) {
-                SelectionKey selectionKey = it.next();
-                mySelectedKeys.add(selectionKey);
-            }
-            while (it.hasNext()) {
-                // Drain to PENDING_SELECTION_KEYS
-                SelectionKey selectionKey = it.next();
-                PENDING_SELECTION_KEYS.add(selectionKey);
+            int newSelectedKeysCount;
+            try {
+                newSelectedKeysCount = selector.select(selectWait);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "IOException while using select()", e);
+                return Collections.emptyList();
             }
-            return mySelectedKeys;
-        }
 
-        private static void handlePendingSelectionKeys() {
-            int pendingSelectionKeysSize = PENDING_SELECTION_KEYS.size();
-            if (pendingSelectionKeysSize == 0) {
-                return;
+            if (newSelectedKeysCount == 0) {
+                return Collections.emptyList();
             }
 
-            int myKeyCount = pendingSelectionKeysSize / REACTOR_THREAD_COUNT;
-            Collection<SelectionKey> selectedKeys = new ArrayList<>(myKeyCount);
-            for (int i = 0; i < myKeyCount; i++) {
-                SelectionKey selectionKey = PENDING_SELECTION_KEYS.poll();
-                if (selectionKey == null) {
-                    // We lost a race :)
-                    break;
-                }
+            Set<SelectionKey> selectedKeySet = selector.selectedKeys();
+            List<SelectionKey> selectedKeys = new ArrayList<>(selectedKeySet.size());
+            for (SelectionKey selectionKey : selectedKeySet) {
+                selectionKey.interestOps(0);
                 selectedKeys.add(selectionKey);
             }
+            selectedKeySet.clear();
 
-            if (!PENDING_SELECTION_KEYS.isEmpty()) {
-                // There is more work in the pending selection keys queue, wakeup another thread to handle it.
-                SELECTOR.wakeup();
+            final Level LOG_LEVEL = Level.FINER;
+            if (LOGGER.isLoggable(LOG_LEVEL)) {
+                LOGGER.log(LOG_LEVEL, "New selected key count: " + newSelectedKeysCount + ". Total selected key count "
+                        + selectedKeys.size());
             }
 
-            handleSelectedKeys(selectedKeys);
+            return selectedKeys;
         }
 
-        private static void handleIncomingRequests() {
-            int incomingRequestsSize = INCOMING_REQUESTS.size();
-            if (incomingRequestsSize == 0) {
-                return;
-            }
-
-            int myRequestsCount = incomingRequestsSize / REACTOR_THREAD_COUNT;
-            Collection<AsyncDnsRequest> requests = new ArrayList<>(myRequestsCount);
-            for (int i = 0; i < myRequestsCount; i++) {
-                AsyncDnsRequest asyncDnsRequest = INCOMING_REQUESTS.poll();
-                if (asyncDnsRequest == null) {
-                    // We lost a race :)
-                    break;
-                }
-                requests.add(asyncDnsRequest);
-            }
-
-            if (!INCOMING_REQUESTS.isEmpty()) {
-                SELECTOR.wakeup();
-            }
-
-            for (AsyncDnsRequest asyncDnsRequest : requests) {
+        private void handleIncomingRequests() {
+            AsyncDnsRequest asyncDnsRequest;
+            while ((asyncDnsRequest = incomingRequests.poll()) != null) {
+                asyncDnsRequest.deadlineEntry = deadlineWheel.add(asyncDnsRequest, asyncDnsRequest.deadline);
                 asyncDnsRequest.startHandling();
             }
         }
@@ -23,12 +23,17 @@ abstract class ChannelSelectedHandler {
 
     final Future<?> future;
 
+    /**
+     * Create a new handler.
+     *
+     * @param future the future of the request, or <code>null</code> if the channel is not owned by a single request.
+     */
     ChannelSelectedHandler(Future<?> future) {
         this.future = future;
     }
 
     void handleChannelSelected(SelectableChannel channel, SelectionKey selectionKey) {
-        if (future.isCancelled()) {
+        if (future != null && future.isCancelled()) {
             try {
                 channel.close();
             } catch (IOException e) {
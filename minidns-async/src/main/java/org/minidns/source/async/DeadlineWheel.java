@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source.async;
+
+import java.util.Collection;
+
+/**
+ * A hashed timing wheel for deadlines. The time is divided into ticks, and every deadline is put into the slot of the
+ * tick it falls into, so that adding and removing a deadline takes constant time. Deadlines more than one revolution of
+ * the wheel away share the slot with nearer deadlines and are skipped until their tick is reached.
+ * <p>
+ * This class is not thread safe. It is only used by the reactor thread owning it.
+ * </p>
+ *
+ * @param <E> the type of the elements with deadlines.
+ */
+final class DeadlineWheel<E> {
+
+    /**
+     * The default duration of a tick in milliseconds.
+     */
+    static final int DEFAULT_TICK_DURATION = 10;
+
+    /**
+     * The default number of slots. Together with the default tick duration, a revolution of the wheel is longer than
+     * the default timeout, so that most deadlines are expired in their first visit of their slot.
+     */
+    static final int DEFAULT_SLOT_COUNT = 512;
+
+    private final long startTime;
+
+    private final int tickDuration;
+
+    private final Entry<E>[] slots;
+
+    private final int mask;
+
+    /**
+     * The last tick whose slot has been processed.
+     */
+    private long currentTick;
+
+    private int size;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    DeadlineWheel(long startTime, int tickDuration, int slotCount) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("The slot count must be a power of two");
+        }
+        this.startTime = startTime;
+        this.tickDuration = tickDuration;
+        this.slots = new Entry[slotCount];
+        this.mask = slotCount - 1;
+    }
+
+    /**
+     * Add an element with the given deadline.
+     *
+     * @param element the element.
+     * @param deadline the deadline in milliseconds since the epoch.
+     * @return the entry of the element, which can be used to remove it.
+     */
+    Entry<E> add(E element, long deadline) {
+        // Round up, so that the element is never expired before its deadline.
+        long tick = (deadline - startTime + tickDuration - 1) / tickDuration;
+        if (tick <= currentTick) {
+            // The deadline has already passed, or falls into the tick which has already been processed.
+            tick = currentTick + 1;
+        }
+
+        Entry<E> entry = new Entry<>(element, tick);
+        int slot = (int) (tick & mask);
+        Entry<E> head = slots[slot];
+        if (head != null) {
+            entry.next = head;
+            head.prev = entry;
+        }
+        slots[slot] = entry;
+        entry.wheel = this;
+        size++;
+        return entry;
+    }
+
+    /**
+     * Remove the given entry. Does nothing if the entry was already removed or expired.
+     *
+     * @param entry the entry.
+     */
+    void remove(Entry<E> entry) {
+        if (entry.wheel != this) {
+            return;
+        }
+        unlink(entry);
+    }
+
+    /**
+     * Expire all elements whose deadline is not after the given time.
+     *
+     * @param now the current time in milliseconds since the epoch.
+     * @param expired the collection to which the expired elements are added.
+     */
+    void expire(long now, Collection<? super E> expired) {
+        final long nowTick = (now - startTime) / tickDuration;
+        if (nowTick - currentTick > slots.length) {
+            // More than one revolution is due, visit every slot only once.
+            for (int slot = 0; slot < slots.length; slot++) {
+                expireSlot(slot, nowTick, expired);
+            }
+            currentTick = nowTick;
+            return;
+        }
+        while (currentTick < nowTick) {
+            if (size == 0) {
+                // Nothing to expire, jump right to the current tick.
+                currentTick = nowTick;
+                break;
+            }
+            currentTick++;
+            expireSlot((int) (currentTick & mask), currentTick, expired);
+        }
+    }
+
+    private void expireSlot(int slot, long tick, Collection<? super E> expired) {
+        Entry<E> entry = slots[slot];
+        while (entry != null) {
+            Entry<E> next = entry.next;
+            if (entry.tick <= tick) {
+                unlink(entry);
+                expired.add(entry.element);
+            }
+            entry = next;
+        }
+    }
+
+    /**
+     * Get the time until the next tick which needs to be processed, i.e. the next tick whose slot holds a deadline.
+     * Ticks with empty slots are skipped, so that an idle reactor is not woken up every tick. A deadline more than one
+     * revolution away may still cause an early wakeup when its slot is reached.
+     *
+     * @param now the current time in milliseconds since the epoch.
+     * @return the time in milliseconds, or <code>0</code> if there are no deadlines.
+     */
+    long getTimeUntilNextTick(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        long nextTick = currentTick + 1;
+        for (int i = 1; i <= slots.length; i++) {
+            if (slots[(int) ((currentTick + i) & mask)] != null) {
+                nextTick = currentTick + i;
+                break;
+            }
+        }
+        long nextTickTime = startTime + nextTick * tickDuration;
+        return Math.max(1, nextTickTime - now);
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void unlink(Entry<E> entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            slots[(int) (entry.tick & mask)] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.wheel = null;
+        size--;
+    }
+
+    static final class Entry<E> {
+        private final E element;
+
+        private final long tick;
+
+        private DeadlineWheel<E> wheel;
+
+        private Entry<E> prev;
+
+        private Entry<E> next;
+
+        private Entry(E element, long tick) {
+            this.element = element;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source.async;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.minidns.dnsmessage.DnsMessage;
+
+/**
+ * A small set of long-lived, unconnected UDP channels of a reactor, which are shared by many in-flight requests.
+ * Responses are demultiplexed to the requests by the server address and port, the message id and the question.
+ * <p>
+ * Every channel is bound to a random source port and is retired after it was used for a certain number of requests,
+ * so that the source ports keep changing over time. A retired channel is closed once all of its requests are
+ * finished.
+ * </p>
+ * <p>
+ * Except for {@link SharedChannel#remove(AsyncDnsRequest)}, the methods of this class must only be called by the
+ * reactor thread.
+ * </p>
+ *
+ * @see AsyncNetworkDataSource#setSharedUdpChannelsEnabled(boolean)
+ */
+class SharedUdpChannels {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedUdpChannels.class.getName());
+
+    /**
+     * The default number of shared channels per reactor.
+     */
+    static final int DEFAULT_CHANNEL_COUNT = 4;
+
+    /**
+     * The default number of requests after which a channel is retired and replaced by one with a new random source
+     * port.
+     */
+    static final int DEFAULT_MAX_USES_PER_CHANNEL = 64;
+
+    private static final SecureRandom PORT_RANDOM = new SecureRandom();
+
+    private final AsyncNetworkDataSource.Reactor reactor;
+
+    private final SharedChannel[] channels;
+
+    private final int maxUsesPerChannel;
+
+    private final List<SharedChannel> retiredChannels = new ArrayList<>();
+
+    /**
+     * The receive buffer, which is shared by all channels, since all of them are only read by the reactor thread.
+     */
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(0xffff);
+
+    private int nextChannel;
+
+    SharedUdpChannels(AsyncNetworkDataSource.Reactor reactor, int channelCount, int maxUsesPerChannel) {
+        this.reactor = reactor;
+        this.channels = new SharedChannel[channelCount];
+        this.maxUsesPerChannel = maxUsesPerChannel;
+    }
+
+    /**
+     * Send the query of the given request using one of the shared channels.
+     *
+     * @param asyncDnsRequest the request.
+     * @return the channel used to send the query, or <code>null</code> if no shared channel could be used, in which
+     *         case the caller should use a dedicated channel.
+     */
+    SharedChannel send(AsyncDnsRequest asyncDnsRequest) {
+        closeFinishedRetiredChannels();
+
+        int index = nextChannel;
+        nextChannel = (nextChannel + 1) % channels.length;
+
+        SharedChannel channel = channels[index];
+        if (channel == null || channel.uses >= maxUsesPerChannel) {
+            if (channel != null) {
+                retiredChannels.add(channel);
+                channels[index] = null;
+            }
+            channel = openChannel();
+            if (channel == null) {
+                return null;
+            }
+            channels[index] = channel;
+        }
+
+        ResponseKey key = new ResponseKey(asyncDnsRequest.socketAddress, asyncDnsRequest.request.id);
+        if (channel.pending.putIfAbsent(key, asyncDnsRequest) != null) {
+            // There is already an in-flight request with the same id to the same server on this channel.
+            return null;
+        }
+        channel.uses++;
+
+        int sent;
+        try {
+            sent = channel.datagramChannel.send(asyncDnsRequest.request.getInByteBuffer(), asyncDnsRequest.socketAddress);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Exception sending via shared datagram channel", e);
+            sent = 0;
+        }
+        if (sent == 0) {
+            // The datagram was not sent, e.g. because the send buffer of the channel is full.
+            channel.pending.remove(key);
+            return null;
+        }
+        asyncDnsRequest.udpDatagramSent();
+        return channel;
+    }
+
+    private SharedChannel openChannel() {
+        DatagramChannel datagramChannel;
+        try {
+            datagramChannel = DatagramChannel.open();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not open shared datagram channel", e);
+            return null;
+        }
+        try {
+            datagramChannel.configureBlocking(false);
+            bindToRandomPort(datagramChannel);
+            return new SharedChannel(datagramChannel);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not set up shared datagram channel", e);
+            try {
+                datagramChannel.close();
+            } catch (IOException e2) {
+                LOGGER.log(Level.FINE, "Exception closing datagram channel", e2);
+            }
+            return null;
+        }
+    }
+
+    private static void bindToRandomPort(DatagramChannel datagramChannel) throws IOException {
+        for (int i = 0; i < 16; i++) {
+            // Use one of the non-privileged ports.
+            int port = 1024 + PORT_RANDOM.nextInt(65536 - 1024);
+            try {
+                datagramChannel.socket().bind(new InetSocketAddress(port));
+                return;
+            } catch (BindException e) {
+                LOGGER.log(Level.FINEST, "Could not bind to random port " + port, e);
+            }
+        }
+        // Let the system choose the port.
+        datagramChannel.socket().bind(null);
+    }
+
+    private void closeFinishedRetiredChannels() {
+        for (Iterator<SharedChannel> it = retiredChannels.iterator(); it.hasNext();) {
+            SharedChannel channel = it.next();
+            if (channel.pending.isEmpty()) {
+                it.remove();
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * A shared channel together with its in-flight requests.
+     */
+    final class SharedChannel extends ChannelSelectedHandler {
+
+        private final DatagramChannel datagramChannel;
+
+        private final ConcurrentMap<ResponseKey, AsyncDnsRequest> pending = new ConcurrentHashMap<>();
+
+        private int uses;
+
+        private SharedChannel(DatagramChannel datagramChannel) throws IOException {
+            super(null);
+            this.datagramChannel = datagramChannel;
+            reactor.registerWithSelector(datagramChannel, SelectionKey.OP_READ, this);
+        }
+
+        /**
+         * Remove the given request, e.g. because it was cancelled or its deadline was missed. This method may be
+         * called by any thread.
+         *
+         * @param asyncDnsRequest the request.
+         */
+        void remove(AsyncDnsRequest asyncDnsRequest) {
+            ResponseKey key = new ResponseKey(asyncDnsRequest.socketAddress, asyncDnsRequest.request.id);
+            pending.remove(key, asyncDnsRequest);
+        }
+
+        @Override
+        protected void handleChannelSelectedAndNotCancelled(SelectableChannel channel, SelectionKey selectionKey) {
+            while (true) {
+                receiveBuffer.clear();
+                SocketAddress sender;
+                try {
+                    sender = datagramChannel.receive(receiveBuffer);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Exception receiving from shared datagram channel", e);
+                    break;
+                }
+                if (sender == null) {
+                    // No more datagrams available.
+                    break;
+                }
+                receiveBuffer.flip();
+                handleDatagram(sender);
+            }
+
+            if (selectionKey.isValid()) {
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            }
+            closeFinishedRetiredChannels();
+        }
+
+        private void handleDatagram(SocketAddress sender) {
+            DnsMessage response;
+            try {
+                response = new DnsMessage(receiveBuffer);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Discarding malformed datagram from " + sender, e);
+                return;
+            }
+
+            ResponseKey key = new ResponseKey(sender, response.id);
+            AsyncDnsRequest asyncDnsRequest = pending.get(key);
+            if (asyncDnsRequest == null || !isResponseTo(asyncDnsRequest.request, response)) {
+                // Late responses to requests which are already finished, or datagrams from other hosts.
+                LOGGER.log(Level.FINE, "Discarding unexpected response with id {0} from {1}",
+                        new Object[] { response.id, sender });
+                return;
+            }
+            if (!pending.remove(key, asyncDnsRequest)) {
+                // The request was cancelled in the meantime.
+                return;
+            }
+            asyncDnsRequest.handleSharedUdpResponse(response);
+        }
+
+        private void close() {
+            try {
+                datagramChannel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Exception closing shared datagram channel", e);
+            }
+        }
+    }
+
+    private static boolean isResponseTo(DnsMessage query, DnsMessage response) {
+        if (query.questions.isEmpty()) {
+            return true;
+        }
+        return !response.questions.isEmpty() && query.getQuestion().equals(response.getQuestion());
+    }
+
+    private static final class ResponseKey {
+        private final SocketAddress server;
+
+        private final int id;
+
+        private ResponseKey(SocketAddress server, int id) {
+            this.server = server;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return server.hashCode() * 31 + id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof ResponseKey)) {
+                return false;
+            }
+            ResponseKey otherKey = (ResponseKey) other;
+            return id == otherKey.id && server.equals(otherKey.server);
+        }
+    }
+}
@@ -10,10 +10,34 @@
  */
 package org.minidns.source.async;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.BeforeClass;
 import org.junit.Test;
+import org.minidns.MiniDnsFuture;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.record.Record.TYPE;
 
 public class AsyncNetworkDataSourceTest {
 
+    @BeforeClass
+    public static void setUpReactors() {
+        AsyncNetworkDataSource.setReactorThreadCount(3);
+    }
+
     /**
      * Dummy test to make jacocoRootReport happy.
      */
@@ -21,4 +45,98 @@ public class AsyncNetworkDataSourceTest {
     public void nopTest() {
     }
 
+    @Test
+    public void multipleReactorsTest() throws Exception {
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final int queries = 10;
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < queries; i++) {
+                        DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                        server.receive(packet);
+                        DnsMessage query = new DnsMessage(Arrays.copyOf(packet.getData(), packet.getLength()));
+                        byte[] response = query.asBuilder().setQrFlag(true).build().toArray();
+                        server.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        serverThread.start();
+
+        AsyncNetworkDataSource dataSource = new AsyncNetworkDataSource();
+        List<MiniDnsFuture<DnsQueryResult, IOException>> futures = new ArrayList<>(queries);
+        try {
+            for (int i = 0; i < queries; i++) {
+                DnsMessage query = DnsMessage.builder().setId(i).setQuestion(new Question("example.org", TYPE.A)).build();
+                futures.add(dataSource.queryAsync(query, server.getLocalAddress(), server.getLocalPort(), null));
+            }
+            for (int i = 0; i < queries; i++) {
+                DnsMessage response = futures.get(i).getOrThrow().response;
+                assertEquals(i, response.id);
+                assertTrue(response.qr);
+            }
+        } finally {
+            serverThread.join();
+            server.close();
+        }
+        assertEquals(3, AsyncNetworkDataSource.getReactorThreadCount());
+    }
+
+    @Test
+    public void sharedUdpChannelsTest() throws Exception {
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final int queries = 20;
+        final Set<Integer> sourcePorts = new HashSet<>();
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < queries; i++) {
+                        DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                        server.receive(packet);
+                        sourcePorts.add(packet.getPort());
+                        DnsMessage query = new DnsMessage(Arrays.copyOf(packet.getData(), packet.getLength()));
+
+                        // A response for another question, which must not be matched to the query.
+                        byte[] wrongQuestion = query.asBuilder().setQrFlag(true)
+                                .setQuestion(new Question("example.com", TYPE.A)).build().toArray();
+                        server.send(new DatagramPacket(wrongQuestion, wrongQuestion.length, packet.getSocketAddress()));
+                        byte[] response = query.asBuilder().setQrFlag(true).build().toArray();
+                        server.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        serverThread.start();
+
+        AsyncNetworkDataSource dataSource = new AsyncNetworkDataSource();
+        dataSource.setSharedUdpChannelsEnabled(true);
+        List<MiniDnsFuture<DnsQueryResult, IOException>> futures = new ArrayList<>(queries);
+        try {
+            for (int i = 0; i < queries; i++) {
+                DnsMessage query = DnsMessage.builder().setId(i).setQuestion(new Question("example.org", TYPE.A)).build();
+                futures.add(dataSource.queryAsync(query, server.getLocalAddress(), server.getLocalPort(), null));
+            }
+            for (int i = 0; i < queries; i++) {
+                DnsQueryResult result = futures.get(i).getOrThrow();
+                assertEquals(i, result.response.id);
+                assertEquals("example.org", result.response.getQuestion().name.toString());
+                assertEquals(DnsQueryResult.QueryMethod.asyncUdp, result.queryMethod);
+            }
+        } finally {
+            serverThread.join();
+            server.close();
+        }
+
+        // The queries were sent using at most the shared channels of every reactor.
+        int maxChannels = AsyncNetworkDataSource.getReactorThreadCount() * SharedUdpChannels.DEFAULT_CHANNEL_COUNT;
+        assertTrue(sourcePorts.size() <= maxChannels);
+    }
+
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeadlineWheelTest {
+
+    @Test
+    public void expireTest() {
+        DeadlineWheel<String> wheel = new DeadlineWheel<>(1000, 10, 8);
+        wheel.add("a", 1015);
+        wheel.add("b", 1020);
+        // More than one revolution away, shares the slot with "a".
+        wheel.add("c", 1015 + 8 * 10);
+        DeadlineWheel.Entry<String> d = wheel.add("d", 1030);
+        assertEquals(4, wheel.size());
+
+        List<String> expired = new ArrayList<>();
+        wheel.expire(1019, expired);
+        assertTrue(expired.isEmpty());
+
+        wheel.expire(1020, expired);
+        assertEquals(Arrays.asList("a", "b"), sorted(expired));
+        expired.clear();
+
+        wheel.remove(d);
+        // Removing twice is a no-op.
+        wheel.remove(d);
+        assertEquals(1, wheel.size());
+
+        wheel.expire(1094, expired);
+        assertTrue(expired.isEmpty());
+        assertEquals(6, wheel.getTimeUntilNextTick(1094));
+
+        wheel.expire(1100, expired);
+        assertEquals(Collections.singletonList("c"), expired);
+        assertEquals(0, wheel.size());
+        assertEquals(0, wheel.getTimeUntilNextTick(1100));
+    }
+
+    @Test
+    public void timeUntilNextTickTest() {
+        DeadlineWheel<String> wheel = new DeadlineWheel<>(0, 10, 8);
+        wheel.add("a", 50);
+        // Empty slots are skipped.
+        assertEquals(50, wheel.getTimeUntilNextTick(0));
+        assertEquals(8, wheel.getTimeUntilNextTick(42));
+
+        List<String> expired = new ArrayList<>();
+        wheel.expire(50, expired);
+        assertEquals(Collections.singletonList("a"), expired);
+
+        // More than one revolution away, hence woken up early when its slot is reached.
+        wheel.add("b", 250);
+        assertEquals(40, wheel.getTimeUntilNextTick(50));
+    }
+
+    @Test
+    public void expireAfterManyRevolutionsTest() {
+        DeadlineWheel<String> wheel = new DeadlineWheel<>(0, 10, 8);
+        wheel.add("a", 50);
+        wheel.add("b", 5000);
+        wheel.add("c", 10000);
+
+        List<String> expired = new ArrayList<>();
+        wheel.expire(5000, expired);
+        assertEquals(Arrays.asList("a", "b"), sorted(expired));
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void addPastDeadlineTest() {
+        DeadlineWheel<String> wheel = new DeadlineWheel<>(0, 10, 8);
+        wheel.expire(100, new ArrayList<String>());
+        wheel.add("a", 20);
+
+        List<String> expired = new ArrayList<>();
+        wheel.expire(110, expired);
+        assertEquals(Collections.singletonList("a"), expired);
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> result = new ArrayList<>(list);
+        Collections.sort(result);
+        return result;
+    }
+}
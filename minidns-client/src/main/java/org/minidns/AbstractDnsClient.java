@@ -15,7 +15,9 @@ import org.minidns.cache.LruCache;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsmessage.Question;
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
 import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.StaleCachedDnsQueryResult;
 import org.minidns.record.A;
 import org.minidns.record.AAAA;
 import org.minidns.record.Data;
@@ -23,17 +25,31 @@ import org.minidns.record.NS;
 import org.minidns.record.Record;
 import org.minidns.record.Record.CLASS;
 import org.minidns.record.Record.TYPE;
+import org.minidns.source.AbstractDnsDataSource;
 import org.minidns.source.DnsDataSource;
 import org.minidns.source.NetworkDataSource;
+import org.minidns.source.UpstreamStatistics;
+import org.minidns.util.ExceptionCallback;
+import org.minidns.util.SuccessCallback;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -75,6 +91,39 @@ public abstract class AbstractDnsClient {
 
     protected DnsDataSource dataSource = new NetworkDataSource();
 
+    private static final Executor DEFAULT_PREFETCH_EXECUTOR;
+
+    static {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName("MiniDNS Prefetch Thread");
+                return thread;
+            }
+        };
+        // Prefetches are an optimization, if the queue is full they are simply dropped.
+        DEFAULT_PREFETCH_EXECUTOR = new ThreadPoolExecutor(0, 2, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(128), threadFactory);
+    }
+
+    private volatile float prefetchThreshold;
+
+    private volatile Executor prefetchExecutor = DEFAULT_PREFETCH_EXECUTOR;
+
+    /**
+     * The normalized queries for which a prefetch is in progress.
+     */
+    private final Set<DnsMessage> prefetching = Collections.newSetFromMap(new ConcurrentHashMap<DnsMessage, Boolean>());
+
+    private volatile boolean requestCoalescingEnabled = true;
+
+    /**
+     * The queries currently in flight by their normalized version, used to coalesce concurrent identical queries.
+     */
+    private final ConcurrentMap<DnsMessage, InFlightQuery> inFlightQueries = new ConcurrentHashMap<>();
+
     public enum IpVersionSetting {
 
         v4only(true, false),
@@ -185,7 +234,25 @@ public abstract class AbstractDnsClient {
 
     public DnsQueryResult query(Question q) throws IOException {
         DnsMessage.Builder query = buildMessage(q);
-        return query(query);
+        DnsQueryResult result;
+        try {
+            result = queryCoalesced(query);
+        } catch (IOException e) {
+            DnsQueryResult staleResult = getStaleFromCache(query);
+            if (staleResult == null) {
+                throw e;
+            }
+            LOGGER.log(Level.FINE, "Serving stale data for " + q + " after exception", e);
+            return staleResult;
+        }
+        if (isServerFailure(result)) {
+            DnsQueryResult staleResult = getStaleFromCache(query);
+            if (staleResult != null) {
+                LOGGER.log(Level.FINE, "Serving stale data for " + q + " after " + result.response.responseCode + " response");
+                return staleResult;
+            }
+        }
+        return result;
     }
 
     /**
@@ -203,8 +270,259 @@ public abstract class AbstractDnsClient {
     }
 
     public final MiniDnsFuture<DnsQueryResult, IOException> queryAsync(Question q) {
-        DnsMessage.Builder query = buildMessage(q);
-        return queryAsync(query);
+        final DnsMessage.Builder query = buildMessage(q);
+        final MiniDnsFuture<DnsQueryResult, IOException> future = queryAsyncCoalesced(query);
+        if (cache == null || !cache.retainsStaleData()) {
+            return future;
+        }
+
+        final InternalMiniDnsFuture<DnsQueryResult, IOException> staleAwareFuture = new InternalMiniDnsFuture<DnsQueryResult, IOException>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                future.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        future.onSuccess(new SuccessCallback<DnsQueryResult>() {
+            @Override
+            public void onSuccess(DnsQueryResult result) {
+                DnsQueryResult staleResult = null;
+                if (isServerFailure(result)) {
+                    staleResult = getStaleFromCache(query);
+                }
+                staleAwareFuture.setResult(staleResult != null ? staleResult : result);
+            }
+        });
+        future.onError(new ExceptionCallback<IOException>() {
+            @Override
+            public void processException(IOException exception) {
+                DnsQueryResult staleResult = getStaleFromCache(query);
+                if (staleResult != null) {
+                    staleAwareFuture.setResult(staleResult);
+                } else {
+                    staleAwareFuture.setException(exception);
+                }
+            }
+        });
+        return staleAwareFuture;
+    }
+
+    private DnsQueryResult queryCoalesced(DnsMessage.Builder query) throws IOException {
+        if (!requestCoalescingEnabled) {
+            return query(query);
+        }
+
+        final DnsMessage normalizedQuery = query.build().asNormalizedVersion();
+        while (true) {
+            InFlightQuery inFlightQuery = new InFlightQuery(normalizedQuery);
+            InFlightQuery existing = inFlightQueries.putIfAbsent(normalizedQuery, inFlightQuery);
+            if (existing != null) {
+                MiniDnsFuture<DnsQueryResult, IOException> future = existing.subscribe();
+                if (future == null) {
+                    // The query was finished in the meantime.
+                    continue;
+                }
+                return future.getOrThrow();
+            }
+
+            DnsQueryResult result = null;
+            IOException exception = null;
+            try {
+                result = query(query);
+            } catch (IOException e) {
+                exception = e;
+                throw e;
+            } finally {
+                inFlightQuery.complete(result, exception);
+            }
+            return result;
+        }
+    }
+
+    private MiniDnsFuture<DnsQueryResult, IOException> queryAsyncCoalesced(DnsMessage.Builder query) {
+        if (!requestCoalescingEnabled) {
+            return queryAsync(query);
+        }
+
+        final DnsMessage normalizedQuery = query.build().asNormalizedVersion();
+        while (true) {
+            InFlightQuery inFlightQuery = new InFlightQuery(normalizedQuery);
+            InFlightQuery existing = inFlightQueries.putIfAbsent(normalizedQuery, inFlightQuery);
+            if (existing != null) {
+                MiniDnsFuture<DnsQueryResult, IOException> future = existing.subscribe();
+                if (future == null) {
+                    // The query was finished in the meantime.
+                    continue;
+                }
+                return future;
+            }
+
+            MiniDnsFuture<DnsQueryResult, IOException> future = inFlightQuery.subscribe();
+            MiniDnsFuture<DnsQueryResult, IOException> upstream = null;
+            try {
+                upstream = queryAsync(query);
+            } finally {
+                if (upstream == null) {
+                    inFlightQuery.complete(null, null);
+                }
+            }
+            inFlightQuery.setUpstream(upstream);
+            return future;
+        }
+    }
+
+    /**
+     * Look up the given query in the cache. If prefetching is enabled and the cached result has already passed the
+     * prefetch threshold of its TTL, the result is refreshed in the background.
+     *
+     * @param query the query.
+     * @return the cached result or <code>null</code>.
+     */
+    protected final DnsQueryResult getFromCache(DnsMessage query) {
+        if (cache == null) {
+            return null;
+        }
+        CachedDnsQueryResult cachedResult = cache.get(query);
+        if (cachedResult != null && prefetchThreshold > 0) {
+            maybePrefetch(query, cachedResult);
+        }
+        return cachedResult;
+    }
+
+    /**
+     * Check if the given result is a response of a server which failed to answer, in which case stale data is served
+     * instead if available.
+     *
+     * @param result the result.
+     * @return <code>true</code> if the response code is SERVFAIL or REFUSED.
+     */
+    private static boolean isServerFailure(DnsQueryResult result) {
+        if (result == null || result.response == null) {
+            return false;
+        }
+        switch (result.response.responseCode) {
+        case SERVER_FAIL:
+        case REFUSED:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private DnsQueryResult getStaleFromCache(DnsMessage.Builder query) {
+        if (cache == null || !cache.retainsStaleData()) {
+            return null;
+        }
+        DnsMessage q = newQuestion(query).build();
+        CachedDnsQueryResult staleResult = cache.getStale(q);
+        if (staleResult == null) {
+            return null;
+        }
+        return new StaleCachedDnsQueryResult(q, staleResult);
+    }
+
+    private void maybePrefetch(DnsMessage query, CachedDnsQueryResult cachedResult) {
+        final DnsMessage response = cachedResult.response;
+        final long ttl = response.getCacheTtl();
+        if (ttl <= 0 || response.receiveTimestamp <= 0) {
+            return;
+        }
+        final long age = System.currentTimeMillis() - response.receiveTimestamp;
+        if (age < ttl * 1000 * prefetchThreshold) {
+            return;
+        }
+
+        final DnsMessage normalizedQuery = query.asNormalizedVersion();
+        if (!prefetching.add(normalizedQuery)) {
+            // There is already a prefetch in progress.
+            return;
+        }
+
+        // Start from the question only, as the query method adds the EDNS record and flags again.
+        final DnsMessage.Builder prefetchQuery = DnsMessage.builder().setQuestion(query.getQuestion())
+                .setId(random.nextInt());
+        try {
+            prefetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    prefetch(normalizedQuery, prefetchQuery);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            prefetching.remove(normalizedQuery);
+            LOGGER.log(Level.FINE, "Dropping prefetch of " + query.getQuestion(), e);
+        }
+    }
+
+    private void prefetch(final DnsMessage normalizedQuery, final DnsMessage.Builder prefetchQuery) {
+        MiniDnsFuture<DnsQueryResult, IOException> future = queryAsync(prefetchQuery, true);
+
+        future.onSuccess(new SuccessCallback<DnsQueryResult>() {
+            @Override
+            public void onSuccess(DnsQueryResult result) {
+                prefetching.remove(normalizedQuery);
+                // Not all data sources invoke the response callback for asynchronous queries, hence put the result
+                // into the cache here.
+                if (!(result instanceof CachedDnsQueryResult) && isResponseCacheable(normalizedQuery.getQuestion(), result)) {
+                    cache.put(normalizedQuery, result);
+                }
+            }
+        });
+        future.onError(new ExceptionCallback<IOException>() {
+            @Override
+            public void processException(IOException exception) {
+                prefetching.remove(normalizedQuery);
+                LOGGER.log(Level.FINE, "Prefetch of " + normalizedQuery.getQuestion() + " failed", exception);
+            }
+        });
+    }
+
+    /**
+     * Set the prefetch threshold. If a cached result is requested after the given fraction of its TTL has passed, it is
+     * refreshed in the background using an asynchronous query, so that popular entries do not expire and subsequent
+     * requests are still answered from the cache. For example, with a threshold of <code>0.8</code> and a TTL of 300
+     * seconds, results are refreshed when they are requested in the last minute before they expire. The default is
+     * <code>0</code>, which disables prefetching.
+     *
+     * @param prefetchThreshold the fraction of the TTL between <code>0</code> (exclusive) and <code>1</code>
+     *        (exclusive), or <code>0</code> to disable prefetching.
+     */
+    public void setPrefetchThreshold(float prefetchThreshold) {
+        if (prefetchThreshold < 0 || prefetchThreshold >= 1) {
+            throw new IllegalArgumentException("The prefetch threshold must be at least 0 and less than 1");
+        }
+        this.prefetchThreshold = prefetchThreshold;
+    }
+
+    public float getPrefetchThreshold() {
+        return prefetchThreshold;
+    }
+
+    /**
+     * Set the executor used to start prefetch queries. By default, a small shared pool of daemon threads is used.
+     *
+     * @param prefetchExecutor the executor.
+     */
+    public void setPrefetchExecutor(Executor prefetchExecutor) {
+        if (prefetchExecutor == null) {
+            throw new IllegalArgumentException();
+        }
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * Enable or disable the coalescing of concurrent identical queries. If enabled, which is the default, a query
+     * started while an identical query is already in flight does not cause another upstream query, but waits for the
+     * result of the query in flight. This applies to {@link #query(Question)} and {@link #queryAsync(Question)}.
+     *
+     * @param requestCoalescingEnabled <code>true</code> to enable request coalescing.
+     */
+    public void setRequestCoalescingEnabled(boolean requestCoalescingEnabled) {
+        this.requestCoalescingEnabled = requestCoalescingEnabled;
+    }
+
+    public boolean isRequestCoalescingEnabled() {
+        return requestCoalescingEnabled;
     }
 
     /**
@@ -229,14 +547,70 @@ public abstract class AbstractDnsClient {
         return future;
     }
 
+    /**
+     * Query the upstream servers, optionally without answering the query from the cache, e.g. to refresh a cached
+     * result. The default implementation ignores <code>bypassCache</code> and uses {@link #query(DnsMessage.Builder)}.
+     * Subclasses which answer queries from the cache override this method and pass the bypass down to
+     * {@link #query(DnsMessage, InetAddress, int, boolean)}.
+     *
+     * @param query the query.
+     * @param bypassCache <code>true</code> if the query must not be answered from the cache.
+     * @return the result.
+     * @throws IOException if an IO error occurs.
+     */
+    protected DnsQueryResult query(DnsMessage.Builder query, boolean bypassCache) throws IOException {
+        return query(query);
+    }
+
+    /**
+     * Asynchronously query the upstream servers, optionally without answering the query from the cache. The default
+     * implementation uses {@link #queryAsync(DnsMessage.Builder)} for regular queries, and wraps
+     * {@link #query(DnsMessage.Builder, boolean)} otherwise.
+     *
+     * @param query the query.
+     * @param bypassCache <code>true</code> if the query must not be answered from the cache.
+     * @return a future for this query.
+     */
+    protected MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage.Builder query, boolean bypassCache) {
+        if (!bypassCache) {
+            return queryAsync(query);
+        }
+        InternalMiniDnsFuture<DnsQueryResult, IOException> future = new InternalMiniDnsFuture<>();
+        DnsQueryResult result;
+        try {
+            result = query(query, true);
+        } catch (IOException e) {
+            future.setException(e);
+            return future;
+        }
+        future.setResult(result);
+        return future;
+    }
+
     public final DnsQueryResult query(Question q, InetAddress server, int port) throws IOException {
         DnsMessage query = getQueryFor(q);
         return query(query, server, port);
     }
 
     public final DnsQueryResult query(DnsMessage requestMessage, InetAddress address, int port) throws IOException {
+        return query(requestMessage, address, port, false);
+    }
+
+    /**
+     * Query a specific server, optionally without answering the query from the cache.
+     *
+     * @param requestMessage the query.
+     * @param address the server address.
+     * @param port the server port.
+     * @param bypassCache <code>true</code> if the query must not be answered from the cache, e.g. to refresh a cached
+     *        result.
+     * @return the result.
+     * @throws IOException if an IO error occurs.
+     */
+    public final DnsQueryResult query(DnsMessage requestMessage, InetAddress address, int port, boolean bypassCache)
+            throws IOException {
         // See if we have the answer to this question already cached
-        DnsQueryResult responseMessage = (cache == null) ? null : cache.get(requestMessage);
+        DnsQueryResult responseMessage = bypassCache ? null : getFromCache(requestMessage);
         if (responseMessage != null) {
             return responseMessage;
         }
@@ -261,8 +635,23 @@ public abstract class AbstractDnsClient {
     }
 
     public final MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage requestMessage, InetAddress address, int port) {
+        return queryAsync(requestMessage, address, port, false);
+    }
+
+    /**
+     * Asynchronously query a specific server, optionally without answering the query from the cache.
+     *
+     * @param requestMessage the query.
+     * @param address the server address.
+     * @param port the server port.
+     * @param bypassCache <code>true</code> if the query must not be answered from the cache, e.g. to refresh a cached
+     *        result.
+     * @return a future for this query.
+     */
+    public final MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage requestMessage, InetAddress address,
+            int port, boolean bypassCache) {
         // See if we have the answer to this question already cached
-        DnsQueryResult responseMessage = (cache == null) ? null : cache.get(requestMessage);
+        DnsQueryResult responseMessage = bypassCache ? null : getFromCache(requestMessage);
         if (responseMessage != null) {
             return MiniDnsFuture.from(responseMessage);
         }
@@ -289,7 +678,8 @@ public abstract class AbstractDnsClient {
                 return true;
             }
         }
-        return false;
+        // Negative responses are only cacheable if they carry a SOA record, see RFC 2308 § 5.
+        return dnsMessage.getNegativeTtl() >= 0;
     }
 
     /**
@@ -401,6 +791,20 @@ public abstract class AbstractDnsClient {
         this.dataSource = dataSource;
     }
 
+    /**
+     * Get the statistics about upstream servers of the data source, which are used to prefer the fastest servers.
+     *
+     * @return the upstream statistics or <code>null</code> if the data source does not keep any.
+     * @see AbstractDnsDataSource#setUpstreamStatistics(UpstreamStatistics)
+     */
+    protected UpstreamStatistics getUpstreamStatistics() {
+        DnsDataSource dataSource = this.dataSource;
+        if (!(dataSource instanceof AbstractDnsDataSource)) {
+            return null;
+        }
+        return ((AbstractDnsDataSource) dataSource).getUpstreamStatistics();
+    }
+
     /**
      * Get the cache used by this DNS client.
      *
@@ -471,4 +875,120 @@ public abstract class AbstractDnsClient {
     public Set<AAAA> getCachedIPv6NameserverAddressesFor(DnsName dnsName) {
         return getCachedIPNameserverAddressesFor(dnsName, TYPE.AAAA);
     }
+
+    /**
+     * A query in flight, whose result is shared by all callers that asked the same query concurrently. Every caller
+     * gets its own future, so that cancelling it does not affect the others. The upstream query is only cancelled once
+     * all callers cancelled their futures.
+     */
+    private final class InFlightQuery {
+        private final DnsMessage normalizedQuery;
+
+        /**
+         * The futures of the callers. Guarded by this object's monitor.
+         */
+        private final List<InternalMiniDnsFuture<DnsQueryResult, IOException>> subscribers = new ArrayList<>(2);
+
+        /**
+         * The future of the upstream query, or <code>null</code> if the query is performed synchronously.
+         */
+        private MiniDnsFuture<DnsQueryResult, IOException> upstream;
+
+        private boolean finished;
+
+        private InFlightQuery(DnsMessage normalizedQuery) {
+            this.normalizedQuery = normalizedQuery;
+        }
+
+        /**
+         * Subscribe to the result of this query.
+         *
+         * @return a new future for the result, or <code>null</code> if this query is already finished.
+         */
+        private synchronized MiniDnsFuture<DnsQueryResult, IOException> subscribe() {
+            if (finished) {
+                return null;
+            }
+            InternalMiniDnsFuture<DnsQueryResult, IOException> future = new InternalMiniDnsFuture<DnsQueryResult, IOException>() {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    boolean cancelled = super.cancel(mayInterruptIfRunning);
+                    if (cancelled) {
+                        unsubscribe(this, mayInterruptIfRunning);
+                    }
+                    return cancelled;
+                }
+            };
+            subscribers.add(future);
+            return future;
+        }
+
+        private void unsubscribe(InternalMiniDnsFuture<DnsQueryResult, IOException> future, boolean mayInterruptIfRunning) {
+            MiniDnsFuture<DnsQueryResult, IOException> upstreamToCancel;
+            synchronized (this) {
+                if (!subscribers.remove(future) || !subscribers.isEmpty() || upstream == null) {
+                    return;
+                }
+                // Nobody is interested in the result any more.
+                finished = true;
+                inFlightQueries.remove(normalizedQuery, this);
+                upstreamToCancel = upstream;
+            }
+            upstreamToCancel.cancel(mayInterruptIfRunning);
+        }
+
+        private void setUpstream(MiniDnsFuture<DnsQueryResult, IOException> upstream) {
+            synchronized (this) {
+                this.upstream = upstream;
+            }
+            if (upstream.isDone()) {
+                // E.g. answered from the cache, avoid the detour via the callback executor.
+                DnsQueryResult result;
+                try {
+                    result = upstream.getOrThrow();
+                } catch (IOException e) {
+                    complete(null, e);
+                    return;
+                }
+                complete(result, null);
+                return;
+            }
+            upstream.onSuccess(new SuccessCallback<DnsQueryResult>() {
+                @Override
+                public void onSuccess(DnsQueryResult result) {
+                    complete(result, null);
+                }
+            });
+            upstream.onError(new ExceptionCallback<IOException>() {
+                @Override
+                public void processException(IOException exception) {
+                    complete(null, exception);
+                }
+            });
+        }
+
+        private void complete(DnsQueryResult result, IOException exception) {
+            List<InternalMiniDnsFuture<DnsQueryResult, IOException>> toComplete;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                inFlightQueries.remove(normalizedQuery, this);
+                toComplete = new ArrayList<>(subscribers);
+                subscribers.clear();
+            }
+            if (result == null && exception == null) {
+                // The query failed with a runtime exception or did not return a result.
+                exception = new IOException("The query for " + normalizedQuery.getQuestion() + " did not complete");
+            }
+            for (InternalMiniDnsFuture<DnsQueryResult, IOException> future : toComplete) {
+                if (result != null) {
+                    future.setResult(result);
+                } else {
+                    future.setException(exception);
+                }
+            }
+        }
+    }
 }
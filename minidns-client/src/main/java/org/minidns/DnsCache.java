@@ -47,4 +47,36 @@ public abstract class DnsCache {
 
     protected abstract CachedDnsQueryResult getNormalized(DnsMessage normalizedQuery);
 
+    /**
+     * Request a cached dns response, even if it is already expired. This is used to serve stale data, as described in
+     * RFC 8767, if a query could not be resolved.
+     *
+     * @param query The query message containing a question.
+     * @return The cached result, or <code>null</code> if there is no cached result or if this cache does not retain
+     *         expired results.
+     */
+    public final CachedDnsQueryResult getStale(DnsMessage query) {
+        return getStaleNormalized(query.asNormalizedVersion());
+    }
+
+    /**
+     * Check whether this cache retains expired results, so that they can be served as stale data.
+     *
+     * @return <code>true</code> if {@link #getStale(DnsMessage)} may return expired results.
+     */
+    public boolean retainsStaleData() {
+        return false;
+    }
+
+    /**
+     * Request a cached dns response, even if it is already expired. The default implementation does not support
+     * serving stale data and always returns <code>null</code>.
+     *
+     * @param normalizedQuery The normalized query message containing a question.
+     * @return The cached result, or <code>null</code>.
+     */
+    protected CachedDnsQueryResult getStaleNormalized(DnsMessage normalizedQuery) {
+        return null;
+    }
+
 }
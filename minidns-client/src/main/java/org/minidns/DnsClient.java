@@ -20,6 +20,8 @@ import org.minidns.dnsserverlookup.AndroidUsingReflection;
 import org.minidns.dnsserverlookup.DnsServerLookupMechanism;
 import org.minidns.dnsserverlookup.IPPortPair;
 import org.minidns.dnsserverlookup.UnixUsingEtcResolvConf;
+import org.minidns.source.AbstractDnsDataSource;
+import org.minidns.source.UpstreamStatistics;
 import org.minidns.util.CollectionsUtil;
 import org.minidns.util.ExceptionCallback;
 import org.minidns.util.InetAddressUtil;
@@ -27,19 +29,30 @@ import org.minidns.util.SuccessCallback;
 import org.minidns.util.MultipleIoException;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 /**
@@ -73,6 +86,36 @@ public class DnsClient extends AbstractDnsClient {
         }
     }
 
+    /**
+     * The default delay in milliseconds after which the next upstream server is queried in racing mode. This is the
+     * "Connection Attempt Delay" recommended by RFC 8305 § 5.
+     */
+    public static final int DEFAULT_RACING_STAGGER_DELAY = 250;
+
+    /**
+     * The maximum number of threads performing racing queries. Queries which ignore interrupts, like the ones of
+     * {@link org.minidns.source.NetworkDataSource}, keep their thread until they time out, even if they lost the race.
+     * Hence the number of threads is bounded, and once all of them are busy, the servers are queried sequentially.
+     */
+    static final int MAX_RACING_THREADS = 32;
+
+    static final ThreadPoolExecutor RACING_EXECUTOR;
+
+    static {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName("MiniDNS Racing Thread");
+                return thread;
+            }
+        };
+        // Every racing query must run in parallel to the others, hence do not queue them.
+        RACING_EXECUTOR = new ThreadPoolExecutor(0, MAX_RACING_THREADS, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory);
+    }
+
     private static final Set<String> blacklistedDnsServers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4));
 
     private final Set<InetAddress> nonRaServers = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>(4));
@@ -82,6 +125,10 @@ public class DnsClient extends AbstractDnsClient {
 
     private boolean useHardcodedDnsServers = true;
 
+    private boolean racingEnabled = false;
+
+    private int racingStaggerDelay = DEFAULT_RACING_STAGGER_DELAY;
+
     /**
      * Create a new DNS client using the global default cache.
      */
@@ -130,24 +177,48 @@ public class DnsClient extends AbstractDnsClient {
             dnsServerAddresses.add(new UpstreamDNSServer(selectedHardcodedDnsServerAddress, IPPortPair.DEFAULT_PORT));
         }
 
+        final UpstreamStatistics upstreamStatistics = getUpstreamStatistics();
+        if (upstreamStatistics != null && dnsServerAddresses.size() > 1) {
+            // Prefer the fastest servers. Servers without statistics keep their configured order.
+            final Map<UpstreamDNSServer, Long> expectedRtts = new IdentityHashMap<>(dnsServerAddresses.size());
+            for (UpstreamDNSServer dns : dnsServerAddresses) {
+                expectedRtts.put(dns, upstreamStatistics.getExpectedRtt(dns.getServer()));
+            }
+            Collections.sort(dnsServerAddresses, new Comparator<UpstreamDNSServer>() {
+                @Override
+                public int compare(UpstreamDNSServer left, UpstreamDNSServer right) {
+                    return expectedRtts.get(left).compareTo(expectedRtts.get(right));
+                }
+            });
+        }
+
         return dnsServerAddresses;
     }
 
     @Override
     public DnsQueryResult query(DnsMessage.Builder queryBuilder) throws IOException {
+        return query(queryBuilder, false);
+    }
+
+    @Override
+    public DnsQueryResult query(DnsMessage.Builder queryBuilder, boolean bypassCache) throws IOException {
         DnsMessage q = newQuestion(queryBuilder).build();
         // While this query method does in fact re-use query(Question, String)
         // we still do a cache lookup here in order to avoid unnecessary
         // findDNS()calls, which are expensive on Android. Note that we do not
         // put the results back into the Cache, as this is already done by
         // query(Question, String).
-        DnsQueryResult dnsQueryResult = (cache == null) ? null : cache.get(q);
+        DnsQueryResult dnsQueryResult = bypassCache ? null : getFromCache(q);
         if (dnsQueryResult != null) {
             return dnsQueryResult;
         }
 
         List<UpstreamDNSServer> dnsServerAddresses = getServerAddresses();
 
+        if (racingEnabled) {
+            return queryRacing(q, dnsServerAddresses, bypassCache);
+        }
+
         List<IOException> ioExceptions = new ArrayList<>(dnsServerAddresses.size());
         for (UpstreamDNSServer dns : dnsServerAddresses) {
             if (nonRaServers.contains(dns.getServer())) {
@@ -156,62 +227,202 @@ public class DnsClient extends AbstractDnsClient {
             }
 
             try {
-                dnsQueryResult = query(q, dns.getServer(), dns.getPort());
+                dnsQueryResult = query(q, dns.getServer(), dns.getPort(), bypassCache);
+                if (!isAcceptable(q, dns, dnsQueryResult)) {
+                    continue;
+                }
             } catch (IOException ioe) {
                 ioExceptions.add(ioe);
                 continue;
             }
 
-            DnsMessage responseMessage = dnsQueryResult.response;
-            if (!responseMessage.recursionAvailable) {
-                boolean newRaServer = nonRaServers.add(dns.getServer());
-                if (newRaServer) {
-                    LOGGER.warning("The DNS server " + dns
-                            + " returned a response without the \"recursion available\" (RA) flag set. This likely indicates a misconfiguration because the server is not suitable for DNS resolution");
-                }
-                continue;
+            return dnsQueryResult;
+        }
+        MultipleIoException.throwIfRequired(ioExceptions);
+
+        // TODO: Shall we add the attempted DNS servers to the exception?
+        throw new NoQueryPossibleException(q);
+    }
+
+    /**
+     * Check if the given result of a query to an upstream server is acceptable.
+     *
+     * @param q the query.
+     * @param dns the upstream server.
+     * @param dnsQueryResult the result.
+     * @return <code>true</code> if the result is acceptable, <code>false</code> if the next server should be asked.
+     * @throws ErrorResponseException if the response carries an error response code.
+     */
+    private boolean isAcceptable(DnsMessage q, UpstreamDNSServer dns, DnsQueryResult dnsQueryResult)
+            throws ErrorResponseException {
+        DnsMessage responseMessage = dnsQueryResult.response;
+        if (!responseMessage.recursionAvailable) {
+            boolean newRaServer = nonRaServers.add(dns.getServer());
+            if (newRaServer) {
+                LOGGER.warning("The DNS server " + dns
+                        + " returned a response without the \"recursion available\" (RA) flag set. This likely indicates a misconfiguration because the server is not suitable for DNS resolution");
             }
+            return false;
+        }
+
+        if (disableResultFilter) {
+            return true;
+        }
 
-            if (disableResultFilter) {
-                return dnsQueryResult;
+        switch (responseMessage.responseCode) {
+        case NO_ERROR:
+        case NX_DOMAIN:
+            return true;
+        default:
+            String warning = "Response from " + dns + " asked for " + q.getQuestion() + " with error code: "
+                    + responseMessage.responseCode + '.';
+            if (!LOGGER.isLoggable(Level.FINE)) {
+                // Only append the responseMessage is log level is not fine. If it is fine or higher, the
+                // response has already been logged.
+                warning += "\n" + responseMessage;
             }
+            LOGGER.warning(warning);
 
-            switch (responseMessage.responseCode) {
-            case NO_ERROR:
-            case NX_DOMAIN:
-                break;
-            default:
-                String warning = "Response from " + dns + " asked for " + q.getQuestion() + " with error code: "
-                        + responseMessage.responseCode + '.';
-                if (!LOGGER.isLoggable(Level.FINE)) {
-                    // Only append the responseMessage is log level is not fine. If it is fine or higher, the
-                    // response has already been logged.
-                    warning += "\n" + responseMessage;
+            throw new ErrorResponseException(q, dnsQueryResult);
+        }
+    }
+
+    /**
+     * Query the upstream servers in a staggered race, similar to "Happy Eyeballs" (RFC 8305). The first server is
+     * queried immediately, and every further server is queried once the stagger delay has passed without an acceptable
+     * result, or once all previous queries failed. The first acceptable result wins and the queries still in flight
+     * are cancelled.
+     * <p>
+     * If the data source queries asynchronously without blocking, the race is run with its futures, which can be
+     * cancelled. Otherwise every query runs on a thread of a bounded pool, and is performed by the calling thread if
+     * all threads of the pool are busy.
+     * </p>
+     *
+     * @param q the query.
+     * @param dnsServerAddresses the upstream servers.
+     * @param bypassCache <code>true</code> if the query must not be answered from the cache.
+     * @return the first acceptable result.
+     * @throws IOException if no server returned an acceptable result.
+     */
+    private DnsQueryResult queryRacing(final DnsMessage q, List<UpstreamDNSServer> dnsServerAddresses,
+            final boolean bypassCache) throws IOException {
+        final boolean nonBlocking = dataSource instanceof AbstractDnsDataSource
+                && ((AbstractDnsDataSource) dataSource).isAsyncQueryNonBlocking();
+        final Race race = new Race();
+        List<Future<?>> attempts = new ArrayList<>(dnsServerAddresses.size());
+        try {
+            for (final UpstreamDNSServer dns : dnsServerAddresses) {
+                if (nonRaServers.contains(dns.getServer())) {
+                    LOGGER.finer("Skipping " + dns + " because it was marked as \"recursion not available\"");
+                    continue;
                 }
-                LOGGER.warning(warning);
 
-                ErrorResponseException exception = new ErrorResponseException(q, dnsQueryResult);
-                ioExceptions.add(exception);
-                continue;
+                race.started();
+                if (nonBlocking) {
+                    attempts.add(startAsyncAttempt(race, q, dns, bypassCache));
+                } else {
+                    Runnable attempt = new Runnable() {
+                        @Override
+                        public void run() {
+                            DnsQueryResult dnsQueryResult;
+                            try {
+                                dnsQueryResult = query(q, dns.getServer(), dns.getPort(), bypassCache);
+                            } catch (IOException e) {
+                                race.lost(e);
+                                return;
+                            }
+                            finishAttempt(race, q, dns, dnsQueryResult);
+                        }
+                    };
+                    try {
+                        attempts.add(RACING_EXECUTOR.submit(attempt));
+                    } catch (RejectedExecutionException e) {
+                        // All racing threads are busy, e.g. with queries to an unresponsive server.
+                        LOGGER.fine("Querying " + dns + " sequentially, as all racing threads are busy");
+                        attempt.run();
+                    }
+                }
+
+                if (race.await(racingStaggerDelay)) {
+                    break;
+                }
             }
 
+            race.await(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interruptedIOException = new InterruptedIOException("Interrupted while racing " + q.getQuestion());
+            interruptedIOException.initCause(e);
+            throw interruptedIOException;
+        } finally {
+            // Cancel the losers.
+            for (Future<?> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+
+        DnsQueryResult dnsQueryResult = race.getWinner();
+        if (dnsQueryResult != null) {
             return dnsQueryResult;
         }
-        MultipleIoException.throwIfRequired(ioExceptions);
+        MultipleIoException.throwIfRequired(race.getExceptions());
 
-        // TODO: Shall we add the attempted DNS servers to the exception?
         throw new NoQueryPossibleException(q);
     }
 
+    private MiniDnsFuture<DnsQueryResult, IOException> startAsyncAttempt(final Race race, final DnsMessage q,
+            final UpstreamDNSServer dns, boolean bypassCache) {
+        MiniDnsFuture<DnsQueryResult, IOException> attempt = queryAsync(q, dns.getServer(), dns.getPort(), bypassCache);
+        // The callbacks of a future may be invoked more than once.
+        final AtomicBoolean completed = new AtomicBoolean();
+        attempt.onSuccess(new SuccessCallback<DnsQueryResult>() {
+            @Override
+            public void onSuccess(DnsQueryResult result) {
+                if (completed.compareAndSet(false, true)) {
+                    finishAttempt(race, q, dns, result);
+                }
+            }
+        });
+        attempt.onError(new ExceptionCallback<IOException>() {
+            @Override
+            public void processException(IOException exception) {
+                if (completed.compareAndSet(false, true)) {
+                    race.lost(exception);
+                }
+            }
+        });
+        return attempt;
+    }
+
+    private void finishAttempt(Race race, DnsMessage q, UpstreamDNSServer dns, DnsQueryResult dnsQueryResult) {
+        boolean acceptable;
+        try {
+            acceptable = isAcceptable(q, dns, dnsQueryResult);
+        } catch (ErrorResponseException e) {
+            race.lost(e);
+            return;
+        }
+        if (acceptable) {
+            race.won(dnsQueryResult);
+        } else {
+            race.lost(null);
+        }
+    }
+
     @Override
     protected MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage.Builder queryBuilder) {
+        return queryAsync(queryBuilder, false);
+    }
+
+    @Override
+    protected MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage.Builder queryBuilder, boolean bypassCache) {
         DnsMessage q = newQuestion(queryBuilder).build();
         // While this query method does in fact re-use query(Question, String)
         // we still do a cache lookup here in order to avoid unnecessary
         // findDNS()calls, which are expensive on Android. Note that we do not
         // put the results back into the Cache, as this is already done by
         // query(Question, String).
-        DnsQueryResult responseMessage = (cache == null) ? null : cache.get(q);
+        DnsQueryResult responseMessage = bypassCache ? null : getFromCache(q);
         if (responseMessage != null) {
             return MiniDnsFuture.from(responseMessage);
         }
@@ -242,7 +453,7 @@ public class DnsClient extends AbstractDnsClient {
                 break;
             }
 
-            MiniDnsFuture<DnsQueryResult, IOException> f = queryAsync(q, dns.getServer(), dns.getPort());
+            MiniDnsFuture<DnsQueryResult, IOException> f = queryAsync(q, dns.getServer(), dns.getPort(), bypassCache);
             f.onSuccess(new SuccessCallback<DnsQueryResult>() {
                 @Override
                 public void onSuccess(DnsQueryResult result) {
@@ -449,6 +660,39 @@ public class DnsClient extends AbstractDnsClient {
         this.disableResultFilter = disableResultFilter;
     }
 
+    public boolean isRacingEnabled() {
+        return racingEnabled;
+    }
+
+    /**
+     * Enable or disable racing of the upstream servers. If enabled, a synchronous query does not wait for the timeout
+     * of an unresponsive server before asking the next one, but asks the next server after the racing stagger delay,
+     * while the previous queries are still in flight. The first acceptable result is used.
+     *
+     * @param racingEnabled <code>true</code> to enable racing.
+     * @see #setRacingStaggerDelay(int)
+     */
+    public void setRacingEnabled(boolean racingEnabled) {
+        this.racingEnabled = racingEnabled;
+    }
+
+    public int getRacingStaggerDelay() {
+        return racingStaggerDelay;
+    }
+
+    /**
+     * Set the delay after which the next upstream server is asked if racing is enabled.
+     *
+     * @param racingStaggerDelay the delay in milliseconds.
+     * @see #DEFAULT_RACING_STAGGER_DELAY
+     */
+    public void setRacingStaggerDelay(int racingStaggerDelay) {
+        if (racingStaggerDelay <= 0) {
+            throw new IllegalArgumentException("The racing stagger delay must be positive");
+        }
+        this.racingStaggerDelay = racingStaggerDelay;
+    }
+
     public boolean isUseHardcodedDnsServersEnabled() {
         return useHardcodedDnsServers;
     }
@@ -465,6 +709,69 @@ public class DnsClient extends AbstractDnsClient {
         return CollectionsUtil.getRandomFrom(STATIC_IPV6_DNS_SERVERS, insecureRandom);
     }
 
+    /**
+     * The state of a race between the queries to the upstream servers. All fields are guarded by this object's monitor.
+     */
+    private static final class Race {
+        private final List<IOException> exceptions = new ArrayList<>();
+
+        private DnsQueryResult winner;
+
+        private int started;
+
+        private int lost;
+
+        private synchronized void started() {
+            started++;
+        }
+
+        private synchronized void won(DnsQueryResult result) {
+            if (winner == null) {
+                winner = result;
+            }
+            notifyAll();
+        }
+
+        private synchronized void lost(IOException exception) {
+            lost++;
+            if (exception != null) {
+                exceptions.add(exception);
+            }
+            notifyAll();
+        }
+
+        /**
+         * Wait until there is a winner or all started queries are lost.
+         *
+         * @param timeout the maximum time to wait in milliseconds, or <code>0</code> to wait without a time limit.
+         * @return <code>true</code> if there is a winner.
+         * @throws InterruptedException if the thread was interrupted while waiting.
+         */
+        private synchronized boolean await(long timeout) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (winner == null && lost < started) {
+                if (timeout == 0) {
+                    wait();
+                    continue;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                wait(remaining);
+            }
+            return winner != null;
+        }
+
+        private synchronized DnsQueryResult getWinner() {
+            return winner;
+        }
+
+        private synchronized List<IOException> getExceptions() {
+            return new ArrayList<>(exceptions);
+        }
+    }
+
     public static class UpstreamDNSServer {
         private InetAddress server;
         private int port;
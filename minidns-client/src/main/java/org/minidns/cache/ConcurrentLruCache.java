@@ -0,0 +1,272 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import org.minidns.DnsCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DirectCachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+
+/**
+ * A DNSCache for concurrent use, which is split into lock-striped segments. Every segment is an LRU cache backed by a
+ * LinkedHashMap with its own lock, so that threads looking up different queries rarely contend. The queries are
+ * distributed over the segments by their hash code, and the least recently used entry of a segment is evicted once the
+ * segment is full, hence the eviction order is only approximately LRU with respect to the whole cache.
+ * <p>
+ * The hit, miss and expire counters are kept per segment as well and summed up when read.
+ * </p>
+ */
+public class ConcurrentLruCache extends DnsCache {
+
+    /**
+     * The default number of segments.
+     */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    /**
+     * The minimum capacity of a segment. Small caches use fewer segments, so that their eviction order stays close to
+     * LRU.
+     */
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+
+    /**
+     * The internal capacity of the backend cache.
+     */
+    protected final int capacity;
+
+    /**
+     * The upper bound of the ttl. All longer TTLs will be capped by this ttl.
+     */
+    protected final long maxTTL;
+
+    private final Segment[] segments;
+
+    private final int segmentShift;
+
+    /**
+     * Create a new ConcurrentLruCache with given capacity, upper bound ttl and concurrency level.
+     * @param capacity The internal capacity.
+     * @param maxTTL The upper bound for any ttl.
+     * @param concurrencyLevel The maximum number of segments, will be rounded up to the next power of two.
+     */
+    public ConcurrentLruCache(int capacity, long maxTTL, int concurrencyLevel) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (concurrencyLevel < 1) {
+            throw new IllegalArgumentException("Concurrency level must be positive");
+        }
+        this.capacity = capacity;
+        this.maxTTL = maxTTL;
+
+        int segmentCount = 1;
+        int segmentBits = 0;
+        while (segmentCount < concurrencyLevel && capacity / (segmentCount * 2) >= MIN_SEGMENT_CAPACITY) {
+            segmentCount <<= 1;
+            segmentBits++;
+        }
+        segmentShift = 32 - segmentBits;
+
+        segments = new Segment[segmentCount];
+        int segmentCapacity = (capacity + segmentCount - 1) / segmentCount;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * Create a new ConcurrentLruCache with given capacity and upper bound ttl.
+     * @param capacity The internal capacity.
+     * @param maxTTL The upper bound for any ttl.
+     */
+    public ConcurrentLruCache(int capacity, long maxTTL) {
+        this(capacity, maxTTL, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Create a new ConcurrentLruCache with given capacity.
+     * @param capacity The capacity of this cache.
+     */
+    public ConcurrentLruCache(int capacity) {
+        this(capacity, Long.MAX_VALUE);
+    }
+
+    public ConcurrentLruCache() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    private Segment segmentFor(DnsMessage q) {
+        if (segments.length == 1) {
+            return segments[0];
+        }
+        // The hash code of a DnsMessage is cached, so this is cheap after the first call. Spread the hash code, so that
+        // its high bits, which select the segment, depend on all of its bits.
+        int hash = q.hashCode() * 0x9e3779b9;
+        return segments[hash >>> segmentShift];
+    }
+
+    @Override
+    protected void putNormalized(DnsMessage q, DnsQueryResult result) {
+        if (result.response.receiveTimestamp <= 0L) {
+            return;
+        }
+        CachedDnsQueryResult cachedDnsQueryResult = new DirectCachedDnsQueryResult(q, result);
+        Segment segment = segmentFor(q);
+        synchronized (segment) {
+            segment.backend.put(q, cachedDnsQueryResult);
+        }
+    }
+
+    @Override
+    protected CachedDnsQueryResult getNormalized(DnsMessage q) {
+        Segment segment = segmentFor(q);
+        synchronized (segment) {
+            CachedDnsQueryResult result = segment.backend.get(q);
+            if (result == null) {
+                segment.missCount++;
+                return null;
+            }
+
+            DnsMessage message = result.response;
+
+            // RFC 2181 § 5.2 says that all TTLs in a RRSet should be equal, if this isn't the case, then we assume the
+            // shortest TTL to be the effective one. Negative responses are cached for their negative TTL (RFC 2308 § 5).
+            final long cacheTtl = message.getCacheTtl();
+            final long ttl = Math.min(cacheTtl, maxTTL);
+
+            final long expiryDate = message.receiveTimestamp + (ttl * 1000);
+            final long now = System.currentTimeMillis();
+            if (expiryDate < now) {
+                segment.missCount++;
+                segment.expireCount++;
+                segment.backend.remove(q);
+                return null;
+            } else {
+                segment.hitCount++;
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Clear all entries in this cache.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.backend.clear();
+                segment.missCount = 0L;
+                segment.hitCount = 0L;
+                segment.expireCount = 0L;
+            }
+        }
+    }
+
+    /**
+     * Get the number of entries in this cache.
+     * @return The number of entries.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.backend.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the miss count of this cache which is the number of fruitless
+     * get calls since this cache was last resetted.
+     * @return The number of cache misses.
+     */
+    public long getMissCount() {
+        long missCount = 0L;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                missCount += segment.missCount;
+            }
+        }
+        return missCount;
+    }
+
+    /**
+     * The number of expires (cache hits that have had a ttl to low to be
+     * retrieved).
+     * @return The expire count.
+     */
+    public long getExpireCount() {
+        long expireCount = 0L;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                expireCount += segment.expireCount;
+            }
+        }
+        return expireCount;
+    }
+
+    /**
+     * The cache hit count (all successful calls to get).
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        long hitCount = 0L;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hitCount += segment.hitCount;
+            }
+        }
+        return hitCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentLRUCache{usage=" + size() + "/" + capacity + ", segments=" + segments.length + ", hits="
+                + getHitCount() + ", misses=" + getMissCount() + ", expires=" + getExpireCount() + "}";
+    }
+
+    @Override
+    public void offer(DnsMessage query, DnsQueryResult result, DnsName knownAuthoritativeZone) {
+    }
+
+    /**
+     * A segment of the cache. All fields are guarded by the segment's monitor.
+     */
+    private static final class Segment {
+
+        private final LinkedHashMap<DnsMessage, CachedDnsQueryResult> backend;
+
+        private long missCount;
+
+        private long expireCount;
+
+        private long hitCount;
+
+        @SuppressWarnings("serial")
+        private Segment(final int capacity) {
+            backend = new LinkedHashMap<DnsMessage, CachedDnsQueryResult>(
+                    Math.min(capacity + (capacity + 3) / 4 + 2, 11), 0.75f, true)
+                {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Entry<DnsMessage, CachedDnsQueryResult> eldest) {
+                        return size() > capacity;
+                    }
+                };
+        }
+    }
+}
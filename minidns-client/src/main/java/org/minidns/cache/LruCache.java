@@ -10,8 +10,17 @@
  */
 package org.minidns.cache;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.minidns.DnsCache;
 import org.minidns.dnsmessage.DnsMessage;
@@ -22,6 +31,20 @@ import org.minidns.dnsqueryresult.DnsQueryResult;
 
 /**
  * LRU based DNSCache backed by a LinkedHashMap.
+ * <p>
+ * Besides the LRU order, the cache keeps an index of the entries by their expiry date, grouped into buckets of one
+ * second. Expired entries are swept from the cache at most once per bucket while the cache is used, or explicitly via
+ * {@link #removeExpired()}, so that the capacity of the cache is used by live entries and expired responses are not
+ * kept in memory.
+ * </p>
+ * <p>
+ * If a maximum staleness is set, expired entries are retained for that time, so that they can be served as stale data
+ * if a query can not be resolved, as described in RFC 8767.
+ * </p>
+ * <p>
+ * The content of the cache can be written to a snapshot file with {@link #writeSnapshot(File)} and restored with
+ * {@link #loadSnapshot(File)}, e.g. to start with a warm cache after a restart.
+ * </p>
  */
 public class LruCache extends DnsCache {
 
@@ -50,11 +73,36 @@ public class LruCache extends DnsCache {
      */
     protected long maxTTL;
 
+    /**
+     * The time in seconds for which expired entries are retained to serve stale data, see RFC 8767.
+     */
+    protected long maxStaleness;
+
     /**
      * The backend cache.
      */
     protected LinkedHashMap<DnsMessage, CachedDnsQueryResult> backend;
 
+    /**
+     * The duration of an expiry bucket in milliseconds.
+     */
+    private static final long EXPIRY_BUCKET_DURATION = 1000;
+
+    /**
+     * The keys of the cached entries, grouped by the expiry bucket of the entries.
+     */
+    private final TreeMap<Long, Set<DnsMessage>> expiryBuckets = new TreeMap<>();
+
+    /**
+     * The expiry bucket of every cached entry.
+     */
+    private final Map<DnsMessage, Long> expiryBucketOf = new HashMap<>();
+
+    /**
+     * The first expiry bucket which may contain entries that have not yet expired.
+     */
+    private long nextSweepBucket = Long.MIN_VALUE;
+
     /**
      * Create a new LRUCache with given capacity and upper bound ttl.
      * @param capacity The internal capacity.
@@ -70,7 +118,31 @@ public class LruCache extends DnsCache {
                 @Override
                 protected boolean removeEldestEntry(
                         Entry<DnsMessage, CachedDnsQueryResult> eldest) {
-                    return size() > capacity;
+                    if (size() > capacity) {
+                        removeFromExpiryIndex(eldest.getKey());
+                        return true;
+                    }
+                    return false;
+                }
+
+                // Keep the expiry index in sync, also for subclasses which modify the backend directly.
+                @Override
+                public CachedDnsQueryResult put(DnsMessage key, CachedDnsQueryResult value) {
+                    addToExpiryIndex(key, value);
+                    return super.put(key, value);
+                }
+
+                @Override
+                public CachedDnsQueryResult remove(Object key) {
+                    removeFromExpiryIndex(key);
+                    return super.remove(key);
+                }
+
+                @Override
+                public void clear() {
+                    expiryBuckets.clear();
+                    expiryBucketOf.clear();
+                    super.clear();
                 }
             };
     }
@@ -92,30 +164,135 @@ public class LruCache extends DnsCache {
         if (result.response.receiveTimestamp <= 0L) {
             return;
         }
+        sweepExpired(System.currentTimeMillis());
         backend.put(q, new DirectCachedDnsQueryResult(q, result));
     }
 
+    /**
+     * Get the date after which the given cached result is expired.
+     *
+     * @param result the cached result.
+     * @return the expiry date in milliseconds since the epoch.
+     */
+    protected long getExpiryDate(CachedDnsQueryResult result) {
+        DnsMessage message = result.response;
+
+        // RFC 2181 § 5.2 says that all TTLs in a RRSet should be equal, if this isn't the case, then we assume the
+        // shortest TTL to be the effective one. Negative responses are cached for their negative TTL (RFC 2308 § 5).
+        final long cacheTtl = message.getCacheTtl();
+        final long ttl = Math.min(cacheTtl, maxTTL);
+
+        return message.receiveTimestamp + (ttl * 1000);
+    }
+
+    /**
+     * Set the maximum staleness. Expired entries are retained for this time, so that they can be served as stale data
+     * if a query can not be resolved. RFC 8767 § 5 suggests a value between one and three days. The default is zero,
+     * i.e. no stale data is served. The maximum staleness only applies to entries added after it was set.
+     *
+     * @param maxStaleness the maximum staleness in seconds.
+     */
+    public synchronized void setMaxStaleness(long maxStaleness) {
+        if (maxStaleness < 0) {
+            throw new IllegalArgumentException("The maximum staleness must not be negative");
+        }
+        this.maxStaleness = maxStaleness;
+    }
+
+    public synchronized long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    private void addToExpiryIndex(DnsMessage key, CachedDnsQueryResult value) {
+        removeFromExpiryIndex(key);
+        // Retain the entry until it may no longer be served as stale data.
+        Long bucket = (getExpiryDate(value) + maxStaleness * 1000) / EXPIRY_BUCKET_DURATION;
+        Set<DnsMessage> keys = expiryBuckets.get(bucket);
+        if (keys == null) {
+            keys = new HashSet<>();
+            expiryBuckets.put(bucket, keys);
+        }
+        keys.add(key);
+        expiryBucketOf.put(key, bucket);
+    }
+
+    private void removeFromExpiryIndex(Object key) {
+        Long bucket = expiryBucketOf.remove(key);
+        if (bucket == null) {
+            return;
+        }
+        Set<DnsMessage> keys = expiryBuckets.get(bucket);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            expiryBuckets.remove(bucket);
+        }
+    }
+
+    /**
+     * Remove all entries whose expiry bucket lies completely in the past. Does nothing if this was already done for
+     * the current bucket, so that the cost of sweeping is amortized over the operations on the cache.
+     *
+     * @param now the current time in milliseconds since the epoch.
+     * @return the number of removed entries.
+     */
+    private int sweepExpired(long now) {
+        final long currentBucket = now / EXPIRY_BUCKET_DURATION;
+        if (currentBucket < nextSweepBucket) {
+            return 0;
+        }
+        nextSweepBucket = currentBucket + 1;
+
+        int removed = 0;
+        Map.Entry<Long, Set<DnsMessage>> bucket;
+        while ((bucket = expiryBuckets.firstEntry()) != null && bucket.getKey() < currentBucket) {
+            expiryBuckets.remove(bucket.getKey());
+            for (DnsMessage key : bucket.getValue()) {
+                expiryBucketOf.remove(key);
+                backend.remove(key);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all expired entries from this cache. This happens automatically while the cache is used, calling this
+     * method is only required to release the memory of expired entries in a cache which is not used for a while.
+     *
+     * @return the number of removed entries.
+     */
+    public synchronized int removeExpired() {
+        nextSweepBucket = Long.MIN_VALUE;
+        return sweepExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the number of entries in this cache, which may include expired entries not yet swept.
+     *
+     * @return the number of entries.
+     */
+    public synchronized int size() {
+        return backend.size();
+    }
+
     @Override
     protected synchronized CachedDnsQueryResult getNormalized(DnsMessage q) {
+        final long now = System.currentTimeMillis();
+        sweepExpired(now);
+
         CachedDnsQueryResult result = backend.get(q);
         if (result == null) {
             missCount++;
             return null;
         }
 
-        DnsMessage message = result.response;
-
-        // RFC 2181 § 5.2 says that all TTLs in a RRSet should be equal, if this isn't the case, then we assume the
-        // shortest TTL to be the effective one.
-        final long answersMinTtl = message.getAnswersMinTtl();
-        final long ttl = Math.min(answersMinTtl, maxTTL);
-
-        final long expiryDate = message.receiveTimestamp + (ttl * 1000);
-        final long now = System.currentTimeMillis();
+        final long expiryDate = getExpiryDate(result);
         if (expiryDate < now) {
             missCount++;
             expireCount++;
-            backend.remove(q);
+            if (expiryDate + maxStaleness * 1000 < now) {
+                backend.remove(q);
+            }
             return null;
         } else {
             hitCount++;
@@ -123,6 +300,69 @@ public class LruCache extends DnsCache {
         }
     }
 
+    @Override
+    public synchronized boolean retainsStaleData() {
+        return maxStaleness > 0;
+    }
+
+    @Override
+    protected synchronized CachedDnsQueryResult getStaleNormalized(DnsMessage q) {
+        if (maxStaleness == 0) {
+            return null;
+        }
+        CachedDnsQueryResult result = backend.get(q);
+        if (result == null) {
+            return null;
+        }
+        if (getExpiryDate(result) + maxStaleness * 1000 < System.currentTimeMillis()) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Write a snapshot of this cache to the given file. The snapshot holds the responses in DNS wire format together
+     * with their receive timestamps, so that the remaining TTLs are still correct once the snapshot is loaded. Expired
+     * entries which can no longer be served as stale data are not written.
+     *
+     * @param file the snapshot file, which is replaced if it exists.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeSnapshot(File file) throws IOException {
+        List<LruCacheSnapshot.Entry> entries;
+        synchronized (this) {
+            final long retainUntil = System.currentTimeMillis() - maxStaleness * 1000;
+            entries = new ArrayList<>(backend.size());
+            // The iteration order of the backend is the LRU order, the least recently used entry first.
+            for (Entry<DnsMessage, CachedDnsQueryResult> entry : backend.entrySet()) {
+                long expiryDate = getExpiryDate(entry.getValue());
+                if (expiryDate < retainUntil) {
+                    continue;
+                }
+                entries.add(new LruCacheSnapshot.Entry(entry.getKey(), entry.getValue(), expiryDate));
+            }
+        }
+        // The messages are immutable, hence they can be serialized without holding the lock.
+        LruCacheSnapshot.write(entries, file);
+    }
+
+    /**
+     * Load a snapshot written by {@link #writeSnapshot(File)} into this cache. The file is memory mapped and expired
+     * entries are skipped without being parsed. The restored entries are added to the existing ones, and if the
+     * snapshot holds more entries than the capacity of this cache, only the most recently used ones are kept.
+     *
+     * @param file the snapshot file.
+     * @return the number of restored entries.
+     * @throws IOException if an I/O error occurs or the file is not a valid snapshot.
+     */
+    public int loadSnapshot(File file) throws IOException {
+        final long retainUntil;
+        synchronized (this) {
+            retainUntil = System.currentTimeMillis() - maxStaleness * 1000;
+        }
+        return LruCacheSnapshot.read(this, file, retainUntil);
+    }
+
     /**
      * Clear all entries in this cache.
      */
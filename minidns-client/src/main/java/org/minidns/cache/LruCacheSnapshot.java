@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DirectCachedDnsQueryResult;
+import org.minidns.dnsqueryresult.SnapshotDnsQueryResult;
+
+/**
+ * The binary snapshot format of an {@link LruCache}.
+ * <p>
+ * A snapshot starts with a header consisting of a magic number, the format version and the number of entries. It is
+ * followed by the entries in LRU order, the least recently used first. Every entry consists of its expiry date and
+ * the receive timestamp of the response, both in milliseconds since the epoch, followed by the query and the response
+ * in DNS wire format, each prefixed by its length as 16-bit unsigned integer. All numbers are big-endian.
+ * </p>
+ * <p>
+ * Snapshots are read using a memory mapping of the file. The messages are parsed right out of the mapped buffer, and
+ * the expiry date allows to skip expired entries without parsing them.
+ * </p>
+ */
+final class LruCacheSnapshot {
+
+    private static final Logger LOGGER = Logger.getLogger(LruCacheSnapshot.class.getName());
+
+    /**
+     * "MDCS", MiniDNS Cache Snapshot.
+     */
+    static final int MAGIC = 0x4d444353;
+
+    static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 12;
+
+    private LruCacheSnapshot() {
+    }
+
+    /**
+     * A snapshot of a single cache entry.
+     */
+    static final class Entry {
+        private final DnsMessage query;
+
+        private final CachedDnsQueryResult result;
+
+        private final long expiryDate;
+
+        Entry(DnsMessage query, CachedDnsQueryResult result, long expiryDate) {
+            this.query = query;
+            this.result = result;
+            this.expiryDate = expiryDate;
+        }
+    }
+
+    /**
+     * Write the given entries to the given file. The entries are first written to a temporary file, which then
+     * replaces the given file, so that the file always holds a complete snapshot.
+     *
+     * @param entries the entries, least recently used first.
+     * @param file the file.
+     * @throws IOException if an I/O error occurs.
+     */
+    static void write(List<Entry> entries, File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        boolean written = false;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            // The number of entries is written once it is known.
+            out.writeInt(0);
+            int entryCount = 0;
+            for (Entry entry : entries) {
+                byte[] query = entry.query.toArray(true);
+                byte[] response = entry.result.response.toArray(true);
+                if (query.length > 0xffff || response.length > 0xffff) {
+                    // Only possible for synthesized responses, which can not be sent over the wire either.
+                    continue;
+                }
+                out.writeLong(entry.expiryDate);
+                out.writeLong(entry.result.response.receiveTimestamp);
+                out.writeShort(query.length);
+                out.write(query);
+                out.writeShort(response.length);
+                out.write(response);
+                entryCount++;
+            }
+            out.close();
+
+            RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw");
+            try {
+                randomAccessFile.seek(8);
+                randomAccessFile.writeInt(entryCount);
+            } finally {
+                randomAccessFile.close();
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Exception closing snapshot file", e);
+                }
+                if (!tempFile.delete()) {
+                    LOGGER.fine("Could not delete temporary snapshot file " + tempFile);
+                }
+            }
+        }
+
+        // File.renameTo() does not replace existing files on all platforms.
+        if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+            throw new IOException("Could not replace " + file + " with " + tempFile);
+        }
+    }
+
+    /**
+     * Read the entries of the given snapshot file into the given cache.
+     *
+     * @param cache the cache.
+     * @param file the file.
+     * @param retainUntil entries whose expiry date is before this date are skipped.
+     * @return the number of restored entries.
+     * @throws IOException if an I/O error occurs or the file is not a valid snapshot.
+     */
+    static int read(LruCache cache, File file, long retainUntil) throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        try {
+            if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a cache snapshot");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported cache snapshot version " + version);
+            }
+            final int entryCount = buffer.getInt();
+
+            int restored = 0;
+            for (int i = 0; i < entryCount; i++) {
+                long expiryDate = buffer.getLong();
+                long receiveTimestamp = buffer.getLong();
+                if (expiryDate < retainUntil) {
+                    // Skip the query and the response without parsing them.
+                    skipMessage(buffer);
+                    skipMessage(buffer);
+                    continue;
+                }
+                DnsMessage query = readMessage(buffer).asNormalizedVersion();
+                DnsMessage response = readMessage(buffer).asBuilder().setReceiveTimestamp(receiveTimestamp).build();
+                CachedDnsQueryResult result = new DirectCachedDnsQueryResult(query,
+                        new SnapshotDnsQueryResult(query, response));
+                synchronized (cache) {
+                    cache.backend.put(query, result);
+                }
+                restored++;
+            }
+            return restored;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated cache snapshot " + file, e);
+        }
+    }
+
+    private static DnsMessage readMessage(ByteBuffer buffer) throws IOException {
+        final int length = buffer.getShort() & 0xffff;
+        final int end = buffer.position() + length;
+        ByteBuffer message = buffer.duplicate();
+        message.limit(end);
+        buffer.position(end);
+        return new DnsMessage(message);
+    }
+
+    private static void skipMessage(ByteBuffer buffer) {
+        final int length = buffer.getShort() & 0xffff;
+        buffer.position(buffer.position() + length);
+    }
+}
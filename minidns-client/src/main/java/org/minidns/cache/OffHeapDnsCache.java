@@ -0,0 +1,497 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.minidns.DnsCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DirectCachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+
+/**
+ * A DNSCache which stores the responses in DNS wire format outside of the Java heap, so that it can hold a large number
+ * of entries without increasing the heap size or the garbage collection pauses.
+ * <p>
+ * The entries are appended to slabs, which are direct byte buffers of a fixed size. The slabs are used as a ring: once
+ * the last slab is full, the oldest slab is cleared and reused, hence entries are evicted slab by slab in the order
+ * they were added. The entries are found using an open addressing hash table of primitive longs, which is indexed by
+ * the hash of the normalized query in wire format. Responses are only decoded if there is a cache hit.
+ * </p>
+ * <p>
+ * Besides the slabs, this cache only uses eight bytes of heap memory per slot of its hash table. Note that the maximum
+ * amount of direct memory of the JVM may need to be raised for large caches.
+ * </p>
+ */
+public class OffHeapDnsCache extends DnsCache {
+
+    private static final Logger LOGGER = Logger.getLogger(OffHeapDnsCache.class.getName());
+
+    /**
+     * The default capacity in bytes.
+     */
+    public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    /**
+     * The default size of a slab in bytes.
+     */
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    /**
+     * The maximum number of slabs, which is limited by the bits available for the slab index in a hash table slot.
+     */
+    private static final int MAX_SLAB_COUNT = 1 << 16;
+
+    /**
+     * The layout of an entry in a slab: the hash of the query, the expiry date, the receive timestamp, the length of the
+     * query, the length of the response, the query method, one byte of padding, the query and the response.
+     */
+    private static final int HASH_OFFSET = 0;
+    private static final int EXPIRY_DATE_OFFSET = 8;
+    private static final int RECEIVE_TIMESTAMP_OFFSET = 16;
+    private static final int QUERY_LENGTH_OFFSET = 24;
+    private static final int RESPONSE_LENGTH_OFFSET = 26;
+    private static final int QUERY_METHOD_OFFSET = 30;
+    private static final int HEADER_LENGTH = 32;
+
+    private static final int MIN_TABLE_SIZE = 1024;
+
+    private static final int MAX_TABLE_SIZE = 1 << 30;
+
+    private static final long LOCATION_MASK = 0xffffffffffffL;
+
+    private static final DnsQueryResult.QueryMethod[] QUERY_METHODS = DnsQueryResult.QueryMethod.values();
+
+    /**
+     * The upper bound of the ttl. All longer TTLs will be capped by this ttl.
+     */
+    protected final long maxTTL;
+
+    private final int slabSize;
+
+    private final ByteBuffer[] slabs;
+
+    /**
+     * The number of bytes used in every slab.
+     */
+    private final int[] slabUsage;
+
+    /**
+     * The slab new entries are appended to.
+     */
+    private int currentSlab;
+
+    /**
+     * The hash table. Every non-empty slot holds a 16 bit tag taken from the hash of the query in its upper bits, so
+     * that most mismatches are detected without reading the slab, followed by the index of the slab and the offset of
+     * the entry within the slab.
+     */
+    private long[] table;
+
+    private int size;
+
+    private long missCount = 0L;
+
+    private long expireCount = 0L;
+
+    private long hitCount = 0L;
+
+    /**
+     * Create a new OffHeapDnsCache with given capacity, slab size and upper bound ttl.
+     *
+     * @param capacity The capacity in bytes, will be rounded up to a multiple of the slab size.
+     * @param slabSize The size of a slab in bytes, which is also the maximum size of an entry.
+     * @param maxTTL The upper bound for any ttl.
+     */
+    public OffHeapDnsCache(long capacity, int slabSize, long maxTTL) {
+        if (slabSize <= HEADER_LENGTH) {
+            throw new IllegalArgumentException("Slab size must be larger than " + HEADER_LENGTH);
+        }
+        long slabCount = (capacity + slabSize - 1) / slabSize;
+        if (slabCount < 2 || slabCount > MAX_SLAB_COUNT) {
+            throw new IllegalArgumentException("Capacity must be between 2 and " + MAX_SLAB_COUNT + " slabs");
+        }
+        this.slabSize = slabSize;
+        this.maxTTL = maxTTL;
+        slabs = new ByteBuffer[(int) slabCount];
+        slabUsage = new int[slabs.length];
+        table = new long[MIN_TABLE_SIZE];
+    }
+
+    /**
+     * Create a new OffHeapDnsCache with given capacity and upper bound ttl.
+     *
+     * @param capacity The capacity in bytes.
+     * @param maxTTL The upper bound for any ttl.
+     */
+    public OffHeapDnsCache(long capacity, long maxTTL) {
+        this(capacity, DEFAULT_SLAB_SIZE, maxTTL);
+    }
+
+    /**
+     * Create a new OffHeapDnsCache with given capacity.
+     *
+     * @param capacity The capacity in bytes.
+     */
+    public OffHeapDnsCache(long capacity) {
+        this(capacity, Long.MAX_VALUE);
+    }
+
+    public OffHeapDnsCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    @Override
+    protected void putNormalized(DnsMessage q, DnsQueryResult result) {
+        DnsMessage response = result.response;
+        if (response.receiveTimestamp <= 0L) {
+            return;
+        }
+        byte[] query = q.toArray();
+        byte[] responseBytes = response.toArray(true);
+        final int entryLength = HEADER_LENGTH + query.length + responseBytes.length;
+        if (query.length > 0xffff || entryLength > slabSize) {
+            LOGGER.fine("Not caching a response of " + responseBytes.length + " bytes, which exceeds the slab size");
+            return;
+        }
+        final long hash = hash(query);
+        final long expiryDate = getExpiryDate(response);
+
+        synchronized (this) {
+            if (slabs[currentSlab] == null || slabUsage[currentSlab] + entryLength > slabSize) {
+                nextSlab();
+            }
+            final int offset = slabUsage[currentSlab];
+            ByteBuffer slab = slabs[currentSlab];
+            slab.putLong(offset + HASH_OFFSET, hash);
+            slab.putLong(offset + EXPIRY_DATE_OFFSET, expiryDate);
+            slab.putLong(offset + RECEIVE_TIMESTAMP_OFFSET, response.receiveTimestamp);
+            slab.putShort(offset + QUERY_LENGTH_OFFSET, (short) query.length);
+            slab.putInt(offset + RESPONSE_LENGTH_OFFSET, responseBytes.length);
+            slab.put(offset + QUERY_METHOD_OFFSET, (byte) result.queryMethod.ordinal());
+            slab.position(offset + HEADER_LENGTH);
+            slab.put(query);
+            slab.put(responseBytes);
+            slabUsage[currentSlab] = offset + entryLength;
+
+            final long slotValue = tag(hash) | location(currentSlab, offset);
+            int slot = find(hash, query);
+            if (slot >= 0) {
+                // Replace the previous entry, its space is reclaimed once its slab is reused.
+                table[slot] = slotValue;
+                return;
+            }
+            if (size >= table.length - (table.length >> 2)) {
+                if (table.length == MAX_TABLE_SIZE) {
+                    LOGGER.fine("Not caching a response, the hash table is full");
+                    return;
+                }
+                resize(table.length << 1);
+            }
+            insert(hash, slotValue);
+            size++;
+        }
+    }
+
+    @Override
+    protected CachedDnsQueryResult getNormalized(DnsMessage q) {
+        byte[] query = q.toArray();
+        final long hash = hash(query);
+
+        byte[] responseBytes;
+        final long receiveTimestamp;
+        final DnsQueryResult.QueryMethod queryMethod;
+        synchronized (this) {
+            int slot = find(hash, query);
+            if (slot < 0) {
+                missCount++;
+                return null;
+            }
+            ByteBuffer slab = slabs[slabOf(table[slot])];
+            final int offset = offsetOf(table[slot]);
+            if (slab.getLong(offset + EXPIRY_DATE_OFFSET) < System.currentTimeMillis()) {
+                missCount++;
+                expireCount++;
+                remove(slot);
+                return null;
+            }
+            hitCount++;
+            receiveTimestamp = slab.getLong(offset + RECEIVE_TIMESTAMP_OFFSET);
+            queryMethod = QUERY_METHODS[slab.get(offset + QUERY_METHOD_OFFSET)];
+            responseBytes = new byte[slab.getInt(offset + RESPONSE_LENGTH_OFFSET)];
+            // Copy the response, so that it can be decoded without holding the lock. The slab may be reused meanwhile.
+            slab.position(offset + HEADER_LENGTH + query.length);
+            slab.get(responseBytes);
+        }
+
+        DnsMessage response;
+        try {
+            response = new DnsMessage(responseBytes).asBuilder().setReceiveTimestamp(receiveTimestamp).build();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not decode cached response", e);
+            return null;
+        }
+        return new DirectCachedDnsQueryResult(q, new WireDnsQueryResult(queryMethod, q, response));
+    }
+
+    private long getExpiryDate(DnsMessage response) {
+        // RFC 2181 § 5.2 says that all TTLs in a RRSet should be equal, if this isn't the case, then we assume the
+        // shortest TTL to be the effective one. Negative responses are cached for their negative TTL (RFC 2308 § 5).
+        final long ttl = Math.min(response.getCacheTtl(), maxTTL);
+        if (ttl > (Long.MAX_VALUE - response.receiveTimestamp) / 1000) {
+            return Long.MAX_VALUE;
+        }
+        return response.receiveTimestamp + (ttl * 1000);
+    }
+
+    /**
+     * Continue with the next slab. If the next slab is in use, all its entries are evicted.
+     */
+    private void nextSlab() {
+        if (slabs[currentSlab] != null) {
+            currentSlab = (currentSlab + 1) % slabs.length;
+        }
+        ByteBuffer slab = slabs[currentSlab];
+        if (slab == null) {
+            slabs[currentSlab] = ByteBuffer.allocateDirect(slabSize);
+            return;
+        }
+
+        final int usage = slabUsage[currentSlab];
+        int offset = 0;
+        while (offset < usage) {
+            final long location = location(currentSlab, offset);
+            final long hash = slab.getLong(offset + HASH_OFFSET);
+            // Only remove the slot if it refers to this entry, and not to a newer entry for the same query.
+            for (int slot = indexFor(hash); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+                if ((table[slot] & LOCATION_MASK) == location) {
+                    remove(slot);
+                    break;
+                }
+            }
+            offset += HEADER_LENGTH + (slab.getShort(offset + QUERY_LENGTH_OFFSET) & 0xffff)
+                    + slab.getInt(offset + RESPONSE_LENGTH_OFFSET);
+        }
+        slabUsage[currentSlab] = 0;
+    }
+
+    /**
+     * Find the slot of the entry of the given query.
+     *
+     * @param hash the hash of the query.
+     * @param query the query in wire format.
+     * @return the slot, or <code>-1</code> if there is no entry of the query.
+     */
+    private int find(long hash, byte[] query) {
+        final long tag = tag(hash);
+        for (int slot = indexFor(hash); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+            final long slotValue = table[slot];
+            if ((slotValue & ~LOCATION_MASK) == tag && entryMatches(slotValue, query)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean entryMatches(long slotValue, byte[] query) {
+        ByteBuffer slab = slabs[slabOf(slotValue)];
+        final int offset = offsetOf(slotValue);
+        if ((slab.getShort(offset + QUERY_LENGTH_OFFSET) & 0xffff) != query.length) {
+            return false;
+        }
+        final int queryOffset = offset + HEADER_LENGTH;
+        for (int i = 0; i < query.length; i++) {
+            if (slab.get(queryOffset + i) != query[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(long hash, long slotValue) {
+        int slot = indexFor(hash);
+        while (table[slot] != 0) {
+            slot = (slot + 1) & (table.length - 1);
+        }
+        table[slot] = slotValue;
+    }
+
+    /**
+     * Remove the given slot. The following slots of the same cluster are shifted back, so that no tombstones are
+     * required.
+     *
+     * @param slot the slot.
+     */
+    private void remove(int slot) {
+        final int mask = table.length - 1;
+        int free = slot;
+        table[free] = 0;
+        size--;
+        for (int current = (free + 1) & mask; table[current] != 0; current = (current + 1) & mask) {
+            final int home = indexFor(hashOf(table[current]));
+            // Move the slot into the free slot, unless its home slot lies cyclically between both.
+            final boolean homeBetween = free <= current
+                    ? free < home && home <= current
+                    : free < home || home <= current;
+            if (!homeBetween) {
+                table[free] = table[current];
+                table[current] = 0;
+                free = current;
+            }
+        }
+    }
+
+    private void resize(int newSize) {
+        long[] oldTable = table;
+        table = new long[newSize];
+        for (long slotValue : oldTable) {
+            if (slotValue != 0) {
+                insert(hashOf(slotValue), slotValue);
+            }
+        }
+    }
+
+    private long hashOf(long slotValue) {
+        return slabs[slabOf(slotValue)].getLong(offsetOf(slotValue) + HASH_OFFSET);
+    }
+
+    private int indexFor(long hash) {
+        return (int) hash & (table.length - 1);
+    }
+
+    private static long tag(long hash) {
+        long tag = hash & ~LOCATION_MASK;
+        // A tag is never zero, so that an empty slot can be told apart from a used one.
+        return tag != 0 ? tag : 1L << 48;
+    }
+
+    private static long location(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slabOf(long slotValue) {
+        return (int) ((slotValue >>> 32) & 0xffff);
+    }
+
+    private static int offsetOf(long slotValue) {
+        return (int) slotValue;
+    }
+
+    /**
+     * The 64 bit FNV-1a hash of the given data, followed by the finalization step of MurmurHash3, so that all bits of
+     * the hash depend on all bits of the data.
+     *
+     * @param data the data.
+     * @return the hash.
+     */
+    private static long hash(byte[] data) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Clear all entries in this cache. The slabs are kept for reuse.
+     */
+    public synchronized void clear() {
+        table = new long[MIN_TABLE_SIZE];
+        size = 0;
+        for (int i = 0; i < slabUsage.length; i++) {
+            slabUsage[i] = 0;
+        }
+        currentSlab = 0;
+        missCount = 0L;
+        hitCount = 0L;
+        expireCount = 0L;
+    }
+
+    /**
+     * Get the number of entries in this cache, which may include expired entries not yet evicted.
+     *
+     * @return the number of entries.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of bytes of direct memory allocated for the slabs of this cache.
+     *
+     * @return the number of allocated bytes.
+     */
+    public synchronized long getAllocatedBytes() {
+        long allocatedBytes = 0;
+        for (ByteBuffer slab : slabs) {
+            if (slab != null) {
+                allocatedBytes += slab.capacity();
+            }
+        }
+        return allocatedBytes;
+    }
+
+    /**
+     * Get the miss count of this cache which is the number of fruitless
+     * get calls since this cache was last resetted.
+     * @return The number of cache misses.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * The number of expires (cache hits that have had a ttl to low to be
+     * retrieved).
+     * @return The expire count.
+     */
+    public synchronized long getExpireCount() {
+        return expireCount;
+    }
+
+    /**
+     * The cache hit count (all successful calls to get).
+     * @return The hit count.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OffHeapDnsCache{usage=" + size + ", slabs=" + slabs.length + "x" + slabSize + ", hits=" + hitCount
+                + ", misses=" + missCount + ", expires=" + expireCount + "}";
+    }
+
+    @Override
+    public void offer(DnsMessage query, DnsQueryResult result, DnsName knownAuthoritativeZone) {
+    }
+
+    /**
+     * A result decoded from the wire format, which retains the query method of the original result.
+     */
+    private static final class WireDnsQueryResult extends DnsQueryResult {
+        private WireDnsQueryResult(QueryMethod queryMethod, DnsMessage query, DnsMessage response) {
+            super(queryMethod, query, response);
+        }
+    }
+}
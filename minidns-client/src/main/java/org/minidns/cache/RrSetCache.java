@@ -0,0 +1,882 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.minidns.DnsCache;
+import org.minidns.RrSet;
+import org.minidns.dnslabel.DnsLabel;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.RrSetCachedDnsQueryResult;
+import org.minidns.record.CNAME;
+import org.minidns.record.Data;
+import org.minidns.record.NSEC;
+import org.minidns.record.OPT;
+import org.minidns.record.RRSIG;
+import org.minidns.record.Record;
+import org.minidns.record.Record.CLASS;
+import org.minidns.record.Record.TYPE;
+
+/**
+ * A DNSCache which caches RRsets instead of whole responses. The RRsets are keyed by their owner name, type and class,
+ * and every RRset has its own TTL. Responses are assembled from the cached RRsets on lookup, following CNAME chains, so
+ * that for example an NS RRset and its glue are only cached once, no matter in how many responses they appeared.
+ * <p>
+ * Like {@link ExtendedLruCache}, only records which are a child of the question's name, or of the authoritative zone
+ * passed to {@link #offer(DnsMessage, DnsQueryResult, DnsName)}, are cached from the authority and additional
+ * sections. The records on the CNAME chain of the answer are cached regardless of their bailiwick, which relies on the
+ * upstream server to only return chains it followed itself. RRsets are ranked by the section they were found in, as
+ * described in RFC 2181 § 5.4.1, and a cached RRset is not replaced by one with a lower rank before it expires. RRSIG
+ * records are cached together with the RRset they cover.
+ * </p>
+ * <p>
+ * Negative responses, i.e. NXDOMAIN and NODATA, are cached for the TTL derived from their SOA record as described in
+ * RFC 2308. If a negative response was DNSSEC validated by the upstream resolver, as indicated by the AD flag, the NSEC
+ * records proving the non-existence are additionally used to synthesize negative responses for other names and types
+ * they cover, as described in RFC 8198. This can be disabled with {@link #setAggressiveNsecEnabled(boolean)}.
+ * </p>
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc2181#section-5.4.1">RFC 2181 § 5.4.1. Ranking data</a>
+ * @see <a href="https://tools.ietf.org/html/rfc2308">RFC 2308 - Negative Caching of DNS Queries (DNS NCACHE)</a>
+ * @see <a href="https://tools.ietf.org/html/rfc8198">RFC 8198 - Aggressive Use of DNSSEC-Validated Cache</a>
+ */
+public class RrSetCache extends DnsCache {
+
+    /**
+     * The maximum number of CNAME records followed when assembling a response.
+     */
+    private static final int MAX_CNAME_CHAIN_LENGTH = 16;
+
+    private static final int RANK_ADDITIONAL = 0;
+    private static final int RANK_AUTHORITY = 1;
+    private static final int RANK_ANSWER = 2;
+    private static final int RANK_AUTHORITATIVE_ANSWER = 3;
+
+    /**
+     * The canonical DNS name order as defined in RFC 4034 § 6.1, which is the order of the names in an NSEC chain.
+     */
+    private static final Comparator<DnsName> CANONICAL_ORDER = new Comparator<DnsName>() {
+        @Override
+        public int compare(DnsName left, DnsName right) {
+            // The labels are lowercase and start with the top-level label.
+            DnsLabel[] leftLabels = left.getLabels();
+            DnsLabel[] rightLabels = right.getLabels();
+            final int labelCount = Math.min(leftLabels.length, rightLabels.length);
+            for (int i = 0; i < labelCount; i++) {
+                int result = leftLabels[i].compareTo(rightLabels[i]);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return leftLabels.length - rightLabels.length;
+        }
+    };
+
+    /**
+     * The internal capacity of the backend cache, in RRsets.
+     */
+    protected final int capacity;
+
+    /**
+     * The upper bound of the ttl. All longer TTLs will be capped by this ttl.
+     */
+    protected final long maxTTL;
+
+    /**
+     * The backend cache.
+     */
+    private final LinkedHashMap<Key, CachedRrSet> backend;
+
+    /**
+     * The validated NSEC records, in canonical order of their owner names.
+     */
+    private final TreeMap<DnsName, CachedNsec> nsecRecords = new TreeMap<>(CANONICAL_ORDER);
+
+    private boolean aggressiveNsecEnabled = true;
+
+    private long missCount = 0L;
+
+    private long expireCount = 0L;
+
+    private long hitCount = 0L;
+
+    /**
+     * Create a new RrSetCache with given capacity and upper bound ttl.
+     * @param capacity The internal capacity in RRsets.
+     * @param maxTTL The upper bound for any ttl.
+     */
+    @SuppressWarnings("serial")
+    public RrSetCache(final int capacity, final long maxTTL) {
+        this.capacity = capacity;
+        this.maxTTL = maxTTL;
+        backend = new LinkedHashMap<Key, CachedRrSet>(
+                Math.min(capacity + (capacity + 3) / 4 + 2, 11), 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Entry<Key, CachedRrSet> eldest) {
+                    return size() > capacity;
+                }
+            };
+    }
+
+    /**
+     * Create a new RrSetCache with given capacity.
+     * @param capacity The capacity of this cache in RRsets.
+     */
+    public RrSetCache(final int capacity) {
+        this(capacity, Long.MAX_VALUE);
+    }
+
+    public RrSetCache() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    @Override
+    protected void putNormalized(DnsMessage q, DnsQueryResult result) {
+        DnsMessage response = result.response;
+        if (response.receiveTimestamp <= 0L || response.truncated) {
+            return;
+        }
+        if (response.responseCode != RESPONSE_CODE.NO_ERROR && response.responseCode != RESPONSE_CODE.NX_DOMAIN) {
+            return;
+        }
+        Question question = q.getQuestion();
+        if (question == null) {
+            return;
+        }
+
+        // Records on the CNAME chain starting at the question's name are answers, even if they are not a child of it. They
+        // are cached regardless of their bailiwick, as the zone the upstream server is authoritative for is not known
+        // here. Hence this relies on the upstream server, usually a recursive resolver, to only return chains it
+        // followed itself.
+        Set<DnsName> chain = new HashSet<>();
+        DnsName chainEnd = question.name;
+        chain.add(chainEnd);
+        for (int i = 0; i < MAX_CNAME_CHAIN_LENGTH; i++) {
+            DnsName target = getCnameTarget(response.answerSection, chainEnd);
+            if (target == null || !chain.add(target)) {
+                break;
+            }
+            chainEnd = target;
+        }
+
+        List<CachedRrSet> rrSets = new LinkedList<>();
+        int answerRank = response.authoritativeAnswer ? RANK_AUTHORITATIVE_ANSWER : RANK_ANSWER;
+        gather(rrSets, q, response, response.answerSection, answerRank, chain, null);
+        gather(rrSets, q, response, response.authoritySection, RANK_AUTHORITY, null, null);
+        gather(rrSets, q, response, response.additionalSection, RANK_ADDITIONAL, null, null);
+
+        List<CachedNsec> nsecs = null;
+        if (response.isNegativeResponse()) {
+            Record<? extends Data> soa = getSoa(response);
+            // The SOA record must be the one of a zone the non-existent name belongs to.
+            if (soa != null && chainEnd.isChildOf(soa.name)) {
+                nsecs = gatherNegative(rrSets, q, response, question, chainEnd, soa, answerRank);
+            }
+        }
+        store(rrSets, nsecs);
+    }
+
+    @Override
+    public void offer(DnsMessage query, DnsQueryResult result, DnsName authoritativeZone) {
+        DnsMessage response = result.response;
+        if (response.receiveTimestamp <= 0L || response.truncated) {
+            return;
+        }
+        List<CachedRrSet> rrSets = new LinkedList<>();
+        gather(rrSets, query, response, response.authoritySection, RANK_AUTHORITY, null, authoritativeZone);
+        gather(rrSets, query, response, response.additionalSection, RANK_ADDITIONAL, null, authoritativeZone);
+        store(rrSets, null);
+    }
+
+    private static DnsName getCnameTarget(List<Record<? extends Data>> records, DnsName name) {
+        for (Record<? extends Data> record : records) {
+            if (record.type == TYPE.CNAME && record.name.equals(name)) {
+                return ((CNAME) record.payloadData).target;
+            }
+        }
+        return null;
+    }
+
+    private static Record<? extends Data> getSoa(DnsMessage response) {
+        for (Record<? extends Data> record : response.authoritySection) {
+            if (record.type == TYPE.SOA) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private void gather(List<CachedRrSet> rrSets, DnsMessage q, DnsMessage response,
+            List<Record<? extends Data>> records, int rank, Set<DnsName> chain, DnsName authoritativeZone) {
+        Question question = q.getQuestion();
+        Map<Key, Set<Record<? extends Data>>> rrSetRecords = new LinkedHashMap<>();
+        Map<Key, List<Record<? extends Data>>> signatures = new LinkedHashMap<>();
+        for (Record<? extends Data> record : records) {
+            if (record.type == TYPE.OPT) {
+                continue;
+            }
+            boolean onChain = chain != null && chain.contains(record.name);
+            if (!onChain && !shouldCache(record, question, authoritativeZone)) {
+                continue;
+            }
+
+            if (record.type == TYPE.RRSIG) {
+                Key key = new Key(record.name, ((RRSIG) record.payloadData).typeCovered, record.clazz);
+                List<Record<? extends Data>> rrSetSignatures = signatures.get(key);
+                if (rrSetSignatures == null) {
+                    rrSetSignatures = new ArrayList<>(2);
+                    signatures.put(key, rrSetSignatures);
+                }
+                rrSetSignatures.add(record);
+                continue;
+            }
+
+            Key key = new Key(record.name, record.type, record.clazz);
+            Set<Record<? extends Data>> recordsOfKey = rrSetRecords.get(key);
+            if (recordsOfKey == null) {
+                recordsOfKey = new LinkedHashSet<>();
+                rrSetRecords.put(key, recordsOfKey);
+            }
+            // Duplicate records are dropped, as they are not allowed in RRsets.
+            recordsOfKey.add(record);
+        }
+
+        for (Entry<Key, Set<Record<? extends Data>>> entry : rrSetRecords.entrySet()) {
+            Key key = entry.getKey();
+            RrSet.Builder rrSetBuilder = RrSet.builder();
+            for (Record<? extends Data> record : entry.getValue()) {
+                rrSetBuilder.addRecord(record);
+            }
+            RrSet rrSet = rrSetBuilder.build();
+            List<Record<? extends Data>> rrSetSignatures = signatures.get(key);
+            if (rrSetSignatures == null) {
+                rrSetSignatures = Collections.emptyList();
+            }
+
+            // The signatures expire together with the RRset they cover.
+            long ttl = maxTTL;
+            for (Record<? extends Data> record : rrSet.records) {
+                ttl = Math.min(ttl, record.ttl);
+            }
+            for (Record<? extends Data> record : rrSetSignatures) {
+                ttl = Math.min(ttl, record.ttl);
+            }
+            rrSets.add(new CachedRrSet(key, rrSet, rrSetSignatures, null, response.receiveTimestamp,
+                    getExpiryDate(response.receiveTimestamp, ttl), rank, q.isDnssecOk(), response.authenticData));
+        }
+    }
+
+    /**
+     * Gather the negative result of the given negative response.
+     *
+     * @param rrSets the list the negative result is added to.
+     * @param q the query.
+     * @param response the negative response.
+     * @param question the question of the query.
+     * @param name the name which does not exist or has no records of the queried type.
+     * @param soa the SOA record of the zone of the name.
+     * @param rank the rank of the result.
+     * @return the validated NSEC records of the response or <code>null</code>.
+     */
+    private List<CachedNsec> gatherNegative(List<CachedRrSet> rrSets, DnsMessage q, DnsMessage response,
+            Question question, DnsName name, Record<? extends Data> soa, int rank) {
+        final DnsName zone = soa.name;
+        final long negativeTtl = Math.min(response.getNegativeTtl(), maxTTL);
+        final long expiryDate = getExpiryDate(response.receiveTimestamp, negativeTtl);
+
+        // Keep the SOA record and the proof of non-existence for the authority section.
+        List<Record<? extends Data>> soaRecords = new ArrayList<>(2);
+        List<Record<? extends Data>> authority = new ArrayList<>();
+        for (Record<? extends Data> record : response.authoritySection) {
+            if (!record.name.isChildOf(zone)) {
+                continue;
+            }
+            TYPE type = record.type;
+            if (type == TYPE.RRSIG) {
+                type = ((RRSIG) record.payloadData).typeCovered;
+            }
+            if (type == TYPE.SOA) {
+                soaRecords.add(record);
+                authority.add(record);
+            } else if (type == TYPE.NSEC || type == TYPE.NSEC3) {
+                authority.add(record);
+            }
+        }
+
+        final boolean nxDomain = response.responseCode == RESPONSE_CODE.NX_DOMAIN;
+        // An NXDOMAIN result applies to all types, and is therefore stored without type.
+        Key key = new Key(name, nxDomain ? null : question.type, question.clazz);
+        rrSets.add(new CachedRrSet(key, null, Collections.<Record<? extends Data>>emptyList(), authority,
+                response.receiveTimestamp, expiryDate, rank, q.isDnssecOk(), response.authenticData,
+                response.responseCode));
+
+        if (!response.authenticData) {
+            // Only DNSSEC validated NSEC records may be used aggressively, see RFC 8198 § 5.1.
+            return null;
+        }
+        List<CachedNsec> nsecs = new ArrayList<>(2);
+        for (Record<? extends Data> record : response.authoritySection) {
+            if (record.type != TYPE.NSEC || !record.name.isChildOf(zone)) {
+                continue;
+            }
+            List<Record<? extends Data>> records = new ArrayList<>(2);
+            records.add(record);
+            for (Record<? extends Data> signature : response.authoritySection) {
+                if (signature.type == TYPE.RRSIG && signature.name.equals(record.name)
+                        && ((RRSIG) signature.payloadData).typeCovered == TYPE.NSEC) {
+                    records.add(signature);
+                }
+            }
+            // RFC 8198 § 5.4 limits the TTL of the NSEC records to the negative TTL.
+            long ttl = Math.min(record.ttl, negativeTtl);
+            nsecs.add(new CachedNsec(record.name, (NSEC) record.payloadData, zone, records, soaRecords,
+                    response.receiveTimestamp, getExpiryDate(response.receiveTimestamp, ttl)));
+        }
+        return nsecs;
+    }
+
+    private static long getExpiryDate(long receiveTimestamp, long ttl) {
+        if (ttl > (Long.MAX_VALUE - receiveTimestamp) / 1000) {
+            return Long.MAX_VALUE;
+        }
+        return receiveTimestamp + ttl * 1000;
+    }
+
+    private synchronized void store(List<CachedRrSet> rrSets, List<CachedNsec> nsecs) {
+        final long now = System.currentTimeMillis();
+        for (CachedRrSet rrSet : rrSets) {
+            CachedRrSet cachedRrSet = backend.get(rrSet.key);
+            if (cachedRrSet != null && cachedRrSet.rank > rrSet.rank && cachedRrSet.expiryDate >= now) {
+                // Do not replace data with more trustworthy data, see RFC 2181 § 5.4.1.
+                continue;
+            }
+            backend.put(rrSet.key, rrSet);
+        }
+
+        if (nsecs == null || !aggressiveNsecEnabled) {
+            return;
+        }
+        for (CachedNsec nsec : nsecs) {
+            nsecRecords.put(nsec.owner, nsec);
+        }
+        if (nsecRecords.size() > capacity) {
+            Iterator<CachedNsec> iterator = nsecRecords.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().expiryDate < now) {
+                    iterator.remove();
+                }
+            }
+            while (nsecRecords.size() > capacity) {
+                nsecRecords.pollFirstEntry();
+            }
+        }
+    }
+
+    /**
+     * Check whether the given record from the authority or additional section should be cached.
+     *
+     * @param record the record.
+     * @param question the question of the query.
+     * @param authoritativeZone the zone the response is authoritative for, or <code>null</code>.
+     * @return <code>true</code> if the record should be cached.
+     */
+    protected boolean shouldCache(Record<? extends Data> record, Question question, DnsName authoritativeZone) {
+        boolean recordIsChildOfQuestion = record.name.isChildOf(question.name);
+
+        boolean recordIsChildOfAuthoritativeZone = false;
+        if (authoritativeZone != null) {
+            recordIsChildOfAuthoritativeZone = record.name.isChildOf(authoritativeZone);
+        }
+
+        return recordIsChildOfQuestion || recordIsChildOfAuthoritativeZone;
+    }
+
+    @Override
+    protected CachedDnsQueryResult getNormalized(DnsMessage q) {
+        Question question = q.getQuestion();
+        if (question == null) {
+            return null;
+        }
+        final boolean dnssecOk = q.isDnssecOk();
+        final long now = System.currentTimeMillis();
+
+        List<CachedRrSet> rrSets = new ArrayList<>(2);
+        CachedRrSet negativeResult = null;
+        synchronized (this) {
+            DnsName name = question.name;
+            Set<DnsName> visited = new HashSet<>();
+            while (true) {
+                negativeResult = getLive(new Key(name, null, question.clazz), dnssecOk, now);
+                if (negativeResult != null) {
+                    break;
+                }
+                CachedRrSet rrSet = getLive(new Key(name, question.type, question.clazz), dnssecOk, now);
+                if (rrSet != null) {
+                    if (rrSet.rrSet == null) {
+                        negativeResult = rrSet;
+                    } else {
+                        rrSets.add(rrSet);
+                    }
+                    break;
+                }
+                if (question.type != TYPE.CNAME) {
+                    rrSet = getLive(new Key(name, TYPE.CNAME, question.clazz), dnssecOk, now);
+                }
+                if (rrSet != null) {
+                    if (!visited.add(name) || visited.size() > MAX_CNAME_CHAIN_LENGTH) {
+                        // The chain is a loop or too long.
+                        missCount++;
+                        return null;
+                    }
+                    rrSets.add(rrSet);
+                    name = ((CNAME) rrSet.rrSet.records.iterator().next().payloadData).target;
+                    continue;
+                }
+                if (aggressiveNsecEnabled && question.clazz == CLASS.IN) {
+                    negativeResult = synthesizeFromNsec(name, question.type, now);
+                }
+                if (negativeResult == null) {
+                    // The end of the chain is not cached.
+                    missCount++;
+                    return null;
+                }
+                break;
+            }
+            hitCount++;
+        }
+
+        boolean authoritativeAnswer = true;
+        boolean authenticData = true;
+        List<Record<? extends Data>> answers = new ArrayList<>();
+        List<RrSet> resultRrSets = new ArrayList<>(rrSets.size());
+        for (CachedRrSet rrSet : rrSets) {
+            authoritativeAnswer &= rrSet.rank == RANK_AUTHORITATIVE_ANSWER;
+            authenticData &= rrSet.authenticData;
+            addWithRemainingTtl(answers, rrSet.rrSet.records, rrSet, now);
+            if (dnssecOk) {
+                addWithRemainingTtl(answers, rrSet.signatures, rrSet, now);
+            }
+            resultRrSets.add(rrSet.rrSet);
+        }
+
+        DnsMessage.Builder response = DnsMessage.builder()
+                .setQrFlag(true)
+                .setRecursionDesired(q.recursionDesired)
+                .setRecursionAvailable(true)
+                .setCheckingDisabled(q.checkingDisabled)
+                .setQuestion(question)
+                .setAnswers(answers)
+                .setReceiveTimestamp(now);
+        if (negativeResult != null) {
+            authoritativeAnswer &= negativeResult.rank == RANK_AUTHORITATIVE_ANSWER;
+            authenticData &= negativeResult.authenticData;
+            List<Record<? extends Data>> authority = new ArrayList<>(negativeResult.authority.size());
+            for (Record<? extends Data> record : negativeResult.authority) {
+                if (dnssecOk || record.type == TYPE.SOA) {
+                    authority.add(record);
+                }
+            }
+            List<Record<? extends Data>> authorityWithRemainingTtl = new ArrayList<>(authority.size());
+            addWithRemainingTtl(authorityWithRemainingTtl, authority, negativeResult, now);
+            response.setResponseCode(negativeResult.responseCode)
+                    .setNameserverRecords(authorityWithRemainingTtl);
+        }
+        response.setAuthoritativeAnswer(authoritativeAnswer)
+                .setAuthenticData(authenticData);
+        Record<OPT> optRecord = q.getOptPseudoRecord();
+        if (optRecord != null) {
+            response.addAdditionalResourceRecord(optRecord);
+        }
+        return new RrSetCachedDnsQueryResult(q, response.build(), resultRrSets);
+    }
+
+    private void addWithRemainingTtl(List<Record<? extends Data>> records, Iterable<Record<? extends Data>> cachedRecords,
+            CachedRrSet rrSet, long now) {
+        final long age = (now - rrSet.receiveTimestamp) / 1000;
+        final long remainingTtl = (rrSet.expiryDate - now) / 1000;
+        for (Record<? extends Data> record : cachedRecords) {
+            long ttl = Math.min(Math.min(record.ttl, maxTTL) - age, remainingTtl);
+            records.add(record.withTtl(Math.max(0, ttl)));
+        }
+    }
+
+    /**
+     * Get a live cached RRset. Expired RRsets are removed.
+     *
+     * @param key the key of the RRset.
+     * @param dnssecOk whether the RRset is looked up for a query with the DO flag set.
+     * @param now the current time in milliseconds since the epoch.
+     * @return the RRset or <code>null</code>.
+     */
+    private CachedRrSet getLive(Key key, boolean dnssecOk, long now) {
+        CachedRrSet rrSet = backend.get(key);
+        if (rrSet == null) {
+            return null;
+        }
+        if (rrSet.expiryDate < now) {
+            expireCount++;
+            backend.remove(key);
+            return null;
+        }
+        if (dnssecOk && !rrSet.dnssecOk) {
+            // The RRset was cached from a response to a query without the DO flag, so its signatures are missing.
+            return null;
+        }
+        return rrSet;
+    }
+
+    /**
+     * Synthesize a negative result from the cached NSEC records, as described in RFC 8198 § 5.
+     *
+     * @param name the queried name.
+     * @param type the queried type.
+     * @param now the current time in milliseconds since the epoch.
+     * @return the negative result, or <code>null</code> if the cached NSEC records do not prove the non-existence.
+     */
+    private CachedRrSet synthesizeFromNsec(DnsName name, TYPE type, long now) {
+        CachedNsec nsec = getLiveNsec(name, now);
+        if (nsec == null || !name.isChildOf(nsec.zone)) {
+            return null;
+        }
+
+        List<CachedNsec> proof = new ArrayList<>(2);
+        RESPONSE_CODE responseCode;
+        if (nsec.owner.equals(name)) {
+            // The name exists, check whether the type exists.
+            if (nsec.nsec.types.contains(type) || nsec.nsec.types.contains(TYPE.CNAME)) {
+                return null;
+            }
+            if (nsec.isDelegation() && type != TYPE.DS) {
+                // The NSEC record of the parent zone says nothing about the records in the child zone.
+                return null;
+            }
+            if (type == TYPE.DS && nsec.nsec.types.contains(TYPE.SOA)) {
+                // The NSEC record at the apex of the child zone says nothing about the DS record, which is in the parent
+                // zone, see RFC 4035 § 5.4 and RFC 6840 § 4.1.
+                return null;
+            }
+            proof.add(nsec);
+            responseCode = RESPONSE_CODE.NO_ERROR;
+        } else {
+            if (!nsec.covers(name)) {
+                return null;
+            }
+            // The wildcard at the closest encloser must not exist either, see RFC 8198 § 5.3.
+            DnsName closestEncloser = getCommonAncestor(name, nsec.owner);
+            DnsName nextCommonAncestor = getCommonAncestor(name, nsec.nsec.next);
+            if (nextCommonAncestor.getLabelCount() > closestEncloser.getLabelCount()) {
+                closestEncloser = nextCommonAncestor;
+            }
+            DnsName wildcard = DnsName.from(DnsLabel.WILDCARD_LABEL, closestEncloser);
+            CachedNsec wildcardNsec = getLiveNsec(wildcard, now);
+            if (wildcardNsec == null || wildcardNsec.owner.equals(wildcard) || !wildcardNsec.covers(wildcard)) {
+                return null;
+            }
+            proof.add(nsec);
+            if (wildcardNsec != nsec) {
+                proof.add(wildcardNsec);
+            }
+            responseCode = RESPONSE_CODE.NX_DOMAIN;
+        }
+
+        List<Record<? extends Data>> authority = new ArrayList<>(6);
+        authority.addAll(nsec.soaRecords);
+        long receiveTimestamp = Long.MAX_VALUE;
+        long expiryDate = Long.MAX_VALUE;
+        for (CachedNsec proofNsec : proof) {
+            authority.addAll(proofNsec.records);
+            receiveTimestamp = Math.min(receiveTimestamp, proofNsec.receiveTimestamp);
+            expiryDate = Math.min(expiryDate, proofNsec.expiryDate);
+        }
+        return new CachedRrSet(new Key(name, type, CLASS.IN), null, Collections.<Record<? extends Data>>emptyList(),
+                authority, receiveTimestamp, expiryDate, RANK_ANSWER, true, true, responseCode);
+    }
+
+    /**
+     * Get the live NSEC record whose owner name is the given name, or the closest name preceding it in canonical order.
+     *
+     * @param name the name.
+     * @param now the current time in milliseconds since the epoch.
+     * @return the NSEC record or <code>null</code>.
+     */
+    private CachedNsec getLiveNsec(DnsName name, long now) {
+        Entry<DnsName, CachedNsec> entry = nsecRecords.floorEntry(name);
+        if (entry == null) {
+            return null;
+        }
+        CachedNsec nsec = entry.getValue();
+        if (nsec.expiryDate < now) {
+            nsecRecords.remove(entry.getKey());
+            return null;
+        }
+        return nsec;
+    }
+
+    private static DnsName getCommonAncestor(DnsName left, DnsName right) {
+        DnsLabel[] leftLabels = left.getLabels();
+        DnsLabel[] rightLabels = right.getLabels();
+        int commonLabels = 0;
+        while (commonLabels < leftLabels.length && commonLabels < rightLabels.length
+                && leftLabels[commonLabels].equals(rightLabels[commonLabels])) {
+            commonLabels++;
+        }
+        return left.stripToLabels(commonLabels);
+    }
+
+    /**
+     * Get a cached RRset. The records of the RRset carry their original TTLs.
+     *
+     * @param name the owner name of the RRset.
+     * @param type the type of the RRset.
+     * @param clazz the class of the RRset.
+     * @return the RRset or <code>null</code> if there is no unexpired RRset cached.
+     */
+    public synchronized RrSet getRrSet(DnsName name, TYPE type, CLASS clazz) {
+        CachedRrSet rrSet = getLive(new Key(name, type, clazz), false, System.currentTimeMillis());
+        if (rrSet == null) {
+            return null;
+        }
+        return rrSet.rrSet;
+    }
+
+    /**
+     * Get the cached RRset of the given type whose owner name is the given name or its closest ancestor. For example,
+     * looking up the NS RRset of <code>www.example.org</code> finds the closest enclosing zone with known nameservers.
+     *
+     * @param name the name.
+     * @param type the type of the RRset.
+     * @return the RRset or <code>null</code> if there is no unexpired RRset cached for the name or any of its ancestors.
+     */
+    public synchronized RrSet getClosestEnclosingRrSet(DnsName name, TYPE type) {
+        final long now = System.currentTimeMillis();
+        while (true) {
+            CachedRrSet rrSet = getLive(new Key(name, type, CLASS.IN), false, now);
+            if (rrSet != null && rrSet.rrSet != null) {
+                return rrSet.rrSet;
+            }
+            if (name.isRootLabel()) {
+                return null;
+            }
+            name = name.getParent();
+        }
+    }
+
+    /**
+     * Enable or disable the aggressive use of DNSSEC validated NSEC records as described in RFC 8198. Enabled by
+     * default.
+     *
+     * @param aggressiveNsecEnabled whether negative results should be synthesized from cached NSEC records.
+     */
+    public synchronized void setAggressiveNsecEnabled(boolean aggressiveNsecEnabled) {
+        this.aggressiveNsecEnabled = aggressiveNsecEnabled;
+        if (!aggressiveNsecEnabled) {
+            nsecRecords.clear();
+        }
+    }
+
+    public synchronized boolean isAggressiveNsecEnabled() {
+        return aggressiveNsecEnabled;
+    }
+
+    /**
+     * Clear all entries in this cache.
+     */
+    public synchronized void clear() {
+        backend.clear();
+        nsecRecords.clear();
+        missCount = 0L;
+        hitCount = 0L;
+        expireCount = 0L;
+    }
+
+    /**
+     * Get the number of RRsets and negative results in this cache, which may include expired ones not yet removed.
+     *
+     * @return the number of RRsets and negative results.
+     */
+    public synchronized int size() {
+        return backend.size();
+    }
+
+    /**
+     * Get the miss count of this cache which is the number of fruitless
+     * get calls since this cache was last resetted.
+     * @return The number of cache misses.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * The number of expired RRsets, which were removed when they were looked up.
+     * @return The expire count.
+     */
+    public synchronized long getExpireCount() {
+        return expireCount;
+    }
+
+    /**
+     * The cache hit count (all successful calls to get).
+     * @return The hit count.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RrSetCache{usage=" + backend.size() + "/" + capacity + ", nsecs=" + nsecRecords.size() + ", hits="
+                + hitCount + ", misses=" + missCount + ", expires=" + expireCount + "}";
+    }
+
+    /**
+     * The key of an RRset. The type is <code>null</code> for NXDOMAIN results.
+     */
+    private static final class Key {
+        private final DnsName name;
+        private final TYPE type;
+        private final CLASS clazz;
+
+        private Key(DnsName name, TYPE type, CLASS clazz) {
+            this.name = name;
+            this.type = type;
+            this.clazz = clazz;
+        }
+
+        @Override
+        public int hashCode() {
+            int hashCode = 1;
+            hashCode = 37 * hashCode + name.hashCode();
+            hashCode = 37 * hashCode + (type == null ? 0 : type.hashCode());
+            hashCode = 37 * hashCode + clazz.hashCode();
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key otherKey = (Key) other;
+            return name.equals(otherKey.name) && type == otherKey.type && clazz == otherKey.clazz;
+        }
+    }
+
+    /**
+     * A cached RRset, or a negative result if {@link #rrSet} is <code>null</code>.
+     */
+    private static final class CachedRrSet {
+        private final Key key;
+        private final RrSet rrSet;
+        private final List<Record<? extends Data>> signatures;
+        private final List<Record<? extends Data>> authority;
+        private final long receiveTimestamp;
+        private final long expiryDate;
+        private final int rank;
+        private final boolean dnssecOk;
+        private final boolean authenticData;
+        private final RESPONSE_CODE responseCode;
+
+        private CachedRrSet(Key key, RrSet rrSet, List<Record<? extends Data>> signatures,
+                List<Record<? extends Data>> authority, long receiveTimestamp, long expiryDate, int rank,
+                boolean dnssecOk, boolean authenticData) {
+            this(key, rrSet, signatures, authority, receiveTimestamp, expiryDate, rank, dnssecOk, authenticData,
+                    RESPONSE_CODE.NO_ERROR);
+        }
+
+        private CachedRrSet(Key key, RrSet rrSet, List<Record<? extends Data>> signatures,
+                List<Record<? extends Data>> authority, long receiveTimestamp, long expiryDate, int rank,
+                boolean dnssecOk, boolean authenticData, RESPONSE_CODE responseCode) {
+            this.key = key;
+            this.rrSet = rrSet;
+            this.signatures = signatures;
+            this.authority = authority;
+            this.receiveTimestamp = receiveTimestamp;
+            this.expiryDate = expiryDate;
+            this.rank = rank;
+            this.dnssecOk = dnssecOk;
+            this.authenticData = authenticData;
+            this.responseCode = responseCode;
+        }
+    }
+
+    /**
+     * A validated NSEC record together with its signatures and the SOA record of its zone.
+     */
+    private static final class CachedNsec {
+        private final DnsName owner;
+        private final NSEC nsec;
+        private final DnsName zone;
+        private final List<Record<? extends Data>> records;
+        private final List<Record<? extends Data>> soaRecords;
+        private final long receiveTimestamp;
+        private final long expiryDate;
+
+        private CachedNsec(DnsName owner, NSEC nsec, DnsName zone, List<Record<? extends Data>> records,
+                List<Record<? extends Data>> soaRecords, long receiveTimestamp, long expiryDate) {
+            this.owner = owner;
+            this.nsec = nsec;
+            this.zone = zone;
+            this.records = records;
+            this.soaRecords = soaRecords;
+            this.receiveTimestamp = receiveTimestamp;
+            this.expiryDate = expiryDate;
+        }
+
+        /**
+         * Check whether the owner name is a delegation point, i.e. the NSEC record is the one of the parent zone.
+         *
+         * @return <code>true</code> if the owner name is a delegation point.
+         */
+        private boolean isDelegation() {
+            return nsec.types.contains(TYPE.NS) && !nsec.types.contains(TYPE.SOA);
+        }
+
+        /**
+         * Check whether the given name lies strictly between the owner name and the next name of this NSEC record, and
+         * therefore does not exist.
+         *
+         * @param name the name, which must not precede the owner name in canonical order.
+         * @return <code>true</code> if the non-existence of the name is proven by this NSEC record.
+         */
+        private boolean covers(DnsName name) {
+            if (owner.equals(name) || !name.isChildOf(zone)) {
+                return false;
+            }
+            if ((isDelegation() || nsec.types.contains(TYPE.DNAME)) && name.isChildOf(owner)) {
+                // Names below a delegation or a DNAME are not proven to not exist.
+                return false;
+            }
+            // The NSEC record of the last name of the zone has the zone apex as next name.
+            boolean last = CANONICAL_ORDER.compare(nsec.next, owner) <= 0;
+            return last || CANONICAL_ORDER.compare(name, nsec.next) < 0;
+        }
+    }
+}
@@ -22,7 +22,11 @@ public abstract class CachedDnsQueryResult extends DnsQueryResult {
     }
 
     protected CachedDnsQueryResult(DnsMessage query, DnsMessage response, DnsQueryResult synthesynthesizationSource) {
-        super(QueryMethod.cachedSynthesized, query, response);
-        this.cachedDnsQueryResult = synthesynthesizationSource;
+        this(QueryMethod.cachedSynthesized, query, response, synthesynthesizationSource);
+    }
+
+    protected CachedDnsQueryResult(QueryMethod queryMethod, DnsMessage query, DnsMessage response, DnsQueryResult source) {
+        super(queryMethod, query, response);
+        this.cachedDnsQueryResult = source;
     }
 }
@@ -22,6 +22,8 @@ public abstract class DnsQueryResult {
         asyncTcp,
         cachedDirect,
         cachedSynthesized,
+        cachedStale,
+        snapshot,
         testWorld,
     }
 
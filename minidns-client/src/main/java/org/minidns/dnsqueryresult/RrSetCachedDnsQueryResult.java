@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.dnsqueryresult;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.minidns.RrSet;
+import org.minidns.dnsmessage.DnsMessage;
+
+/**
+ * A result which was assembled from cached RRsets. It has no single source result, as the RRsets may originate from
+ * different responses.
+ *
+ * @see org.minidns.cache.RrSetCache
+ */
+public class RrSetCachedDnsQueryResult extends CachedDnsQueryResult {
+
+    /**
+     * The RRsets the response was assembled from, in the order of the answer section.
+     */
+    public final List<RrSet> rrSets;
+
+    public RrSetCachedDnsQueryResult(DnsMessage query, DnsMessage response, List<RrSet> rrSets) {
+        super(QueryMethod.cachedSynthesized, query, response, null);
+        this.rrSets = Collections.unmodifiableList(rrSets);
+    }
+
+}
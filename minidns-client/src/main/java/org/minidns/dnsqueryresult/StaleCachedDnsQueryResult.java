@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.dnsqueryresult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+
+/**
+ * An expired cached result, which is served because the DNS query could not be resolved, as described in RFC 8767.
+ * The TTLs of the records in the response are capped to {@link #STALE_ANSWER_TTL}.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc8767">RFC 8767 - Serving Stale Data to Improve DNS Resiliency</a>
+ */
+public class StaleCachedDnsQueryResult extends CachedDnsQueryResult {
+
+    /**
+     * The TTL of stale records, as recommended by RFC 8767 § 4.
+     */
+    public static final long STALE_ANSWER_TTL = 30;
+
+    public StaleCachedDnsQueryResult(DnsMessage query, DnsQueryResult staleResult) {
+        super(QueryMethod.cachedStale, query, toStaleResponse(staleResult.response), staleResult);
+    }
+
+    private static DnsMessage toStaleResponse(DnsMessage response) {
+        return response.asBuilder()
+                .setAnswers(capTtls(response.answerSection))
+                .setNameserverRecords(capTtls(response.authoritySection))
+                .setAdditionalResourceRecords(capTtls(response.additionalSection))
+                .build();
+    }
+
+    private static List<Record<? extends Data>> capTtls(List<Record<? extends Data>> records) {
+        List<Record<? extends Data>> cappedRecords = new ArrayList<>(records.size());
+        for (Record<? extends Data> record : records) {
+            if (record.type == Record.TYPE.OPT) {
+                // The TTL field of the OPT pseudo-record holds the extended flags.
+                cappedRecords.add(record);
+                continue;
+            }
+            cappedRecords.add(record.withTtl(Math.min(record.ttl, STALE_ANSWER_TTL)));
+        }
+        return cappedRecords;
+    }
+}
@@ -38,6 +38,16 @@ public abstract class AbstractDnsDataSource implements DnsDataSource {
         return future;
     }
 
+    /**
+     * Check if {@link #queryAsync(DnsMessage, InetAddress, int, OnResponseCallback)} returns without waiting for the
+     * response. The default implementation performs the query synchronously, hence returns <code>false</code>.
+     *
+     * @return <code>true</code> if asynchronous queries do not block the calling thread.
+     */
+    public boolean isAsyncQueryNonBlocking() {
+        return false;
+    }
+
     protected int udpPayloadSize = 1024;
 
     /**
@@ -58,6 +68,39 @@ public abstract class AbstractDnsDataSource implements DnsDataSource {
         this.timeout = timeout;
     }
 
+    private volatile UpstreamStatistics upstreamStatistics;
+
+    /**
+     * Set the statistics about upstream servers used by this data source. If set, the data source records the
+     * round-trip times and failures of its exchanges with the servers, and uses adaptive per-server timeouts derived
+     * from them instead of the fixed timeout. The same statistics can be shared by multiple data sources and are also
+     * used by the clients to prefer the fastest servers.
+     *
+     * @param upstreamStatistics the upstream statistics, or <code>null</code> to use the fixed timeout.
+     */
+    public void setUpstreamStatistics(UpstreamStatistics upstreamStatistics) {
+        this.upstreamStatistics = upstreamStatistics;
+    }
+
+    public UpstreamStatistics getUpstreamStatistics() {
+        return upstreamStatistics;
+    }
+
+    /**
+     * Get the timeout for a query to the given server.
+     *
+     * @param address the address of the server.
+     * @return the adaptive timeout of the server if upstream statistics are used, otherwise the fixed timeout.
+     * @see #setUpstreamStatistics(UpstreamStatistics)
+     */
+    public int getTimeoutFor(InetAddress address) {
+        final UpstreamStatistics upstreamStatistics = this.upstreamStatistics;
+        if (upstreamStatistics == null) {
+            return timeout;
+        }
+        return upstreamStatistics.getTimeout(address, timeout);
+    }
+
     @Override
     public int getUdpPayloadSize() {
         return udpPayloadSize;
@@ -14,11 +14,13 @@ import org.minidns.MiniDnsException;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsqueryresult.DnsQueryResult.QueryMethod;
 import org.minidns.dnsqueryresult.StandardDnsQueryResult;
+import org.minidns.source.UdpSocketPool.PooledDatagramSocket;
 import org.minidns.util.MultipleIoException;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.BindException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -26,6 +28,9 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -56,9 +61,17 @@ public class NetworkDataSource extends AbstractDnsDataSource {
         DnsMessage dnsMessage = null;
 
         if (doUdpFirst) {
+            final UpstreamStatistics upstreamStatistics = getUpstreamStatistics();
+            final long start = System.nanoTime();
             try {
                 dnsMessage = queryUdp(message, address, port);
+                if (upstreamStatistics != null) {
+                    upstreamStatistics.recordSuccess(address, (System.nanoTime() - start) / 1000000);
+                }
             } catch (IOException e) {
+                if (upstreamStatistics != null) {
+                    upstreamStatistics.recordFailure(address);
+                }
                 ioExceptions.add(e);
             }
 
@@ -83,6 +96,11 @@ public class NetworkDataSource extends AbstractDnsDataSource {
     }
 
     protected DnsMessage queryUdp(DnsMessage message, InetAddress address, int port) throws IOException {
+        UdpSocketPool udpSocketPool = this.udpSocketPool;
+        if (udpSocketPool != null) {
+            return queryUdpPooled(udpSocketPool, message, address, port);
+        }
+
         // TODO Use a try-with-resource statement here once miniDNS minimum
         // required Android API level is >= 19
         DatagramSocket socket = null;
@@ -90,7 +108,7 @@ public class NetworkDataSource extends AbstractDnsDataSource {
         byte[] buffer = new byte[udpPayloadSize];
         try {
             socket = createDatagramSocket();
-            socket.setSoTimeout(timeout);
+            socket.setSoTimeout(getTimeoutFor(address));
             socket.send(packet);
             packet = new DatagramPacket(buffer, buffer.length);
             socket.receive(packet);
@@ -106,7 +124,71 @@ public class NetworkDataSource extends AbstractDnsDataSource {
         }
     }
 
+    private DnsMessage queryUdpPooled(UdpSocketPool udpSocketPool, DnsMessage message, InetAddress address, int port)
+                    throws IOException {
+        PooledDatagramSocket pooledSocket = udpSocketPool.acquire();
+        if (pooledSocket == null) {
+            // All pooled sockets are in use, create an additional one, which is added to the pool if there is room.
+            pooledSocket = new PooledDatagramSocket(createRandomPortDatagramSocket());
+        }
+
+        boolean reusable = false;
+        try {
+            DatagramSocket socket = pooledSocket.socket;
+            socket.send(message.asDatagram(address, port));
+
+            final long deadline = System.currentTimeMillis() + getTimeoutFor(address);
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    // The socket can be reused, late responses are discarded as they do not match the next query.
+                    reusable = true;
+                    throw new SocketTimeoutException("Receive timed out");
+                }
+                socket.setSoTimeout((int) remaining);
+
+                DatagramPacket packet = pooledSocket.getReceivePacket(udpPayloadSize);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    reusable = true;
+                    throw e;
+                }
+
+                // Since the sockets are reused, they may receive late responses to earlier queries, or datagrams from
+                // other hosts. Discard those and keep waiting for the actual response.
+                if (packet.getPort() != port || !address.equals(packet.getAddress())) {
+                    LOGGER.log(Level.FINE, "Discarding datagram from unexpected sender {0}", packet.getSocketAddress());
+                    continue;
+                }
+
+                DnsMessage dnsMessage = new DnsMessage(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+                if (dnsMessage.id != message.id) {
+                    LOGGER.log(Level.FINE, "Discarding response with unexpected id {0}, expected {1}",
+                            new Object[] { dnsMessage.id, message.id });
+                    continue;
+                }
+                // The id alone is easily guessed, hence also require the question to be echoed, see RFC 5452 § 9.1.
+                if (!dnsMessage.questions.equals(message.questions)) {
+                    LOGGER.log(Level.FINE, "Discarding response with unexpected question {0}, expected {1}",
+                            new Object[] { dnsMessage.questions, message.questions });
+                    continue;
+                }
+                reusable = true;
+                return dnsMessage;
+            }
+        } finally {
+            udpSocketPool.release(pooledSocket, reusable);
+        }
+    }
+
     protected DnsMessage queryTcp(DnsMessage message, InetAddress address, int port) throws IOException {
+        TcpConnectionPool tcpConnectionPool = this.tcpConnectionPool;
+        if (tcpConnectionPool != null) {
+            // The pooled connections match the responses to the queries by their id.
+            return tcpConnectionPool.query(message, new InetSocketAddress(address, port), this);
+        }
+
         // TODO Use a try-with-resource statement here once miniDNS minimum
         // required Android API level is >= 19
         Socket socket = null;
@@ -137,6 +219,80 @@ public class NetworkDataSource extends AbstractDnsDataSource {
         }
     }
 
+    private volatile UdpSocketPool udpSocketPool;
+
+    /**
+     * Set the number of pooled UDP sockets. By default, every UDP query opens and closes its own socket. If the pool
+     * size is greater than zero, UDP queries are performed using a pool of pre-bound sockets, each bound to a random
+     * source port and with a reusable receive buffer. If more queries are performed concurrently, additional sockets
+     * are created on demand. Each pooled socket is replaced by a socket with a new random source port after it has been
+     * used for a couple of queries.
+     *
+     * @param poolSize the number of pooled sockets, or zero to disable the pooled UDP mode.
+     * @throws SocketException if creating the pooled sockets fails.
+     */
+    public void setUdpSocketPoolSize(int poolSize) throws SocketException {
+        if (poolSize < 0) {
+            throw new IllegalArgumentException("UDP socket pool size must not be negative");
+        }
+
+        UdpSocketPool newUdpSocketPool = null;
+        if (poolSize > 0) {
+            newUdpSocketPool = new UdpSocketPool(poolSize, UdpSocketPool.DEFAULT_MAX_USES_PER_SOCKET);
+            try {
+                for (int i = 0; i < poolSize; i++) {
+                    newUdpSocketPool.add(new PooledDatagramSocket(createRandomPortDatagramSocket()));
+                }
+            } catch (SocketException e) {
+                newUdpSocketPool.close();
+                throw e;
+            }
+        }
+
+        UdpSocketPool oldUdpSocketPool = udpSocketPool;
+        udpSocketPool = newUdpSocketPool;
+        if (oldUdpSocketPool != null) {
+            oldUdpSocketPool.close();
+        }
+    }
+
+    public int getUdpSocketPoolSize() {
+        UdpSocketPool udpSocketPool = this.udpSocketPool;
+        if (udpSocketPool == null) {
+            return 0;
+        }
+        return udpSocketPool.size;
+    }
+
+    private volatile TcpConnectionPool tcpConnectionPool;
+
+    /**
+     * Enable or disable TCP connection pooling. By default, every TCP query opens and closes its own connection. If
+     * pooling is enabled, connections are kept open for a couple of seconds after their last use and reused by
+     * subsequent queries to the same server. Concurrent queries are pipelined on the same connection, as described in
+     * RFC 7766, and up to {@value TcpConnectionPool#DEFAULT_MAX_OUTSTANDING_QUERIES} queries may be outstanding on a
+     * single connection. Disabling pooling closes all pooled connections.
+     *
+     * @param enabled <code>true</code> to enable TCP connection pooling.
+     */
+    public void setTcpConnectionPoolingEnabled(boolean enabled) {
+        TcpConnectionPool oldTcpConnectionPool = tcpConnectionPool;
+        if (enabled == (oldTcpConnectionPool != null)) {
+            return;
+        }
+        if (enabled) {
+            tcpConnectionPool = new TcpConnectionPool(TcpConnectionPool.DEFAULT_MAX_OUTSTANDING_QUERIES,
+                    TcpConnectionPool.DEFAULT_IDLE_TIMEOUT);
+        } else {
+            tcpConnectionPool = null;
+            oldTcpConnectionPool.close();
+        }
+    }
+
+    public boolean isTcpConnectionPoolingEnabled() {
+        return tcpConnectionPool != null;
+    }
+
     /**
      * Create a {@link Socket} using the system default {@link javax.net.SocketFactory}.
      *
@@ -155,4 +311,26 @@ public class NetworkDataSource extends AbstractDnsDataSource {
     protected DatagramSocket createDatagramSocket() throws SocketException {
         return new DatagramSocket();
     }
+
+    private static final SecureRandom PORT_RANDOM = new SecureRandom();
+
+    /**
+     * Create a {@link DatagramSocket} bound to a random port, used by the pooled UDP mode. If no random port could be
+     * bound, this falls back to {@link #createDatagramSocket()}.
+     *
+     * @return The new {@link DatagramSocket} instance
+     * @throws SocketException If creation of the {@link DatagramSocket} fails
+     */
+    protected DatagramSocket createRandomPortDatagramSocket() throws SocketException {
+        for (int i = 0; i < 16; i++) {
+            // Use one of the non-privileged ports.
+            int port = 1024 + PORT_RANDOM.nextInt(65536 - 1024);
+            try {
+                return new DatagramSocket(port);
+            } catch (BindException e) {
+                LOGGER.log(Level.FINEST, "Could not bind to random port " + port, e);
+            }
+        }
+        return createDatagramSocket();
+    }
 }
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.minidns.dnsmessage.DnsMessage;
+
+/**
+ * A pool of persistent TCP connections to DNS servers, used by {@link NetworkDataSource} if TCP connection pooling is
+ * enabled. Idle connections are kept per server address and port, and multiple queries are pipelined on one connection
+ * as described in RFC 7766 § 6.2.1.1, i.e. a query is sent without waiting for the responses of the previous queries.
+ * The responses, which may arrive out of order, are matched to the queries by their message id.
+ * <p>
+ * The connections use blocking I/O. Instead of a dedicated reader thread per connection, one of the threads waiting for
+ * a response on a connection reads the responses and hands them to the other waiting threads, until it received its
+ * own response, and then passes the reader role on.
+ * </p>
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7766">RFC 7766 - DNS Transport over TCP - Implementation Requirements</a>
+ */
+class TcpConnectionPool {
+
+    private static final Logger LOGGER = Logger.getLogger(TcpConnectionPool.class.getName());
+
+    /**
+     * The default maximum number of outstanding queries per connection.
+     */
+    static final int DEFAULT_MAX_OUTSTANDING_QUERIES = 16;
+
+    /**
+     * The default time in milliseconds after which idle connections are closed.
+     */
+    static final long DEFAULT_IDLE_TIMEOUT = 10000;
+
+    private final int maxOutstandingQueries;
+
+    private final long idleTimeout;
+
+    private final Map<InetSocketAddress, List<Connection>> connections = new HashMap<>();
+
+    private boolean closed;
+
+    TcpConnectionPool(int maxOutstandingQueries, long idleTimeout) {
+        this.maxOutstandingQueries = maxOutstandingQueries;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Send a query to the given server and wait for the response. The query is pipelined on an existing connection to
+     * the server if possible, otherwise a new connection is established.
+     *
+     * @param query the query.
+     * @param serverAddress the server.
+     * @param dataSource the data source used to create new sockets.
+     * @return the response.
+     * @throws IOException if an I/O error occurs.
+     */
+    DnsMessage query(DnsMessage query, InetSocketAddress serverAddress, NetworkDataSource dataSource) throws IOException {
+        final int timeout = dataSource.getTimeout();
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        Connection connection = acquire(query, serverAddress);
+        if (connection != null) {
+            try {
+                return connection.query(query, deadline);
+            } catch (ConnectionClosedException e) {
+                // The server may close idle connections at any time, see RFC 7766 § 6.2.3. Retry once using a new
+                // connection.
+                LOGGER.log(Level.FINE, "Pooled connection to " + serverAddress + " was closed, retrying with a new one", e);
+            }
+        }
+
+        Socket socket = dataSource.createSocket();
+        try {
+            socket.connect(serverAddress, timeout);
+            socket.setTcpNoDelay(true);
+            connection = new Connection(serverAddress, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        connection.reserve(query);
+        add(connection);
+        try {
+            return connection.query(query, deadline);
+        } catch (ConnectionClosedException e) {
+            throw e.getIoException();
+        }
+    }
+
+    private synchronized Connection acquire(DnsMessage query, InetSocketAddress serverAddress) {
+        closeIdleConnections();
+
+        List<Connection> serverConnections = connections.get(serverAddress);
+        if (serverConnections == null) {
+            return null;
+        }
+
+        for (Connection connection : serverConnections) {
+            synchronized (connection) {
+                if (connection.broken || connection.pending.size() >= maxOutstandingQueries
+                        || connection.pending.containsKey(query.id)) {
+                    continue;
+                }
+                // Reserve the slot for the query while holding the lock.
+                connection.reserve(query);
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Close the broken connections and the connections which are idle for longer than the idle timeout. This covers the
+     * connections to all servers, so that the connections to servers which are not queried anymore are closed, too.
+     */
+    private synchronized void closeIdleConnections() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<List<Connection>> serversIterator = connections.values().iterator(); serversIterator.hasNext();) {
+            List<Connection> serverConnections = serversIterator.next();
+            for (Iterator<Connection> it = serverConnections.iterator(); it.hasNext();) {
+                Connection connection = it.next();
+                synchronized (connection) {
+                    if (connection.broken || (connection.pending.isEmpty() && now - connection.lastUsed > idleTimeout)) {
+                        it.remove();
+                        connection.close();
+                    }
+                }
+            }
+            if (serverConnections.isEmpty()) {
+                serversIterator.remove();
+            }
+        }
+    }
+
+    private synchronized void add(Connection connection) {
+        if (closed) {
+            // The connection is still used for the query it was created for, but it is not pooled.
+            return;
+        }
+        closeIdleConnections();
+        List<Connection> serverConnections = connections.get(connection.serverAddress);
+        if (serverConnections == null) {
+            serverConnections = new ArrayList<>(2);
+            connections.put(connection.serverAddress, serverConnections);
+        }
+        serverConnections.add(connection);
+    }
+
+    synchronized int getConnectionCount() {
+        int count = 0;
+        for (List<Connection> serverConnections : connections.values()) {
+            count += serverConnections.size();
+        }
+        return count;
+    }
+
+    /**
+     * Close all connections of this pool.
+     */
+    void close() {
+        List<Connection> toClose = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (List<Connection> serverConnections : connections.values()) {
+                toClose.addAll(serverConnections);
+            }
+            connections.clear();
+        }
+        for (Connection connection : toClose) {
+            connection.close();
+        }
+    }
+
+    private static final class PendingQuery {
+        private final DnsMessage query;
+
+        private DnsMessage response;
+
+        private PendingQuery(DnsMessage query) {
+            this.query = query;
+        }
+    }
+
+    /**
+     * Thrown if a pooled connection was closed or broke before the response to a query was received.
+     */
+    private static final class ConnectionClosedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private ConnectionClosedException(IOException cause) {
+            super(cause);
+        }
+
+        private IOException getIoException() {
+            return (IOException) getCause();
+        }
+    }
+
+    private static final class Connection {
+        private final InetSocketAddress serverAddress;
+        private final Socket socket;
+        private final DataInputStream inputStream;
+        private final DataOutputStream outputStream;
+
+        /**
+         * The outstanding queries by their message id. Guarded by this connection's monitor.
+         */
+        private final Map<Integer, PendingQuery> pending = new HashMap<>();
+
+        private boolean readerActive;
+
+        private boolean broken;
+
+        private IOException brokenCause;
+
+        private long lastUsed = System.currentTimeMillis();
+
+        private Connection(InetSocketAddress serverAddress, Socket socket) throws IOException {
+            this.serverAddress = serverAddress;
+            this.socket = socket;
+            this.inputStream = new DataInputStream(socket.getInputStream());
+            this.outputStream = new DataOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * Reserve a slot for the given query. Must be called while holding this connection's monitor, or before the
+         * connection is published.
+         *
+         * @param query the query.
+         */
+        private void reserve(DnsMessage query) {
+            pending.put(query.id, new PendingQuery(query));
+        }
+
+        private DnsMessage query(DnsMessage query, long deadline) throws IOException {
+            final Integer id = query.id;
+            PendingQuery pendingQuery;
+            synchronized (this) {
+                pendingQuery = pending.get(id);
+                if (broken) {
+                    pending.remove(id);
+                    throw new ConnectionClosedException(brokenCause);
+                }
+                lastUsed = System.currentTimeMillis();
+            }
+
+            try {
+                synchronized (outputStream) {
+                    query.writeTo(outputStream);
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                fail(e);
+                throw new ConnectionClosedException(e);
+            }
+
+            synchronized (this) {
+                while (true) {
+                    if (pendingQuery.response != null) {
+                        return pendingQuery.response;
+                    }
+                    if (broken) {
+                        throw new ConnectionClosedException(brokenCause);
+                    }
+                    if (!readerActive) {
+                        readerActive = true;
+                        break;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        pending.remove(id);
+                        throw new SocketTimeoutException("Timeout waiting for the response from " + serverAddress);
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        pending.remove(id);
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the response from " + serverAddress, e);
+                    }
+                }
+            }
+
+            // This thread is now the reader of the connection.
+            return readResponses(id, pendingQuery, deadline);
+        }
+
+        private DnsMessage readResponses(Integer id, PendingQuery pendingQuery, long deadline) throws IOException {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                int first;
+                try {
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException();
+                    }
+                    socket.setSoTimeout((int) remaining);
+                    // Read the first byte of the length prefix separately: If this times out, the stream is still
+                    // intact and the reader role can be handed over to another thread.
+                    first = inputStream.read();
+                    if (first < 0) {
+                        throw new EOFException("Connection to " + serverAddress + " closed by remote host");
+                    }
+                } catch (SocketTimeoutException e) {
+                    synchronized (this) {
+                        pending.remove(id);
+                        readerActive = false;
+                        notifyAll();
+                    }
+                    throw new SocketTimeoutException("Timeout waiting for the response from " + serverAddress);
+                } catch (IOException e) {
+                    fail(e);
+                    throw new ConnectionClosedException(e);
+                }
+
+                byte[] data;
+                try {
+                    data = readMessage(first);
+                } catch (SocketTimeoutException e) {
+                    // The message was only read partially, hence the stream is no longer at a message boundary.
+                    fail(e);
+                    throw new SocketTimeoutException("Timeout reading the response from " + serverAddress);
+                } catch (IOException e) {
+                    fail(e);
+                    throw new ConnectionClosedException(e);
+                }
+
+                DnsMessage response;
+                try {
+                    response = new DnsMessage(ByteBuffer.wrap(data));
+                } catch (IOException e) {
+                    // The message boundaries are still intact, so the connection can still be used. The affected query,
+                    // if any, will time out.
+                    LOGGER.log(Level.WARNING, "Discarding malformed response from " + serverAddress, e);
+                    continue;
+                }
+
+                synchronized (this) {
+                    lastUsed = System.currentTimeMillis();
+                    PendingQuery responsePendingQuery = pending.get(response.id);
+                    if (responsePendingQuery == null || !isResponseTo(responsePendingQuery.query, response)) {
+                        // This may be the late response to a query which timed out, whose id has been reused.
+                        LOGGER.log(Level.FINE, "Discarding response with unexpected id {0} from {1}",
+                                new Object[] { response.id, serverAddress });
+                        continue;
+                    }
+                    pending.remove(response.id);
+                    responsePendingQuery.response = response;
+                    if (responsePendingQuery == pendingQuery) {
+                        readerActive = false;
+                        notifyAll();
+                        return response;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        private byte[] readMessage(int first) throws IOException {
+            int length = (first << 8) | inputStream.readUnsignedByte();
+            byte[] data = new byte[length];
+            inputStream.readFully(data);
+            return data;
+        }
+
+        private static boolean isResponseTo(DnsMessage query, DnsMessage response) {
+            if (query.questions.isEmpty() || response.questions.isEmpty()) {
+                // Some error responses, e.g. FORMERR, do not repeat the question.
+                return true;
+            }
+            return query.getQuestion().equals(response.getQuestion());
+        }
+
+        private void fail(IOException cause) {
+            synchronized (this) {
+                if (!broken) {
+                    broken = true;
+                    brokenCause = cause;
+                }
+                readerActive = false;
+                notifyAll();
+            }
+            close();
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Exception closing socket to " + serverAddress, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of idle UDP sockets, each with its own reusable receive buffer, used by {@link NetworkDataSource} in pooled
+ * UDP mode.
+ * <p>
+ * Every socket is only used by one query at a time. Sockets are retired after a certain number of queries, so that
+ * the source ports keep changing over time, which is an important defense against DNS spoofing.
+ * </p>
+ *
+ * @see NetworkDataSource#setUdpSocketPoolSize(int)
+ */
+class UdpSocketPool {
+
+    private static final Logger LOGGER = Logger.getLogger(UdpSocketPool.class.getName());
+
+    /**
+     * The default number of queries after which a socket is closed and replaced by one with a new random source port.
+     */
+    static final int DEFAULT_MAX_USES_PER_SOCKET = 64;
+
+    final int size;
+
+    private final int maxUsesPerSocket;
+
+    private final ArrayDeque<PooledDatagramSocket> idleSockets;
+
+    private boolean closed;
+
+    UdpSocketPool(int size, int maxUsesPerSocket) {
+        this.size = size;
+        this.maxUsesPerSocket = maxUsesPerSocket;
+        this.idleSockets = new ArrayDeque<>(size);
+    }
+
+    /**
+     * Acquire an idle socket.
+     *
+     * @return an idle socket or <code>null</code> if the pool has none.
+     */
+    synchronized PooledDatagramSocket acquire() {
+        return idleSockets.pollFirst();
+    }
+
+    /**
+     * Release a socket after its use. The socket is put back into the pool, unless it is broken, it reached its maximum
+     * number of uses or the pool is already full or closed, in which case it is closed.
+     *
+     * @param pooledSocket the socket to release.
+     * @param reusable <code>false</code> if the socket must not be reused, e.g. because an I/O error occurred.
+     */
+    void release(PooledDatagramSocket pooledSocket, boolean reusable) {
+        if (reusable && ++pooledSocket.uses < maxUsesPerSocket) {
+            synchronized (this) {
+                if (!closed && idleSockets.size() < size) {
+                    idleSockets.addFirst(pooledSocket);
+                    return;
+                }
+            }
+        }
+        pooledSocket.socket.close();
+    }
+
+    /**
+     * Add a newly created socket to the pool.
+     *
+     * @param pooledSocket the socket to add.
+     */
+    void add(PooledDatagramSocket pooledSocket) {
+        release(pooledSocket, true);
+    }
+
+    synchronized int getIdleCount() {
+        return idleSockets.size();
+    }
+
+    /**
+     * Close this pool and all of its idle sockets. Sockets currently in use are closed once they are released.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        PooledDatagramSocket pooledSocket;
+        while ((pooledSocket = acquire()) != null) {
+            try {
+                pooledSocket.socket.close();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Exception closing pooled datagram socket", e);
+            }
+        }
+    }
+
+    static final class PooledDatagramSocket {
+        final DatagramSocket socket;
+
+        private byte[] buffer;
+
+        private DatagramPacket receivePacket;
+
+        private int uses;
+
+        PooledDatagramSocket(DatagramSocket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Get the receive packet of this socket, backed by a buffer of at least the given size, and reset it so that
+         * its whole buffer can be filled.
+         *
+         * @param minBufferSize the minimum size of the receive buffer.
+         * @return the receive packet.
+         */
+        DatagramPacket getReceivePacket(int minBufferSize) {
+            if (buffer == null || buffer.length < minBufferSize) {
+                buffer = new byte[minBufferSize];
+                receivePacket = new DatagramPacket(buffer, buffer.length);
+            } else {
+                receivePacket.setData(buffer, 0, buffer.length);
+            }
+            return receivePacket;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+/**
+ * Statistics about upstream DNS servers, which are used to derive adaptive timeouts and to select the fastest servers.
+ * For every server address, a smoothed round-trip time (SRTT), the variation of the round-trip time and the number of
+ * consecutive failures are kept, similar to the infrastructure cache of BIND and Unbound.
+ * <p>
+ * The timeout of a server is calculated as described in RFC 6298 § 2, i.e. <code>SRTT + 4 * RTTVAR</code>, bounded by a
+ * minimum and a maximum timeout. Every failure doubles the timeout of the server, until the next successful exchange.
+ * Servers without statistics use the timeout of the data source.
+ * </p>
+ * <p>
+ * The statistics of a server are forgotten if they were not updated for a while, so that servers which failed are
+ * eventually tried again. At most a certain number of servers are tracked, the least recently used ones are evicted.
+ * </p>
+ * <p>
+ * Instances of this class are thread safe and can be shared by multiple data sources and clients.
+ * </p>
+ *
+ * @see AbstractDnsDataSource#setUpstreamStatistics(UpstreamStatistics)
+ * @see <a href="https://tools.ietf.org/html/rfc6298">RFC 6298 - Computing TCP's Retransmission Timer</a>
+ */
+public class UpstreamStatistics {
+
+    /**
+     * The default maximum number of servers for which statistics are kept.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The default minimum timeout in milliseconds.
+     */
+    public static final int DEFAULT_MIN_TIMEOUT = 200;
+
+    /**
+     * The default maximum timeout in milliseconds.
+     */
+    public static final int DEFAULT_MAX_TIMEOUT = 12000;
+
+    /**
+     * The default time in milliseconds after which the statistics of a server which were not updated are forgotten.
+     * This is the default "infra-host-ttl" of Unbound.
+     */
+    public static final long DEFAULT_LIFETIME = 15 * 60 * 1000;
+
+    /**
+     * The round-trip time in milliseconds assumed for servers without statistics when selecting a server. Servers which
+     * are known to be faster are preferred over unknown servers, and unknown servers are preferred over slower ones.
+     * This is the value Unbound uses for unknown servers.
+     */
+    static final int UNKNOWN_SERVER_RTT = 376;
+
+    /**
+     * Servers whose expected round-trip time is within this band of the fastest server's are selected at random, so
+     * that the load is spread and the statistics of all of them stay current.
+     */
+    static final int SELECTION_BAND = 400;
+
+    private final int capacity;
+
+    private final int minTimeout;
+
+    private final int maxTimeout;
+
+    private final long lifetime;
+
+    /**
+     * The statistics by server address. Guarded by this object's monitor.
+     */
+    private final LinkedHashMap<InetAddress, ServerStatistics> servers;
+
+    /**
+     * Create new upstream statistics.
+     *
+     * @param capacity the maximum number of servers for which statistics are kept.
+     * @param minTimeout the minimum timeout in milliseconds.
+     * @param maxTimeout the maximum timeout in milliseconds.
+     * @param lifetime the time in milliseconds after which statistics which were not updated are forgotten.
+     */
+    @SuppressWarnings("serial")
+    public UpstreamStatistics(final int capacity, int minTimeout, int maxTimeout, long lifetime) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (minTimeout <= 0 || maxTimeout < minTimeout) {
+            throw new IllegalArgumentException("Invalid timeout bounds");
+        }
+        this.capacity = capacity;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.lifetime = lifetime;
+        servers = new LinkedHashMap<InetAddress, ServerStatistics>(Math.min(capacity + (capacity + 3) / 4 + 2, 11),
+                0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Entry<InetAddress, ServerStatistics> eldest) {
+                return size() > UpstreamStatistics.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Create new upstream statistics with the default settings.
+     */
+    public UpstreamStatistics() {
+        this(DEFAULT_CAPACITY, DEFAULT_MIN_TIMEOUT, DEFAULT_MAX_TIMEOUT, DEFAULT_LIFETIME);
+    }
+
+    /**
+     * Record a successful exchange with a server.
+     *
+     * @param server the address of the server.
+     * @param rtt the measured round-trip time in milliseconds.
+     */
+    public synchronized void recordSuccess(InetAddress server, long rtt) {
+        final long now = System.currentTimeMillis();
+        ServerStatistics statistics = getCurrent(server, now);
+        if (statistics == null) {
+            statistics = new ServerStatistics();
+            servers.put(server, statistics);
+        }
+        statistics.update(Math.max(rtt, 0), now);
+    }
+
+    /**
+     * Record a failed exchange with a server, e.g. because it timed out.
+     *
+     * @param server the address of the server.
+     */
+    public synchronized void recordFailure(InetAddress server) {
+        final long now = System.currentTimeMillis();
+        ServerStatistics statistics = getCurrent(server, now);
+        if (statistics == null) {
+            statistics = new ServerStatistics();
+            servers.put(server, statistics);
+        }
+        statistics.fail(now);
+    }
+
+    /**
+     * Get the timeout for a query to the given server.
+     *
+     * @param server the address of the server.
+     * @param defaultTimeout the timeout in milliseconds used if there are no statistics about the server.
+     * @return the timeout in milliseconds.
+     */
+    public synchronized int getTimeout(InetAddress server, int defaultTimeout) {
+        ServerStatistics statistics = getCurrent(server, System.currentTimeMillis());
+        if (statistics == null || !statistics.hasRtt()) {
+            if (statistics != null && statistics.failures > 0) {
+                return (int) Math.min((long) defaultTimeout << Math.min(statistics.failures, 16), maxTimeout);
+            }
+            return defaultTimeout;
+        }
+        return statistics.timeout;
+    }
+
+    /**
+     * Get the expected round-trip time of the given server, which is used to order the servers. This is the current
+     * timeout of the server, so that unreliable servers are penalized, or a default value if there are no statistics
+     * about the server.
+     *
+     * @param server the address of the server.
+     * @return the expected round-trip time in milliseconds.
+     */
+    public synchronized long getExpectedRtt(InetAddress server) {
+        return getExpectedRtt(server, System.currentTimeMillis());
+    }
+
+    private long getExpectedRtt(InetAddress server, long now) {
+        ServerStatistics statistics = getCurrent(server, now);
+        if (statistics == null) {
+            return UNKNOWN_SERVER_RTT;
+        }
+        if (!statistics.hasRtt()) {
+            return (long) UNKNOWN_SERVER_RTT << Math.min(statistics.failures, 16);
+        }
+        return statistics.timeout;
+    }
+
+    /**
+     * Get the smoothed round-trip time of the given server.
+     *
+     * @param server the address of the server.
+     * @return the smoothed round-trip time in milliseconds, or <code>-1</code> if it is unknown.
+     */
+    public synchronized long getSmoothedRtt(InetAddress server) {
+        ServerStatistics statistics = getCurrent(server, System.currentTimeMillis());
+        if (statistics == null || !statistics.hasRtt()) {
+            return -1;
+        }
+        return Math.round(statistics.srtt);
+    }
+
+    /**
+     * Get the variation of the round-trip time of the given server.
+     *
+     * @param server the address of the server.
+     * @return the round-trip time variation in milliseconds, or <code>-1</code> if it is unknown.
+     */
+    public synchronized long getRttVariation(InetAddress server) {
+        ServerStatistics statistics = getCurrent(server, System.currentTimeMillis());
+        if (statistics == null || !statistics.hasRtt()) {
+            return -1;
+        }
+        return Math.round(statistics.rttvar);
+    }
+
+    /**
+     * Get the number of consecutive failures of the given server.
+     *
+     * @param server the address of the server.
+     * @return the number of failures since the last successful exchange.
+     */
+    public synchronized int getFailureCount(InetAddress server) {
+        ServerStatistics statistics = getCurrent(server, System.currentTimeMillis());
+        if (statistics == null) {
+            return 0;
+        }
+        return statistics.failures;
+    }
+
+    /**
+     * Sort the given servers by their expected round-trip time, fastest first. Servers with the same expected
+     * round-trip time keep their relative order.
+     *
+     * @param servers the addresses of the servers.
+     */
+    public void sort(List<? extends InetAddress> servers) {
+        if (servers.size() < 2) {
+            return;
+        }
+        final Map<InetAddress, Long> expectedRtts = new HashMap<>(servers.size() * 2);
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            for (InetAddress server : servers) {
+                expectedRtts.put(server, getExpectedRtt(server, now));
+            }
+        }
+        Collections.sort(servers, new Comparator<InetAddress>() {
+            @Override
+            public int compare(InetAddress left, InetAddress right) {
+                long leftRtt = expectedRtts.get(left);
+                long rightRtt = expectedRtts.get(right);
+                return leftRtt < rightRtt ? -1 : (leftRtt == rightRtt ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Select one of the given servers. A server is chosen at random among the servers whose expected round-trip time
+     * is close to the one of the fastest server.
+     *
+     * @param servers the addresses of the servers.
+     * @param random the random number generator used to choose among similarly fast servers.
+     * @param <A> the type of the addresses.
+     * @return the selected server or <code>null</code> if there are no servers.
+     */
+    public <A extends InetAddress> A select(List<A> servers, Random random) {
+        if (servers.isEmpty()) {
+            return null;
+        }
+        final long[] expectedRtts = new long[servers.size()];
+        long best = Long.MAX_VALUE;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            for (int i = 0; i < expectedRtts.length; i++) {
+                expectedRtts[i] = getExpectedRtt(servers.get(i), now);
+                best = Math.min(best, expectedRtts[i]);
+            }
+        }
+        List<A> candidates = new ArrayList<>(servers.size());
+        for (int i = 0; i < expectedRtts.length; i++) {
+            if (expectedRtts[i] <= best + SELECTION_BAND) {
+                candidates.add(servers.get(i));
+            }
+        }
+        return candidates.get(random.nextInt(candidates.size()));
+    }
+
+    /**
+     * Get the number of servers for which statistics are kept.
+     *
+     * @return the number of servers.
+     */
+    public synchronized int size() {
+        return servers.size();
+    }
+
+    /**
+     * Forget all statistics.
+     */
+    public synchronized void clear() {
+        servers.clear();
+    }
+
+    private ServerStatistics getCurrent(InetAddress server, long now) {
+        ServerStatistics statistics = servers.get(server);
+        if (statistics == null) {
+            return null;
+        }
+        if (now - statistics.lastUpdate > lifetime) {
+            servers.remove(server);
+            return null;
+        }
+        return statistics;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UpstreamStatistics{servers=" + servers.size() + "/" + capacity + "}";
+    }
+
+    /**
+     * The statistics of a single server. Guarded by the monitor of the owning {@link UpstreamStatistics}.
+     */
+    private final class ServerStatistics {
+        /**
+         * The smoothed round-trip time, or a negative value if there was no successful exchange yet.
+         */
+        private double srtt = -1;
+
+        private double rttvar;
+
+        private int timeout;
+
+        private int failures;
+
+        private long lastUpdate;
+
+        private boolean hasRtt() {
+            return srtt >= 0;
+        }
+
+        private void update(long rtt, long now) {
+            if (!hasRtt()) {
+                // RFC 6298 § 2.2
+                srtt = rtt;
+                rttvar = rtt / 2d;
+            } else {
+                // RFC 6298 § 2.3
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+                srtt = 0.875 * srtt + 0.125 * rtt;
+            }
+            failures = 0;
+            timeout = boundTimeout(Math.round(srtt + 4 * rttvar));
+            lastUpdate = now;
+        }
+
+        private void fail(long now) {
+            failures++;
+            if (hasRtt()) {
+                // RFC 6298 § 5.5, back off the timer.
+                timeout = boundTimeout(2L * timeout);
+            }
+            lastUpdate = now;
+        }
+
+        private int boundTimeout(long timeout) {
+            return (int) Math.max(minTimeout, Math.min(timeout, maxTimeout));
+        }
+    }
+}
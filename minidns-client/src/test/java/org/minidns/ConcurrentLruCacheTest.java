@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import org.junit.Test;
+
+import org.minidns.cache.ConcurrentLruCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.record.Record;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.ns;
+import static org.minidns.DnsWorld.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentLruCacheTest {
+
+    @Test
+    public void testOutdatedCacheEntry() {
+        ConcurrentLruCache cache = new ConcurrentLruCache(5);
+        Question q = new Question("", Record.TYPE.A);
+        TestWorldDnsQueryResult result = createSampleMessage(q, 1);
+        DnsMessage question = q.asQueryMessage();
+        cache.put(question, result);
+
+        assertNull(cache.get(question));
+        assertNull(cache.get(question));
+        assertEquals(1, cache.getExpireCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testOverfilledCache() {
+        // A small cache uses a single segment, hence it evicts in exact LRU order.
+        ConcurrentLruCache cache = new ConcurrentLruCache(5);
+        Question firstQuestion = new Question("", Record.TYPE.A);
+        cache.put(firstQuestion.asQueryMessage(), createSampleMessage(firstQuestion));
+        assertNotNull(cache.get(firstQuestion.asQueryMessage()));
+
+        for (int i = 1; i <= 5; i++) {
+            Question question = new Question(Integer.toString(i), Record.TYPE.A);
+            cache.put(question.asQueryMessage(), createSampleMessage(question));
+        }
+
+        assertNull(cache.get(firstQuestion.asQueryMessage()));
+        assertEquals(5, cache.size());
+        assertEquals(0, cache.getExpireCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        final int capacity = 1024;
+        final ConcurrentLruCache cache = new ConcurrentLruCache(capacity);
+        final int threadCount = 8;
+        final int questionsPerThread = 200;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int threadNumber = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < questionsPerThread; j++) {
+                        Question question = new Question(threadNumber + "-" + j + ".example", Record.TYPE.A);
+                        cache.put(question.asQueryMessage(), createSampleMessage(question));
+                        cache.get(question.asQueryMessage());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int puts = threadCount * questionsPerThread;
+        assertEquals(puts, cache.getHitCount() + cache.getMissCount());
+        // Evictions happen per segment, so the cache may evict before it is completely full, but never exceeds its
+        // capacity by more than the rounding of the segment capacity.
+        assertTrue(cache.size() <= capacity + ConcurrentLruCache.DEFAULT_CONCURRENCY_LEVEL);
+        assertTrue(cache.size() > capacity / 2);
+    }
+
+    private static TestWorldDnsQueryResult createSampleMessage(Question question) {
+        return createSampleMessage(question, System.currentTimeMillis());
+    }
+
+    private static TestWorldDnsQueryResult createSampleMessage(Question question, long receiveTimestamp) {
+        DnsMessage.Builder message = DnsMessage.builder();
+        message.setReceiveTimestamp(receiveTimestamp);
+        message.addAnswer(record("", ns("a.root-servers.net")));
+        message.addAdditionalResourceRecord(record("a.root-servers.net", a("127.0.0.1")));
+        DnsMessage responseMessage = message.build();
+        DnsMessage query = question.asQueryMessage();
+        return new TestWorldDnsQueryResult(query, responseMessage);
+    }
+}
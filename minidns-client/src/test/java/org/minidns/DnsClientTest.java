@@ -10,9 +10,12 @@
  */
 package org.minidns;
 
+import org.minidns.MiniDnsFuture.InternalMiniDnsFuture;
 import org.minidns.cache.LruCache;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
 import org.minidns.dnsqueryresult.DnsQueryResult;
 import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
 import org.minidns.dnsserverlookup.AbstractDnsServerLookupMechanism;
@@ -21,6 +24,7 @@ import org.minidns.dnsserverlookup.AndroidUsingReflection;
 import org.minidns.dnsserverlookup.IPPortPair;
 import org.minidns.dnsserverlookup.DnsServerLookupMechanism;
 import org.minidns.record.A;
+import org.minidns.record.Record;
 import org.minidns.record.Record.TYPE;
 import org.minidns.source.AbstractDnsDataSource;
 
@@ -28,16 +32,27 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.minidns.DnsWorld.a;
 import static org.minidns.DnsWorld.applyStubRecords;
 import static org.minidns.DnsWorld.record;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DnsClientTest {
 
@@ -115,4 +130,343 @@ public class DnsClientTest {
         assertTrue(source.queried);
         assertNotNull(message);
     }
+
+    /**
+     * A data source answering every query with an A record, whose response was received the given time ago.
+     */
+    private static class AgedAnswerSource extends AbstractDnsDataSource {
+        final long ttl;
+        long age;
+        int queries;
+        boolean fail;
+        RESPONSE_CODE errorResponseCode;
+
+        AgedAnswerSource(long ttl, long age) {
+            this.ttl = ttl;
+            this.age = age;
+        }
+
+        @Override
+        public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+            if (fail) {
+                throw new IOException("Upstream unavailable");
+            }
+            queries++;
+            if (errorResponseCode != null) {
+                DnsMessage response = message.getResponseBuilder(errorResponseCode)
+                        .setRecursionAvailable(true)
+                        .build();
+                return new TestWorldDnsQueryResult(message, response);
+            }
+            Question q = message.getQuestion();
+            DnsMessage response = message.getResponseBuilder(RESPONSE_CODE.NO_ERROR)
+                    .setRecursionAvailable(true)
+                    .addAnswer(new Record<>(q.name, TYPE.A, Record.CLASS.IN, ttl, a("127.0.0.1"), false))
+                    .setReceiveTimestamp(System.currentTimeMillis() - age)
+                    .build();
+            return new TestWorldDnsQueryResult(message, response);
+        }
+    }
+
+    @Test
+    public void testServeStale() throws IOException {
+        LruCache cache = new LruCache(10);
+        cache.setMaxStaleness(3600);
+        DnsClient client = new DnsClient(cache);
+        // The response is already expired when it is received.
+        AgedAnswerSource source = new AgedAnswerSource(300, 400 * 1000);
+        client.setDataSource(source);
+
+        DnsQueryResult result = client.query("www.example.com", TYPE.A);
+        assertEquals(300, result.response.answerSection.get(0).ttl);
+
+        source.fail = true;
+        result = client.query("www.example.com", TYPE.A);
+        assertEquals(DnsQueryResult.QueryMethod.cachedStale, result.queryMethod);
+        assertEquals(30, result.response.answerSection.get(0).ttl);
+
+        // Neither are failure responses of the upstream servers.
+        source.fail = false;
+        for (RESPONSE_CODE responseCode : new RESPONSE_CODE[] { RESPONSE_CODE.SERVER_FAIL, RESPONSE_CODE.REFUSED }) {
+            source.errorResponseCode = responseCode;
+            result = client.query("www.example.com", TYPE.A);
+            assertEquals(DnsQueryResult.QueryMethod.cachedStale, result.queryMethod);
+            result = client.queryAsync("www.example.com", TYPE.A).getOrThrow();
+            assertEquals(DnsQueryResult.QueryMethod.cachedStale, result.queryMethod);
+        }
+
+        // Without a maximum staleness, the failure is not masked.
+        client = new DnsClient(new LruCache(10));
+        source = new AgedAnswerSource(300, 400 * 1000);
+        client.setDataSource(source);
+        client.query("www.example.com", TYPE.A);
+        source.fail = true;
+        try {
+            client.query("www.example.com", TYPE.A);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws IOException, InterruptedException {
+        DnsClient client = new DnsClient(new LruCache(10));
+        client.setPrefetchThreshold(0.5f);
+        client.setPrefetchExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        // 60% of the TTL have passed when the response is received.
+        AgedAnswerSource source = new AgedAnswerSource(100, 60 * 1000);
+        client.setDataSource(source);
+
+        DnsQueryResult result = client.query("www.example.com", TYPE.A);
+        assertEquals(1, source.queries);
+        assertFalse(result.queryMethod == DnsQueryResult.QueryMethod.cachedDirect);
+        long receiveTimestamp = result.response.receiveTimestamp;
+
+        // Answered from the cache, but refreshed in the background.
+        source.age = 0;
+        result = client.query("www.example.com", TYPE.A);
+        assertEquals(DnsQueryResult.QueryMethod.cachedDirect, result.queryMethod);
+        // The asynchronous query may ask more than one of the upstream servers.
+        int queries = source.queries;
+        assertTrue(queries > 1);
+
+        // Without prefetching, cache hits do not cause queries.
+        client.setPrefetchThreshold(0);
+        result = client.query("www.example.com", TYPE.A);
+        assertEquals(queries, source.queries);
+
+        // The cache entry is replaced by the response of the prefetch, whose callbacks run on another thread.
+        for (int i = 0; i < 100 && result.response.receiveTimestamp == receiveTimestamp; i++) {
+            Thread.sleep(10);
+            result = client.query("www.example.com", TYPE.A);
+        }
+        assertEquals(DnsQueryResult.QueryMethod.cachedDirect, result.queryMethod);
+        assertTrue(result.response.receiveTimestamp > receiveTimestamp);
+        assertEquals(queries, source.queries);
+    }
+
+    @Test(timeout = 10000)
+    public void testRequestCoalescing() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger queries = new AtomicInteger();
+        final DnsClient client = new DnsClient(new LruCache(0));
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                if (queries.incrementAndGet() == 1) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                DnsMessage response = message.getResponseBuilder(RESPONSE_CODE.NO_ERROR)
+                        .setRecursionAvailable(true)
+                        .addAnswer(record(message.getQuestion().name, a("127.0.0.1")))
+                        .build();
+                return new TestWorldDnsQueryResult(message, response);
+            }
+        });
+
+        final DnsQueryResult[] results = new DnsQueryResult[2];
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results[0] = client.query("www.example.com", TYPE.A);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        leader.start();
+        while (queries.get() == 0) {
+            Thread.sleep(10);
+        }
+
+        Thread follower = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results[1] = client.query("www.example.com", TYPE.A);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        follower.start();
+        // Wait until the follower waits for the result of the leader.
+        while (follower.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+
+        MiniDnsFuture<DnsQueryResult, IOException> asyncFollower = client.queryAsync("www.example.com", TYPE.A);
+        MiniDnsFuture<DnsQueryResult, IOException> cancelledAsyncFollower = client.queryAsync("www.example.com", TYPE.A);
+        assertTrue(cancelledAsyncFollower.cancel(true));
+
+        release.countDown();
+        leader.join();
+        follower.join();
+
+        assertNotNull(results[0]);
+        assertSame(results[0], results[1]);
+        assertSame(results[0], asyncFollower.getOrThrow());
+        assertEquals(1, queries.get());
+
+        // Once the query is finished, its result is not shared any more.
+        client.query("www.example.com", TYPE.A);
+        assertEquals(2, queries.get());
+
+        client.setRequestCoalescingEnabled(false);
+        client.query("www.example.com", TYPE.A);
+        assertEquals(3, queries.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testRacing() throws Exception {
+        final CountDownLatch firstQueryCancelled = new CountDownLatch(1);
+        final AtomicInteger queries = new AtomicInteger();
+        DnsClient client = new DnsClient(new LruCache(0));
+        // Ensure that there are at least two upstream servers.
+        client.setUseHardcodedDnsServers(true);
+        client.setPreferedIpVersion(AbstractDnsClient.IpVersionSetting.v4v6);
+        client.setRacingEnabled(true);
+        client.setRacingStaggerDelay(50);
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                if (queries.incrementAndGet() == 1) {
+                    // The first server does not respond.
+                    try {
+                        Thread.sleep(60000);
+                    } catch (InterruptedException e) {
+                        firstQueryCancelled.countDown();
+                        throw new IOException(e);
+                    }
+                }
+                DnsMessage response = message.getResponseBuilder(RESPONSE_CODE.NO_ERROR)
+                        .setRecursionAvailable(true)
+                        .addAnswer(record(message.getQuestion().name, a("127.0.0.1")))
+                        .build();
+                return new TestWorldDnsQueryResult(message, response);
+            }
+        });
+
+        DnsQueryResult result = client.query("www.example.com", TYPE.A);
+        assertEquals(1, result.response.answerSection.size());
+        assertEquals(2, queries.get());
+        // The loser is cancelled.
+        firstQueryCancelled.await();
+    }
+
+    @Test(timeout = 30000)
+    public void testRacingBoundsThreads() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger blockedRacingQueries = new AtomicInteger();
+        final AtomicInteger sequentialQueries = new AtomicInteger();
+        final Set<DnsName> askedNames = Collections.newSetFromMap(new ConcurrentHashMap<DnsName, Boolean>());
+        DnsClient client = new DnsClient(new LruCache(0));
+        client.setUseHardcodedDnsServers(true);
+        client.setPreferedIpVersion(AbstractDnsClient.IpVersionSetting.v4v6);
+        client.setRacingEnabled(true);
+        client.setRacingStaggerDelay(10);
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                if (askedNames.add(message.getQuestion().name)) {
+                    // The first server does not respond and, like blocking socket I/O, ignores interrupts.
+                    if (Thread.currentThread() == caller) {
+                        sequentialQueries.incrementAndGet();
+                        throw new SocketTimeoutException();
+                    }
+                    blockedRacingQueries.incrementAndGet();
+                    boolean interrupted = false;
+                    while (release.getCount() > 0) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new SocketTimeoutException();
+                }
+                DnsMessage response = message.getResponseBuilder(RESPONSE_CODE.NO_ERROR)
+                        .setRecursionAvailable(true)
+                        .addAnswer(record(message.getQuestion().name, a("127.0.0.1")))
+                        .build();
+                return new TestWorldDnsQueryResult(message, response);
+            }
+        });
+
+        final int queryCount = DnsClient.MAX_RACING_THREADS + 4;
+        try {
+            for (int i = 0; i < queryCount; i++) {
+                DnsQueryResult result = client.query("www" + i + ".example.com", TYPE.A);
+                assertEquals(1, result.response.answerSection.size());
+            }
+            assertTrue(blockedRacingQueries.get() <= DnsClient.MAX_RACING_THREADS);
+            assertEquals(queryCount, blockedRacingQueries.get() + sequentialQueries.get());
+        } finally {
+            release.countDown();
+            // Do not leave the racing threads busy for the following tests.
+            while (DnsClient.RACING_EXECUTOR.getActiveCount() > 0) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRacingCancelsAsyncQueries() throws Exception {
+        final List<MiniDnsFuture<DnsQueryResult, IOException>> futures = new CopyOnWriteArrayList<>();
+        DnsClient client = new DnsClient(new LruCache(0));
+        client.setUseHardcodedDnsServers(true);
+        client.setPreferedIpVersion(AbstractDnsClient.IpVersionSetting.v4v6);
+        client.setRacingEnabled(true);
+        client.setRacingStaggerDelay(50);
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                throw new AssertionError("The racing queries must not block");
+            }
+
+            @Override
+            public MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage message, InetAddress address,
+                    int port, OnResponseCallback onResponseCallback) {
+                InternalMiniDnsFuture<DnsQueryResult, IOException> future = new InternalMiniDnsFuture<>();
+                if (futures.isEmpty()) {
+                    // The first server does not respond.
+                    futures.add(future);
+                    return future;
+                }
+                futures.add(future);
+                DnsMessage response = message.getResponseBuilder(RESPONSE_CODE.NO_ERROR)
+                        .setRecursionAvailable(true)
+                        .addAnswer(record(message.getQuestion().name, a("127.0.0.1")))
+                        .build();
+                future.setResult(new TestWorldDnsQueryResult(message, response));
+                return future;
+            }
+
+            @Override
+            public boolean isAsyncQueryNonBlocking() {
+                return true;
+            }
+        });
+
+        DnsQueryResult result = client.query("www.example.com", TYPE.A);
+        assertEquals(1, result.response.answerSection.size());
+        assertEquals(2, futures.size());
+        // The loser is cancelled.
+        assertTrue(futures.get(0).isCancelled());
+    }
 }
@@ -16,15 +16,22 @@ import org.junit.Test;
 import org.minidns.cache.LruCache;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
 import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
 import org.minidns.record.Record;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
 import static org.minidns.DnsWorld.a;
 import static org.minidns.DnsWorld.ns;
 import static org.minidns.DnsWorld.record;
+import static org.minidns.DnsWorld.soa;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 public class LruCacheTest {
 
@@ -72,6 +79,89 @@ public class LruCacheTest {
         assertEquals(1, lruCache.getHitCount());
     }
 
+    @Test
+    public void testRemoveExpired() {
+        Question expiredQuestion = new Question("expired", Record.TYPE.A);
+        lruCache.put(expiredQuestion.asQueryMessage(), createSampleMessage(expiredQuestion, 1));
+        Question liveQuestion = new Question("live", Record.TYPE.A);
+        lruCache.put(liveQuestion.asQueryMessage(), createSampleMessage(liveQuestion));
+        assertEquals(2, lruCache.size());
+
+        assertEquals(1, lruCache.removeExpired());
+        assertEquals(1, lruCache.size());
+        assertNotNull(lruCache.get(liveQuestion.asQueryMessage()));
+        assertEquals(0, lruCache.removeExpired());
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        final long receiveTimestamp = System.currentTimeMillis() - 1000;
+        Question liveQuestion = new Question("live", Record.TYPE.A);
+        lruCache.put(liveQuestion.asQueryMessage(), createSampleMessage(liveQuestion, receiveTimestamp));
+        Question expiredQuestion = new Question("expired", Record.TYPE.A);
+        lruCache.put(expiredQuestion.asQueryMessage(), createSampleMessage(expiredQuestion, 1));
+
+        File file = File.createTempFile("minidns-cache", ".snapshot");
+        file.deleteOnExit();
+        lruCache.writeSnapshot(file);
+
+        LruCache restoredCache = new LruCache(5);
+        assertEquals(1, restoredCache.loadSnapshot(file));
+        assertEquals(1, restoredCache.size());
+        assertNull(restoredCache.get(expiredQuestion.asQueryMessage()));
+
+        CachedDnsQueryResult result = restoredCache.get(liveQuestion.asQueryMessage());
+        assertNotNull(result);
+        assertEquals(receiveTimestamp, result.response.receiveTimestamp);
+        assertEquals(lruCache.get(liveQuestion.asQueryMessage()).response.answerSection,
+                result.response.answerSection);
+        file.delete();
+    }
+
+    @Test
+    public void testInvalidSnapshot() throws IOException {
+        File file = File.createTempFile("minidns-cache", ".snapshot");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 'M', 'D', 'C', 'S', 0, 0, 0, 1, 0, 0, 0, 1, 0 });
+        } finally {
+            out.close();
+        }
+
+        try {
+            lruCache.loadSnapshot(file);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, lruCache.size());
+        file.delete();
+    }
+
+    @Test
+    public void testNegativeTtl() {
+        Question q = new Question("nx.example.org", Record.TYPE.A);
+        DnsMessage response = DnsMessage.builder()
+                .setResponseCode(DnsMessage.RESPONSE_CODE.NX_DOMAIN)
+                .addNameserverRecords(record("example.org", 3600, soa("ns.example.org", "admin.example.org", 1, 3600, 600, 86400, 5)))
+                .setReceiveTimestamp(System.currentTimeMillis() - 2000)
+                .build();
+        assertEquals(5, response.getNegativeTtl());
+        lruCache.put(q.asQueryMessage(), new TestWorldDnsQueryResult(q.asQueryMessage(), response));
+        assertNotNull(lruCache.get(q.asQueryMessage()));
+
+        // The negative TTL is bounded by the SOA minimum field, not by the TTL of the SOA record.
+        Question expiredQuestion = new Question("expired.example.org", Record.TYPE.A);
+        DnsMessage expiredResponse = response.asBuilder()
+                .setReceiveTimestamp(System.currentTimeMillis() - 10000)
+                .build();
+        lruCache.put(expiredQuestion.asQueryMessage(),
+                new TestWorldDnsQueryResult(expiredQuestion.asQueryMessage(), expiredResponse));
+        assertNull(lruCache.get(expiredQuestion.asQueryMessage()));
+        assertEquals(1, lruCache.getExpireCount());
+    }
+
     private static TestWorldDnsQueryResult createSampleMessage(Question question) {
         return createSampleMessage(question, System.currentTimeMillis());
     }
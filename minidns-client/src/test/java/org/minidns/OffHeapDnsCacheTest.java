@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import org.junit.Test;
+
+import org.minidns.cache.OffHeapDnsCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.record.Record;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.ns;
+import static org.minidns.DnsWorld.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapDnsCacheTest {
+
+    @Test
+    public void testCacheEntry() {
+        OffHeapDnsCache cache = new OffHeapDnsCache();
+        Question q = new Question("example.org", Record.TYPE.A);
+        final long receiveTimestamp = System.currentTimeMillis() - 1000;
+        TestWorldDnsQueryResult result = createSampleMessage(q, receiveTimestamp);
+        cache.put(q.asQueryMessage(), result);
+
+        CachedDnsQueryResult cachedResult = cache.get(q.asQueryMessage());
+        assertNotNull(cachedResult);
+        assertEquals(receiveTimestamp, cachedResult.response.receiveTimestamp);
+        assertEquals(result.response.answerSection, cachedResult.response.answerSection);
+        assertEquals(result.response.additionalSection, cachedResult.response.additionalSection);
+        assertNull(cache.get(new Question("example.com", Record.TYPE.A).asQueryMessage()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testOutdatedCacheEntry() {
+        OffHeapDnsCache cache = new OffHeapDnsCache();
+        Question q = new Question("", Record.TYPE.A);
+        DnsMessage question = q.asQueryMessage();
+        cache.put(question, createSampleMessage(q, 1));
+
+        assertNull(cache.get(question));
+        assertNull(cache.get(question));
+        assertEquals(1, cache.getExpireCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testReplacedCacheEntry() {
+        OffHeapDnsCache cache = new OffHeapDnsCache();
+        Question q = new Question("example.org", Record.TYPE.A);
+        cache.put(q.asQueryMessage(), createSampleMessage(q, System.currentTimeMillis() - 2000));
+        final long receiveTimestamp = System.currentTimeMillis();
+        cache.put(q.asQueryMessage(), createSampleMessage(q, receiveTimestamp));
+
+        assertEquals(1, cache.size());
+        assertEquals(receiveTimestamp, cache.get(q.asQueryMessage()).response.receiveTimestamp);
+    }
+
+    @Test
+    public void testSlabEviction() {
+        OffHeapDnsCache cache = new OffHeapDnsCache(4 * 256, 256, Long.MAX_VALUE);
+        for (int i = 0; i < 50; i++) {
+            Question q = new Question(i + ".example.org", Record.TYPE.A);
+            cache.put(q.asQueryMessage(), createSampleMessage(q));
+        }
+
+        assertTrue(cache.size() < 50);
+        assertEquals(4 * 256, cache.getAllocatedBytes());
+        assertNull(cache.get(new Question("0.example.org", Record.TYPE.A).asQueryMessage()));
+        assertNotNull(cache.get(new Question("49.example.org", Record.TYPE.A).asQueryMessage()));
+    }
+
+    @Test
+    public void testManyEntries() {
+        OffHeapDnsCache cache = new OffHeapDnsCache(2 * OffHeapDnsCache.DEFAULT_SLAB_SIZE);
+        final int count = 5000;
+        for (int i = 0; i < count; i++) {
+            Question q = new Question(i + ".example.org", Record.TYPE.A);
+            cache.put(q.asQueryMessage(), createSampleMessage(q));
+        }
+
+        assertEquals(count, cache.size());
+        for (int i = 0; i < count; i++) {
+            assertNotNull(cache.get(new Question(i + ".example.org", Record.TYPE.A).asQueryMessage()));
+        }
+        assertEquals(count, cache.getHitCount());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(new Question("0.example.org", Record.TYPE.A).asQueryMessage()));
+    }
+
+    private static TestWorldDnsQueryResult createSampleMessage(Question question) {
+        return createSampleMessage(question, System.currentTimeMillis());
+    }
+
+    private static TestWorldDnsQueryResult createSampleMessage(Question question, long receiveTimestamp) {
+        DnsMessage.Builder message = DnsMessage.builder();
+        message.setReceiveTimestamp(receiveTimestamp);
+        message.addAnswer(record("", ns("a.root-servers.net")));
+        message.addAdditionalResourceRecord(record("a.root-servers.net", a("127.0.0.1")));
+        DnsMessage responseMessage = message.build();
+        DnsMessage query = question.asQueryMessage();
+        return new TestWorldDnsQueryResult(query, responseMessage);
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns;
+
+import org.junit.Test;
+
+import org.minidns.cache.RrSetCache;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.record.A;
+import org.minidns.record.Record;
+import org.minidns.record.Record.CLASS;
+import org.minidns.record.Record.TYPE;
+import org.minidns.record.SOA;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.cname;
+import static org.minidns.DnsWorld.ns;
+import static org.minidns.DnsWorld.nsec;
+import static org.minidns.DnsWorld.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RrSetCacheTest {
+
+    @Test
+    public void testCnameChain() {
+        RrSetCache cache = new RrSetCache();
+        Question q = new Question("www.example.org", TYPE.A);
+        DnsMessage response = responseBuilder(q, true)
+                .addAnswer(record("www.example.org", cname("web.example.net")))
+                .addAnswer(record("web.example.net", a("192.0.2.1")))
+                .build();
+        cache.put(q.asQueryMessage(), new TestWorldDnsQueryResult(q.asQueryMessage(), response));
+        assertEquals(2, cache.size());
+
+        CachedDnsQueryResult result = cache.get(q.asQueryMessage());
+        assertNotNull(result);
+        assertEquals(response.answerSection, result.response.answerSection);
+        assertTrue(result.response.authoritativeAnswer);
+
+        // The target of the CNAME is answered by the same RRset.
+        Question targetQuestion = new Question("web.example.net", TYPE.A);
+        result = cache.get(targetQuestion.asQueryMessage());
+        assertNotNull(result);
+        assertEquals(1, result.response.answerSection.size());
+
+        assertNull(cache.get(new Question("www.example.org", TYPE.AAAA).asQueryMessage()));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testReferral() {
+        RrSetCache cache = new RrSetCache();
+        Question q = new Question("www.example.org", TYPE.A);
+        DnsMessage referral = responseBuilder(q, false)
+                .addNameserverRecords(record("example.org", ns("ns1.example.org")))
+                .addNameserverRecords(record("example.org", ns("ns.example.com")))
+                .addAdditionalResourceRecord(record("ns1.example.org", a("192.0.2.53")))
+                .addAdditionalResourceRecord(record("ns.example.com", a("192.0.2.66")))
+                .build();
+        cache.offer(q.asQueryMessage(), new TestWorldDnsQueryResult(q.asQueryMessage(), referral),
+                DnsName.from("org"));
+
+        RrSet nsRrSet = cache.getClosestEnclosingRrSet(DnsName.from("a.b.www.example.org"), TYPE.NS);
+        assertNotNull(nsRrSet);
+        assertEquals(DnsName.from("example.org"), nsRrSet.name);
+        assertEquals(2, nsRrSet.records.size());
+        assertNull(cache.getClosestEnclosingRrSet(DnsName.from("example.com"), TYPE.NS));
+
+        // In-bailiwick glue is cached, the glue of the nameserver in another zone is not.
+        assertNotNull(cache.getRrSet(DnsName.from("ns1.example.org"), TYPE.A, CLASS.IN));
+        assertNull(cache.getRrSet(DnsName.from("ns.example.com"), TYPE.A, CLASS.IN));
+        CachedDnsQueryResult result = cache.get(new Question("ns1.example.org", TYPE.A).asQueryMessage());
+        assertNotNull(result);
+        assertFalse(result.response.authoritativeAnswer);
+    }
+
+    @Test
+    public void testRanking() {
+        RrSetCache cache = new RrSetCache();
+        Question q = new Question("ns1.example.org", TYPE.A);
+        DnsMessage answer = responseBuilder(q, true)
+                .addAnswer(record("ns1.example.org", a("192.0.2.53")))
+                .build();
+        cache.put(q.asQueryMessage(), new TestWorldDnsQueryResult(q.asQueryMessage(), answer));
+
+        Question otherQuestion = new Question("example.org", TYPE.NS);
+        DnsMessage glue = responseBuilder(otherQuestion, true)
+                .addAnswer(record("example.org", ns("ns1.example.org")))
+                .addAdditionalResourceRecord(record("ns1.example.org", a("192.0.2.99")))
+                .build();
+        cache.put(otherQuestion.asQueryMessage(), new TestWorldDnsQueryResult(otherQuestion.asQueryMessage(), glue));
+
+        RrSet rrSet = cache.getRrSet(DnsName.from("ns1.example.org"), TYPE.A, CLASS.IN);
+        assertEquals(1, rrSet.records.size());
+        assertEquals(a("192.0.2.53"), rrSet.records.iterator().next().payloadData);
+    }
+
+    @Test
+    public void testTtl() {
+        RrSetCache cache = new RrSetCache();
+        Question q = new Question("www.example.org", TYPE.A);
+        DnsMessage response = responseBuilder(q, true)
+                .addAnswer(record("www.example.org", 3600, a("192.0.2.1")))
+                .setReceiveTimestamp(System.currentTimeMillis() - 10000)
+                .build();
+        cache.put(q.asQueryMessage(), new TestWorldDnsQueryResult(q.asQueryMessage(), response));
+
+        Record<A> answer = cache.get(q.asQueryMessage()).response.getFirstOfTypeFromAnswerSection(A.class);
+        assertTrue(answer.ttl <= 3590);
+        assertTrue(answer.ttl >= 3580);
+
+        Question expiredQuestion = new Question("expired.example.org", TYPE.A);
+        DnsMessage expiredResponse = responseBuilder(expiredQuestion, true)
+                .addAnswer(record("expired.example.org", 1, a("192.0.2.2")))
+                .setReceiveTimestamp(System.currentTimeMillis() - 10000)
+                .build();
+        cache.put(expiredQuestion.asQueryMessage(),
+                new TestWorldDnsQueryResult(expiredQuestion.asQueryMessage(), expiredResponse));
+        assertNull(cache.get(expiredQuestion.asQueryMessage()));
+        assertEquals(1, cache.getExpireCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testNegativeCaching() {
+        RrSetCache cache = new RrSetCache();
+        Question nxQuestion = new Question("nx.example.org", TYPE.A);
+        DnsMessage nxDomain = responseBuilder(nxQuestion, true)
+                .setResponseCode(RESPONSE_CODE.NX_DOMAIN)
+                .addNameserverRecords(record("example.org", 3600, soa()))
+                .build();
+        cache.put(nxQuestion.asQueryMessage(), new TestWorldDnsQueryResult(nxQuestion.asQueryMessage(), nxDomain));
+
+        // NXDOMAIN applies to all types of the name.
+        CachedDnsQueryResult result = cache.get(new Question("nx.example.org", TYPE.AAAA).asQueryMessage());
+        assertNotNull(result);
+        assertEquals(RESPONSE_CODE.NX_DOMAIN, result.response.responseCode);
+        assertEquals(1, result.response.authoritySection.size());
+        assertTrue(result.response.authoritySection.get(0).ttl <= 300);
+
+        Question noDataQuestion = new Question("www.example.org", TYPE.AAAA);
+        DnsMessage noData = responseBuilder(noDataQuestion, true)
+                .addNameserverRecords(record("example.org", 3600, soa()))
+                .build();
+        cache.put(noDataQuestion.asQueryMessage(), new TestWorldDnsQueryResult(noDataQuestion.asQueryMessage(), noData));
+        result = cache.get(noDataQuestion.asQueryMessage());
+        assertNotNull(result);
+        assertEquals(RESPONSE_CODE.NO_ERROR, result.response.responseCode);
+        assertTrue(result.response.answerSection.isEmpty());
+        assertNull(cache.get(new Question("www.example.org", TYPE.A).asQueryMessage()));
+
+        // Negative responses without SOA record are not cached.
+        Question noSoaQuestion = new Question("nosoa.example.org", TYPE.A);
+        DnsMessage noSoa = responseBuilder(noSoaQuestion, true)
+                .setResponseCode(RESPONSE_CODE.NX_DOMAIN)
+                .build();
+        cache.put(noSoaQuestion.asQueryMessage(), new TestWorldDnsQueryResult(noSoaQuestion.asQueryMessage(), noSoa));
+        assertNull(cache.get(noSoaQuestion.asQueryMessage()));
+    }
+
+    @Test
+    public void testCnameChainNegativeCaching() {
+        RrSetCache cache = new RrSetCache();
+        Question q = new Question("www.example.org", TYPE.AAAA);
+        DnsMessage noData = responseBuilder(q, true)
+                .addAnswer(record("www.example.org", 3600, cname("web.example.org")))
+                .addNameserverRecords(record("example.org", 3600, soa()))
+                .build();
+        // The negative TTL of the SOA record applies, not the TTL of the CNAME record.
+        assertTrue(noData.isNegativeResponse());
+        assertEquals(300, noData.getNegativeTtl());
+        assertEquals(300, noData.getCacheTtl());
+
+        cache.put(q.asQueryMessage(), new TestWorldDnsQueryResult(q.asQueryMessage(), noData));
+        assertEquals(2, cache.size());
+        CachedDnsQueryResult result = cache.get(q.asQueryMessage());
+        assertNotNull(result);
+        assertEquals(RESPONSE_CODE.NO_ERROR, result.response.responseCode);
+        assertEquals(noData.answerSection, result.response.answerSection);
+        assertEquals(1, result.response.authoritySection.size());
+        assertEquals(0, cache.getExpireCount());
+
+        // The NODATA result applies to the end of the chain, too.
+        assertNotNull(cache.get(new Question("web.example.org", TYPE.AAAA).asQueryMessage()));
+
+        // Without a SOA record, the chain may just continue in a zone the server is not authoritative for.
+        DnsMessage partial = responseBuilder(q, true)
+                .addAnswer(record("www.example.org", 3600, cname("web.example.net")))
+                .build();
+        assertFalse(partial.isNegativeResponse());
+        assertEquals(3600, partial.getCacheTtl());
+    }
+
+    @Test
+    public void testAggressiveNsec() {
+        RrSetCache cache = new RrSetCache();
+        Question q = new Question("b.example.org", TYPE.A);
+        DnsMessage nxDomain = responseBuilder(q, false)
+                .setResponseCode(RESPONSE_CODE.NX_DOMAIN)
+                .setAuthenticData(true)
+                .addNameserverRecords(record("example.org", 3600, soa()))
+                .addNameserverRecords(record("a.example.org", 3600, nsec("c.example.org", TYPE.A, TYPE.NSEC)))
+                .addNameserverRecords(record("example.org", 3600,
+                        nsec("a.example.org", TYPE.SOA, TYPE.NS, TYPE.NSEC)))
+                .build();
+        cache.put(q.asQueryMessage(), new TestWorldDnsQueryResult(q.asQueryMessage(), nxDomain));
+
+        // Another name covered by the same NSEC records does not exist either.
+        CachedDnsQueryResult result = cache.get(new Question("bb.example.org", TYPE.AAAA).asQueryMessage());
+        assertNotNull(result);
+        assertEquals(RESPONSE_CODE.NX_DOMAIN, result.response.responseCode);
+        assertTrue(result.response.authenticData);
+        assertFalse(result.response.authoritativeAnswer);
+
+        // The NSEC record of an existing name proves which types do not exist.
+        result = cache.get(new Question("a.example.org", TYPE.MX).asQueryMessage());
+        assertNotNull(result);
+        assertEquals(RESPONSE_CODE.NO_ERROR, result.response.responseCode);
+        assertTrue(result.response.answerSection.isEmpty());
+        assertNull(cache.get(new Question("a.example.org", TYPE.A).asQueryMessage()));
+
+        // Names which are not covered are not answered.
+        assertNull(cache.get(new Question("d.example.org", TYPE.A).asQueryMessage()));
+        assertNull(cache.get(new Question("b.example.com", TYPE.A).asQueryMessage()));
+
+        cache.setAggressiveNsecEnabled(false);
+        assertNull(cache.get(new Question("bb.example.org", TYPE.AAAA).asQueryMessage()));
+    }
+
+    @Test
+    public void testAggressiveNsecChildApexDs() {
+        RrSetCache cache = new RrSetCache();
+        Question q = new Question("example.org", TYPE.MX);
+        DnsMessage noData = responseBuilder(q, false)
+                .setAuthenticData(true)
+                .addNameserverRecords(record("example.org", 3600, soa()))
+                .addNameserverRecords(record("example.org", 3600,
+                        nsec("a.example.org", TYPE.SOA, TYPE.NS, TYPE.NSEC)))
+                .build();
+        cache.put(q.asQueryMessage(), new TestWorldDnsQueryResult(q.asQueryMessage(), noData));
+
+        CachedDnsQueryResult result = cache.get(new Question("example.org", TYPE.TXT).asQueryMessage());
+        assertNotNull(result);
+        assertEquals(RESPONSE_CODE.NO_ERROR, result.response.responseCode);
+        assertTrue(result.response.answerSection.isEmpty());
+
+        // The DS record is in the parent zone, so the NSEC record at the apex of the child zone does not deny it.
+        assertNull(cache.get(new Question("example.org", TYPE.DS).asQueryMessage()));
+    }
+
+    @Test
+    public void testAggressiveNsecRequiresAuthenticData() {
+        RrSetCache cache = new RrSetCache();
+        Question q = new Question("b.example.org", TYPE.A);
+        DnsMessage nxDomain = responseBuilder(q, true)
+                .setResponseCode(RESPONSE_CODE.NX_DOMAIN)
+                .addNameserverRecords(record("example.org", 3600, soa()))
+                .addNameserverRecords(record("a.example.org", 3600, nsec("c.example.org", TYPE.A, TYPE.NSEC)))
+                .addNameserverRecords(record("example.org", 3600,
+                        nsec("a.example.org", TYPE.SOA, TYPE.NS, TYPE.NSEC)))
+                .build();
+        cache.put(q.asQueryMessage(), new TestWorldDnsQueryResult(q.asQueryMessage(), nxDomain));
+
+        assertNotNull(cache.get(q.asQueryMessage()));
+        assertNull(cache.get(new Question("bb.example.org", TYPE.A).asQueryMessage()));
+    }
+
+    private static SOA soa() {
+        return DnsWorld.soa("ns.example.org", "admin.example.org", 1, 3600, 600, 86400, 300);
+    }
+
+    private static DnsMessage.Builder responseBuilder(Question question, boolean authoritativeAnswer) {
+        return DnsMessage.builder()
+                .setQrFlag(true)
+                .setAuthoritativeAnswer(authoritativeAnswer)
+                .setQuestion(question)
+                .setReceiveTimestamp(System.currentTimeMillis());
+    }
+}
@@ -12,14 +12,30 @@ package org.minidns.source;
 
 import org.junit.Test;
 import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
 import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.record.Record.TYPE;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class NetworkDataSourceTest {
 
@@ -51,4 +67,252 @@ public class NetworkDataSourceTest {
         assertEquals(tcpResponseId, result.response.id);
         assertFalse(world.lastQueryUdp);
     }
+
+    @Test(timeout = 10000)
+    public void pooledUdpQueryTest() throws Exception {
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final int queries = 3;
+        final List<Integer> sourcePorts = new ArrayList<>();
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < queries; i++) {
+                        DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                        server.receive(packet);
+                        sourcePorts.add(packet.getPort());
+                        DnsMessage query = new DnsMessage(Arrays.copyOf(packet.getData(), packet.getLength()));
+
+                        // First send a stale response with a different id, which must be discarded.
+                        byte[] stale = query.asBuilder().setId(query.id + 1).setQrFlag(true).build().toArray();
+                        server.send(new DatagramPacket(stale, stale.length, packet.getSocketAddress()));
+                        // And a response with the expected id, but for another question.
+                        byte[] spoofed = query.asBuilder().setQuestion(new Question("example.com", TYPE.A))
+                                .setQrFlag(true).build().toArray();
+                        server.send(new DatagramPacket(spoofed, spoofed.length, packet.getSocketAddress()));
+                        byte[] response = query.asBuilder().setQrFlag(true).build().toArray();
+                        server.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        serverThread.start();
+
+        NetworkDataSource dataSource = new NetworkDataSource();
+        dataSource.setUdpSocketPoolSize(1);
+        try {
+            for (int i = 0; i < queries; i++) {
+                DnsMessage query = DnsMessage.builder().setId(100 + i).setQuestion(new Question("example.org", TYPE.A)).build();
+                DnsQueryResult result = dataSource.query(query, server.getLocalAddress(), server.getLocalPort());
+                assertEquals(query.id, result.response.id);
+                assertEquals(query.getQuestion(), result.response.getQuestion());
+                assertTrue(result.response.qr);
+            }
+        } finally {
+            dataSource.setUdpSocketPoolSize(0);
+            serverThread.join();
+            server.close();
+        }
+
+        // All queries were performed using the same pooled socket.
+        assertEquals(queries, sourcePorts.size());
+        assertEquals(1, new HashSet<>(sourcePorts).size());
+    }
+
+    private static DnsMessage readTcpQuery(DataInputStream dis) throws IOException {
+        byte[] data = new byte[dis.readUnsignedShort()];
+        dis.readFully(data);
+        return new DnsMessage(data);
+    }
+
+    private static void writeTcpResponse(DataOutputStream dos, DnsMessage query) throws IOException {
+        query.asBuilder().setQrFlag(true).build().writeTo(dos);
+        dos.flush();
+    }
+
+    @Test
+    public void pooledTcpPipeliningTest() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final List<Object> serverResult = new ArrayList<>();
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    DataInputStream dis = new DataInputStream(socket.getInputStream());
+                    DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+
+                    writeTcpResponse(dos, readTcpQuery(dis));
+
+                    // Wait for two pipelined queries and answer them in reverse order.
+                    DnsMessage first = readTcpQuery(dis);
+                    DnsMessage second = readTcpQuery(dis);
+                    writeTcpResponse(dos, second);
+                    writeTcpResponse(dos, first);
+
+                    // No further connection must be established.
+                    server.setSoTimeout(200);
+                    try {
+                        server.accept().close();
+                        serverResult.add("Unexpected second connection");
+                    } catch (SocketTimeoutException e) {
+                        serverResult.add(Boolean.TRUE);
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    serverResult.add(e);
+                }
+            }
+        };
+        serverThread.start();
+
+        final NetworkDataSource dataSource = new NetworkDataSource();
+        dataSource.setQueryMode(AbstractDnsDataSource.QueryMode.tcp);
+        dataSource.setTcpConnectionPoolingEnabled(true);
+        final InetAddress address = server.getInetAddress();
+        final int port = server.getLocalPort();
+        try {
+            DnsMessage query = DnsMessage.builder().setId(1).setQuestion(new Question("example.org", TYPE.A)).build();
+            assertEquals(query.id, dataSource.query(query, address, port).response.id);
+
+            final DnsMessage[] responses = new DnsMessage[2];
+            Thread[] clientThreads = new Thread[responses.length];
+            for (int i = 0; i < clientThreads.length; i++) {
+                final int index = i;
+                clientThreads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        DnsMessage query = DnsMessage.builder().setId(10 + index)
+                                .setQuestion(new Question("example" + index + ".org", TYPE.A)).build();
+                        try {
+                            responses[index] = dataSource.query(query, address, port).response;
+                        } catch (IOException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                };
+                clientThreads[i].start();
+            }
+            for (Thread clientThread : clientThreads) {
+                clientThread.join();
+            }
+            for (int i = 0; i < responses.length; i++) {
+                assertNotNull(responses[i]);
+                assertEquals(10 + i, responses[i].id);
+                assertEquals("example" + i + ".org", responses[i].getQuestion().name.toString());
+            }
+        } finally {
+            serverThread.join();
+            dataSource.setTcpConnectionPoolingEnabled(false);
+            server.close();
+        }
+        assertEquals(Arrays.<Object>asList(Boolean.TRUE), serverResult);
+    }
+
+    @Test
+    public void pooledTcpPartialResponseTest() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final List<Object> serverResult = new ArrayList<>();
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    // Only send a part of the response, then stall.
+                    Socket stalled = server.accept();
+                    DnsMessage query = readTcpQuery(new DataInputStream(stalled.getInputStream()));
+                    byte[] response = query.asBuilder().setQrFlag(true).build().toArray();
+                    DataOutputStream dos = new DataOutputStream(stalled.getOutputStream());
+                    dos.writeShort(response.length);
+                    dos.write(response, 0, 4);
+                    dos.flush();
+
+                    // The connection is out of sync, hence the next query has to use a new one.
+                    server.setSoTimeout(5000);
+                    Socket socket = server.accept();
+                    writeTcpResponse(new DataOutputStream(socket.getOutputStream()),
+                            readTcpQuery(new DataInputStream(socket.getInputStream())));
+                    serverResult.add(Boolean.TRUE);
+                    socket.close();
+                    stalled.close();
+                } catch (IOException e) {
+                    serverResult.add(e);
+                }
+            }
+        };
+        serverThread.start();
+
+        NetworkDataSource dataSource = new NetworkDataSource();
+        dataSource.setTimeout(200);
+        TcpConnectionPool pool = new TcpConnectionPool(TcpConnectionPool.DEFAULT_MAX_OUTSTANDING_QUERIES,
+                TcpConnectionPool.DEFAULT_IDLE_TIMEOUT);
+        InetSocketAddress serverAddress = new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+        try {
+            DnsMessage query = DnsMessage.builder().setId(1).setQuestion(new Question("example.org", TYPE.A)).build();
+            try {
+                pool.query(query, serverAddress, dataSource);
+                fail();
+            } catch (SocketTimeoutException e) {
+                // Expected.
+            }
+
+            query = DnsMessage.builder().setId(2).setQuestion(new Question("example.com", TYPE.A)).build();
+            assertEquals(query.id, pool.query(query, serverAddress, dataSource).id);
+            assertEquals(1, pool.getConnectionCount());
+        } finally {
+            serverThread.join();
+            pool.close();
+            server.close();
+        }
+        assertEquals(Arrays.<Object>asList(Boolean.TRUE), serverResult);
+    }
+
+    @Test
+    public void pooledTcpIdleTimeoutTest() throws Exception {
+        final ServerSocket[] servers = new ServerSocket[2];
+        Thread[] serverThreads = new Thread[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            servers[i] = server;
+            serverThreads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Socket socket = server.accept();
+                        DataInputStream dis = new DataInputStream(socket.getInputStream());
+                        writeTcpResponse(new DataOutputStream(socket.getOutputStream()), readTcpQuery(dis));
+                        // Wait until the client closes the connection.
+                        dis.read();
+                        socket.close();
+                    } catch (IOException e) {
+                        // Ignore, the test fails on the client side.
+                    }
+                }
+            };
+            serverThreads[i].start();
+        }
+
+        NetworkDataSource dataSource = new NetworkDataSource();
+        TcpConnectionPool pool = new TcpConnectionPool(TcpConnectionPool.DEFAULT_MAX_OUTSTANDING_QUERIES, 50);
+        try {
+            DnsMessage query = DnsMessage.builder().setId(1).setQuestion(new Question("example.org", TYPE.A)).build();
+            pool.query(query, new InetSocketAddress(servers[0].getInetAddress(), servers[0].getLocalPort()), dataSource);
+            assertEquals(1, pool.getConnectionCount());
+
+            Thread.sleep(100);
+
+            // The idle connection to the first server is closed, even though only the second server is queried.
+            pool.query(query, new InetSocketAddress(servers[1].getInetAddress(), servers[1].getLocalPort()), dataSource);
+            assertEquals(1, pool.getConnectionCount());
+            serverThreads[0].join(5000);
+            assertFalse(serverThreads[0].isAlive());
+        } finally {
+            pool.close();
+            for (int i = 0; i < servers.length; i++) {
+                serverThreads[i].join();
+                servers[i].close();
+            }
+        }
+    }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.source;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class UpstreamStatisticsTest {
+
+    private static InetAddress address(int lastByte) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) lastByte });
+    }
+
+    @Test
+    public void testTimeout() throws UnknownHostException {
+        UpstreamStatistics statistics = new UpstreamStatistics();
+        InetAddress server = address(1);
+
+        assertEquals(5000, statistics.getTimeout(server, 5000));
+        assertEquals(-1, statistics.getSmoothedRtt(server));
+
+        statistics.recordSuccess(server, 100);
+        assertEquals(100, statistics.getSmoothedRtt(server));
+        assertEquals(50, statistics.getRttVariation(server));
+        assertEquals(300, statistics.getTimeout(server, 5000));
+
+        statistics.recordSuccess(server, 100);
+        assertEquals(100, statistics.getSmoothedRtt(server));
+        assertEquals(250, statistics.getTimeout(server, 5000));
+
+        // Failures back off the timeout.
+        statistics.recordFailure(server);
+        assertEquals(1, statistics.getFailureCount(server));
+        assertEquals(500, statistics.getTimeout(server, 5000));
+        statistics.recordFailure(server);
+        assertEquals(1000, statistics.getTimeout(server, 5000));
+
+        statistics.recordSuccess(server, 100);
+        assertEquals(0, statistics.getFailureCount(server));
+        assertEquals(213, statistics.getTimeout(server, 5000));
+    }
+
+    @Test
+    public void testTimeoutBounds() throws UnknownHostException {
+        UpstreamStatistics statistics = new UpstreamStatistics();
+        InetAddress fastServer = address(1);
+        InetAddress slowServer = address(2);
+
+        statistics.recordSuccess(fastServer, 1);
+        assertEquals(UpstreamStatistics.DEFAULT_MIN_TIMEOUT, statistics.getTimeout(fastServer, 5000));
+
+        statistics.recordSuccess(slowServer, 10000);
+        assertEquals(UpstreamStatistics.DEFAULT_MAX_TIMEOUT, statistics.getTimeout(slowServer, 5000));
+    }
+
+    @Test
+    public void testSort() throws UnknownHostException {
+        UpstreamStatistics statistics = new UpstreamStatistics();
+        InetAddress fastServer = address(1);
+        InetAddress unknownServer = address(2);
+        InetAddress slowServer = address(3);
+        InetAddress failingServer = address(4);
+
+        statistics.recordSuccess(fastServer, 10);
+        statistics.recordSuccess(slowServer, 1000);
+        statistics.recordFailure(failingServer);
+
+        List<InetAddress> servers = new ArrayList<>(Arrays.asList(failingServer, slowServer, unknownServer, fastServer));
+        statistics.sort(servers);
+        assertEquals(Arrays.asList(fastServer, unknownServer, failingServer, slowServer), servers);
+    }
+
+    @Test
+    public void testSelect() throws UnknownHostException {
+        UpstreamStatistics statistics = new UpstreamStatistics();
+        InetAddress fastServer = address(1);
+        InetAddress slowServer = address(2);
+
+        statistics.recordSuccess(fastServer, 10);
+        statistics.recordSuccess(slowServer, 2000);
+
+        Random random = new Random(42);
+        List<InetAddress> servers = Arrays.asList(slowServer, fastServer);
+        for (int i = 0; i < 10; i++) {
+            assertSame(fastServer, statistics.select(servers, random));
+        }
+        assertEquals(null, statistics.select(new ArrayList<InetAddress>(), random));
+    }
+
+    @Test
+    public void testCapacityAndLifetime() throws UnknownHostException, InterruptedException {
+        UpstreamStatistics statistics = new UpstreamStatistics(2, 100, 1000, 50);
+        statistics.recordSuccess(address(1), 10);
+        statistics.recordSuccess(address(2), 10);
+        statistics.recordSuccess(address(3), 10);
+        assertEquals(2, statistics.size());
+        assertEquals(-1, statistics.getSmoothedRtt(address(1)));
+
+        Thread.sleep(100);
+        assertEquals(5000, statistics.getTimeout(address(2), 5000));
+    }
+
+    @Test
+    public void testDataSourceTimeout() throws UnknownHostException {
+        NetworkDataSource dataSource = new NetworkDataSource();
+        InetAddress server = address(1);
+        assertEquals(dataSource.getTimeout(), dataSource.getTimeoutFor(server));
+
+        UpstreamStatistics statistics = new UpstreamStatistics();
+        statistics.recordSuccess(server, 100);
+        dataSource.setUpstreamStatistics(statistics);
+        assertEquals(300, dataSource.getTimeoutFor(server));
+    }
+}
@@ -11,6 +11,8 @@
 package org.minidns.dnslabel;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Locale;
 
 /**
@@ -131,6 +133,19 @@ public abstract class DnsLabel implements CharSequence, Comparable<DnsLabel> {
         byteArrayOutputStream.write(byteCache, 0, byteCache.length);
     }
 
+    /**
+     * Write the wire format of this label, i.e. its length octet followed by its octets, to the given stream.
+     *
+     * @param outputStream the stream to write to.
+     * @throws IOException if an I/O error occurs.
+     */
+    public final void writeToStream(OutputStream outputStream) throws IOException {
+        setBytesIfRequired();
+
+        outputStream.write(byteCache.length);
+        outputStream.write(byteCache, 0, byteCache.length);
+    }
+
     @Override
     public final int compareTo(DnsLabel other) {
         String myCanonical = asLowercaseVariant().label;
@@ -10,20 +10,24 @@
  */
 package org.minidns.dnsmessage;
 
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameCompressor;
+import org.minidns.dnsname.DnsNameParseContext;
 import org.minidns.edns.Edns;
+import org.minidns.record.CNAME;
 import org.minidns.record.Data;
 import org.minidns.record.OPT;
 import org.minidns.record.Record;
 import org.minidns.record.Record.TYPE;
+import org.minidns.record.SOA;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -387,39 +391,58 @@ public class DnsMessage {
      * @throws IOException On read errors.
      */
     public DnsMessage(byte data[]) throws IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        DataInputStream dis = new DataInputStream(bis);
-        id = dis.readUnsignedShort();
-        int header = dis.readUnsignedShort();
-        qr = ((header >> 15) & 1) == 1;
-        opcode = OPCODE.getOpcode((header >> 11) & 0xf);
-        authoritativeAnswer = ((header >> 10) & 1) == 1;
-        truncated = ((header >> 9) & 1) == 1;
-        recursionDesired = ((header >> 8) & 1) == 1;
-        recursionAvailable = ((header >> 7) & 1) == 1;
-        authenticData = ((header >> 5) & 1) == 1;
-        checkingDisabled = ((header >> 4) & 1) == 1;
-        responseCode = RESPONSE_CODE.getResponseCode(header & 0xf);
-        receiveTimestamp = System.currentTimeMillis();
-        int questionCount = dis.readUnsignedShort();
-        int answerCount = dis.readUnsignedShort();
-        int nameserverCount = dis.readUnsignedShort();
-        int additionalResourceRecordCount = dis.readUnsignedShort();
-        questions = new ArrayList<>(questionCount);
-        for (int i = 0; i < questionCount; i++) {
-            questions.add(new Question(dis, data));
-        }
-        answerSection = new ArrayList<>(answerCount);
-        for (int i = 0; i < answerCount; i++) {
-            answerSection.add(Record.parse(dis, data));
-        }
-        authoritySection = new ArrayList<>(nameserverCount);
-        for (int i = 0; i < nameserverCount; i++) {
-            authoritySection.add(Record.parse(dis, data));
-        }
-        additionalSection = new ArrayList<>(additionalResourceRecordCount);
-        for (int i = 0; i < additionalResourceRecordCount; i++) {
-            additionalSection.add(Record.parse(dis, data));
+        this(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Build a DNS Message based on a binary DNS message held in a buffer. The message is expected between the buffer's
+     * current position and its limit. The buffer may be a direct buffer, which allows parsing a message straight out of
+     * a NIO channel's receive buffer without first copying it into a byte array. The position of the given buffer is
+     * not modified.
+     *
+     * @param buffer The buffer holding the DNS message data.
+     * @throws IOException On read errors.
+     */
+    public DnsMessage(ByteBuffer buffer) throws IOException {
+        // Slice the buffer, so that compression pointers, which are offsets relative to the message start, can be
+        // resolved using the absolute get methods of the buffer.
+        ByteBuffer data = buffer.slice();
+        DnsNameParseContext context = new DnsNameParseContext();
+        try {
+            id = data.getShort() & 0xffff;
+            int header = data.getShort() & 0xffff;
+            qr = ((header >> 15) & 1) == 1;
+            opcode = OPCODE.getOpcode((header >> 11) & 0xf);
+            authoritativeAnswer = ((header >> 10) & 1) == 1;
+            truncated = ((header >> 9) & 1) == 1;
+            recursionDesired = ((header >> 8) & 1) == 1;
+            recursionAvailable = ((header >> 7) & 1) == 1;
+            authenticData = ((header >> 5) & 1) == 1;
+            checkingDisabled = ((header >> 4) & 1) == 1;
+            responseCode = RESPONSE_CODE.getResponseCode(header & 0xf);
+            receiveTimestamp = System.currentTimeMillis();
+            int questionCount = data.getShort() & 0xffff;
+            int answerCount = data.getShort() & 0xffff;
+            int nameserverCount = data.getShort() & 0xffff;
+            int additionalResourceRecordCount = data.getShort() & 0xffff;
+            questions = new ArrayList<>(questionCount);
+            for (int i = 0; i < questionCount; i++) {
+                questions.add(new Question(data, context));
+            }
+            answerSection = new ArrayList<>(answerCount);
+            for (int i = 0; i < answerCount; i++) {
+                answerSection.add(Record.parse(data, context));
+            }
+            authoritySection = new ArrayList<>(nameserverCount);
+            for (int i = 0; i < nameserverCount; i++) {
+                authoritySection.add(Record.parse(data, context));
+            }
+            additionalSection = new ArrayList<>(additionalResourceRecordCount);
+            for (int i = 0; i < additionalResourceRecordCount; i++) {
+                additionalSection.add(Record.parse(data, context));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated or malformed DNS message", e);
         }
         optRrPosition = getOptRrPosition(additionalSection);
     }
@@ -469,6 +492,24 @@ public class DnsMessage {
         return serialize().clone();
     }
 
+    /**
+     * Generate a binary dns packet out of this message, optionally using name compression.
+     * <p>
+     * With name compression, owner names, question names and the names within the RDATA of NS, CNAME, PTR, MX and SOA
+     * records are compressed as described in RFC 1035 § 4.1.4. Names within the RDATA of other record types are not
+     * compressed, as required by RFC 3597 § 4.
+     * </p>
+     *
+     * @param compressNames if the DNS names within the message should be compressed.
+     * @return the binary representation.
+     */
+    public byte[] toArray(boolean compressNames) {
+        if (!compressNames) {
+            return toArray();
+        }
+        return serializeCompressed().clone();
+    }
+
     public DatagramPacket asDatagram(InetAddress address, int port) {
         byte[] bytes = serialize();
         return new DatagramPacket(bytes, bytes.length, address, port);
@@ -479,7 +520,19 @@ public class DnsMessage {
     }
 
     public void writeTo(OutputStream outputStream, boolean writeLength) throws IOException {
-        byte[] bytes = serialize();
+        writeTo(outputStream, writeLength, false);
+    }
+
+    /**
+     * Write the binary representation of this message to the given stream.
+     *
+     * @param outputStream the stream to write to.
+     * @param writeLength if the two byte length prefix used by DNS over TCP should be written.
+     * @param compressNames if the DNS names within the message should be compressed.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeTo(OutputStream outputStream, boolean writeLength, boolean compressNames) throws IOException {
+        byte[] bytes = compressNames ? serializeCompressed() : serialize();
         DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
         if (writeLength) {
             dataOutputStream.writeShort(bytes.length);
@@ -494,11 +547,23 @@ public class DnsMessage {
 
     private byte[] byteCache;
 
+    private byte[] compressedByteCache;
+
     private byte[] serialize() {
-        if (byteCache != null) {
-            return byteCache;
+        if (byteCache == null) {
+            byteCache = serialize(null);
         }
+        return byteCache;
+    }
 
+    private byte[] serializeCompressed() {
+        if (compressedByteCache == null) {
+            compressedByteCache = serialize(new DnsNameCompressor());
+        }
+        return compressedByteCache;
+    }
+
+    private byte[] serialize(DnsNameCompressor compressor) {
         ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
         DataOutputStream dos = new DataOutputStream(baos);
         int header = calculateHeaderBitmap();
@@ -527,22 +592,26 @@ public class DnsMessage {
             }
             if (questions != null) {
                 for (Question question : questions) {
-                    dos.write(question.toByteArray());
+                    if (compressor == null) {
+                        dos.write(question.toByteArray());
+                    } else {
+                        question.writeToStream(dos, compressor);
+                    }
                 }
             }
             if (answerSection != null) {
                 for (Record<? extends Data> answer : answerSection) {
-                    dos.write(answer.toByteArray());
+                    writeRecord(answer, dos, compressor);
                 }
             }
             if (authoritySection != null) {
                 for (Record<? extends Data> nameserverRecord : authoritySection) {
-                    dos.write(nameserverRecord.toByteArray());
+                    writeRecord(nameserverRecord, dos, compressor);
                 }
             }
             if (additionalSection != null) {
                 for (Record<? extends Data> additionalResourceRecord : additionalSection) {
-                    dos.write(additionalResourceRecord.toByteArray());
+                    writeRecord(additionalResourceRecord, dos, compressor);
                 }
             }
             dos.flush();
@@ -550,8 +619,16 @@ public class DnsMessage {
             // Should never happen.
             throw new AssertionError(e);
         }
-        byteCache = baos.toByteArray();
-        return byteCache;
+        return baos.toByteArray();
+    }
+
+    private static void writeRecord(Record<? extends Data> record, DataOutputStream dos, DnsNameCompressor compressor)
+                    throws IOException {
+        if (compressor == null) {
+            dos.write(record.toByteArray());
+        } else {
+            record.toOutputStream(dos, compressor);
+        }
     }
 
     int calculateHeaderBitmap() {
@@ -779,6 +856,113 @@ public class DnsMessage {
         return answersMinTtlCache;
     }
 
+    /**
+     * Check if this message is a negative response, that is, if its response code is NXDOMAIN, or if its response code
+     * is NOERROR and it has no answers (NODATA). A NODATA response may also follow a CNAME chain, in which case its
+     * answer section only holds the chain, and its authority section holds the SOA record of the zone of the chain's
+     * end.
+     *
+     * @return true if this message is a negative response.
+     * @see <a href="https://tools.ietf.org/html/rfc2308#section-2">RFC 2308 § 2. Negative Responses</a>
+     */
+    public boolean isNegativeResponse() {
+        if (responseCode == RESPONSE_CODE.NX_DOMAIN) {
+            return true;
+        }
+        if (responseCode != RESPONSE_CODE.NO_ERROR) {
+            return false;
+        }
+        if (answerSection.isEmpty()) {
+            return true;
+        }
+        if (questions.isEmpty()) {
+            return false;
+        }
+        Question question = questions.get(0);
+
+        DnsName chainEnd = question.name;
+        // Every step of the chain needs its own CNAME record, hence the chain can not be longer than the answers.
+        for (int i = 0; i <= answerSection.size(); i++) {
+            DnsName target = null;
+            for (Record<? extends Data> record : answerSection) {
+                if (!record.name.equals(chainEnd)) {
+                    continue;
+                }
+                if (record.isAnswer(question)) {
+                    return false;
+                }
+                if (record.type == TYPE.CNAME) {
+                    target = ((CNAME) record.payloadData).target;
+                }
+            }
+            if (target == null) {
+                break;
+            }
+            chainEnd = target;
+        }
+
+        // Without the SOA record, the response could also be a partial answer, which ends at a CNAME record pointing
+        // into a zone the server is not authoritative for.
+        for (Record<? extends Data> record : authoritySection) {
+            if (record.type == TYPE.SOA && chainEnd.isChildOf(record.name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long negativeTtlCache = -2;
+
+    /**
+     * Get the TTL of the negative result of this message. As described in RFC 2308 § 5, this is the minimum of the TTL of
+     * the SOA record in the authority section and its MINIMUM field.
+     *
+     * @return the negative TTL in seconds, or <code>-1</code> if this message is no negative response or has no SOA
+     *         record in its authority section.
+     * @see <a href="https://tools.ietf.org/html/rfc2308#section-5">RFC 2308 § 5. Caching Negative Answers</a>
+     */
+    public long getNegativeTtl() {
+        if (negativeTtlCache >= -1) {
+            return negativeTtlCache;
+        }
+
+        long negativeTtl = -1;
+        if (isNegativeResponse()) {
+            for (Record<? extends Data> record : authoritySection) {
+                if (record.type != TYPE.SOA) continue;
+                long soaNegativeTtl = Math.min(record.ttl, ((SOA) record.payloadData).minimum);
+                if (negativeTtl < 0 || soaNegativeTtl < negativeTtl) {
+                    negativeTtl = soaNegativeTtl;
+                }
+            }
+        }
+        negativeTtlCache = negativeTtl;
+        return negativeTtlCache;
+    }
+
+    /**
+     * Get the time in seconds for which this message may be cached. This is the minimum TTL of the answers, which is
+     * further limited by the negative TTL for negative responses. Negative responses without SOA record and other
+     * responses without answers must not be cached, hence their TTL is zero.
+     *
+     * @return the TTL in seconds.
+     * @see #getAnswersMinTtl()
+     * @see #getNegativeTtl()
+     */
+    public long getCacheTtl() {
+        if (isNegativeResponse()) {
+            long negativeTtl = getNegativeTtl();
+            if (negativeTtl < 0) {
+                return 0;
+            }
+            return Math.min(getAnswersMinTtl(), negativeTtl);
+        }
+        if (answerSection.isEmpty()) {
+            return 0;
+        }
+        return getAnswersMinTtl();
+    }
+
     public Builder asBuilder() {
         return new Builder(this);
     }
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.dnsmessage;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.minidns.dnsmessage.DnsMessage.OPCODE;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsname.DnsNameParseContext;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+import org.minidns.record.Record.TYPE;
+
+/**
+ * A DNS message which is decoded on demand. Only the header is decoded when the message is constructed, the remaining
+ * message is merely scanned once to index the offsets of the questions and resource records. The questions and the
+ * records of each section are only materialized once they are accessed, so that, for example, the often large
+ * authority and additional sections of DNSSEC responses are never decoded if only the answer section is of interest.
+ * <p>
+ * The message keeps a reference to the data it was created from, which therefore must not be modified afterwards. Use
+ * {@link #toDnsMessage()} to obtain a fully decoded {@link DnsMessage}.
+ * </p>
+ */
+public class LazyDnsMessage {
+
+    /**
+     * The DNS message id.
+     */
+    public final int id;
+
+    /**
+     * The DNS message opcode.
+     */
+    public final OPCODE opcode;
+
+    /**
+     * The response code of this dns message.
+     */
+    public final RESPONSE_CODE responseCode;
+
+    /**
+     * The QR flag of the DNS message header.
+     *
+     * @see DnsMessage#qr
+     */
+    public final boolean qr;
+
+    /**
+     * True if this is a authorative response.
+     *
+     * @see DnsMessage#authoritativeAnswer
+     */
+    public final boolean authoritativeAnswer;
+
+    /**
+     * True if message is truncated. Then TCP should be used.
+     */
+    public final boolean truncated;
+
+    /**
+     * True if the server should recurse.
+     */
+    public final boolean recursionDesired;
+
+    /**
+     * True if recursion is possible.
+     */
+    public final boolean recursionAvailable;
+
+    /**
+     * True if the server regarded the response as authentic.
+     */
+    public final boolean authenticData;
+
+    /**
+     * True if the server should not perform DNSSEC validation before returning the result.
+     */
+    public final boolean checkingDisabled;
+
+    /**
+     * The receive timestamp. This should be used to evaluate TTLs.
+     */
+    public final long receiveTimestamp;
+
+    private final ByteBuffer data;
+
+    private final int[] questionOffsets;
+    private final int[] answerOffsets;
+    private final int[] authorityOffsets;
+    private final int[] additionalOffsets;
+
+    private volatile List<Question> questions;
+    private volatile List<Record<? extends Data>> answerSection;
+    private volatile List<Record<? extends Data>> authoritySection;
+    private volatile List<Record<? extends Data>> additionalSection;
+
+    /**
+     * Create a lazily decoded DNS message from a binary DNS message.
+     *
+     * @param data the DNS message data.
+     * @throws IOException if the message is truncated or malformed.
+     */
+    public LazyDnsMessage(byte[] data) throws IOException {
+        this(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a lazily decoded DNS message from a binary DNS message held in a buffer between the buffer's current
+     * position and its limit. The position of the given buffer is not modified.
+     *
+     * @param buffer the buffer holding the DNS message data.
+     * @throws IOException if the message is truncated or malformed.
+     */
+    public LazyDnsMessage(ByteBuffer buffer) throws IOException {
+        data = buffer.slice();
+        ByteBuffer cursor = data.duplicate();
+        try {
+            id = cursor.getShort() & 0xffff;
+            int header = cursor.getShort() & 0xffff;
+            qr = ((header >> 15) & 1) == 1;
+            opcode = OPCODE.getOpcode((header >> 11) & 0xf);
+            authoritativeAnswer = ((header >> 10) & 1) == 1;
+            truncated = ((header >> 9) & 1) == 1;
+            recursionDesired = ((header >> 8) & 1) == 1;
+            recursionAvailable = ((header >> 7) & 1) == 1;
+            authenticData = ((header >> 5) & 1) == 1;
+            checkingDisabled = ((header >> 4) & 1) == 1;
+            responseCode = RESPONSE_CODE.getResponseCode(header & 0xf);
+            receiveTimestamp = System.currentTimeMillis();
+            int questionCount = cursor.getShort() & 0xffff;
+            int answerCount = cursor.getShort() & 0xffff;
+            int nameserverCount = cursor.getShort() & 0xffff;
+            int additionalResourceRecordCount = cursor.getShort() & 0xffff;
+
+            questionOffsets = new int[questionCount];
+            for (int i = 0; i < questionCount; i++) {
+                questionOffsets[i] = cursor.position();
+                skipName(cursor);
+                // QTYPE and QCLASS.
+                skip(cursor, 4);
+            }
+            answerOffsets = indexRecords(cursor, answerCount);
+            authorityOffsets = indexRecords(cursor, nameserverCount);
+            additionalOffsets = indexRecords(cursor, additionalResourceRecordCount);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated or malformed DNS message", e);
+        }
+    }
+
+    private static int[] indexRecords(ByteBuffer cursor, int count) throws IOException {
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = cursor.position();
+            skipName(cursor);
+            // TYPE, CLASS and TTL.
+            skip(cursor, 8);
+            int payloadLength = cursor.getShort() & 0xffff;
+            skip(cursor, payloadLength);
+        }
+        return offsets;
+    }
+
+    private static void skipName(ByteBuffer cursor) throws IOException {
+        while (true) {
+            int c = cursor.get() & 0xff;
+            if (c == 0) {
+                return;
+            }
+            if ((c & 0xc0) == 0xc0) {
+                // A compression pointer always terminates the name.
+                skip(cursor, 1);
+                return;
+            }
+            skip(cursor, c);
+        }
+    }
+
+    private static void skip(ByteBuffer cursor, int count) throws IOException {
+        if (count > cursor.remaining()) {
+            throw new IOException("Truncated or malformed DNS message");
+        }
+        cursor.position(cursor.position() + count);
+    }
+
+    /**
+     * Get the questions of this message, decoding them if necessary.
+     *
+     * @return an unmodifiable list of the questions.
+     * @throws IOException if a question could not be decoded.
+     */
+    public List<Question> getQuestions() throws IOException {
+        List<Question> questions = this.questions;
+        if (questions == null) {
+            List<Question> decoded = new ArrayList<>(questionOffsets.length);
+            DnsNameParseContext context = new DnsNameParseContext();
+            for (int offset : questionOffsets) {
+                try {
+                    decoded.add(new Question(at(offset), context));
+                } catch (RuntimeException e) {
+                    throw new IOException("Malformed question in DNS message", e);
+                }
+            }
+            questions = Collections.unmodifiableList(decoded);
+            this.questions = questions;
+        }
+        return questions;
+    }
+
+    /**
+     * Get the first question of this message, or <code>null</code> if there is none.
+     *
+     * @return the first question or <code>null</code>.
+     * @throws IOException if the question could not be decoded.
+     */
+    public Question getQuestion() throws IOException {
+        if (questionOffsets.length == 0) {
+            return null;
+        }
+        List<Question> questions = this.questions;
+        if (questions != null) {
+            return questions.get(0);
+        }
+        try {
+            return new Question(at(questionOffsets[0]));
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed question in DNS message", e);
+        }
+    }
+
+    /**
+     * Get the records of the answer section, decoding them if necessary.
+     *
+     * @return an unmodifiable list of the answer section records.
+     * @throws IOException if a record could not be decoded.
+     */
+    public List<Record<? extends Data>> getAnswerSection() throws IOException {
+        List<Record<? extends Data>> answerSection = this.answerSection;
+        if (answerSection == null) {
+            answerSection = decodeRecords(answerOffsets);
+            this.answerSection = answerSection;
+        }
+        return answerSection;
+    }
+
+    /**
+     * Get the records of the authority section, decoding them if necessary.
+     *
+     * @return an unmodifiable list of the authority section records.
+     * @throws IOException if a record could not be decoded.
+     */
+    public List<Record<? extends Data>> getAuthoritySection() throws IOException {
+        List<Record<? extends Data>> authoritySection = this.authoritySection;
+        if (authoritySection == null) {
+            authoritySection = decodeRecords(authorityOffsets);
+            this.authoritySection = authoritySection;
+        }
+        return authoritySection;
+    }
+
+    /**
+     * Get the records of the additional section, decoding them if necessary.
+     *
+     * @return an unmodifiable list of the additional section records.
+     * @throws IOException if a record could not be decoded.
+     */
+    public List<Record<? extends Data>> getAdditionalSection() throws IOException {
+        List<Record<? extends Data>> additionalSection = this.additionalSection;
+        if (additionalSection == null) {
+            additionalSection = decodeRecords(additionalOffsets);
+            this.additionalSection = additionalSection;
+        }
+        return additionalSection;
+    }
+
+    public int getQuestionCount() {
+        return questionOffsets.length;
+    }
+
+    public int getAnswerCount() {
+        return answerOffsets.length;
+    }
+
+    public int getAuthorityCount() {
+        return authorityOffsets.length;
+    }
+
+    public int getAdditionalCount() {
+        return additionalOffsets.length;
+    }
+
+    /**
+     * Decode a single record of the answer section without decoding the rest of the section.
+     *
+     * @param index the index of the record in the answer section.
+     * @return the decoded record.
+     * @throws IOException if the record could not be decoded.
+     */
+    public Record<? extends Data> getAnswer(int index) throws IOException {
+        List<Record<? extends Data>> answerSection = this.answerSection;
+        if (answerSection != null) {
+            return answerSection.get(index);
+        }
+        return decodeRecord(answerOffsets[index], null);
+    }
+
+    /**
+     * Get the type of a record in the answer section without decoding the record.
+     *
+     * @param index the index of the record in the answer section.
+     * @return the type of the record.
+     */
+    public TYPE getAnswerType(int index) {
+        ByteBuffer cursor = at(answerOffsets[index]);
+        try {
+            skipName(cursor);
+        } catch (IOException e) {
+            // Can not happen, the record was already successfully skipped while indexing the message.
+            throw new AssertionError(e);
+        }
+        return TYPE.getType(cursor.getShort() & 0xffff);
+    }
+
+    /**
+     * Decode only the records of the answer section which are of the given type.
+     *
+     * @param type the type of the records to decode.
+     * @return the records of the given type found in the answer section.
+     * @throws IOException if a record could not be decoded.
+     */
+    public List<Record<? extends Data>> getAnswersOfType(TYPE type) throws IOException {
+        List<Record<? extends Data>> answerSection = this.answerSection;
+        List<Record<? extends Data>> result = new ArrayList<>(answerOffsets.length);
+        DnsNameParseContext context = new DnsNameParseContext();
+        for (int i = 0; i < answerOffsets.length; i++) {
+            if (answerSection != null) {
+                Record<? extends Data> record = answerSection.get(i);
+                if (record.type == type) {
+                    result.add(record);
+                }
+            } else if (getAnswerType(i) == type) {
+                result.add(decodeRecord(answerOffsets[i], context));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fully decode this message.
+     *
+     * @return the fully decoded DNS message.
+     * @throws IOException if a question or record could not be decoded.
+     */
+    public DnsMessage toDnsMessage() throws IOException {
+        return DnsMessage.builder()
+                .setId(id)
+                .setOpcode(opcode)
+                .setResponseCode(responseCode)
+                .setQrFlag(qr)
+                .setAuthoritativeAnswer(authoritativeAnswer)
+                .setTruncated(truncated)
+                .setRecursionDesired(recursionDesired)
+                .setRecursionAvailable(recursionAvailable)
+                .setAuthenticData(authenticData)
+                .setCheckingDisabled(checkingDisabled)
+                .setReceiveTimestamp(receiveTimestamp)
+                .setQuestions(getQuestions())
+                .setAnswers(getAnswerSection())
+                .setNameserverRecords(getAuthoritySection())
+                .setAdditionalResourceRecords(getAdditionalSection())
+                .build();
+    }
+
+    private List<Record<? extends Data>> decodeRecords(int[] offsets) throws IOException {
+        List<Record<? extends Data>> records = new ArrayList<>(offsets.length);
+        // Share the parse context within the section, as the records of a section typically have the same owner.
+        DnsNameParseContext context = new DnsNameParseContext();
+        for (int offset : offsets) {
+            records.add(decodeRecord(offset, context));
+        }
+        return Collections.unmodifiableList(records);
+    }
+
+    private Record<? extends Data> decodeRecord(int offset, DnsNameParseContext context) throws IOException {
+        try {
+            return Record.parse(at(offset), context);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed record in DNS message", e);
+        }
+    }
+
+    private ByteBuffer at(int offset) {
+        ByteBuffer cursor = data.duplicate();
+        cursor.position(offset);
+        return cursor;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return toDnsMessage().toString();
+        } catch (IOException e) {
+            return "LazyDnsMessage (malformed): " + e.getMessage();
+        }
+    }
+}
@@ -14,9 +14,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameCompressor;
+import org.minidns.dnsname.DnsNameParseContext;
 import org.minidns.record.Record.CLASS;
 import org.minidns.record.Record.TYPE;
 
@@ -122,6 +125,28 @@ public class Question {
         unicastQuery = false;
     }
 
+    /**
+     * Parse a question from the current position of the buffer and move the buffer's position past it.
+     *
+     * @param buffer The buffer holding the whole DNS message (for dns name references).
+     */
+    public Question(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * Parse a question from the current position of the buffer and move the buffer's position past it.
+     *
+     * @param buffer The buffer holding the whole DNS message (for dns name references).
+     * @param context The parse context used for all names of the DNS message, or <code>null</code>.
+     */
+    public Question(ByteBuffer buffer, DnsNameParseContext context) {
+        name = DnsName.parse(buffer, context);
+        type = TYPE.getType(buffer.getShort() & 0xffff);
+        clazz = CLASS.getClass(buffer.getShort() & 0xffff);
+        unicastQuery = false;
+    }
+
     /**
      * Generate a binary paket for this dns question.
      * @return The dns question.
@@ -145,6 +170,19 @@ public class Question {
         return byteArray;
     }
 
+    /**
+     * Write this question to the given stream, compressing its name using the given compressor.
+     *
+     * @param dos the stream to write to.
+     * @param compressor the compressor to use, or <code>null</code> to write the name uncompressed.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void writeToStream(DataOutputStream dos, DnsNameCompressor compressor) throws IOException {
+        name.writeToStream(dos, compressor);
+        dos.writeShort(type.getValue());
+        dos.writeShort(clazz.getValue() | (unicastQuery ? (1 << 15) : 0));
+    }
+
     @Override
     public int hashCode() {
         return Arrays.hashCode(toByteArray());
@@ -12,11 +12,12 @@ package org.minidns.dnsname;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Locale;
 
 import org.minidns.dnslabel.DnsLabel;
@@ -70,6 +71,12 @@ public class DnsName implements CharSequence, Serializable, Comparable<DnsName>
      */
     public static boolean VALIDATE = true;
 
+    /**
+     * The pool used to intern the DNS names created by parsing and by the {@code from(...)} methods, or
+     * <code>null</code> if DNS names should not be interned, which is the default.
+     */
+    private static volatile DnsNamePool namePool;
+
     /**
      * The DNS name in ASCII Compatible Encoding (ACE).
      */
@@ -181,6 +188,42 @@ public class DnsName implements CharSequence, Serializable, Comparable<DnsName>
         os.write(bytes);
     }
 
+    /**
+     * Write this DNS name to the given stream, compressing it using the given compressor. The longest suffix of this
+     * name which was already written through the compressor is replaced by a pointer, and all suffixes written in full
+     * are added to the compression table.
+     *
+     * @param dos the stream to write to.
+     * @param compressor the compressor to use, or <code>null</code> to write the name uncompressed.
+     * @throws IOException if an I/O error occurs.
+     * @see DnsNameCompressor
+     */
+    public void writeToStream(DataOutputStream dos, DnsNameCompressor compressor) throws IOException {
+        if (compressor == null) {
+            writeToStream(dos);
+            return;
+        }
+
+        setLabelsIfRequired();
+
+        // The labels are stored in reverse order, i.e. 'org, example, foo' for 'foo.example.org'. The suffix starting
+        // with labels[i] therefore consists of labels[i] to labels[0] and is the tail of 'ace' of length suffixLength.
+        int suffixLength = ace.length();
+        for (int i = labels.length - 1; i >= 0; i--) {
+            String suffix = ace.substring(ace.length() - suffixLength);
+            Integer offset = compressor.lookup(suffix);
+            if (offset != null) {
+                dos.writeShort(0xc000 | offset);
+                return;
+            }
+            compressor.remember(suffix, compressor.offsetOf(dos));
+            labels[i].writeToStream(dos);
+            // Skip the label and the following label separator.
+            suffixLength -= labels[i].length() + 1;
+        }
+        dos.writeByte(0);
+    }
+
     /**
      * Serialize a domain name under IDN rules.
      *
@@ -331,12 +374,31 @@ public class DnsName implements CharSequence, Serializable, Comparable<DnsName>
         return ace;
     }
 
+    /**
+     * Set the pool used to intern the DNS names created by parsing and by the {@code from(...)} methods. Names created
+     * before are not interned retroactively.
+     *
+     * @param pool the pool, or <code>null</code> to not intern DNS names.
+     */
+    public static void setPool(DnsNamePool pool) {
+        namePool = pool;
+    }
+
+    /**
+     * Get the pool used to intern DNS names.
+     *
+     * @return the pool, or <code>null</code> if DNS names are not interned.
+     */
+    public static DnsNamePool getPool() {
+        return namePool;
+    }
+
     public static DnsName from(CharSequence name) {
         return from(name.toString());
     }
 
     public static DnsName from(String name) {
-        return new DnsName(name, false);
+        return intern(new DnsName(name, false));
     }
 
     /**
@@ -358,7 +420,7 @@ public class DnsName implements CharSequence, Serializable, Comparable<DnsName>
         DnsLabel[] rawLabels = new DnsLabel[child.rawLabels.length + parent.rawLabels.length];
         System.arraycopy(parent.rawLabels, 0, rawLabels, 0, parent.rawLabels.length);
         System.arraycopy(child.rawLabels, 0, rawLabels, parent.rawLabels.length, child.rawLabels.length);
-        return new DnsName(rawLabels, true);
+        return intern(new DnsName(rawLabels, true));
     }
 
     public static DnsName from(DnsLabel child, DnsName parent) {
@@ -366,8 +428,8 @@ public class DnsName implements CharSequence, Serializable, Comparable<DnsName>
 
         DnsLabel[] rawLabels = new DnsLabel[parent.rawLabels.length + 1];
         System.arraycopy(parent.rawLabels, 0, rawLabels, 0, parent.rawLabels.length);
-        rawLabels[rawLabels.length] = child;
-        return new DnsName(rawLabels, true);
+        rawLabels[parent.rawLabels.length] = child;
+        return intern(new DnsName(rawLabels, true));
     }
 
     public static DnsName from(DnsName... nameComponents) {
@@ -385,13 +447,13 @@ public class DnsName implements CharSequence, Serializable, Comparable<DnsName>
             destLabelPos += component.rawLabels.length;
         }
 
-        return new DnsName(rawLabels, true);
+        return intern(new DnsName(rawLabels, true));
     }
 
     public static DnsName from(String[] parts) {
         DnsLabel[] rawLabels = DnsLabel.from(parts);
 
-        return new DnsName(rawLabels, true);
+        return intern(new DnsName(rawLabels, true));
     }
 
     /**
@@ -408,9 +470,9 @@ public class DnsName implements CharSequence, Serializable, Comparable<DnsName>
         int c = dis.readUnsignedByte();
         if ((c & 0xc0) == 0xc0) {
             c = ((c & 0x3f) << 8) + dis.readUnsignedByte();
-            HashSet<Integer> jumps = new HashSet<Integer>();
-            jumps.add(c);
-            return parse(data, c, jumps);
+            DnsNameParseContext context = new DnsNameParseContext();
+            context.jump(c);
+            return parse(ByteBuffer.wrap(data), c, context);
         }
         if (c == 0) {
             return DnsName.ROOT;
@@ -419,43 +481,145 @@ public class DnsName implements CharSequence, Serializable, Comparable<DnsName>
         dis.readFully(b);
 
         String childLabelString = new String(b);
-        DnsName child = new DnsName(childLabelString);
 
         DnsName parent = parse(dis, data);
-        return DnsName.from(child, parent);
+        return fromParsedLabel(childLabelString, parent);
     }
 
     /**
-     * Parse a domain name starting at the given offset.
+     * Parse a domain name starting at the current position of the buffer and moving the buffer's position past this
+     * domain name (even if cross references occure). Compression pointers are resolved by absolute offset, hence index
+     * 0 of the buffer must be the first byte of the DNS message.
      *
-     * @param data   The raw data.
-     * @param offset The offset.
-     * @param jumps  The list of jumps (by now).
-     * @return The parsed domain name.
+     * @param buffer the buffer holding the DNS message.
+     * @return the domain name.
+     */
+    public static DnsName parse(ByteBuffer buffer) {
+        return parse(buffer, null);
+    }
+
+    /**
+     * Parse a domain name starting at the current position of the buffer and moving the buffer's position past this
+     * domain name (even if cross references occure). Compression pointers are resolved by absolute offset, hence index
+     * 0 of the buffer must be the first byte of the DNS message.
+     * <p>
+     * All names of a message should be parsed using the same context, which allows compression pointers to already
+     * decoded names to be resolved without decoding them again.
+     * </p>
+     *
+     * @param buffer the buffer holding the DNS message.
+     * @param context the parse context of the DNS message, or <code>null</code>.
+     * @return the domain name.
      * @throws IllegalStateException on cycles.
      */
-    private static DnsName parse(byte data[], int offset, HashSet<Integer> jumps)
-            throws IllegalStateException {
-        int c = data[offset] & 0xff;
-        if ((c & 0xc0) == 0xc0) {
-            c = ((c & 0x3f) << 8) + (data[offset + 1] & 0xff);
-            if (jumps.contains(c)) {
-                throw new IllegalStateException("Cyclic offsets detected.");
+    public static DnsName parse(ByteBuffer buffer, DnsNameParseContext context) {
+        if (context == null) {
+            context = new DnsNameParseContext();
+        }
+        context.startName();
+        DnsName name = parse(buffer, buffer.position(), context);
+
+        // Move the position past the name as it is encoded at the current position, i.e. up to and including either
+        // the terminating zero octet or the first compression pointer.
+        int c;
+        while ((c = buffer.get() & 0xff) != 0) {
+            if ((c & 0xc0) == 0xc0) {
+                buffer.get();
+                break;
             }
-            jumps.add(c);
-            return parse(data, c, jumps);
+            buffer.position(buffer.position() + c);
         }
-        if (c == 0) {
+        return name;
+    }
+
+    /**
+     * Parse a domain name starting at the given absolute offset of the buffer. This does not modify the buffer's
+     * position.
+     *
+     * @param buffer the buffer holding the DNS message.
+     * @param offset the offset.
+     * @param context the parse context of the DNS message.
+     * @return the parsed domain name.
+     * @throws IllegalStateException on cycles.
+     */
+    private static DnsName parse(ByteBuffer buffer, int offset, DnsNameParseContext context)
+            throws IllegalStateException {
+        DnsName name = context.get(offset);
+        if (name != null) {
+            return name;
+        }
+
+        int c = buffer.get(offset) & 0xff;
+        if ((c & 0xc0) == 0xc0) {
+            int target = ((c & 0x3f) << 8) + (buffer.get(offset + 1) & 0xff);
+            context.jump(target);
+            name = parse(buffer, target, context);
+        } else if (c == 0) {
             return DnsName.ROOT;
+        } else {
+            context.label();
+            String childLabelString = readLabel(buffer, offset + 1, c);
+            DnsName parent = parse(buffer, offset + 1 + c, context);
+            name = fromParsedLabel(childLabelString, parent);
         }
 
-        String childLabelString = new String(data, offset + 1, c);
-        DnsName child = new DnsName(childLabelString);
+        context.put(offset, name);
+        return name;
+    }
+
+    private static DnsName fromParsedLabel(String childLabelString, DnsName parent) {
+        DnsNamePool pool = namePool;
+        if (pool != null) {
+            // Look up the resulting name before creating it, so that names already in the pool cause no further
+            // allocations besides their raw ACE.
+            String rawAce = parent.isRootLabel() ? childLabelString : childLabelString + '.' + parent.rawAce;
+            DnsName pooled = pool.get(rawAce);
+            if (pooled != null) {
+                return pooled;
+            }
+        }
 
-        DnsName parent = parse(data, offset + 1 + c, jumps);
+        DnsName child = new DnsName(childLabelString);
         return DnsName.from(child, parent);
     }
 
+    private static DnsName intern(DnsName name) {
+        DnsNamePool pool = namePool;
+        if (pool == null) {
+            return name;
+        }
+        return pool.intern(name);
+    }
+
+    /**
+     * Replace the labels of this name by their interned instances. Must only be invoked before this name is published.
+     *
+     * @param pool the pool to intern the labels with.
+     */
+    void internLabels(DnsNamePool pool) {
+        setLabelsIfRequired();
+        for (int i = 0; i < labels.length; i++) {
+            rawLabels[i] = pool.intern(rawLabels[i]);
+            labels[i] = pool.intern(labels[i]);
+        }
+    }
+
+    private static String readLabel(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            // Fast path for heap buffers: Decode the label straight out of the backing array.
+            if (offset + length > buffer.limit()) {
+                throw new IndexOutOfBoundsException();
+            }
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+
+        byte[] label = new byte[length];
+        for (int i = 0; i < length; i++) {
+            label[i] = buffer.get(offset + i);
+        }
+        return new String(label);
+    }
+
     @Override
     public int compareTo(DnsName other) {
         return ace.compareTo(other.ace);
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.dnsname;
+
+import java.io.DataOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compression table used to write DNS names compressed as described in RFC 1035 § 4.1.4. The table remembers the
+ * message offset of every name suffix written through it, so that later occurrences of the same suffix can be
+ * replaced by a pointer.
+ * <p>
+ * The message offset of a written name is determined by the {@link DataOutputStream#size()} of the stream the name is
+ * written to, plus the base offset of the compressor. Hence the stream must have been created at the position given
+ * by the base offset, usually the start of the DNS message. Use {@link #at(int)} to obtain a compressor sharing the
+ * same table for a stream starting at a different position of the message, e.g. for RDATA which is written into a
+ * separate buffer in order to determine its length.
+ * </p>
+ *
+ * @see DnsName#writeToStream(DataOutputStream, DnsNameCompressor)
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-4.1.4">RFC 1035 § 4.1.4. Message compression</a>
+ */
+public final class DnsNameCompressor {
+
+    /**
+     * Pointers are 14 bit values, names written beyond this offset can not be pointed to.
+     */
+    static final int MAX_POINTER_OFFSET = 0x3fff;
+
+    private final Map<String, Integer> offsets;
+
+    private final int baseOffset;
+
+    /**
+     * Create a new compressor with an empty compression table for a stream starting at the beginning of the DNS
+     * message.
+     */
+    public DnsNameCompressor() {
+        this(new HashMap<String, Integer>(), 0);
+    }
+
+    private DnsNameCompressor(Map<String, Integer> offsets, int baseOffset) {
+        this.offsets = offsets;
+        this.baseOffset = baseOffset;
+    }
+
+    /**
+     * Get a compressor sharing the compression table of this compressor for a stream which starts at the given offset
+     * of the DNS message.
+     *
+     * @param baseOffset the offset within the DNS message where the stream starts.
+     * @return a compressor sharing the compression table of this compressor.
+     */
+    public DnsNameCompressor at(int baseOffset) {
+        return new DnsNameCompressor(offsets, baseOffset);
+    }
+
+    /**
+     * Get the offset within the DNS message the next byte written to the given stream will have.
+     *
+     * @param dos the stream the DNS message is written to.
+     * @return the current offset within the DNS message.
+     */
+    public int offsetOf(DataOutputStream dos) {
+        return baseOffset + dos.size();
+    }
+
+    Integer lookup(String suffix) {
+        return offsets.get(suffix);
+    }
+
+    void remember(String suffix, int offset) {
+        if (offset > MAX_POINTER_OFFSET) {
+            return;
+        }
+        offsets.put(suffix, offset);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.dnsname;
+
+import java.util.Arrays;
+
+/**
+ * The state used to parse the DNS names of a single DNS message. It memoizes the DNS name decoded at every offset of
+ * the message, so that compression pointers to a name, or to a suffix of a name, which was already decoded are
+ * resolved without decoding the name again. Hence the names of a message are decoded in linear time, even if, for
+ * example, a referral response contains many NS records and glue records pointing to the same zone name.
+ * <p>
+ * A context must only be used for a single message and is not thread safe.
+ * </p>
+ *
+ * @see DnsName#parse(java.nio.ByteBuffer, DnsNameParseContext)
+ */
+public final class DnsNameParseContext {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The keys of the open addressing hash table, which are the message offsets plus one, so that 0 marks an empty
+     * slot.
+     */
+    private int[] offsets;
+
+    private DnsName[] names;
+
+    private int size;
+
+    /**
+     * The targets of the compression pointers followed while decoding the current name.
+     */
+    private int[] jumps;
+
+    private int jumpCount;
+
+    private int labelCount;
+
+    DnsName get(int offset) {
+        if (offsets == null) {
+            return null;
+        }
+        int mask = offsets.length - 1;
+        int key = offset + 1;
+        for (int i = hash(offset) & mask; offsets[i] != 0; i = (i + 1) & mask) {
+            if (offsets[i] == key) {
+                return names[i];
+            }
+        }
+        return null;
+    }
+
+    void put(int offset, DnsName name) {
+        if (offsets == null) {
+            offsets = new int[INITIAL_CAPACITY];
+            names = new DnsName[INITIAL_CAPACITY];
+        } else if ((size + 1) * 4 > offsets.length * 3) {
+            grow();
+        }
+        insert(offsets, names, offset + 1, name);
+        size++;
+    }
+
+    /**
+     * Start decoding a new name, which resets the loop and label count detection.
+     */
+    void startName() {
+        jumpCount = 0;
+        labelCount = 0;
+    }
+
+    /**
+     * Record that a compression pointer to the given offset is followed.
+     *
+     * @param target the target offset of the compression pointer.
+     * @throws IllegalStateException if the pointer was already followed while decoding the current name.
+     */
+    void jump(int target) {
+        for (int i = 0; i < jumpCount; i++) {
+            if (jumps[i] == target) {
+                throw new IllegalStateException("Cyclic offsets detected.");
+            }
+        }
+        if (jumps == null) {
+            jumps = new int[4];
+        } else if (jumpCount == jumps.length) {
+            if (jumpCount >= DnsName.MAX_LABELS) {
+                throw new IllegalStateException("Too many compression pointers.");
+            }
+            jumps = Arrays.copyOf(jumps, jumpCount * 2);
+        }
+        jumps[jumpCount++] = target;
+    }
+
+    /**
+     * Record that a label is decoded.
+     *
+     * @throws IllegalStateException if the current name has more than {@link DnsName#MAX_LABELS} labels.
+     */
+    void label() {
+        if (++labelCount > DnsName.MAX_LABELS) {
+            throw new IllegalStateException("Too many labels.");
+        }
+    }
+
+    private void grow() {
+        int[] newOffsets = new int[offsets.length * 2];
+        DnsName[] newNames = new DnsName[names.length * 2];
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] != 0) {
+                insert(newOffsets, newNames, offsets[i], names[i]);
+            }
+        }
+        offsets = newOffsets;
+        names = newNames;
+    }
+
+    private static void insert(int[] offsets, DnsName[] names, int key, DnsName name) {
+        int mask = offsets.length - 1;
+        int i = hash(key - 1) & mask;
+        while (offsets[i] != 0 && offsets[i] != key) {
+            i = (i + 1) & mask;
+        }
+        offsets[i] = key;
+        names[i] = name;
+    }
+
+    private static int hash(int offset) {
+        // Offsets of names are often close to each other, spread them over the table.
+        return offset * 0x9e3779b1 >>> 16;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.dnsname;
+
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import org.minidns.dnslabel.DnsLabel;
+
+/**
+ * A size-capped pool used to intern {@link DnsName} and {@link DnsLabel} instances. Once installed via
+ * {@link DnsName#setPool(DnsNamePool)}, names created by parsing DNS messages or by the {@code DnsName.from(...)} methods
+ * are deduplicated, so that equal names and labels, e.g. of a popular zone which is referenced by many cached records,
+ * share a single instance.
+ * <p>
+ * Names are interned by their raw ACE, so that the original case of the name is preserved. The pool is split into
+ * stripes, each guarded by its own lock, so that threads parsing DNS messages concurrently rarely contend. If a stripe
+ * reaches its share of the capacity, its least recently used entries are evicted. Evicted instances remain valid, they
+ * are just no longer shared with names created afterwards.
+ * </p>
+ */
+public final class DnsNamePool {
+
+    private static final int MAX_STRIPES = 16;
+
+    private final int capacity;
+
+    private final Stripes<DnsName> names;
+
+    private final Stripes<DnsLabel> labels;
+
+    /**
+     * Create a new pool.
+     *
+     * @param capacity the maximum number of names, and the maximum number of labels, held by this pool.
+     */
+    public DnsNamePool(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity must not be negative");
+        }
+        this.capacity = capacity;
+        names = new Stripes<>(capacity);
+        labels = new Stripes<>(capacity);
+    }
+
+    /**
+     * Intern the given DNS name. If the pool already holds a name with the same raw ACE, that instance is returned.
+     * Otherwise the labels of the given name are interned and the name is added to the pool.
+     *
+     * @param name the DNS name to intern.
+     * @return the interned DNS name.
+     */
+    public DnsName intern(DnsName name) {
+        DnsName pooled = get(name.getRawAce());
+        if (pooled != null) {
+            return pooled;
+        }
+
+        name.internLabels(this);
+
+        return names.putIfAbsent(name.getRawAce(), name);
+    }
+
+    /**
+     * Intern the given DNS label.
+     *
+     * @param label the DNS label to intern.
+     * @return the interned DNS label.
+     */
+    public DnsLabel intern(DnsLabel label) {
+        return labels.putIfAbsent(label.label, label);
+    }
+
+    DnsName get(String rawAce) {
+        return names.get(rawAce);
+    }
+
+    public int getNameCount() {
+        return names.size();
+    }
+
+    public int getLabelCount() {
+        return labels.size();
+    }
+
+    public void clear() {
+        names.clear();
+        labels.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "DnsNamePool{names=" + getNameCount() + "/" + capacity + ", labels=" + getLabelCount() + "/" + capacity
+                + "}";
+    }
+
+    /**
+     * Access ordered maps, each holding the entries of the keys with the same hash modulo the number of stripes.
+     *
+     * @param <V> the type of the values.
+     */
+    private static final class Stripes<V> {
+
+        private final Stripe<V>[] stripes;
+
+        @SuppressWarnings("unchecked")
+        private Stripes(int capacity) {
+            int stripeCount = Math.max(1, Math.min(capacity, MAX_STRIPES));
+            stripes = (Stripe<V>[]) new Stripe<?>[stripeCount];
+            for (int i = 0; i < stripeCount; i++) {
+                // Distribute the capacity, so that the stripes do not hold more than the capacity in total.
+                int stripeCapacity = capacity / stripeCount + (i < capacity % stripeCount ? 1 : 0);
+                stripes[i] = new Stripe<>(stripeCapacity);
+            }
+        }
+
+        private Stripe<V> stripeFor(String key) {
+            int hash = key.hashCode();
+            // Spread the higher bits, as the hash codes of strings with a common suffix mostly differ in those.
+            hash ^= hash >>> 16;
+            return stripes[(hash & 0x7fffffff) % stripes.length];
+        }
+
+        private V get(String key) {
+            Stripe<V> stripe = stripeFor(key);
+            synchronized (stripe) {
+                return stripe.get(key);
+            }
+        }
+
+        private V putIfAbsent(String key, V value) {
+            Stripe<V> stripe = stripeFor(key);
+            synchronized (stripe) {
+                V pooled = stripe.get(key);
+                if (pooled != null) {
+                    return pooled;
+                }
+                stripe.put(key, value);
+            }
+            return value;
+        }
+
+        private int size() {
+            int size = 0;
+            for (Stripe<V> stripe : stripes) {
+                synchronized (stripe) {
+                    size += stripe.size();
+                }
+            }
+            return size;
+        }
+
+        private void clear() {
+            for (Stripe<V> stripe : stripes) {
+                synchronized (stripe) {
+                    stripe.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * A single stripe, evicting its least recently used entry once it exceeds its capacity. Guarded by its own monitor.
+     *
+     * @param <V> the type of the values.
+     */
+    private static final class Stripe<V> extends LinkedHashMap<String, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Stripe(int capacity) {
+            // Same as in LruCache: Initial capacity based on the maximum size, with a load factor of 0.75.
+            super(Math.min(capacity, 1024), 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, V> eldest) {
+            return size() > capacity;
+        }
+    }
+}
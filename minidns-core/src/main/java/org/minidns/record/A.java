@@ -13,6 +13,7 @@ package org.minidns.record;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Inet4Address;
+import java.nio.ByteBuffer;
 
 import org.minidns.record.Record.TYPE;
 import org.minidns.util.InetAddressUtil;
@@ -57,6 +58,12 @@ public class A extends InternetAddressRR {
         return new A(ip);
     }
 
+    public static A parse(ByteBuffer buffer) {
+        byte[] ip = new byte[4];
+        buffer.get(ip);
+        return new A(ip);
+    }
+
     @Override
     public String toString() {
         return Integer.toString(ip[0] & 0xff) + "." +
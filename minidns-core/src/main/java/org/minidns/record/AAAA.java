@@ -13,6 +13,7 @@ package org.minidns.record;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Inet6Address;
+import java.nio.ByteBuffer;
 
 import org.minidns.record.Record.TYPE;
 import org.minidns.util.InetAddressUtil;
@@ -50,6 +51,12 @@ public class AAAA extends InternetAddressRR {
         return new AAAA(ip);
     }
 
+    public static AAAA parse(ByteBuffer buffer) {
+        byte[] ip = new byte[16];
+        buffer.get(ip);
+        return new AAAA(ip);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
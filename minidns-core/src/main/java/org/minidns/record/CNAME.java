@@ -11,10 +11,12 @@
 package org.minidns.record;
 
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameParseContext;
 import org.minidns.record.Record.TYPE;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * CNAME payload (pointer to another domain / address).
@@ -26,6 +28,11 @@ public class CNAME extends RRWithTarget {
         return new CNAME(target);
     }
 
+    public static CNAME parse(ByteBuffer buffer, DnsNameParseContext context) {
+        DnsName target = DnsName.parse(buffer, context);
+        return new CNAME(target);
+    }
+
     public CNAME(String target) {
         this(DnsName.from(target));
     }
@@ -12,6 +12,7 @@ package org.minidns.record;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.minidns.constants.DnssecConstants.DigestAlgorithm;
 import org.minidns.constants.DnssecConstants.SignatureAlgorithm;
@@ -28,6 +29,11 @@ public class DLV extends DelegatingDnssecRR {
         return new DLV(parsedData.keyTag, parsedData.algorithm, parsedData.digestType, parsedData.digest);
     }
 
+    public static DLV parse(ByteBuffer buffer, int length) {
+        SharedData parsedData = DelegatingDnssecRR.parseSharedData(buffer, length);
+        return new DLV(parsedData.keyTag, parsedData.algorithm, parsedData.digestType, parsedData.digest);
+    }
+
     public DLV(int keyTag, byte algorithm, byte digestType, byte[] digest) {
         super(keyTag, algorithm, digestType, digest);
     }
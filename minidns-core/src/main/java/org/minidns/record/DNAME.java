@@ -11,10 +11,14 @@
 package org.minidns.record;
 
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameParseContext;
+import org.minidns.dnsname.DnsNameCompressor;
 import org.minidns.record.Record.TYPE;
 
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A DNAME resource record.
@@ -28,6 +32,11 @@ public class DNAME extends RRWithTarget {
         return new DNAME(target);
     }
 
+    public static DNAME parse(ByteBuffer buffer, DnsNameParseContext context) {
+        DnsName target = DnsName.parse(buffer, context);
+        return new DNAME(target);
+    }
+
     public DNAME(String target) {
         this(DnsName.from(target));
     }
@@ -41,4 +50,12 @@ public class DNAME extends RRWithTarget {
         return TYPE.DNAME;
     }
 
+    /**
+     * The target of a DNAME record must not be compressed, see RFC 6672 § 2.5.
+     */
+    @Override
+    protected void serialize(DataOutputStream dos, DnsNameCompressor compressor) throws IOException {
+        serialize(dos);
+    }
+
 }
@@ -19,6 +19,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -90,6 +91,15 @@ public class DNSKEY extends Data {
         return new DNSKEY(flags, protocol, algorithm, key);
     }
 
+    public static DNSKEY parse(ByteBuffer buffer, int length) {
+        short flags = buffer.getShort();
+        byte protocol = buffer.get();
+        byte algorithm = buffer.get();
+        byte[] key = new byte[length - 4];
+        buffer.get(key);
+        return new DNSKEY(flags, protocol, algorithm, key);
+    }
+
     private DNSKEY(short flags, byte protocol, SignatureAlgorithm algorithm, byte algorithmByte, byte[] key) {
         this.flags = flags;
         this.protocol = protocol;
@@ -16,6 +16,7 @@ import org.minidns.record.Record.TYPE;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 /**
  * DS (Delegation Signer) record payload.
  *
@@ -28,6 +29,11 @@ public class DS extends DelegatingDnssecRR {
         return new DS(parsedData.keyTag, parsedData.algorithm, parsedData.digestType, parsedData.digest);
     }
 
+    public static DS parse(ByteBuffer buffer, int length) {
+        SharedData parsedData = DelegatingDnssecRR.parseSharedData(buffer, length);
+        return new DS(parsedData.keyTag, parsedData.algorithm, parsedData.digestType, parsedData.digest);
+    }
+
     public DS(int keyTag, byte algorithm, byte digestType, byte[] digest) {
         super(keyTag, algorithm, digestType, digest);
     }
@@ -16,6 +16,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
 
+import org.minidns.dnsname.DnsNameCompressor;
 import org.minidns.record.Record.TYPE;
 
 /**
@@ -37,6 +38,18 @@ public abstract class Data {
      */
     protected abstract void serialize(DataOutputStream dos) throws IOException;
 
+    /**
+     * Serialize this payload, compressing the contained DNS names using the given compressor. Only record types whose
+     * names may be compressed as per RFC 3597 § 4 override this method, all other types are serialized uncompressed.
+     *
+     * @param dos the output stream to serialize to.
+     * @param compressor the compressor used for the DNS names in the payload.
+     * @throws IOException if an I/O error occurs.
+     */
+    protected void serialize(DataOutputStream dos, DnsNameCompressor compressor) throws IOException {
+        serialize(dos);
+    }
+
     private byte[] bytes;
 
     private final void setBytes() {
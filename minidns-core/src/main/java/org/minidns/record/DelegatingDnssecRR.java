@@ -14,6 +14,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.minidns.constants.DnssecConstants.DigestAlgorithm;
@@ -73,6 +74,15 @@ public abstract class DelegatingDnssecRR extends Data {
         return new SharedData(keyTag, algorithm, digestType, digest);
     }
 
+    protected static SharedData parseSharedData(ByteBuffer buffer, int length) {
+        int keyTag = buffer.getShort() & 0xffff;
+        byte algorithm = buffer.get();
+        byte digestType = buffer.get();
+        byte[] digest = new byte[length - 4];
+        buffer.get(digest);
+        return new SharedData(keyTag, algorithm, digestType, digest);
+    }
+
     protected static class SharedData {
         protected final int keyTag;
         protected final byte algorithm;
@@ -13,8 +13,11 @@ package org.minidns.record;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameCompressor;
+import org.minidns.dnsname.DnsNameParseContext;
 import org.minidns.record.Record.TYPE;
 
 /**
@@ -48,6 +51,12 @@ public class MX extends Data {
         return new MX(priority, name);
     }
 
+    public static MX parse(ByteBuffer buffer, DnsNameParseContext context) {
+        int priority = buffer.getShort() & 0xffff;
+        DnsName name = DnsName.parse(buffer, context);
+        return new MX(priority, name);
+    }
+
     public MX(int priority, String name) {
         this(priority, DnsName.from(name));
     }
@@ -60,8 +69,13 @@ public class MX extends Data {
 
     @Override
     public void serialize(DataOutputStream dos) throws IOException {
+        serialize(dos, null);
+    }
+
+    @Override
+    protected void serialize(DataOutputStream dos, DnsNameCompressor compressor) throws IOException {
         dos.writeShort(priority);
-        target.writeToStream(dos);
+        target.writeToStream(dos, compressor);
     }
 
     @Override
@@ -12,8 +12,10 @@ package org.minidns.record;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameParseContext;
 import org.minidns.record.Record.TYPE;
 
 /**
@@ -26,6 +28,11 @@ public class NS extends RRWithTarget {
         return new NS(target);
     }
 
+    public static NS parse(ByteBuffer buffer, DnsNameParseContext context) {
+        DnsName target = DnsName.parse(buffer, context);
+        return new NS(target);
+    }
+
     public NS(DnsName name) {
         super(name);
     }
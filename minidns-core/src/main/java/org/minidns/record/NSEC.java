@@ -11,6 +11,7 @@
 package org.minidns.record;
 
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameParseContext;
 import org.minidns.record.Record.TYPE;
 
 import java.io.ByteArrayInputStream;
@@ -18,6 +19,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -52,6 +54,16 @@ public class NSEC extends Data {
         return new NSEC(next, types);
     }
 
+    public static NSEC parse(ByteBuffer buffer, int length, DnsNameParseContext context) throws IOException {
+        final int start = buffer.position();
+        DnsName next = DnsName.parse(buffer, context);
+
+        byte[] typeBitmap = new byte[length - (buffer.position() - start)];
+        buffer.get(typeBitmap);
+        List<TYPE> types = readTypeBitMap(typeBitmap);
+        return new NSEC(next, types);
+    }
+
     public NSEC(String next, List<TYPE> types) {
         this(DnsName.from(next), types);
     }
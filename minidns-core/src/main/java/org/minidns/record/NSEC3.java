@@ -18,6 +18,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -122,6 +123,22 @@ public class NSEC3 extends Data {
         return new NSEC3(hashAlgorithm, flags, iterations, salt, nextHashed, types);
     }
 
+    public static NSEC3 parse(ByteBuffer buffer, int length) throws IOException {
+        byte hashAlgorithm = buffer.get();
+        byte flags = buffer.get();
+        int iterations = buffer.getShort() & 0xffff;
+        int saltLength = buffer.get() & 0xff;
+        byte[] salt = new byte[saltLength];
+        buffer.get(salt);
+        int hashLength = buffer.get() & 0xff;
+        byte[] nextHashed = new byte[hashLength];
+        buffer.get(nextHashed);
+        byte[] typeBitmap = new byte[length - (6 + saltLength + hashLength)];
+        buffer.get(typeBitmap);
+        List<TYPE> types = NSEC.readTypeBitMap(typeBitmap);
+        return new NSEC3(hashAlgorithm, flags, iterations, salt, nextHashed, types);
+    }
+
     private NSEC3(HashAlgorithm hashAlgorithm, byte hashAlgorithmByte, byte flags, int iterations, byte[] salt, byte[] nextHashed, List<TYPE> types) {
         assert hashAlgorithmByte == (hashAlgorithm != null ? hashAlgorithm.value : hashAlgorithmByte);
         this.hashAlgorithmByte = hashAlgorithmByte;
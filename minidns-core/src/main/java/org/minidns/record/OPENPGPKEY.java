@@ -15,6 +15,7 @@ import org.minidns.util.Base64;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class OPENPGPKEY extends Data {
 
@@ -26,6 +27,12 @@ public class OPENPGPKEY extends Data {
         return new OPENPGPKEY(publicKeyPacket);
     }
 
+    public static OPENPGPKEY parse(ByteBuffer buffer, int length) {
+        byte[] publicKeyPacket = new byte[length];
+        buffer.get(publicKeyPacket);
+        return new OPENPGPKEY(publicKeyPacket);
+    }
+
     OPENPGPKEY(byte[] publicKeyPacket) {
         this.publicKeyPacket = publicKeyPacket;
     }
@@ -16,6 +16,7 @@ import org.minidns.record.Record.TYPE;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -57,6 +58,28 @@ public class OPT extends Data {
         return new OPT(variablePart);
     }
 
+    public static OPT parse(ByteBuffer buffer, int payloadLength) {
+        List<EdnsOption> variablePart;
+        if (payloadLength == 0) {
+            variablePart = Collections.emptyList();
+        } else {
+            int payloadLeft = payloadLength;
+            variablePart = new ArrayList<>(4);
+            while (payloadLeft > 0) {
+                int optionCode = buffer.getShort() & 0xffff;
+                int optionLength = buffer.getShort() & 0xffff;
+                byte[] optionData = new byte[optionLength];
+                buffer.get(optionData);
+                EdnsOption ednsOption = EdnsOption.parse(optionCode, optionData);
+                variablePart.add(ednsOption);
+                payloadLeft -= (2 + 2 + optionLength);
+                // Assert that payloadLeft never becomes negative
+                assert(payloadLeft >= 0);
+            }
+        }
+        return new OPT(variablePart);
+    }
+
     @Override
     public TYPE getType() {
         return TYPE.OPT;
@@ -12,8 +12,10 @@ package org.minidns.record;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameParseContext;
 import org.minidns.record.Record.TYPE;
 
 /**
@@ -26,6 +28,11 @@ public class PTR extends RRWithTarget {
         return new PTR(target);
     }
 
+    public static PTR parse(ByteBuffer buffer, DnsNameParseContext context) {
+        DnsName target = DnsName.parse(buffer, context);
+        return new PTR(target);
+    }
+
     PTR(String name) {
         this(DnsName.from(name));
     }
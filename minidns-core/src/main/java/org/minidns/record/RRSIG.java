@@ -12,6 +12,7 @@ package org.minidns.record;
 
 import org.minidns.constants.DnssecConstants.SignatureAlgorithm;
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameParseContext;
 import org.minidns.record.Record.TYPE;
 import org.minidns.util.Base64;
 
@@ -19,6 +20,7 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.TimeZone;
@@ -94,6 +96,23 @@ public class RRSIG extends Data {
                 signature);
     }
 
+    public static RRSIG parse(ByteBuffer buffer, int length, DnsNameParseContext context) {
+        final int start = buffer.position();
+        TYPE typeCovered = TYPE.getType(buffer.getShort() & 0xffff);
+        byte algorithm = buffer.get();
+        byte labels = buffer.get();
+        long originalTtl = buffer.getInt() & 0xFFFFFFFFL;
+        Date signatureExpiration = new Date((buffer.getInt() & 0xFFFFFFFFL) * 1000);
+        Date signatureInception = new Date((buffer.getInt() & 0xFFFFFFFFL) * 1000);
+        int keyTag = buffer.getShort() & 0xffff;
+        DnsName signerName = DnsName.parse(buffer, context);
+        int sigSize = length - (buffer.position() - start);
+        byte[] signature = new byte[sigSize];
+        buffer.get(signature);
+        return new RRSIG(typeCovered, null, algorithm, labels, originalTtl, signatureExpiration, signatureInception, keyTag, signerName,
+                signature);
+    }
+
     private  RRSIG(TYPE typeCovered, SignatureAlgorithm algorithm, byte algorithmByte, byte labels, long originalTtl, Date signatureExpiration, 
             Date signatureInception, int keyTag, DnsName signerName, byte[] signature) {
         this.typeCovered = typeCovered;
@@ -14,6 +14,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameCompressor;
 
 /**
  * A resource record pointing to a target.
@@ -34,6 +35,11 @@ public abstract class RRWithTarget extends Data {
         target.writeToStream(dos);
     }
 
+    @Override
+    protected void serialize(DataOutputStream dos, DnsNameCompressor compressor) throws IOException {
+        target.writeToStream(dos, compressor);
+    }
+
     protected RRWithTarget(DnsName target) {
         this.target = target;
         this.name = target;
@@ -15,6 +15,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -24,6 +25,8 @@ import java.util.Map;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsmessage.Question;
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameCompressor;
+import org.minidns.dnsname.DnsNameParseContext;
 
 /**
  * A generic DNS record.
@@ -407,6 +410,115 @@ public final class Record<D extends Data> {
         return new Record<>(name, type, clazz, clazzValue, ttl, payloadData, unicastQuery);
     }
 
+    /**
+     * Parse a given record starting at the current position of the buffer. The buffer's position is moved past the
+     * record. Index 0 of the buffer must be the first byte of the DNS message, as compressed names are resolved by
+     * absolute offset.
+     *
+     * @param buffer The buffer holding the whole DNS message.
+     * @return the record which was parsed.
+     * @throws IOException In case of malformed replies.
+     */
+    public static Record<Data> parse(ByteBuffer buffer) throws IOException {
+        return parse(buffer, null);
+    }
+
+    /**
+     * Parse a given record starting at the current position of the buffer. The buffer's position is moved past the
+     * record. Index 0 of the buffer must be the first byte of the DNS message, as compressed names are resolved by
+     * absolute offset.
+     *
+     * @param buffer The buffer holding the whole DNS message.
+     * @param context The parse context used for all names of the DNS message, or <code>null</code>.
+     * @return the record which was parsed.
+     * @throws IOException In case of malformed replies.
+     */
+    public static Record<Data> parse(ByteBuffer buffer, DnsNameParseContext context) throws IOException {
+        DnsName name = DnsName.parse(buffer, context);
+        int typeValue = buffer.getShort() & 0xffff;
+        TYPE type = TYPE.getType(typeValue);
+        int clazzValue = buffer.getShort() & 0xffff;
+        CLASS clazz = CLASS.getClass(clazzValue & 0x7fff);
+        boolean unicastQuery = (clazzValue & 0x8000) > 0;
+        long ttl = buffer.getInt() & 0xffffffffL;
+        int payloadLength = buffer.getShort() & 0xffff;
+        final int payloadStart = buffer.position();
+        if (payloadLength > buffer.remaining()) {
+            throw new IOException("The RDATA length of " + payloadLength + " exceeds the remaining "
+                            + buffer.remaining() + " bytes of the message");
+        }
+        Data payloadData;
+        switch (type) {
+            case SOA:
+                payloadData = SOA.parse(buffer, context);
+                break;
+            case SRV:
+                payloadData = SRV.parse(buffer, context);
+                break;
+            case MX:
+                payloadData = MX.parse(buffer, context);
+                break;
+            case AAAA:
+                payloadData = AAAA.parse(buffer);
+                break;
+            case A:
+                payloadData = A.parse(buffer);
+                break;
+            case NS:
+                payloadData = NS.parse(buffer, context);
+                break;
+            case CNAME:
+                payloadData = CNAME.parse(buffer, context);
+                break;
+            case DNAME:
+                payloadData = DNAME.parse(buffer, context);
+                break;
+            case PTR:
+                payloadData = PTR.parse(buffer, context);
+                break;
+            case TXT:
+                payloadData = TXT.parse(buffer, payloadLength);
+                break;
+            case OPT:
+                payloadData = OPT.parse(buffer, payloadLength);
+                break;
+            case DNSKEY:
+                payloadData = DNSKEY.parse(buffer, payloadLength);
+                break;
+            case RRSIG:
+                payloadData = RRSIG.parse(buffer, payloadLength, context);
+                break;
+            case DS:
+                payloadData = DS.parse(buffer, payloadLength);
+                break;
+            case NSEC:
+                payloadData = NSEC.parse(buffer, payloadLength, context);
+                break;
+            case NSEC3:
+                payloadData = NSEC3.parse(buffer, payloadLength);
+                break;
+            case NSEC3PARAM:
+                payloadData = NSEC3PARAM.parse(buffer);
+                break;
+            case TLSA:
+                payloadData = TLSA.parse(buffer, payloadLength);
+                break;
+            case OPENPGPKEY:
+                payloadData = OPENPGPKEY.parse(buffer, payloadLength);
+                break;
+            case DLV:
+                payloadData = DLV.parse(buffer, payloadLength);
+                break;
+            case UNKNOWN:
+            default:
+                payloadData = UNKNOWN.parse(buffer, payloadLength, type);
+                break;
+        }
+        // Always continue right after the RDATA, even if the payload parser did not consume it completely.
+        buffer.position(payloadStart + payloadLength);
+        return new Record<>(name, type, clazz, clazzValue, ttl, payloadData, unicastQuery);
+    }
+
     public Record(DnsName name, TYPE type, CLASS clazz, long ttl, D payloadData, boolean unicastQuery) {
         this(name, type, clazz, clazz.getValue() + (unicastQuery ? 0x8000 : 0), ttl, payloadData, unicastQuery);
     }
@@ -433,6 +545,19 @@ public final class Record<D extends Data> {
         this.unicastQuery = unicastQuery;
     }
 
+    /**
+     * Get a copy of this record with the given TTL.
+     *
+     * @param ttl the TTL of the copy.
+     * @return a copy of this record with the given TTL, or this record if it already has the given TTL.
+     */
+    public Record<D> withTtl(long ttl) {
+        if (ttl == this.ttl) {
+            return this;
+        }
+        return new Record<>(name, type, clazz, clazzValue, ttl, payloadData, unicastQuery);
+    }
+
     public void toOutputStream(OutputStream outputStream) throws IOException {
         if (payloadData == null) {
             throw new IllegalStateException("Empty Record has no byte representation");
@@ -449,6 +574,39 @@ public final class Record<D extends Data> {
         payloadData.toOutputStream(dos);
     }
 
+    /**
+     * Write this record to the given stream, compressing its owner name and, if permitted for the record type, the
+     * names within its payload using the given compressor.
+     *
+     * @param dos the stream to write to.
+     * @param compressor the compressor to use, or <code>null</code> to write the record uncompressed.
+     * @throws IOException if an I/O error occurs.
+     * @see DnsNameCompressor
+     */
+    public void toOutputStream(DataOutputStream dos, DnsNameCompressor compressor) throws IOException {
+        if (compressor == null) {
+            toOutputStream(dos);
+            return;
+        }
+        if (payloadData == null) {
+            throw new IllegalStateException("Empty Record has no byte representation");
+        }
+
+        name.writeToStream(dos, compressor);
+        dos.writeShort(type.getValue());
+        dos.writeShort(clazzValue);
+        dos.writeInt((int) ttl);
+
+        // The RDATA length depends on the compression, hence the RDATA is written into a separate buffer first, which
+        // starts right after the two byte RDATA length field.
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(payloadData.length());
+        DataOutputStream payloadDos = new DataOutputStream(payload);
+        payloadData.serialize(payloadDos, compressor.at(compressor.offsetOf(dos) + 2));
+
+        dos.writeShort(payload.size());
+        payload.writeTo(dos);
+    }
+
     private transient byte[] bytes;
 
     public byte[] toByteArray() {
@@ -11,11 +11,14 @@
 package org.minidns.record;
 
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameCompressor;
+import org.minidns.dnsname.DnsNameParseContext;
 import org.minidns.record.Record.TYPE;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * SOA (start of authority) record payload.
@@ -71,6 +74,17 @@ public class SOA extends Data {
         return new SOA(mname, rname, serial, refresh, retry, expire, minimum);
     }
 
+    public static SOA parse(ByteBuffer buffer, DnsNameParseContext context) {
+        DnsName mname = DnsName.parse(buffer, context);
+        DnsName rname = DnsName.parse(buffer, context);
+        long serial = buffer.getInt() & 0xFFFFFFFFL;
+        int refresh = buffer.getInt();
+        int retry = buffer.getInt();
+        int expire = buffer.getInt();
+        long minimum = buffer.getInt() & 0xFFFFFFFFL;
+        return new SOA(mname, rname, serial, refresh, retry, expire, minimum);
+    }
+
     public SOA(String mname, String rname, long serial, int refresh, int retry, int expire, long minimum) {
         this(DnsName.from(mname), DnsName.from(rname), serial, refresh, retry, expire, minimum);
     }
@@ -92,8 +106,13 @@ public class SOA extends Data {
 
     @Override
     public void serialize(DataOutputStream dos) throws IOException {
-        mname.writeToStream(dos);
-        rname.writeToStream(dos);
+        serialize(dos, null);
+    }
+
+    @Override
+    protected void serialize(DataOutputStream dos, DnsNameCompressor compressor) throws IOException {
+        mname.writeToStream(dos, compressor);
+        rname.writeToStream(dos, compressor);
         dos.writeInt((int) serial);
         dos.writeInt(refresh);
         dos.writeInt(retry);
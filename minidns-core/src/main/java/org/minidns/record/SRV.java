@@ -13,8 +13,10 @@ package org.minidns.record;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.minidns.dnsname.DnsName;
+import org.minidns.dnsname.DnsNameParseContext;
 import org.minidns.record.Record.TYPE;
 
 /**
@@ -61,6 +63,14 @@ public class SRV extends Data implements Comparable<SRV> {
         return new SRV(priority, weight, port, name);
     }
 
+    public static SRV parse(ByteBuffer buffer, DnsNameParseContext context) {
+        int priority = buffer.getShort() & 0xffff;
+        int weight = buffer.getShort() & 0xffff;
+        int port = buffer.getShort() & 0xffff;
+        DnsName name = DnsName.parse(buffer, context);
+        return new SRV(priority, weight, port, name);
+    }
+
     public SRV(int priority, int weight, int port, String name) {
         this(priority, weight, port, DnsName.from(name));
     }
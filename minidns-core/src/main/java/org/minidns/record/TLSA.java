@@ -14,6 +14,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -106,6 +107,15 @@ public class TLSA extends Data {
         return new TLSA(certUsage, selector, matchingType, certificateAssociation);
     }
 
+    public static TLSA parse(ByteBuffer buffer, int length) {
+        byte certUsage = buffer.get();
+        byte selector = buffer.get();
+        byte matchingType = buffer.get();
+        byte[] certificateAssociation = new byte[length - 3];
+        buffer.get(certificateAssociation);
+        return new TLSA(certUsage, selector, matchingType, certificateAssociation);
+    }
+
     TLSA(byte certUsageByte, byte selectorByte, byte matchingTypeByte, byte[] certificateAssociation) {
         this.certUsageByte = certUsageByte;
         this.certUsage = CERT_USAGE_LUT.get(certUsageByte);
@@ -14,6 +14,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -37,6 +38,12 @@ public class TXT extends Data {
         return new TXT(blob);
     }
 
+    public static TXT parse(ByteBuffer buffer, int length) {
+        byte[] blob = new byte[length];
+        buffer.get(blob);
+        return new TXT(blob);
+    }
+
     public TXT(byte[] blob) {
         this.blob = blob;
     }
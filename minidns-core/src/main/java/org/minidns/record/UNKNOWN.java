@@ -13,6 +13,7 @@ package org.minidns.record;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.minidns.record.Record.TYPE;
 
@@ -27,6 +28,11 @@ public class UNKNOWN extends Data {
         dis.readFully(data);
     }
 
+    private UNKNOWN(byte[] data, TYPE type) {
+        this.type = type;
+        this.data = data;
+    }
+
     @Override
     public TYPE getType() {
         return type;
@@ -42,4 +48,10 @@ public class UNKNOWN extends Data {
         return new UNKNOWN(dis, payloadLength, type);
     }
 
+    public static UNKNOWN parse(ByteBuffer buffer, int payloadLength, TYPE type) {
+        byte[] data = new byte[payloadLength];
+        buffer.get(data);
+        return new UNKNOWN(data, type);
+    }
+
 }
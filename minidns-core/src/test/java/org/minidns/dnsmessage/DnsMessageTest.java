@@ -39,6 +39,7 @@ import org.junit.Test;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -50,6 +51,7 @@ import java.util.TreeMap;
 
 import static org.minidns.Assert.assertArrayContentEquals;
 import static org.minidns.Assert.assertCsEquals;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -57,8 +59,7 @@ import static org.junit.Assert.assertTrue;
 
 public class DnsMessageTest {
 
-    DnsMessage getMessageFromResource(final String resourceFileName) throws IOException {
-        DnsMessage result;
+    byte[] getBytesFromResource(final String resourceFileName) throws IOException {
         try (InputStream inputStream = getClass().getResourceAsStream(resourceFileName);
                 ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
 
@@ -66,8 +67,12 @@ public class DnsMessageTest {
             for (int readBytes = inputStream.read(); readBytes >= 0; readBytes = inputStream.read())
                 outputStream.write(readBytes);
 
-            result = new DnsMessage(outputStream.toByteArray());
+            return outputStream.toByteArray();
         }
+    }
+
+    DnsMessage getMessageFromResource(final String resourceFileName) throws IOException {
+        DnsMessage result = new DnsMessage(getBytesFromResource(resourceFileName));
 
         assertNotNull(result);
 
@@ -547,6 +552,91 @@ public class DnsMessageTest {
         assertNotNull(message.build().asTerminalOutput());
     }
 
+    @Test
+    public void testParseFromDirectByteBuffer() throws Exception {
+        String[] resources = new String[] { "sun-a", "google-aaaa", "gmail-mx", "gpn-srv", "codinghorror-txt",
+                "gmail-domainkey-txt", "oracle-soa", "com-ds-rrsig", "com-ns", "com-nsec3", "example-nsec",
+                "root-dnskey", };
+        for (String resource : resources) {
+            byte[] bytes = getBytesFromResource(resource);
+            DnsMessage fromArray = new DnsMessage(bytes);
+
+            // Put some garbage in front of the message to verify that compression pointers are resolved relative to
+            // the start of the message and not relative to the start of the buffer.
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 7);
+            buffer.position(7);
+            buffer.put(bytes);
+            buffer.position(7);
+            DnsMessage fromBuffer = new DnsMessage(buffer);
+
+            assertEquals(resource, 7, buffer.position());
+            assertEquals(resource, fromArray.toString(), fromBuffer.toString());
+            assertArrayEquals(resource, fromArray.toArray(), fromBuffer.toArray());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseTruncatedByteBuffer() throws Exception {
+        byte[] bytes = getBytesFromResource("gmail-mx");
+        new DnsMessage(ByteBuffer.wrap(bytes, 0, bytes.length - 5));
+    }
+
+    @Test
+    public void testLazyDnsMessage() throws Exception {
+        byte[] bytes = getBytesFromResource("com-ds-rrsig");
+        DnsMessage eager = new DnsMessage(bytes);
+        LazyDnsMessage lazy = new LazyDnsMessage(bytes);
+
+        assertEquals(eager.id, lazy.id);
+        assertEquals(eager.responseCode, lazy.responseCode);
+        assertEquals(eager.answerSection.size(), lazy.getAnswerCount());
+        assertEquals(eager.additionalSection.size(), lazy.getAdditionalCount());
+        assertEquals(eager.getQuestion(), lazy.getQuestion());
+
+        List<Record<? extends Data>> ds = lazy.getAnswersOfType(TYPE.DS);
+        assertEquals(1, ds.size());
+        assertEquals(eager.answerSection.get(0), ds.get(0));
+        assertEquals(TYPE.RRSIG, lazy.getAnswerType(1));
+
+        assertEquals(eager.answerSection, lazy.getAnswerSection());
+        assertEquals(eager.authoritySection, lazy.getAuthoritySection());
+        assertArrayEquals(eager.toArray(), lazy.toDnsMessage().toArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testLazyDnsMessageTruncated() throws Exception {
+        byte[] bytes = getBytesFromResource("com-ds-rrsig");
+        new LazyDnsMessage(Arrays.copyOf(bytes, bytes.length - 3));
+    }
+
+    @Test
+    public void testCompressedMessage() throws Exception {
+        DnsMessage.Builder dmb = DnsMessage.builder();
+        dmb.addQuestion(new Question("www.example.com", TYPE.MX));
+        dmb.addAnswer(record("www.example.com", new MX(10, "mx1.example.com")));
+        dmb.addAnswer(record("www.example.com", new MX(20, "mx2.example.com")));
+        dmb.addNameserverRecords(record("example.com", new SOA("ns.example.com", "hostmaster.example.com", 1, 2, 3, 4, 5)));
+        dmb.addNameserverRecords(record("example.com", new SRV(1, 2, 3, "sip.example.com")));
+        dmb.addAdditionalResourceRecord(record("mx1.example.com", a("127.0.0.1")));
+        dmb.setId(42);
+        DnsMessage message = dmb.build();
+
+        byte[] uncompressed = message.toArray();
+        byte[] compressed = message.toArray(true);
+        assertTrue(compressed.length < uncompressed.length);
+
+        DnsMessage parsed = new DnsMessage(compressed);
+        assertEquals(message.questions, parsed.questions);
+        assertEquals(message.answerSection, parsed.answerSection);
+        assertEquals(message.authoritySection, parsed.authoritySection);
+        assertEquals(message.additionalSection, parsed.additionalSection);
+        assertArrayEquals(uncompressed, parsed.toArray());
+
+        // The owner name of the first answer must be a pointer to the question name at offset 12.
+        assertEquals((byte) 0xc0, compressed[12 + 17 + 4]);
+        assertEquals(12, compressed[12 + 17 + 4 + 1]);
+    }
+
     public static Record<Data> record(String name, long ttl, Data data) {
         return new Record<>(name, data.getType(), CLASS.IN, ttl, data, false);
     }
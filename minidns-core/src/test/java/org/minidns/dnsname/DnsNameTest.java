@@ -13,10 +13,14 @@ package org.minidns.dnsname;
 import static org.minidns.Assert.assertCsEquals;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
@@ -138,4 +142,89 @@ public class DnsNameTest {
         assertEquals("foo.bar", dnsName.ace);
     }
 
+    @Test
+    public void pooledDnsNameTest() throws IOException {
+        // Two messages, both containing 'www.example.org' encoded as 'www' followed by a pointer to 'example.org'.
+        byte[] data = new byte[] { 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'o', 'r', 'g', 0, 3, 'w', 'w', 'w',
+                (byte) 0xc0, 0 };
+
+        DnsName.setPool(new DnsNamePool(16));
+        try {
+            DnsName first = DnsName.parse(new DataInputStream(new ByteArrayInputStream(data, 13, 6)), data);
+            DnsName second = DnsName.parse(new DataInputStream(new ByteArrayInputStream(data, 13, 6)), data);
+            assertEquals("www.example.org", first.ace);
+            assertSame(first, second);
+            assertSame(first, DnsName.from("www.example.org"));
+            assertSame(DnsName.from("example.org"), DnsName.from(DnsName.from("www.example.org").getParent()));
+            assertSame(first.getLabels()[0], DnsName.from("org").getLabels()[0]);
+
+            // Names are interned by their raw ACE, as not to lose the original case.
+            DnsName upperCase = DnsName.from("WWW.example.org");
+            assertNotSame(first, upperCase);
+            assertEquals(first, upperCase);
+            assertEquals("WWW.example.org", upperCase.getRawAce());
+        } finally {
+            DnsName.setPool(null);
+        }
+
+        DnsName first = DnsName.parse(new DataInputStream(new ByteArrayInputStream(data, 13, 6)), data);
+        DnsName second = DnsName.parse(new DataInputStream(new ByteArrayInputStream(data, 13, 6)), data);
+        assertEquals(first, second);
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void dnsNamePoolCapacityTest() {
+        DnsNamePool pool = new DnsNamePool(16);
+        for (int i = 0; i < 100; i++) {
+            DnsName name = DnsName.from("host" + i + ".example.org");
+            assertSame(name, pool.intern(name));
+            assertTrue(pool.getNameCount() <= 16);
+            assertTrue(pool.getLabelCount() <= 16);
+        }
+        // Recently interned names are still pooled.
+        DnsName name = DnsName.from("host99.example.org");
+        assertNotSame(name, pool.intern(name));
+
+        pool.clear();
+        assertEquals(0, pool.getNameCount());
+        assertEquals(0, pool.getLabelCount());
+    }
+
+    @Test
+    public void fromLabelAndParentTest() {
+        DnsName name = DnsName.from(DnsLabel.from("www"), DnsName.from("example.org"));
+        assertEquals("www.example.org", name.ace);
+    }
+
+    @Test
+    public void parseWithContextTest() {
+        // 'example.org' at offset 0, 'www' + pointer to 0 at offset 13 and 'mail' + pointer to 0 at offset 19.
+        byte[] data = new byte[] { 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'o', 'r', 'g', 0, 3, 'w', 'w', 'w',
+                (byte) 0xc0, 0, 4, 'm', 'a', 'i', 'l', (byte) 0xc0, 0, (byte) 0xc0, 13 };
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        DnsNameParseContext context = new DnsNameParseContext();
+
+        DnsName example = DnsName.parse(buffer, context);
+        DnsName www = DnsName.parse(buffer, context);
+        DnsName mail = DnsName.parse(buffer, context);
+        DnsName wwwAgain = DnsName.parse(buffer, context);
+
+        assertEquals(data.length, buffer.position());
+        assertEquals("example.org", example.ace);
+        assertEquals("www.example.org", www.ace);
+        assertEquals("mail.example.org", mail.ace);
+        // Names already decoded are taken from the context.
+        assertSame(www, wwwAgain);
+        buffer.position(0);
+        assertSame(example, DnsName.parse(buffer, context));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void parseCyclicPointerTest() {
+        // 'foo' followed by a pointer to itself.
+        byte[] data = new byte[] { 3, 'f', 'o', 'o', (byte) 0xc0, 0 };
+        DnsName.parse(ByteBuffer.wrap(data), new DnsNameParseContext());
+    }
+
 }
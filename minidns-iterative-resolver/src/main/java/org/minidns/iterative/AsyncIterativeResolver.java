@@ -0,0 +1,760 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.iterative;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.minidns.AbstractDnsClient.IpVersionSetting;
+import org.minidns.MiniDnsFuture;
+import org.minidns.MiniDnsFuture.InternalMiniDnsFuture;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.Question;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.iterative.IterativeClientException.LoopDetected;
+import org.minidns.iterative.IterativeClientException.MaxGlueDepthReached;
+import org.minidns.iterative.IterativeClientException.MaxIterativeStepsReached;
+import org.minidns.iterative.IterativeClientException.NotAuthoritativeNorGlueRrFound;
+import org.minidns.iterative.IterativeClientException.ResolutionTimeoutReached;
+import org.minidns.iterative.IterativeDnsClient.IpResultSet;
+import org.minidns.iterative.IterativeDnsClient.Referral;
+import org.minidns.iterative.IterativeDnsClient.Targets;
+import org.minidns.record.Record.TYPE;
+import org.minidns.util.ExceptionCallback;
+import org.minidns.util.MultipleIoException;
+import org.minidns.util.SuccessCallback;
+
+/**
+ * The non-blocking resolution engine of {@link IterativeDnsClient}. It performs the same steps as the synchronous
+ * engine, but every step is a continuation of the future of the previous query, so that no thread waits for a response.
+ * Together with a non-blocking data source, a large number of resolutions runs on the few threads of the data source
+ * and of {@link MiniDnsFuture}, plus a single timer thread which staggers the queries to the nameservers of a zone and
+ * enforces the resolution timeout.
+ */
+final class AsyncIterativeResolver {
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncIterativeResolver.class.getName());
+
+    private static final ScheduledExecutorService TIMER;
+
+    static {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName("MiniDNS Iterative Resolver Timer");
+                return thread;
+            }
+        };
+        TIMER = new ScheduledThreadPoolExecutor(1, threadFactory);
+    }
+
+    /**
+     * The continuation of an asynchronous step.
+     *
+     * @param <V> the type of the result of the step.
+     */
+    interface Continuation<V> {
+        void onResult(V result);
+
+        void onException(IOException exception);
+    }
+
+    private final IterativeDnsClient client;
+
+    AsyncIterativeResolver(IterativeDnsClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Resolve the given query iteratively.
+     *
+     * @param q the query.
+     * @param bypassCache <code>true</code> if the query must not be answered from the cache.
+     * @return the future of the result. Cancelling it stops the resolution.
+     */
+    MiniDnsFuture<DnsQueryResult, IOException> resolve(DnsMessage q, boolean bypassCache) {
+        final ResolutionState resolutionState = new ResolutionState(client, bypassCache);
+        final InternalMiniDnsFuture<DnsQueryResult, IOException> future = new InternalMiniDnsFuture<DnsQueryResult, IOException>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                resolutionState.cancel();
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        final AtomicBoolean completed = new AtomicBoolean();
+
+        final int resolutionTimeout = client.getResolutionTimeout();
+        final ScheduledFuture<?> timeoutTimer;
+        if (resolutionTimeout > 0) {
+            timeoutTimer = TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (completed.compareAndSet(false, true)) {
+                        // Stop the branches still running.
+                        resolutionState.cancel();
+                        future.setException(new ResolutionTimeoutReached(resolutionTimeout));
+                    }
+                }
+            }, resolutionTimeout, TimeUnit.MILLISECONDS);
+        } else {
+            timeoutTimer = null;
+        }
+
+        queryRecursive(resolutionState, q, new Continuation<DnsQueryResult>() {
+            @Override
+            public void onResult(DnsQueryResult result) {
+                if (completed.compareAndSet(false, true)) {
+                    cancelTimer();
+                    future.setResult(result);
+                }
+            }
+
+            @Override
+            public void onException(IOException exception) {
+                if (completed.compareAndSet(false, true)) {
+                    cancelTimer();
+                    future.setException(exception);
+                }
+            }
+
+            private void cancelTimer() {
+                if (timeoutTimer != null) {
+                    timeoutTimer.cancel(false);
+                }
+            }
+        });
+        return future;
+    }
+
+    private void queryRecursive(ResolutionState resolutionState, DnsMessage q, Continuation<DnsQueryResult> continuation) {
+        Targets targets = client.getInitialTargets(q);
+        queryRecursive(resolutionState, q, targets.addresses, targets.authoritativeZone, continuation);
+    }
+
+    private void queryRecursive(final ResolutionState resolutionState, final DnsMessage q, List<InetAddress> targets,
+            final DnsName authoritativeZone, final Continuation<DnsQueryResult> continuation) {
+        new Race(resolutionState, q, targets, new Continuation<DnsQueryResult>() {
+            @Override
+            public void onResult(DnsQueryResult dnsQueryResult) {
+                if (dnsQueryResult.response.authoritativeAnswer) {
+                    continuation.onResult(dnsQueryResult);
+                    return;
+                }
+
+                List<Attempt> attempts = new ArrayList<>(2);
+                for (final Referral referral : client.getReferrals(q, dnsQueryResult, authoritativeZone)) {
+                    // Glued NS first
+                    if (!referral.gluedAddresses.isEmpty()) {
+                        attempts.add(new Attempt() {
+                            @Override
+                            void run(Continuation<DnsQueryResult> attemptContinuation) {
+                                queryRecursive(resolutionState, q, referral.gluedAddresses, referral.zone,
+                                        attemptContinuation);
+                            }
+                        });
+                    }
+                    // Then non-glued NS
+                    if (!referral.nonGluedNs.isEmpty()) {
+                        attempts.add(new Attempt() {
+                            @Override
+                            void run(Continuation<DnsQueryResult> attemptContinuation) {
+                                new NonGluedNsResolution(resolutionState, q, referral, attemptContinuation).start();
+                            }
+                        });
+                    }
+                }
+                runSequentially(attempts.iterator(), new LinkedList<IOException>(), q, dnsQueryResult,
+                        authoritativeZone, continuation);
+            }
+
+            @Override
+            public void onException(IOException exception) {
+                continuation.onException(exception);
+            }
+        }).start();
+    }
+
+    /**
+     * Run the given attempts one after another, until one of them succeeds or fails fatally.
+     *
+     * @param attempts the attempts.
+     * @param ioExceptions the exceptions of the failed attempts.
+     * @param q the query.
+     * @param referral the referral the attempts follow.
+     * @param authoritativeZone the zone of the nameserver which sent the referral.
+     * @param continuation the continuation.
+     */
+    private void runSequentially(final Iterator<Attempt> attempts, final List<IOException> ioExceptions,
+            final DnsMessage q, final DnsQueryResult referral, final DnsName authoritativeZone,
+            final Continuation<DnsQueryResult> continuation) {
+        if (!attempts.hasNext()) {
+            if (ioExceptions.isEmpty()) {
+                // We did not receive an authoritative answer, nor where we able to find glue records or the IPs of the
+                // next nameservers.
+                continuation.onException(new NotAuthoritativeNorGlueRrFound(q, referral, authoritativeZone));
+            } else {
+                continuation.onException(MultipleIoException.toIOException(ioExceptions));
+            }
+            return;
+        }
+
+        attempts.next().run(new Continuation<DnsQueryResult>() {
+            @Override
+            public void onResult(DnsQueryResult result) {
+                continuation.onResult(result);
+            }
+
+            @Override
+            public void onException(IOException exception) {
+                if (exception != null) {
+                    if (isFatal(exception)) {
+                        continuation.onException(exception);
+                        return;
+                    }
+                    LOGGER.log(Level.FINER, "Exception while recursing", exception);
+                    ioExceptions.add(exception);
+                }
+                runSequentially(attempts, ioExceptions, q, referral, authoritativeZone, continuation);
+            }
+        });
+    }
+
+    /**
+     * Resolve the IP addresses of the given name. The A and AAAA queries run in parallel.
+     *
+     * @param resolutionState the resolution state.
+     * @param name the name.
+     * @param continuation the continuation.
+     */
+    private void resolveIpRecursive(ResolutionState resolutionState, DnsName name, Continuation<IpResultSet> continuation) {
+        IpVersionSetting ipVersionSetting = client.getPreferedIpVersion();
+        List<Question> questions = new ArrayList<>(2);
+        if (ipVersionSetting.v4) {
+            questions.add(new Question(name, TYPE.A));
+        }
+        if (ipVersionSetting.v6) {
+            questions.add(new Question(name, TYPE.AAAA));
+        }
+        new IpResolution(resolutionState, questions, continuation).start();
+    }
+
+    private static boolean isFatal(IOException exception) {
+        try {
+            IterativeDnsClient.abortIfFatal(exception);
+        } catch (IOException e) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Register the given continuation with the given future, so that it is invoked exactly once.
+     *
+     * @param future the future.
+     * @param continuation the continuation.
+     * @param <V> the type of the result.
+     */
+    private static <V> void whenComplete(MiniDnsFuture<V, IOException> future, final Continuation<V> continuation) {
+        final AtomicBoolean completed = new AtomicBoolean();
+        future.onSuccess(new SuccessCallback<V>() {
+            @Override
+            public void onSuccess(V result) {
+                if (completed.compareAndSet(false, true)) {
+                    continuation.onResult(result);
+                }
+            }
+        });
+        future.onError(new ExceptionCallback<IOException>() {
+            @Override
+            public void processException(IOException exception) {
+                if (completed.compareAndSet(false, true)) {
+                    continuation.onException(exception);
+                }
+            }
+        });
+    }
+
+    /**
+     * An attempt to continue the resolution with the nameservers of a referral.
+     */
+    private abstract static class Attempt {
+        /**
+         * Run the attempt.
+         *
+         * @param continuation the continuation, whose {@link Continuation#onException(IOException)} is invoked with
+         *        <code>null</code> if the attempt failed without an exception.
+         */
+        abstract void run(Continuation<DnsQueryResult> continuation);
+    }
+
+    /**
+     * A staggered race between the queries to the nameservers of a zone, the asynchronous counterpart of
+     * {@link IterativeDnsClient}'s synchronous race. The first target is queried immediately, and every further target
+     * once the stagger delay has passed or a query failed. All fields are guarded by this object's monitor.
+     */
+    private final class Race implements Runnable, ResolutionState.Cancellable {
+        private final ResolutionState resolutionState;
+        private final DnsMessage q;
+        private final Iterator<InetAddress> targets;
+        private final Continuation<DnsQueryResult> continuation;
+        private final List<MiniDnsFuture<DnsQueryResult, IOException>> attempts = new ArrayList<>(2);
+        private final List<IOException> ioExceptions = new ArrayList<>(2);
+        private LoopDetected loopDetected;
+        private DnsQueryResult errorResult;
+        private ScheduledFuture<?> staggerTimer;
+        private int inFlight;
+        private boolean finished;
+
+        private Race(ResolutionState resolutionState, DnsMessage q, List<InetAddress> targets,
+                Continuation<DnsQueryResult> continuation) {
+            this.resolutionState = resolutionState;
+            this.q = q;
+            this.targets = targets.iterator();
+            this.continuation = continuation;
+        }
+
+        private void start() {
+            if (!resolutionState.register(this)) {
+                // Nobody waits for the result anymore.
+                return;
+            }
+            startNext();
+        }
+
+        /**
+         * Invoked if the resolution is cancelled, e.g. because it timed out.
+         */
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finish();
+            }
+            cancelAttempts();
+        }
+
+        /**
+         * Invoked by the stagger timer.
+         */
+        @Override
+        public void run() {
+            startNext();
+        }
+
+        private void startNext() {
+            final int maxParallelQueries = client.getMaxParallelQueries();
+            InetAddress target = null;
+            IOException fatalException = null;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                if (staggerTimer != null) {
+                    staggerTimer.cancel(false);
+                    staggerTimer = null;
+                }
+                if (resolutionState.isCancelled()) {
+                    // Nobody waits for the result anymore.
+                    finish();
+                } else if (inFlight >= maxParallelQueries) {
+                    return;
+                } else if (!resolutionState.startQuery(inFlight > 0)) {
+                    // Too many queries of this resolution are in flight, try again later.
+                    staggerTimer = TIMER.schedule(this, client.getStaggerDelay(), TimeUnit.MILLISECONDS);
+                    return;
+                } else {
+                    while (targets.hasNext()) {
+                        InetAddress candidate = targets.next();
+                        try {
+                            resolutionState.recurse(candidate, q);
+                        } catch (LoopDetected e) {
+                            // Another target may still lead somewhere else.
+                            loopDetected = e;
+                            continue;
+                        } catch (MaxIterativeStepsReached | ResolutionTimeoutReached e) {
+                            fatalException = e;
+                            break;
+                        }
+                        target = candidate;
+                        break;
+                    }
+                    if (target != null) {
+                        inFlight++;
+                    } else if (fatalException != null || inFlight == 0) {
+                        resolutionState.finishQueries(1);
+                        finish();
+                    } else {
+                        resolutionState.finishQueries(1);
+                        // Wait for the queries in flight.
+                        return;
+                    }
+                }
+            }
+
+            if (target == null) {
+                cancelAttempts();
+                if (fatalException != null) {
+                    continuation.onException(fatalException);
+                } else if (!resolutionState.isCancelled()) {
+                    lost();
+                }
+                return;
+            }
+
+            MiniDnsFuture<DnsQueryResult, IOException> attempt = client.queryAsync(q, target, 53,
+                    resolutionState.isBypassCache());
+            boolean cancel;
+            synchronized (this) {
+                cancel = finished;
+                if (!finished) {
+                    attempts.add(attempt);
+                    if (targets.hasNext() && inFlight < maxParallelQueries) {
+                        staggerTimer = TIMER.schedule(this, client.getStaggerDelay(), TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+            if (cancel) {
+                attempt.cancel(true);
+                return;
+            }
+
+            whenComplete(attempt, new Continuation<DnsQueryResult>() {
+                @Override
+                public void onResult(DnsQueryResult result) {
+                    onAttemptResult(result);
+                }
+
+                @Override
+                public void onException(IOException exception) {
+                    onAttemptException(exception);
+                }
+            });
+        }
+
+        private void onAttemptResult(DnsQueryResult result) {
+            boolean won = false;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                inFlight--;
+                resolutionState.finishQueries(1);
+                if (IterativeDnsClient.isAnswerOrReferral(result.response)) {
+                    finish();
+                    won = true;
+                } else if (errorResult == null) {
+                    errorResult = result;
+                }
+            }
+            if (won) {
+                cancelAttempts();
+                continuation.onResult(result);
+            } else {
+                startNext();
+            }
+        }
+
+        private void onAttemptException(IOException exception) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                inFlight--;
+                resolutionState.finishQueries(1);
+                ioExceptions.add(exception);
+            }
+            LOGGER.log(Level.FINER, "Exception while querying " + q.getQuestion(), exception);
+            resolutionState.decrementSteps();
+            startNext();
+        }
+
+        /**
+         * Finish the race, the queries still in flight no longer count as queries of the resolution. Must be invoked
+         * while holding this object's monitor.
+         */
+        private void finish() {
+            finished = true;
+            resolutionState.finishQueries(inFlight);
+            inFlight = 0;
+            resolutionState.unregister(this);
+        }
+
+        /**
+         * Invoked once all targets failed.
+         */
+        private void lost() {
+            DnsQueryResult errorResult;
+            IOException exception;
+            synchronized (this) {
+                errorResult = this.errorResult;
+                if (!ioExceptions.isEmpty()) {
+                    exception = MultipleIoException.toIOException(ioExceptions);
+                } else if (loopDetected != null) {
+                    exception = loopDetected;
+                } else {
+                    exception = new IOException("No nameservers to query for " + q.getQuestion());
+                }
+            }
+            if (errorResult != null) {
+                continuation.onResult(errorResult);
+            } else {
+                continuation.onException(exception);
+            }
+        }
+
+        private void cancelAttempts() {
+            List<MiniDnsFuture<DnsQueryResult, IOException>> attemptsToCancel;
+            synchronized (this) {
+                if (staggerTimer != null) {
+                    staggerTimer.cancel(false);
+                    staggerTimer = null;
+                }
+                attemptsToCancel = new ArrayList<>(attempts);
+            }
+            for (MiniDnsFuture<DnsQueryResult, IOException> attempt : attemptsToCancel) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * The parallel resolution of the addresses of the non-glued nameservers of a referral. The resolution continues
+     * with the nameserver whose addresses are resolved first, and with the next one if that fails. All fields are
+     * guarded by this object's monitor.
+     */
+    private final class NonGluedNsResolution {
+        private final ResolutionState resolutionState;
+        private ResolutionState glueResolutionState;
+        private final DnsMessage q;
+        private final DnsName zone;
+        private final Iterator<DnsName> names;
+        private final Continuation<DnsQueryResult> continuation;
+        private final List<IOException> ioExceptions = new ArrayList<>(2);
+        private final LinkedList<IpResultSet> resolved = new LinkedList<>();
+        private int inFlight;
+        private boolean following;
+        private boolean finished;
+
+        private NonGluedNsResolution(ResolutionState resolutionState, DnsMessage q, Referral referral,
+                Continuation<DnsQueryResult> continuation) {
+            this.resolutionState = resolutionState;
+            this.q = q;
+            this.zone = referral.zone;
+            this.names = referral.nonGluedNs.iterator();
+            this.continuation = continuation;
+        }
+
+        private void start() {
+            try {
+                ResolutionState glueResolutionState = resolutionState.enterGlueResolution();
+                synchronized (this) {
+                    this.glueResolutionState = glueResolutionState;
+                }
+            } catch (MaxGlueDepthReached e) {
+                LOGGER.log(Level.FINER, "Not resolving the addresses of the nameservers of " + zone, e);
+                continuation.onException(e);
+                return;
+            }
+            startResolutions();
+        }
+
+        private void startResolutions() {
+            final int maxParallelQueries = client.getMaxParallelQueries();
+            List<DnsName> namesToResolve = new ArrayList<>(maxParallelQueries);
+            final ResolutionState glueResolutionState;
+            synchronized (this) {
+                glueResolutionState = this.glueResolutionState;
+                while (!finished && names.hasNext() && inFlight < maxParallelQueries) {
+                    namesToResolve.add(names.next());
+                    inFlight++;
+                }
+            }
+            for (DnsName name : namesToResolve) {
+                resolveIpRecursive(glueResolutionState, name, new Continuation<IpResultSet>() {
+                    @Override
+                    public void onResult(IpResultSet result) {
+                        onResolved(result, null);
+                    }
+
+                    @Override
+                    public void onException(IOException exception) {
+                        onResolved(null, exception);
+                    }
+                });
+            }
+            maybeGiveUp();
+        }
+
+        private void onResolved(IpResultSet result, IOException exception) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                inFlight--;
+                if (exception != null && isFatal(exception)) {
+                    finished = true;
+                } else if (exception != null) {
+                    ioExceptions.add(exception);
+                } else if (!result.addresses.isEmpty()) {
+                    resolved.add(result);
+                }
+            }
+            if (exception != null && isFatal(exception)) {
+                continuation.onException(exception);
+                return;
+            }
+            followNext();
+            startResolutions();
+        }
+
+        private void followNext() {
+            IpResultSet result;
+            synchronized (this) {
+                if (finished || following || resolved.isEmpty()) {
+                    return;
+                }
+                following = true;
+                result = resolved.removeFirst();
+            }
+            queryRecursive(resolutionState, q, client.sortByRtt(result.addresses), zone,
+                    new Continuation<DnsQueryResult>() {
+                @Override
+                public void onResult(DnsQueryResult dnsQueryResult) {
+                    synchronized (NonGluedNsResolution.this) {
+                        if (finished) {
+                            return;
+                        }
+                        finished = true;
+                    }
+                    continuation.onResult(dnsQueryResult);
+                }
+
+                @Override
+                public void onException(IOException exception) {
+                    boolean fatal = isFatal(exception);
+                    synchronized (NonGluedNsResolution.this) {
+                        if (finished) {
+                            return;
+                        }
+                        following = false;
+                        if (fatal) {
+                            finished = true;
+                        } else {
+                            ioExceptions.add(exception);
+                        }
+                    }
+                    if (fatal) {
+                        continuation.onException(exception);
+                        return;
+                    }
+                    followNext();
+                    maybeGiveUp();
+                }
+            });
+        }
+
+        /**
+         * Report the failure if all nameservers have been tried.
+         */
+        private void maybeGiveUp() {
+            IOException exception = null;
+            synchronized (this) {
+                if (finished || following || inFlight > 0 || names.hasNext() || !resolved.isEmpty()) {
+                    return;
+                }
+                finished = true;
+                if (!ioExceptions.isEmpty()) {
+                    exception = MultipleIoException.toIOException(ioExceptions);
+                }
+            }
+            continuation.onException(exception);
+        }
+    }
+
+    /**
+     * The parallel resolution of the A and AAAA records of a name. All fields are guarded by this object's monitor.
+     */
+    private final class IpResolution {
+        private final ResolutionState resolutionState;
+        private final List<Question> questions;
+        private final Continuation<IpResultSet> continuation;
+        private final IpResultSet.Builder res = client.newIpResultSetBuilder();
+        private int pending;
+        private boolean finished;
+
+        private IpResolution(ResolutionState resolutionState, List<Question> questions,
+                Continuation<IpResultSet> continuation) {
+            this.resolutionState = resolutionState;
+            this.questions = questions;
+            this.continuation = continuation;
+            this.pending = questions.size();
+        }
+
+        private void start() {
+            for (final Question question : questions) {
+                queryRecursive(resolutionState, client.buildQuery(question), new Continuation<DnsQueryResult>() {
+                    @Override
+                    public void onResult(DnsQueryResult result) {
+                        onAnswer(question, result);
+                    }
+
+                    @Override
+                    public void onException(IOException exception) {
+                        synchronized (IpResolution.this) {
+                            if (finished) {
+                                return;
+                            }
+                            finished = true;
+                        }
+                        continuation.onException(exception);
+                    }
+                });
+            }
+        }
+
+        private void onAnswer(Question question, DnsQueryResult result) {
+            DnsName cnameTarget;
+            boolean done = false;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                cnameTarget = client.addAddresses(res, question, result);
+                if (cnameTarget != null || --pending == 0) {
+                    finished = true;
+                    done = cnameTarget == null;
+                }
+            }
+            if (cnameTarget != null) {
+                resolveIpRecursive(resolutionState, cnameTarget, continuation);
+            } else if (done) {
+                continuation.onResult(res.build());
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.iterative;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsmessage.DnsMessage.RESPONSE_CODE;
+import org.minidns.dnsname.DnsName;
+import org.minidns.record.A;
+import org.minidns.record.AAAA;
+import org.minidns.record.Data;
+import org.minidns.record.NS;
+import org.minidns.record.Record;
+
+/**
+ * A cache of zone cuts, i.e. the nameservers of delegated zones together with their glue, as learned from referrals.
+ * The iterative resolver uses it to start the resolution of a name at the closest known enclosing zone, instead of
+ * only looking at the parent of the name and otherwise starting at the root.
+ * <p>
+ * Only NS records of zones below the zone of the referring server, and only glue within the zone of the referring
+ * server, are cached, to prevent cache poisoning by out-of-bailiwick data.
+ * </p>
+ */
+public class DelegationCache {
+
+    /**
+     * The default capacity in zones.
+     */
+    public static final int DEFAULT_CAPACITY = 512;
+
+    /**
+     * The capacity in zones.
+     */
+    protected final int capacity;
+
+    /**
+     * The upper bound of the ttl. All longer TTLs will be capped by this ttl.
+     */
+    protected final long maxTTL;
+
+    /**
+     * The backend cache.
+     */
+    private final LinkedHashMap<DnsName, Delegation> backend;
+
+    /**
+     * Create a new DelegationCache with given capacity and upper bound ttl.
+     * @param capacity The capacity in zones.
+     * @param maxTTL The upper bound for any ttl.
+     */
+    @SuppressWarnings("serial")
+    public DelegationCache(final int capacity, final long maxTTL) {
+        this.capacity = capacity;
+        this.maxTTL = maxTTL;
+        backend = new LinkedHashMap<DnsName, Delegation>(
+                Math.min(capacity + (capacity + 3) / 4 + 2, 11), 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Entry<DnsName, Delegation> eldest) {
+                    return size() > capacity;
+                }
+            };
+    }
+
+    /**
+     * Create a new DelegationCache with given capacity.
+     * @param capacity The capacity in zones.
+     */
+    public DelegationCache(final int capacity) {
+        this(capacity, Long.MAX_VALUE);
+    }
+
+    public DelegationCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Cache the delegation found in the authority section of the given referral.
+     *
+     * @param referral the referral.
+     * @param authoritativeZone the zone of the nameserver which sent the referral.
+     */
+    public void offer(DnsMessage referral, DnsName authoritativeZone) {
+        if (referral.authoritativeAnswer) {
+            return;
+        }
+
+        DnsName zone = null;
+        Set<DnsName> nameservers = new LinkedHashSet<>();
+        long ttl = maxTTL;
+        for (Record<? extends Data> record : referral.authoritySection) {
+            Record<NS> nsRecord = record.ifPossibleAs(NS.class);
+            if (nsRecord == null) {
+                continue;
+            }
+            if (zone == null) {
+                // The delegated zone must be below the zone of the referring server.
+                if (nsRecord.name.equals(authoritativeZone) || !nsRecord.name.isChildOf(authoritativeZone)) {
+                    continue;
+                }
+                zone = nsRecord.name;
+            } else if (!nsRecord.name.equals(zone)) {
+                continue;
+            }
+            nameservers.add(nsRecord.payloadData.target);
+            ttl = Math.min(ttl, nsRecord.ttl);
+        }
+        if (zone == null) {
+            return;
+        }
+
+        put(referral, zone, nameservers, ttl, authoritativeZone);
+    }
+
+    /**
+     * Cache the nameservers of the given zone found in the answer section of the given authoritative response to a
+     * query for the NS records of the zone. This is how the response to a priming query, i.e. a query for the root
+     * nameservers as described in RFC 8109, is cached.
+     *
+     * @param response the response.
+     * @param zone the zone.
+     * @param authoritativeZone the zone of the nameserver which sent the response.
+     */
+    public void offerNameserverAnswer(DnsMessage response, DnsName zone, DnsName authoritativeZone) {
+        if (!response.authoritativeAnswer || response.responseCode != RESPONSE_CODE.NO_ERROR) {
+            return;
+        }
+        if (!zone.isChildOf(authoritativeZone)) {
+            return;
+        }
+
+        Set<DnsName> nameservers = new LinkedHashSet<>();
+        long ttl = maxTTL;
+        for (Record<? extends Data> record : response.answerSection) {
+            Record<NS> nsRecord = record.ifPossibleAs(NS.class);
+            if (nsRecord == null || !nsRecord.name.equals(zone)) {
+                continue;
+            }
+            nameservers.add(nsRecord.payloadData.target);
+            ttl = Math.min(ttl, nsRecord.ttl);
+        }
+        if (nameservers.isEmpty()) {
+            return;
+        }
+
+        put(response, zone, nameservers, ttl, authoritativeZone);
+    }
+
+    private void put(DnsMessage response, DnsName zone, Set<DnsName> nameservers, long ttl,
+            DnsName authoritativeZone) {
+        Set<A> ipv4Glue = new LinkedHashSet<>();
+        Set<AAAA> ipv6Glue = new LinkedHashSet<>();
+        for (Record<? extends Data> record : response.additionalSection) {
+            if (!nameservers.contains(record.name) || !record.name.isChildOf(authoritativeZone)) {
+                continue;
+            }
+            switch (record.type) {
+            case A:
+                ipv4Glue.add((A) record.payloadData);
+                break;
+            case AAAA:
+                ipv6Glue.add((AAAA) record.payloadData);
+                break;
+            default:
+                continue;
+            }
+            ttl = Math.min(ttl, record.ttl);
+        }
+
+        // Responses which were not received over the wire are taken as just received.
+        final long receiveTimestamp = response.receiveTimestamp > 0L ? response.receiveTimestamp
+                : System.currentTimeMillis();
+        long expiryDate;
+        if (ttl > (Long.MAX_VALUE - receiveTimestamp) / 1000) {
+            expiryDate = Long.MAX_VALUE;
+        } else {
+            expiryDate = receiveTimestamp + ttl * 1000;
+        }
+        Delegation delegation = new Delegation(zone, new ArrayList<>(nameservers), ipv4Glue, ipv6Glue, expiryDate);
+        synchronized (this) {
+            backend.put(zone, delegation);
+        }
+    }
+
+    /**
+     * Get the cached delegation of the given zone.
+     *
+     * @param zone the zone.
+     * @return the delegation or <code>null</code> if there is no unexpired delegation cached.
+     */
+    public synchronized Delegation get(DnsName zone) {
+        Delegation delegation = backend.get(zone);
+        if (delegation == null) {
+            return null;
+        }
+        if (delegation.expiryDate < System.currentTimeMillis()) {
+            backend.remove(zone);
+            return null;
+        }
+        return delegation;
+    }
+
+    /**
+     * Get the cached delegation of the closest zone enclosing the given name, which may be the name itself. For
+     * example, for <code>a.b.c.example.co.uk</code> this is the delegation of <code>example.co.uk</code> if it is
+     * cached, otherwise the delegation of <code>co.uk</code>, and so on.
+     *
+     * @param name the name.
+     * @return the delegation or <code>null</code> if there is no unexpired delegation cached for the name or any of its
+     *         ancestors.
+     */
+    public synchronized Delegation getClosestEnclosing(DnsName name) {
+        while (true) {
+            Delegation delegation = get(name);
+            if (delegation != null) {
+                return delegation;
+            }
+            if (name.isRootLabel()) {
+                return null;
+            }
+            name = name.getParent();
+        }
+    }
+
+    /**
+     * Clear all entries in this cache.
+     */
+    public synchronized void clear() {
+        backend.clear();
+    }
+
+    /**
+     * Get the number of delegations in this cache, which may include expired ones not yet removed.
+     *
+     * @return the number of delegations.
+     */
+    public synchronized int size() {
+        return backend.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DelegationCache{usage=" + backend.size() + "/" + capacity + "}";
+    }
+
+    /**
+     * The nameservers of a delegated zone and their glue.
+     */
+    public static final class Delegation {
+
+        /**
+         * The delegated zone.
+         */
+        public final DnsName zone;
+
+        /**
+         * The names of the nameservers of the zone.
+         */
+        public final List<DnsName> nameservers;
+
+        /**
+         * The IPv4 glue of the nameservers.
+         */
+        public final Set<A> ipv4Glue;
+
+        /**
+         * The IPv6 glue of the nameservers.
+         */
+        public final Set<AAAA> ipv6Glue;
+
+        /**
+         * The date this delegation expires, in milliseconds since the epoch.
+         */
+        public final long expiryDate;
+
+        private Delegation(DnsName zone, List<DnsName> nameservers, Set<A> ipv4Glue, Set<AAAA> ipv6Glue,
+                long expiryDate) {
+            this.zone = zone;
+            this.nameservers = Collections.unmodifiableList(nameservers);
+            this.ipv4Glue = Collections.unmodifiableSet(ipv4Glue);
+            this.ipv6Glue = Collections.unmodifiableSet(ipv6Glue);
+            this.expiryDate = expiryDate;
+        }
+
+        @Override
+        public String toString() {
+            return zone + " NS " + nameservers;
+        }
+    }
+}
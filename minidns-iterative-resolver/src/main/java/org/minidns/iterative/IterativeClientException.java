@@ -60,6 +60,38 @@ public abstract class IterativeClientException extends MiniDnsException {
 
     }
 
+    public static class MaxGlueDepthReached extends IterativeClientException {
+
+        /**
+         * 
+         */
+        private static final long serialVersionUID = 1L;
+
+        public final int maxGlueDepth;
+
+        public MaxGlueDepthReached(int maxGlueDepth) {
+            super("Maximum depth of nested nameserver address resolutions reached: " + maxGlueDepth);
+            this.maxGlueDepth = maxGlueDepth;
+        }
+
+    }
+
+    public static class ResolutionTimeoutReached extends IterativeClientException {
+
+        /**
+         * 
+         */
+        private static final long serialVersionUID = 1L;
+
+        public final int timeout;
+
+        public ResolutionTimeoutReached(int timeout) {
+            super("Resolution timeout of " + timeout + " ms reached");
+            this.timeout = timeout;
+        }
+
+    }
+
     public static class NotAuthoritativeNorGlueRrFound extends IterativeClientException {
 
         /**
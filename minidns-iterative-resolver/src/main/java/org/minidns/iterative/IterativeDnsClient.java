@@ -17,12 +17,18 @@ import static org.minidns.constants.DnsRootServer.getRandomIpv6RootServer;
 
 import org.minidns.AbstractDnsClient;
 import org.minidns.DnsCache;
+import org.minidns.MiniDnsFuture;
+import org.minidns.RrSet;
+import org.minidns.cache.RrSetCache;
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsmessage.Question;
 import org.minidns.dnsname.DnsName;
 import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.iterative.DelegationCache.Delegation;
 import org.minidns.iterative.IterativeClientException.LoopDetected;
+import org.minidns.iterative.IterativeClientException.MaxGlueDepthReached;
 import org.minidns.iterative.IterativeClientException.NotAuthoritativeNorGlueRrFound;
+import org.minidns.iterative.IterativeClientException.ResolutionTimeoutReached;
 import org.minidns.record.A;
 import org.minidns.record.AAAA;
 import org.minidns.record.RRWithTarget;
@@ -31,9 +37,14 @@ import org.minidns.record.Record.TYPE;
 import org.minidns.record.Data;
 import org.minidns.record.InternetAddressRR;
 import org.minidns.record.NS;
+import org.minidns.source.AbstractDnsDataSource;
+import org.minidns.source.UpstreamStatistics;
+import org.minidns.util.ExceptionCallback;
 import org.minidns.util.MultipleIoException;
+import org.minidns.util.SuccessCallback;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -41,16 +52,109 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 public class IterativeDnsClient extends AbstractDnsClient {
 
+    /**
+     * The default number of nameservers which are queried in parallel.
+     */
+    public static final int DEFAULT_MAX_PARALLEL_QUERIES = 3;
+
+    /**
+     * The default delay in milliseconds after which the next nameserver is queried if the previous ones did not respond
+     * yet. This is the "Connection Attempt Delay" recommended by RFC 8305 § 5.
+     */
+    public static final int DEFAULT_STAGGER_DELAY = 250;
+
+    /**
+     * The default time in milliseconds after which a resolution is aborted.
+     */
+    public static final int DEFAULT_RESOLUTION_TIMEOUT = 30000;
+
+    /**
+     * The default maximum number of queries a single resolution has in flight.
+     */
+    public static final int DEFAULT_MAX_QUERIES_IN_FLIGHT = 16;
+
+    /**
+     * The default maximum depth of nested nameserver address resolutions, i.e. of resolutions of the addresses of
+     * non-glued nameservers, which may themselves require the resolution of the addresses of non-glued nameservers.
+     */
+    public static final int DEFAULT_MAX_GLUE_DEPTH = 7;
+
+    /**
+     * The maximum number of threads performing parallel queries and nameserver address resolutions. Blocking queries
+     * ignore interrupts and hence keep their thread until they time out, even if they are no longer needed. Once all
+     * threads are busy, the task is performed by the submitting thread. As tasks are never queued, nested resolutions
+     * waiting for the tasks they submitted can not deadlock.
+     */
+    static final int MAX_EXECUTOR_THREADS = 64;
+
+    private static final ExecutorService EXECUTOR;
+
+    static {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName("MiniDNS Iterative Resolver Thread");
+                return thread;
+            }
+        };
+        // Queries and nested resolutions must run in parallel to the others, hence do not queue them.
+        EXECUTOR = new ThreadPoolExecutor(0, MAX_EXECUTOR_THREADS, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
     int maxSteps = 128;
 
+    private int maxParallelQueries = DEFAULT_MAX_PARALLEL_QUERIES;
+
+    private int staggerDelay = DEFAULT_STAGGER_DELAY;
+
+    private int resolutionTimeout = DEFAULT_RESOLUTION_TIMEOUT;
+
+    private int maxQueriesInFlight = DEFAULT_MAX_QUERIES_IN_FLIGHT;
+
+    private int maxGlueDepth = DEFAULT_MAX_GLUE_DEPTH;
+
+    private DelegationCache delegationCache = new DelegationCache();
+
+    private final AsyncIterativeResolver asyncResolver = new AsyncIterativeResolver(this);
+
     /**
      * Create a new recursive DNS client using the global default cache.
      */
@@ -76,12 +180,182 @@ public class IterativeDnsClient extends AbstractDnsClient {
      */
     @Override
     protected DnsQueryResult query(DnsMessage.Builder queryBuilder) throws IOException {
-        DnsMessage q = queryBuilder.build();
-        ResolutionState resolutionState = new ResolutionState(this);
+        return query(queryBuilder, false);
+    }
+
+    @Override
+    protected DnsQueryResult query(DnsMessage.Builder queryBuilder, boolean bypassCache) throws IOException {
+        // Prefetches start from the question only, but have to match the cached query.
+        DnsMessage q = newQuestion(queryBuilder).build();
+        ResolutionState resolutionState = new ResolutionState(this, bypassCache);
         DnsQueryResult result = queryRecursive(resolutionState, q);
         return result;
     }
 
+    /**
+     * Recursively query the DNS system for one entry without blocking. If the data source performs asynchronous
+     * queries without blocking, e.g. <code>AsyncNetworkDataSource</code> of MiniDNS async, every step of the
+     * resolution is chained onto the future of the previous one, so that no thread waits for a response. Otherwise the
+     * synchronous resolution is used.
+     *
+     * @param queryBuilder The query DNS message builder.
+     * @return the future of the response.
+     */
+    @Override
+    protected MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage.Builder queryBuilder) {
+        return queryAsync(queryBuilder, false);
+    }
+
+    @Override
+    protected MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage.Builder queryBuilder, boolean bypassCache) {
+        if (!isAsyncQueryNonBlocking()) {
+            return super.queryAsync(queryBuilder, bypassCache);
+        }
+        DnsMessage q = newQuestion(queryBuilder).build();
+        return asyncResolver.resolve(q, bypassCache);
+    }
+
+    private boolean isAsyncQueryNonBlocking() {
+        return dataSource instanceof AbstractDnsDataSource
+                && ((AbstractDnsDataSource) dataSource).isAsyncQueryNonBlocking();
+    }
+
+    /**
+     * Prime the root nameservers as described in RFC 8109, i.e. ask the built-in root servers for the current set of
+     * root nameservers, and put them into the delegation cache.
+     *
+     * @throws IOException if the priming query failed.
+     * @see #prewarm(Collection)
+     */
+    public void primeRootServers() throws IOException {
+        loadDelegation(DnsName.ROOT);
+    }
+
+    /**
+     * Prime the root nameservers and load the delegations of the given zones, usually top-level domains, into the
+     * delegation cache. The queries are performed in parallel, with at most {@link #getMaxQueriesInFlight()} of them in
+     * flight. This is meant to be invoked at startup, so that the resolutions of names within the given zones skip the
+     * root servers right from the start.
+     *
+     * @param zones the zones, e.g. <code>com</code> and <code>net</code>.
+     * @return the number of loaded delegations, including the one of the root zone.
+     * @throws IOException if not a single delegation could be loaded.
+     * @see #primeRootServers()
+     */
+    public int prewarm(Collection<? extends CharSequence> zones) throws IOException {
+        Set<DnsName> zoneNames = new LinkedHashSet<>();
+        zoneNames.add(DnsName.ROOT);
+        for (CharSequence zone : zones) {
+            zoneNames.add(DnsName.from(zone));
+        }
+
+        CompletionService<DnsName> completionService = new ExecutorCompletionService<>(EXECUTOR);
+        List<Future<DnsName>> loads = new ArrayList<>(zoneNames.size());
+        List<IOException> ioExceptions = new LinkedList<>();
+        int loaded = 0;
+        int inFlight = 0;
+        try {
+            Iterator<DnsName> iterator = zoneNames.iterator();
+            while (iterator.hasNext() || inFlight > 0) {
+                while (iterator.hasNext() && inFlight < maxQueriesInFlight) {
+                    final DnsName zone = iterator.next();
+                    loads.add(completionService.submit(new Callable<DnsName>() {
+                        @Override
+                        public DnsName call() throws IOException {
+                            loadDelegation(zone);
+                            return zone;
+                        }
+                    }));
+                    inFlight++;
+                }
+
+                Future<DnsName> completed = completionService.take();
+                inFlight--;
+                try {
+                    getResult(completed);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Could not load delegation", e);
+                    ioExceptions.add(e);
+                    continue;
+                }
+                loaded++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interruptedIOException = new InterruptedIOException("Interrupted while prewarming");
+            interruptedIOException.initCause(e);
+            throw interruptedIOException;
+        } finally {
+            for (Future<DnsName> load : loads) {
+                load.cancel(true);
+            }
+        }
+
+        if (loaded == 0) {
+            MultipleIoException.throwIfRequired(ioExceptions);
+        }
+        return loaded;
+    }
+
+    /**
+     * Query the nameservers of the given zone and cache them. The root nameservers are queried at the root hints, all
+     * other zones at the nameservers of the closest known enclosing zone, which usually answer with a referral.
+     *
+     * @param zone the zone.
+     * @throws IOException if an IO error occurs or the response does not contain the nameservers of the zone.
+     */
+    private void loadDelegation(DnsName zone) throws IOException {
+        DnsMessage q = getQueryFor(new Question(zone, TYPE.NS));
+        Targets targets;
+        if (zone.isRootLabel()) {
+            // Never prime using a previously primed root nameserver set.
+            targets = getRootHintsTargets();
+        } else {
+            targets = getInitialTargets(q);
+        }
+
+        DnsQueryResult result = queryFirstResponding(new ResolutionState(this), q, targets.addresses);
+        DnsMessage response = result.response;
+        List<Record<? extends Data>> nsRecords;
+        if (response.authoritativeAnswer) {
+            if (delegationCache != null) {
+                delegationCache.offerNameserverAnswer(response, zone, targets.authoritativeZone);
+            }
+            nsRecords = response.answerSection;
+        } else {
+            getReferrals(q, result, targets.authoritativeZone);
+            nsRecords = response.authoritySection;
+        }
+
+        for (Record<? extends Data> record : nsRecords) {
+            if (record.type == TYPE.NS && record.name.equals(zone)) {
+                return;
+            }
+        }
+        throw new IOException("The response of the nameservers of '" + targets.authoritativeZone
+                + "' does not contain the nameservers of '" + zone + "'");
+    }
+
+    /**
+     * Get the built-in root servers, as many as may be queried in parallel, but at least two.
+     *
+     * @return the root servers.
+     */
+    private Targets getRootHintsTargets() {
+        final UpstreamStatistics upstreamStatistics = getUpstreamStatistics();
+        if (upstreamStatistics != null) {
+            return selectInitialTargets(null, upstreamStatistics);
+        }
+
+        List<InetAddress> candidates = new ArrayList<>();
+        for (char rootServerId = 'a'; rootServerId <= 'm'; rootServerId++) {
+            candidates.addAll(getRootServer(rootServerId, ipVersionSetting));
+        }
+        Collections.shuffle(candidates, insecureRandom);
+        final int targetCount = Math.min(candidates.size(), Math.max(2, maxParallelQueries));
+        return new Targets(new ArrayList<>(candidates.subList(0, targetCount)), DnsName.ROOT);
+    }
+
     private static InetAddress[] getTargets(Collection<? extends InternetAddressRR> primaryTargets,
             Collection<? extends InternetAddressRR> secondaryTargets) {
         InetAddress[] res = new InetAddress[2];
@@ -115,47 +389,65 @@ public class IterativeDnsClient extends AbstractDnsClient {
     }
 
     private DnsQueryResult queryRecursive(ResolutionState resolutionState, DnsMessage q) throws IOException {
+        Targets targets = getInitialTargets(q);
+        return queryRecursive(resolutionState, q, targets.addresses, targets.authoritativeZone);
+    }
+
+    /**
+     * Get the nameservers the resolution of the given query starts with.
+     *
+     * @param q the query.
+     * @return the nameservers of the closest enclosing zone with known nameserver addresses, or root servers.
+     */
+    Targets getInitialTargets(DnsMessage q) {
         InetAddress primaryTarget = null, secondaryTarget = null;
 
         Question question = q.getQuestion();
-        DnsName parent = question.name.getParent();
+        ZoneCut zoneCut = getClosestZoneCut(question.name);
 
-        switch (ipVersionSetting) {
-        case v4only:
-            for (A a : getCachedIPv4NameserverAddressesFor(parent)) {
-                if (primaryTarget == null) {
-                    primaryTarget = a.getInetAddress();
-                    continue;
+        final UpstreamStatistics upstreamStatistics = getUpstreamStatistics();
+        if (upstreamStatistics != null) {
+            return selectInitialTargets(zoneCut, upstreamStatistics);
+        }
+
+        if (zoneCut != null) {
+            switch (ipVersionSetting) {
+            case v4only:
+                for (A a : zoneCut.ipv4Addresses) {
+                    if (primaryTarget == null) {
+                        primaryTarget = a.getInetAddress();
+                        continue;
+                    }
+                    secondaryTarget = a.getInetAddress();
+                    break;
                 }
-                secondaryTarget = a.getInetAddress();
                 break;
-            }
-            break;
-        case v6only:
-            for (AAAA aaaa : getCachedIPv6NameserverAddressesFor(parent)) {
-                if (primaryTarget == null) {
-                    primaryTarget = aaaa.getInetAddress();
-                    continue;
+            case v6only:
+                for (AAAA aaaa : zoneCut.ipv6Addresses) {
+                    if (primaryTarget == null) {
+                        primaryTarget = aaaa.getInetAddress();
+                        continue;
+                    }
+                    secondaryTarget = aaaa.getInetAddress();
+                    break;
                 }
-                secondaryTarget = aaaa.getInetAddress();
                 break;
+            case v4v6:
+                InetAddress[] v4v6targets = getTargets(zoneCut.ipv4Addresses, zoneCut.ipv6Addresses);
+                primaryTarget = v4v6targets[0];
+                secondaryTarget = v4v6targets[1];
+                break;
+            case v6v4:
+                InetAddress[] v6v4targets = getTargets(zoneCut.ipv6Addresses, zoneCut.ipv4Addresses);
+                primaryTarget = v6v4targets[0];
+                secondaryTarget = v6v4targets[1];
+                break;
+            default:
+                throw new AssertionError();
             }
-            break;
-        case v4v6:
-            InetAddress[] v4v6targets = getTargets(getCachedIPv4NameserverAddressesFor(parent), getCachedIPv6NameserverAddressesFor(parent));
-            primaryTarget = v4v6targets[0];
-            secondaryTarget = v4v6targets[1];
-            break;
-        case v6v4:
-            InetAddress[] v6v4targets = getTargets(getCachedIPv6NameserverAddressesFor(parent), getCachedIPv4NameserverAddressesFor(parent));
-            primaryTarget = v6v4targets[0];
-            secondaryTarget = v6v4targets[1];
-            break;
-        default:
-            throw new AssertionError();
         }
 
-        DnsName authoritativeZone = parent;
+        DnsName authoritativeZone = zoneCut != null ? zoneCut.zone : null;
         if (primaryTarget == null) {
             authoritativeZone = DnsName.ROOT;
             switch (ipVersionSetting) {
@@ -176,112 +468,549 @@ public class IterativeDnsClient extends AbstractDnsClient {
             }
         }
 
-        List<IOException> ioExceptions = new LinkedList<>();
+        List<InetAddress> targets = new ArrayList<>(2);
+        targets.add(primaryTarget);
+        if (secondaryTarget != null) {
+            targets.add(secondaryTarget);
+        }
+        return new Targets(targets, authoritativeZone);
+    }
 
-        try {
-            return queryRecursive(resolutionState, q, primaryTarget, authoritativeZone);
-        } catch (IOException ioException) {
-            abortIfFatal(ioException);
-            ioExceptions.add(ioException);
+    /**
+     * Select the fastest of the known nameservers of the closest enclosing zone, or of the root servers if there are
+     * none, according to the upstream statistics.
+     *
+     * @param zoneCut the closest enclosing zone with known nameserver addresses, or <code>null</code>.
+     * @param upstreamStatistics the upstream statistics.
+     * @return the selected nameservers.
+     */
+    private Targets selectInitialTargets(ZoneCut zoneCut, UpstreamStatistics upstreamStatistics) {
+        List<InetAddress> candidates = new ArrayList<>();
+        DnsName authoritativeZone = null;
+        if (zoneCut != null) {
+            authoritativeZone = zoneCut.zone;
+            switch (ipVersionSetting) {
+            case v4only:
+                addInetAddresses(candidates, zoneCut.ipv4Addresses);
+                break;
+            case v6only:
+                addInetAddresses(candidates, zoneCut.ipv6Addresses);
+                break;
+            case v4v6:
+                addInetAddresses(candidates, zoneCut.ipv4Addresses);
+                addInetAddresses(candidates, zoneCut.ipv6Addresses);
+                break;
+            case v6v4:
+                addInetAddresses(candidates, zoneCut.ipv6Addresses);
+                addInetAddresses(candidates, zoneCut.ipv4Addresses);
+                break;
+            default:
+                throw new AssertionError();
+            }
         }
 
-        if (secondaryTarget != null) {
-            try {
-                return queryRecursive(resolutionState, q, secondaryTarget, authoritativeZone);
-            } catch (IOException ioException) {
-                ioExceptions.add(ioException);
+        if (candidates.isEmpty()) {
+            authoritativeZone = DnsName.ROOT;
+            for (char rootServerId = 'a'; rootServerId <= 'm'; rootServerId++) {
+                candidates.addAll(getRootServer(rootServerId, ipVersionSetting));
             }
         }
 
-        MultipleIoException.throwIfRequired(ioExceptions);
-        return null;
+        // Select as many targets as may be queried in parallel, but at least a primary and a secondary target.
+        final int targetCount = Math.max(2, maxParallelQueries);
+        List<InetAddress> targets = new ArrayList<>(targetCount);
+        while (targets.size() < targetCount) {
+            InetAddress target = upstreamStatistics.select(candidates, insecureRandom);
+            if (target == null) {
+                break;
+            }
+            candidates.remove(target);
+            targets.add(target);
+        }
+        return new Targets(targets, authoritativeZone);
     }
 
-    private DnsQueryResult queryRecursive(ResolutionState resolutionState, DnsMessage q, InetAddress address, DnsName authoritativeZone) throws IOException {
-        resolutionState.recurse(address, q);
+    /**
+     * Find the closest zone enclosing the given name whose nameserver addresses are known, either from the delegation
+     * cache or from the DNS cache. The search starts at the parent of the name and walks up the labels, so that for
+     * example <code>a.b.c.example.co.uk</code> is resolved starting at the nameservers of <code>example.co.uk</code>,
+     * or of <code>co.uk</code>, instead of the root servers.
+     * <p>
+     * If the DNS cache is a {@link RrSetCache}, the closest zone with cached nameservers is found with a single lookup,
+     * instead of asking the cache for the nameservers of every ancestor.
+     * </p>
+     *
+     * @param name the name.
+     * @return the closest zone cut or <code>null</code> if not even the addresses of the root servers are known.
+     */
+    private ZoneCut getClosestZoneCut(DnsName name) {
+        final RrSetCache rrSetCache = cache instanceof RrSetCache ? (RrSetCache) cache : null;
+        // The closest enclosing zone with a cached NS RRset, which is looked up once the walk reaches it.
+        DnsName nextCachedZone = null;
+        boolean cachedZoneLookedUp = false;
+        DnsName zone = name.getParent();
+        while (true) {
+            Set<A> ipv4Addresses = Collections.emptySet();
+            Set<AAAA> ipv6Addresses = Collections.emptySet();
+            Delegation delegation = delegationCache != null ? delegationCache.get(zone) : null;
+            if (delegation != null) {
+                if (ipVersionSetting.v4) {
+                    ipv4Addresses = getNameserverAddresses(delegation, delegation.ipv4Glue, TYPE.A);
+                }
+                if (ipVersionSetting.v6) {
+                    ipv6Addresses = getNameserverAddresses(delegation, delegation.ipv6Glue, TYPE.AAAA);
+                }
+            }
+            if (ipv4Addresses.isEmpty() && ipv6Addresses.isEmpty() && rrSetCache != null) {
+                if (!cachedZoneLookedUp) {
+                    RrSet nsRrSet = rrSetCache.getClosestEnclosingRrSet(zone, TYPE.NS);
+                    nextCachedZone = nsRrSet != null ? nsRrSet.name : null;
+                    cachedZoneLookedUp = true;
+                }
+                if (zone.equals(nextCachedZone)) {
+                    if (ipVersionSetting.v4) {
+                        ipv4Addresses = getCachedIPv4NameserverAddressesFor(zone);
+                    }
+                    if (ipVersionSetting.v6) {
+                        ipv6Addresses = getCachedIPv6NameserverAddressesFor(zone);
+                    }
+                    // The nameserver addresses may be unknown, continue with the next enclosing zone in the cache.
+                    cachedZoneLookedUp = false;
+                }
+            } else if (ipv4Addresses.isEmpty() && ipv6Addresses.isEmpty() && cache != null) {
+                if (ipVersionSetting.v4) {
+                    ipv4Addresses = getCachedIPv4NameserverAddressesFor(zone);
+                }
+                if (ipVersionSetting.v6) {
+                    ipv6Addresses = getCachedIPv6NameserverAddressesFor(zone);
+                }
+            }
+            if (!ipv4Addresses.isEmpty() || !ipv6Addresses.isEmpty()) {
+                return new ZoneCut(zone, ipv4Addresses, ipv6Addresses);
+            }
+            if (zone.isRootLabel()) {
+                return null;
+            }
+            zone = zone.getParent();
+        }
+    }
+
+    /**
+     * Get the addresses of the nameservers of the given delegation. These are the glue, or, if there is none, the
+     * cached addresses of the nameservers.
+     *
+     * @param delegation the delegation.
+     * @param glue the glue of the requested type.
+     * @param type the type, either A or AAAA.
+     * @param <D> the type of the addresses.
+     * @return the addresses.
+     */
+    @SuppressWarnings("unchecked")
+    private <D extends InternetAddressRR> Set<D> getNameserverAddresses(Delegation delegation, Set<D> glue, TYPE type) {
+        if (!glue.isEmpty() || cache == null) {
+            return glue;
+        }
+        Set<D> addresses = new LinkedHashSet<>();
+        for (DnsName nameserver : delegation.nameservers) {
+            switch (type) {
+            case A:
+                addresses.addAll((Set<D>) getCachedIPv4AddressesFor(nameserver));
+                break;
+            case AAAA:
+                addresses.addAll((Set<D>) getCachedIPv6AddressesFor(nameserver));
+                break;
+            default:
+                throw new AssertionError();
+            }
+        }
+        return addresses;
+    }
 
-        DnsQueryResult dnsQueryResult = query(q, address);
+    private static void addInetAddresses(List<InetAddress> addresses, Collection<? extends InternetAddressRR> records) {
+        for (InternetAddressRR record : records) {
+            addresses.add(record.getInetAddress());
+        }
+    }
+
+    private DnsQueryResult queryRecursive(ResolutionState resolutionState, DnsMessage q, List<InetAddress> targets,
+            DnsName authoritativeZone) throws IOException {
+        DnsQueryResult dnsQueryResult = queryFirstResponding(resolutionState, q, targets);
 
         DnsMessage resMessage = dnsQueryResult.response;
         if (resMessage.authoritativeAnswer) {
             return dnsQueryResult;
         }
 
+        List<IOException> ioExceptions = new LinkedList<>();
+        for (Referral referral : getReferrals(q, dnsQueryResult, authoritativeZone)) {
+            // Glued NS first
+            if (!referral.gluedAddresses.isEmpty()) {
+                try {
+                    return queryRecursive(resolutionState, q, referral.gluedAddresses, referral.zone);
+                } catch (IOException e) {
+                    abortIfFatal(e);
+                    LOGGER.log(Level.FINER, "Exception while recursing", e);
+                    ioExceptions.add(e);
+                }
+            }
+
+            // Try non-glued NS
+            if (!referral.nonGluedNs.isEmpty()) {
+                DnsQueryResult recursive = queryNonGluedNs(resolutionState, q, referral.nonGluedNs, referral.zone,
+                        ioExceptions);
+                if (recursive != null) {
+                    return recursive;
+                }
+            }
+        }
+
+        MultipleIoException.throwIfRequired(ioExceptions);
+
+        // Reaching this point means we did not receive an authoritative answer, nor
+        // where we able to find glue records or the IPs of the next nameservers.
+        throw new NotAuthoritativeNorGlueRrFound(q, dnsQueryResult, authoritativeZone);
+    }
+
+    /**
+     * Cache the delegation of the given referral and get the nameservers it refers to.
+     *
+     * @param q the query.
+     * @param dnsQueryResult the result containing the referral.
+     * @param authoritativeZone the zone of the nameserver which sent the referral.
+     * @return the referrals, one for every delegated zone, which usually is only one.
+     */
+    List<Referral> getReferrals(DnsMessage q, DnsQueryResult dnsQueryResult, DnsName authoritativeZone) {
+        DnsMessage resMessage = dnsQueryResult.response;
         if (cache != null) {
             cache.offer(q, dnsQueryResult, authoritativeZone);
         }
+        if (delegationCache != null) {
+            delegationCache.offer(resMessage, authoritativeZone);
+        }
 
         List<Record<? extends Data>> authorities = resMessage.copyAuthority();
 
-        List<IOException> ioExceptions = new LinkedList<>();
+        final UpstreamStatistics upstreamStatistics = getUpstreamStatistics();
+        if (upstreamStatistics != null) {
+            sortByGlueRtt(authorities, resMessage, upstreamStatistics);
+        }
 
-        // Glued NS first
-        for (Iterator<Record<? extends Data>> iterator = authorities.iterator(); iterator.hasNext(); ) {
-            Record<NS> record = iterator.next().ifPossibleAs(NS.class);
-            if (record == null) {
-                iterator.remove();
+        // Group the NS records by the zone they delegate to.
+        Map<DnsName, List<Record<NS>>> delegations = new LinkedHashMap<>();
+        for (Record<? extends Data> record : authorities) {
+            Record<NS> nsRecord = record.ifPossibleAs(NS.class);
+            if (nsRecord == null) {
                 continue;
             }
-            DnsName name = record.payloadData.target;
-            IpResultSet gluedNs = searchAdditional(resMessage, name);
-            for (Iterator<InetAddress> addressIterator = gluedNs.addresses.iterator(); addressIterator.hasNext(); ) {
-                InetAddress target = addressIterator.next();
-                DnsQueryResult recursive = null;
+            List<Record<NS>> nsRecords = delegations.get(nsRecord.name);
+            if (nsRecords == null) {
+                nsRecords = new ArrayList<>();
+                delegations.put(nsRecord.name, nsRecords);
+            }
+            nsRecords.add(nsRecord);
+        }
+
+        List<Referral> referrals = new ArrayList<>(delegations.size());
+        final Question question = q.getQuestion();
+        for (Map.Entry<DnsName, List<Record<NS>>> delegation : delegations.entrySet()) {
+            List<List<InetAddress>> gluedAddresses = new ArrayList<>();
+            List<DnsName> nonGluedNs = new ArrayList<>();
+            for (Record<NS> record : delegation.getValue()) {
+                DnsName name = record.payloadData.target;
+                IpResultSet gluedNs = searchAdditional(resMessage, name);
+                if (!gluedNs.addresses.isEmpty()) {
+                    gluedAddresses.add(sortByRtt(gluedNs.addresses, upstreamStatistics));
+                    continue;
+                }
+                // Loop prevention: If this non-glued NS equals the name we question for and if the question is about a
+                // A or AAAA RR, then we should not continue here as it would result in an endless loop.
+                if (question.name.equals(name) && (question.type == TYPE.A || question.type == TYPE.AAAA)) {
+                    continue;
+                }
+                nonGluedNs.add(name);
+            }
+            referrals.add(new Referral(delegation.getKey(), interleave(gluedAddresses), nonGluedNs));
+        }
+        return referrals;
+    }
+
+    /**
+     * Query the given targets in a staggered race and return the first response which is an answer or a referral. The
+     * first target is queried immediately, and every further target is queried once the stagger delay has passed
+     * without a response, or as soon as a query in flight failed, while at most {@link #getMaxParallelQueries()}
+     * queries are in flight. This way an unresponsive nameserver does not cost a full timeout before the next one is
+     * asked.
+     *
+     * @param resolutionState the resolution state.
+     * @param q the query.
+     * @param targets the targets, best first.
+     * @return the first response which is an answer or a referral, or the first error response if there is none.
+     * @throws IOException if no target responded.
+     */
+    private DnsQueryResult queryFirstResponding(ResolutionState resolutionState, final DnsMessage q,
+            List<InetAddress> targets) throws IOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Interrupted while resolving " + q.getQuestion());
+        }
+
+        // Queries of a non-blocking data source are not run on the executor, as only their futures can be cancelled.
+        final boolean nonBlocking = maxParallelQueries > 1 && isAsyncQueryNonBlocking();
+        final boolean bypassCache = resolutionState.isBypassCache();
+        final BlockingQueue<Future<DnsQueryResult>> completionQueue = new LinkedBlockingQueue<>();
+        CompletionService<DnsQueryResult> completionService = new ExecutorCompletionService<>(getExecutor(),
+                completionQueue);
+        List<Future<DnsQueryResult>> attempts = new ArrayList<>(targets.size());
+        List<IOException> ioExceptions = new LinkedList<>();
+        LoopDetected loopDetected = null;
+        DnsQueryResult errorResult = null;
+        int inFlight = 0;
+        try {
+            Iterator<InetAddress> iterator = targets.iterator();
+            while (iterator.hasNext() || inFlight > 0) {
+                if (iterator.hasNext() && inFlight < maxParallelQueries && resolutionState.startQuery(inFlight > 0)) {
+                    inFlight++;
+                    final InetAddress target = iterator.next();
+                    try {
+                        resolutionState.recurse(target, q);
+                    } catch (LoopDetected e) {
+                        // Another target may still lead somewhere else.
+                        inFlight--;
+                        resolutionState.finishQueries(1);
+                        loopDetected = e;
+                        continue;
+                    }
+                    if (nonBlocking) {
+                        attempts.add(queryAsync(q, target, bypassCache, completionQueue));
+                    } else {
+                        attempts.add(completionService.submit(new Callable<DnsQueryResult>() {
+                            @Override
+                            public DnsQueryResult call() throws IOException {
+                                return query(q, target, 53, bypassCache);
+                            }
+                        }));
+                    }
+                }
+
+                final long remainingTime = resolutionState.getRemainingTime();
+                Future<DnsQueryResult> completed;
+                if (iterator.hasNext() && inFlight < maxParallelQueries) {
+                    completed = completionService.poll(Math.min(staggerDelay, remainingTime), TimeUnit.MILLISECONDS);
+                } else {
+                    completed = completionService.poll(remainingTime, TimeUnit.MILLISECONDS);
+                }
+                if (completed == null) {
+                    continue;
+                }
+                inFlight--;
+                resolutionState.finishQueries(1);
+
+                DnsQueryResult result;
                 try {
-                    recursive = queryRecursive(resolutionState, q, target, record.name);
+                    result = getResult(completed);
                 } catch (IOException e) {
-                   abortIfFatal(e);
-                   LOGGER.log(Level.FINER, "Exception while recursing", e);
-                   resolutionState.decrementSteps();
-                   ioExceptions.add(e);
-                   if (!addressIterator.hasNext()) {
-                       iterator.remove();
-                   }
-                   continue;
+                    LOGGER.log(Level.FINER, "Exception while querying " + q.getQuestion(), e);
+                    resolutionState.decrementSteps();
+                    ioExceptions.add(e);
+                    continue;
                 }
-                return recursive;
+                if (isAnswerOrReferral(result.response)) {
+                    return result;
+                }
+                if (errorResult == null) {
+                    errorResult = result;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interruptedIOException = new InterruptedIOException("Interrupted while resolving " + q.getQuestion());
+            interruptedIOException.initCause(e);
+            throw interruptedIOException;
+        } finally {
+            // Cancel the queries still in flight.
+            for (Future<DnsQueryResult> attempt : attempts) {
+                attempt.cancel(true);
             }
+            resolutionState.finishQueries(inFlight);
         }
 
-        // Try non-glued NS
-        for (Record<? extends Data> record : authorities) {
-            final Question question = q.getQuestion();
-            DnsName name = ((NS) record.payloadData).target;
-
-            // Loop prevention: If this non-glued NS equals the name we question for and if the question is about a A or
-            // AAAA RR, then we should not continue here as it would result in an endless loop.
-            if (question.name.equals(name) && (question.type == TYPE.A || question.type == TYPE.AAAA))
-                continue;
+        if (errorResult != null) {
+            return errorResult;
+        }
+        MultipleIoException.throwIfRequired(ioExceptions);
+        if (loopDetected != null) {
+            throw loopDetected;
+        }
+        throw new IllegalArgumentException("No targets to query");
+    }
 
-            IpResultSet res = null;
-            try {
-                res = resolveIpRecursive(resolutionState, name);
-            } catch (IOException e) {
-                resolutionState.decrementSteps();
-                ioExceptions.add(e);
+    private MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage q, InetAddress target, boolean bypassCache,
+            final BlockingQueue<Future<DnsQueryResult>> completionQueue) {
+        final MiniDnsFuture<DnsQueryResult, IOException> attempt = queryAsync(q, target, 53, bypassCache);
+        // The callbacks of a future may be invoked more than once.
+        final AtomicBoolean completed = new AtomicBoolean();
+        attempt.onSuccess(new SuccessCallback<DnsQueryResult>() {
+            @Override
+            public void onSuccess(DnsQueryResult result) {
+                if (completed.compareAndSet(false, true)) {
+                    completionQueue.add(attempt);
+                }
             }
-            if (res == null) {
-                continue;
+        });
+        attempt.onError(new ExceptionCallback<IOException>() {
+            @Override
+            public void processException(IOException exception) {
+                if (completed.compareAndSet(false, true)) {
+                    completionQueue.add(attempt);
+                }
             }
+        });
+        return attempt;
+    }
+
+    static boolean isAnswerOrReferral(DnsMessage response) {
+        if (response.authoritativeAnswer) {
+            return true;
+        }
+        switch (response.responseCode) {
+        case NO_ERROR:
+        case NX_DOMAIN:
+            return true;
+        default:
+            // E.g. SERVFAIL or REFUSED by a lame nameserver.
+            return false;
+        }
+    }
 
-            for (InetAddress target : res.addresses) {
-                DnsQueryResult recursive = null;
+    /**
+     * Resolve the addresses of the given non-glued nameservers in parallel, and continue the resolution with the
+     * nameserver whose addresses are resolved first. If the resolution fails with this nameserver, the next one is
+     * used.
+     *
+     * @param resolutionState the resolution state.
+     * @param q the query.
+     * @param names the names of the non-glued nameservers.
+     * @param authoritativeZone the zone the nameservers are authoritative for.
+     * @param ioExceptions the list where the exceptions of failed attempts are added to.
+     * @return the result or <code>null</code> if the resolution failed with all nameservers.
+     * @throws IOException if a fatal IO error occurs.
+     */
+    private DnsQueryResult queryNonGluedNs(ResolutionState resolutionState, DnsMessage q, List<DnsName> names,
+            DnsName authoritativeZone, List<IOException> ioExceptions) throws IOException {
+        final ResolutionState glueResolutionState;
+        try {
+            glueResolutionState = resolutionState.enterGlueResolution();
+        } catch (MaxGlueDepthReached e) {
+            LOGGER.log(Level.FINER, "Not resolving the addresses of " + names, e);
+            ioExceptions.add(e);
+            return null;
+        }
+        final UpstreamStatistics upstreamStatistics = getUpstreamStatistics();
+        CompletionService<IpResultSet> completionService = new ExecutorCompletionService<>(getExecutor());
+        List<Future<IpResultSet>> resolutions = new ArrayList<>(names.size());
+        int inFlight = 0;
+        try {
+            Iterator<DnsName> iterator = names.iterator();
+            while (iterator.hasNext() || inFlight > 0) {
+                while (iterator.hasNext() && inFlight < maxParallelQueries) {
+                    final DnsName name = iterator.next();
+                    resolutions.add(completionService.submit(new Callable<IpResultSet>() {
+                        @Override
+                        public IpResultSet call() throws IOException {
+                            return resolveIpRecursive(glueResolutionState, name);
+                        }
+                    }));
+                    inFlight++;
+                }
+
+                Future<IpResultSet> completed = completionService.poll(resolutionState.getRemainingTime(),
+                        TimeUnit.MILLISECONDS);
+                if (completed == null) {
+                    continue;
+                }
+                inFlight--;
+
+                IpResultSet res;
                 try {
-                    recursive = queryRecursive(resolutionState, q, target, record.name);
+                    res = getResult(completed);
                 } catch (IOException e) {
-                    resolutionState.decrementSteps();
+                    abortIfFatal(e);
                     ioExceptions.add(e);
                     continue;
                 }
-                return recursive;
+                if (res.addresses.isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    return queryRecursive(resolutionState, q, sortByRtt(res.addresses, upstreamStatistics),
+                            authoritativeZone);
+                } catch (IOException e) {
+                    abortIfFatal(e);
+                    LOGGER.log(Level.FINER, "Exception while recursing", e);
+                    ioExceptions.add(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interruptedIOException = new InterruptedIOException("Interrupted while resolving " + q.getQuestion());
+            interruptedIOException.initCause(e);
+            throw interruptedIOException;
+        } finally {
+            // Cancel the resolutions still in flight.
+            for (Future<IpResultSet> resolution : resolutions) {
+                resolution.cancel(true);
             }
         }
+        return null;
+    }
 
-        MultipleIoException.throwIfRequired(ioExceptions);
+    private static <T> T getResult(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
 
-        // Reaching this point means we did not receive an authoritative answer, nor
-        // where we able to find glue records or the IPs of the next nameservers.
-        throw new NotAuthoritativeNorGlueRrFound(q, dnsQueryResult, authoritativeZone);
+    /**
+     * Interleave the addresses of the nameservers, so that the first addresses of all nameservers come first. This way
+     * the targets queried in parallel are different servers, rather than the IPv4 and IPv6 address of the same one.
+     *
+     * @param addressLists the addresses of every nameserver.
+     * @return the interleaved addresses, without duplicates.
+     */
+    private static List<InetAddress> interleave(List<List<InetAddress>> addressLists) {
+        Set<InetAddress> addresses = new LinkedHashSet<>();
+        for (int i = 0; ; i++) {
+            boolean added = false;
+            for (List<InetAddress> addressList : addressLists) {
+                if (i < addressList.size()) {
+                    addresses.add(addressList.get(i));
+                    added = true;
+                }
+            }
+            if (!added) {
+                break;
+            }
+        }
+        return new ArrayList<>(addresses);
+    }
+
+    private Executor getExecutor() {
+        if (maxParallelQueries > 1) {
+            return EXECUTOR;
+        }
+        return DIRECT_EXECUTOR;
     }
 
     private IpResultSet resolveIpRecursive(ResolutionState resolutionState, DnsName name) throws IOException {
@@ -292,17 +1021,9 @@ public class IterativeDnsClient extends AbstractDnsClient {
             Question question = new Question(name, TYPE.A);
             final DnsMessage query = getQueryFor(question);
             DnsQueryResult aDnsQueryResult = queryRecursive(resolutionState, query);
-            // TODO: queryRecurisve() should probably never return null. Verify that and then remove the follwing null check.
-            DnsMessage aMessage = aDnsQueryResult != null ? aDnsQueryResult.response : null;
-            if (aMessage != null) {
-                for (Record<? extends Data> answer : aMessage.answerSection) {
-                    if (answer.isAnswer(question)) {
-                        InetAddress inetAddress = inetAddressFromRecord(name.ace, (A) answer.payloadData);
-                        res.ipv4Addresses.add(inetAddress);
-                    } else if (answer.type == TYPE.CNAME && answer.name.equals(name)) {
-                        return resolveIpRecursive(resolutionState, ((RRWithTarget) answer.payloadData).target);
-                    }
-                }
+            DnsName cnameTarget = addAddresses(res, question, aDnsQueryResult);
+            if (cnameTarget != null) {
+                return resolveIpRecursive(resolutionState, cnameTarget);
             }
         }
 
@@ -311,23 +1032,96 @@ public class IterativeDnsClient extends AbstractDnsClient {
             Question question = new Question(name, TYPE.AAAA);
             final DnsMessage query = getQueryFor(question);
             DnsQueryResult aDnsQueryResult = queryRecursive(resolutionState, query);
-            // TODO: queryRecurisve() should probably never return null. Verify that and then remove the follwing null check.
-            DnsMessage aMessage = aDnsQueryResult != null ? aDnsQueryResult.response : null;
-            if (aMessage != null) {
-                for (Record<? extends Data> answer : aMessage.answerSection) {
-                    if (answer.isAnswer(question)) {
-                        InetAddress inetAddress = inetAddressFromRecord(name.ace, (AAAA) answer.payloadData);
-                        res.ipv6Addresses.add(inetAddress);
-                    } else if (answer.type == TYPE.CNAME && answer.name.equals(name)) {
-                        return resolveIpRecursive(resolutionState, ((RRWithTarget) answer.payloadData).target);
-                    }
-                }
+            DnsName cnameTarget = addAddresses(res, question, aDnsQueryResult);
+            if (cnameTarget != null) {
+                return resolveIpRecursive(resolutionState, cnameTarget);
             }
         }
 
         return res.build();
     }
 
+    /**
+     * Add the addresses in the answer section of the given result to the given IP result set.
+     *
+     * @param res the IP result set.
+     * @param question the A or AAAA question.
+     * @param aDnsQueryResult the result of the question.
+     * @return the target if the name is an alias, in which case the addresses of the target need to be resolved, or
+     *         <code>null</code>.
+     */
+    DnsName addAddresses(IpResultSet.Builder res, Question question, DnsQueryResult aDnsQueryResult) {
+        // TODO: queryRecurisve() should probably never return null. Verify that and then remove the follwing null check.
+        DnsMessage aMessage = aDnsQueryResult != null ? aDnsQueryResult.response : null;
+        if (aMessage == null) {
+            return null;
+        }
+        final DnsName name = question.name;
+        for (Record<? extends Data> answer : aMessage.answerSection) {
+            if (answer.isAnswer(question)) {
+                switch (question.type) {
+                case A:
+                    res.ipv4Addresses.add(inetAddressFromRecord(name.ace, (A) answer.payloadData));
+                    break;
+                case AAAA:
+                    res.ipv6Addresses.add(inetAddressFromRecord(name.ace, (AAAA) answer.payloadData));
+                    break;
+                default:
+                    throw new AssertionError();
+                }
+            } else if (answer.type == TYPE.CNAME && answer.name.equals(name)) {
+                return ((RRWithTarget) answer.payloadData).target;
+            }
+        }
+        return null;
+    }
+
+    List<InetAddress> sortByRtt(List<InetAddress> addresses) {
+        return sortByRtt(addresses, getUpstreamStatistics());
+    }
+
+    private static List<InetAddress> sortByRtt(List<InetAddress> addresses, UpstreamStatistics upstreamStatistics) {
+        if (upstreamStatistics == null || addresses.size() < 2) {
+            return addresses;
+        }
+        // The addresses are shuffled, so servers with equal statistics are still chosen at random.
+        List<InetAddress> sortedAddresses = new ArrayList<>(addresses);
+        upstreamStatistics.sort(sortedAddresses);
+        return sortedAddresses;
+    }
+
+    /**
+     * Sort the NS records by the expected round-trip time of the fastest of their glued addresses. NS records without
+     * glue, and other records, are moved to the end.
+     *
+     * @param authorities the records of the authority section.
+     * @param message the message containing the glue.
+     * @param upstreamStatistics the upstream statistics.
+     */
+    private void sortByGlueRtt(List<Record<? extends Data>> authorities, DnsMessage message,
+            UpstreamStatistics upstreamStatistics) {
+        if (authorities.size() < 2) {
+            return;
+        }
+        final Map<Record<? extends Data>, Long> bestRtts = new IdentityHashMap<>(authorities.size());
+        for (Record<? extends Data> record : authorities) {
+            long bestRtt = Long.MAX_VALUE;
+            Record<NS> nsRecord = record.ifPossibleAs(NS.class);
+            if (nsRecord != null) {
+                for (InetAddress address : searchAdditional(message, nsRecord.payloadData.target).addresses) {
+                    bestRtt = Math.min(bestRtt, upstreamStatistics.getExpectedRtt(address));
+                }
+            }
+            bestRtts.put(record, bestRtt);
+        }
+        Collections.sort(authorities, new Comparator<Record<? extends Data>>() {
+            @Override
+            public int compare(Record<? extends Data> left, Record<? extends Data> right) {
+                return bestRtts.get(left).compareTo(bestRtts.get(right));
+            }
+        });
+    }
+
     @SuppressWarnings("incomplete-switch")
     private IpResultSet searchAdditional(DnsMessage message, DnsName name) {
         IpResultSet.Builder res = newIpResultSetBuilder();
@@ -404,6 +1198,112 @@ public class IterativeDnsClient extends AbstractDnsClient {
         return res;
     }
 
+    public DelegationCache getDelegationCache() {
+        return delegationCache;
+    }
+
+    /**
+     * Set the cache of the delegations learned from referrals, which is used to start the resolution at the closest
+     * known enclosing zone.
+     *
+     * @param delegationCache the delegation cache, or <code>null</code> to only use the DNS cache.
+     */
+    public void setDelegationCache(DelegationCache delegationCache) {
+        this.delegationCache = delegationCache;
+    }
+
+    public int getMaxParallelQueries() {
+        return maxParallelQueries;
+    }
+
+    /**
+     * Set the maximum number of nameservers of a zone which are queried in parallel, and of non-glued nameservers whose
+     * addresses are resolved in parallel. A value of <code>1</code> queries the nameservers one after another, each
+     * one only after the previous one failed.
+     *
+     * @param maxParallelQueries the maximum number of parallel queries.
+     * @see #setStaggerDelay(int)
+     */
+    public void setMaxParallelQueries(int maxParallelQueries) {
+        if (maxParallelQueries < 1) {
+            throw new IllegalArgumentException("The maximum number of parallel queries must be at least 1");
+        }
+        this.maxParallelQueries = maxParallelQueries;
+    }
+
+    public int getStaggerDelay() {
+        return staggerDelay;
+    }
+
+    /**
+     * Set the delay after which the next nameserver of a zone is queried if the previous ones did not respond yet.
+     *
+     * @param staggerDelay the delay in milliseconds.
+     * @see #DEFAULT_STAGGER_DELAY
+     */
+    public void setStaggerDelay(int staggerDelay) {
+        if (staggerDelay <= 0) {
+            throw new IllegalArgumentException("The stagger delay must be positive");
+        }
+        this.staggerDelay = staggerDelay;
+    }
+
+    public int getResolutionTimeout() {
+        return resolutionTimeout;
+    }
+
+    /**
+     * Set the time after which a resolution is aborted with a
+     * {@link org.minidns.iterative.IterativeClientException.ResolutionTimeoutReached}, no matter how many nameservers
+     * are left to ask. A lower timeout trades completeness for latency.
+     *
+     * @param resolutionTimeout the timeout in milliseconds, or <code>0</code> for no timeout.
+     * @see #DEFAULT_RESOLUTION_TIMEOUT
+     */
+    public void setResolutionTimeout(int resolutionTimeout) {
+        if (resolutionTimeout < 0) {
+            throw new IllegalArgumentException("The resolution timeout must not be negative");
+        }
+        this.resolutionTimeout = resolutionTimeout;
+    }
+
+    public int getMaxQueriesInFlight() {
+        return maxQueriesInFlight;
+    }
+
+    /**
+     * Set the maximum number of queries a single resolution, including its nested nameserver address resolutions, has
+     * in flight. Once it is reached, nameservers are no longer queried in parallel, but only after the queries in
+     * flight failed. This bounds the fan-out of resolutions with many nameservers and long delegation chains.
+     *
+     * @param maxQueriesInFlight the maximum number of queries in flight.
+     * @see #setMaxParallelQueries(int)
+     */
+    public void setMaxQueriesInFlight(int maxQueriesInFlight) {
+        if (maxQueriesInFlight < 1) {
+            throw new IllegalArgumentException("The maximum number of queries in flight must be at least 1");
+        }
+        this.maxQueriesInFlight = maxQueriesInFlight;
+    }
+
+    public int getMaxGlueDepth() {
+        return maxGlueDepth;
+    }
+
+    /**
+     * Set the maximum depth of nested nameserver address resolutions. Nameservers whose addresses would require a
+     * deeper resolution are skipped. A value of <code>0</code> only uses nameservers with glue or cached addresses.
+     *
+     * @param maxGlueDepth the maximum depth.
+     * @see #DEFAULT_MAX_GLUE_DEPTH
+     */
+    public void setMaxGlueDepth(int maxGlueDepth) {
+        if (maxGlueDepth < 0) {
+            throw new IllegalArgumentException("The maximum glue depth must not be negative");
+        }
+        this.maxGlueDepth = maxGlueDepth;
+    }
+
     @Override
     protected boolean isResponseCacheable(Question q, DnsQueryResult result) {
         return result.response.authoritativeAnswer;
@@ -416,11 +1316,58 @@ public class IterativeDnsClient extends AbstractDnsClient {
         return message;
     }
 
-    private IpResultSet.Builder newIpResultSetBuilder() {
+    DnsMessage buildQuery(Question question) {
+        return getQueryFor(question);
+    }
+
+    IpResultSet.Builder newIpResultSetBuilder() {
         return new IpResultSet.Builder(this.insecureRandom);
     }
 
-    private static class IpResultSet {
+    /**
+     * The nameservers to query, together with the zone they are authoritative for.
+     */
+    static final class Targets {
+        final List<InetAddress> addresses;
+        final DnsName authoritativeZone;
+
+        private Targets(List<InetAddress> addresses, DnsName authoritativeZone) {
+            this.addresses = addresses;
+            this.authoritativeZone = authoritativeZone;
+        }
+    }
+
+    /**
+     * The nameservers of a zone a referral refers to.
+     */
+    static final class Referral {
+        final DnsName zone;
+        final List<InetAddress> gluedAddresses;
+        final List<DnsName> nonGluedNs;
+
+        private Referral(DnsName zone, List<InetAddress> gluedAddresses, List<DnsName> nonGluedNs) {
+            this.zone = zone;
+            this.gluedAddresses = gluedAddresses;
+            this.nonGluedNs = nonGluedNs;
+        }
+    }
+
+    /**
+     * A zone together with the known addresses of its nameservers.
+     */
+    private static final class ZoneCut {
+        private final DnsName zone;
+        private final Set<A> ipv4Addresses;
+        private final Set<AAAA> ipv6Addresses;
+
+        private ZoneCut(DnsName zone, Set<A> ipv4Addresses, Set<AAAA> ipv6Addresses) {
+            this.zone = zone;
+            this.ipv4Addresses = ipv4Addresses;
+            this.ipv6Addresses = ipv6Addresses;
+        }
+    }
+
+    static class IpResultSet {
 
         final List<InetAddress> addresses;
 
@@ -477,7 +1424,7 @@ public class IterativeDnsClient extends AbstractDnsClient {
             }
         }
 
-        private static class Builder {
+        static class Builder {
             private final Random random;
             private final List<InetAddress> ipv4Addresses = new ArrayList<>(8);
             private final List<InetAddress> ipv6Addresses = new ArrayList<>(8);
@@ -493,7 +1440,7 @@ public class IterativeDnsClient extends AbstractDnsClient {
     }
 
     protected static void abortIfFatal(IOException ioException) throws IOException {
-        if (ioException instanceof LoopDetected) {
+        if (ioException instanceof LoopDetected || ioException instanceof ResolutionTimeoutReached) {
             throw ioException;
         }
     }
@@ -89,6 +89,11 @@ public class ReliableDnsClient extends AbstractDnsClient {
 
     @Override
     protected DnsQueryResult query(DnsMessage.Builder q) throws IOException {
+        return query(q, false);
+    }
+
+    @Override
+    protected DnsQueryResult query(DnsMessage.Builder q, boolean bypassCache) throws IOException {
         DnsQueryResult dnsMessage = null;
         String unacceptableReason = null;
         List<IOException> ioExceptions = new LinkedList<>();
@@ -96,7 +101,7 @@ public class ReliableDnsClient extends AbstractDnsClient {
         if (mode != Mode.iterativeOnly) {
             // Try a recursive query.
             try {
-                dnsMessage = dnsClient.query(q);
+                dnsMessage = dnsClient.query(q, bypassCache);
                 if (dnsMessage != null) {
                     unacceptableReason = isResponseAcceptable(dnsMessage.response);
                     if (unacceptableReason == null) {
@@ -128,7 +133,7 @@ public class ReliableDnsClient extends AbstractDnsClient {
         }
 
         try {
-            dnsMessage = recursiveDnsClient.query(q);
+            dnsMessage = recursiveDnsClient.query(q, bypassCache);
             assert dnsMessage != null;
         } catch (IOException ioException) {
             ioExceptions.add(ioException);
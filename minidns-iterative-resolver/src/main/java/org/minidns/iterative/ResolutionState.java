@@ -11,43 +11,224 @@
 package org.minidns.iterative;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsmessage.Question;
 import org.minidns.iterative.IterativeClientException.LoopDetected;
+import org.minidns.iterative.IterativeClientException.MaxGlueDepthReached;
 import org.minidns.iterative.IterativeClientException.MaxIterativeStepsReached;
+import org.minidns.iterative.IterativeClientException.ResolutionTimeoutReached;
 
+/**
+ * The state of a single iterative resolution. It is shared by the nameserver queries and nameserver address
+ * resolutions which run in parallel, hence it is thread-safe.
+ * <p>
+ * Besides the loop detection, the state holds the budget of the resolution: the number of steps, the deadline, the
+ * number of queries in flight and the depth of nested nameserver address resolutions. The nested resolutions use a
+ * child state, which shares the budget with its parent.
+ * </p>
+ */
 public class ResolutionState {
 
     private final IterativeDnsClient recursiveDnsClient;
-    private final HashMap<InetAddress, Set<Question>> map = new HashMap<>();
-    private int steps;
+    private final Budget budget;
+    private final int glueDepth;
+    private final boolean bypassCache;
 
     ResolutionState(IterativeDnsClient recursiveDnsClient) {
+        this(recursiveDnsClient, false);
+    }
+
+    ResolutionState(IterativeDnsClient recursiveDnsClient, boolean bypassCache) {
         this.recursiveDnsClient = recursiveDnsClient;
+        this.budget = new Budget(recursiveDnsClient.getResolutionTimeout());
+        this.glueDepth = 0;
+        this.bypassCache = bypassCache;
     }
 
-    void recurse(InetAddress address, DnsMessage query) throws LoopDetected, MaxIterativeStepsReached {
+    private ResolutionState(ResolutionState parent) {
+        this.recursiveDnsClient = parent.recursiveDnsClient;
+        this.budget = parent.budget;
+        this.glueDepth = parent.glueDepth + 1;
+        // Only the resolved query itself is refreshed, the nameserver addresses may still come from the cache.
+        this.bypassCache = false;
+    }
+
+    /**
+     * Whether the queries of this resolution must not be answered from the cache, e.g. because a cached result is
+     * refreshed.
+     *
+     * @return <code>true</code> if the cache is bypassed.
+     */
+    boolean isBypassCache() {
+        return bypassCache;
+    }
+
+    void recurse(InetAddress address, DnsMessage query)
+            throws LoopDetected, MaxIterativeStepsReached, ResolutionTimeoutReached {
         Question question = query.getQuestion();
-        if (!map.containsKey(address)) {
-            map.put(address, new HashSet<Question>());
-        } else if (map.get(address).contains(question)) {
-            throw new IterativeClientException.LoopDetected(address, question);
+        synchronized (budget) {
+            checkDeadline();
+
+            if (!budget.map.containsKey(address)) {
+                budget.map.put(address, new HashSet<Question>());
+            } else if (budget.map.get(address).contains(question)) {
+                throw new IterativeClientException.LoopDetected(address, question);
+            }
+
+            if (++budget.steps > recursiveDnsClient.maxSteps) {
+                throw new IterativeClientException.MaxIterativeStepsReached();
+            }
+
+            boolean isNew = budget.map.get(address).add(question);
+            assert(isNew);
+        }
+    }
+
+    void decrementSteps() {
+        synchronized (budget) {
+            budget.steps--;
         }
+    }
 
-        if (++steps > recursiveDnsClient.maxSteps) {
-            throw new IterativeClientException.MaxIterativeStepsReached(); 
+    /**
+     * Get the state for the resolution of nameserver addresses which is nested in this resolution.
+     *
+     * @return the state of the nested resolution.
+     * @throws MaxGlueDepthReached if the maximum depth of nested resolutions is reached.
+     */
+    ResolutionState enterGlueResolution() throws MaxGlueDepthReached {
+        final int maxGlueDepth = recursiveDnsClient.getMaxGlueDepth();
+        if (glueDepth >= maxGlueDepth) {
+            throw new MaxGlueDepthReached(maxGlueDepth);
         }
+        return new ResolutionState(this);
+    }
 
-        boolean isNew = map.get(address).add(question);
-        assert(isNew);
+    /**
+     * Account for a query about to be sent. The first query of a race is always allowed, further queries sent in
+     * parallel only as long as the maximum number of queries in flight is not reached.
+     *
+     * @param parallel <code>true</code> if other queries of the same race are still in flight.
+     * @return <code>true</code> if the query may be sent, in which case {@link #finishQueries(int)} has to be invoked
+     *         once it is done.
+     */
+    boolean startQuery(boolean parallel) {
+        synchronized (budget) {
+            if (parallel && budget.queriesInFlight >= recursiveDnsClient.getMaxQueriesInFlight()) {
+                return false;
+            }
+            budget.queriesInFlight++;
+            return true;
+        }
     }
 
-    void decrementSteps() {
-        steps--;
+    void finishQueries(int count) {
+        synchronized (budget) {
+            budget.queriesInFlight -= count;
+        }
     }
 
+    /**
+     * Get the time left until the deadline of the resolution.
+     *
+     * @return the remaining time in milliseconds, or {@link Long#MAX_VALUE} if there is no deadline.
+     * @throws ResolutionTimeoutReached if the deadline has passed.
+     */
+    long getRemainingTime() throws ResolutionTimeoutReached {
+        if (budget.deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        long remainingTime = budget.deadline - System.currentTimeMillis();
+        if (remainingTime <= 0) {
+            throw new ResolutionTimeoutReached(budget.timeout);
+        }
+        return remainingTime;
+    }
+
+    private void checkDeadline() throws ResolutionTimeoutReached {
+        getRemainingTime();
+    }
+
+    /**
+     * Register a part of the resolution which is still running, e.g. a race of queries, so that it is cancelled once
+     * the resolution is cancelled.
+     *
+     * @param cancellable the running part of the resolution.
+     * @return <code>false</code> if the resolution is already cancelled, in which case the part is not registered.
+     */
+    boolean register(Cancellable cancellable) {
+        synchronized (budget) {
+            if (budget.cancelled) {
+                return false;
+            }
+            budget.running.add(cancellable);
+            return true;
+        }
+    }
+
+    void unregister(Cancellable cancellable) {
+        synchronized (budget) {
+            budget.running.remove(cancellable);
+        }
+    }
+
+    /**
+     * Cancel the resolution, including the parts of it which are still running.
+     */
+    void cancel() {
+        List<Cancellable> running;
+        synchronized (budget) {
+            budget.cancelled = true;
+            running = new ArrayList<>(budget.running);
+            budget.running.clear();
+        }
+        // Not holding the lock, as the running parts acquire their own locks before the one of the budget.
+        for (Cancellable cancellable : running) {
+            cancellable.cancel();
+        }
+    }
+
+    boolean isCancelled() {
+        synchronized (budget) {
+            return budget.cancelled;
+        }
+    }
+
+    /**
+     * A part of the resolution which is still running, e.g. a race of queries.
+     */
+    interface Cancellable {
+        /**
+         * Stop this part of the resolution, and cancel the queries it has in flight.
+         */
+        void cancel();
+    }
+
+    /**
+     * The budget of a resolution, shared by all nested resolutions. Guarded by its own monitor.
+     */
+    private static final class Budget {
+        private final HashMap<InetAddress, Set<Question>> map = new HashMap<>();
+        private final Set<Cancellable> running = new HashSet<>();
+        private final int timeout;
+        private final long deadline;
+        private int steps;
+        private int queriesInFlight;
+        private boolean cancelled;
+
+        private Budget(int timeout) {
+            this.timeout = timeout;
+            if (timeout > 0) {
+                deadline = System.currentTimeMillis() + timeout;
+            } else {
+                deadline = Long.MAX_VALUE;
+            }
+        }
+    }
 }
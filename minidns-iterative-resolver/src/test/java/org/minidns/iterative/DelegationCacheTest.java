@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015-2018 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package org.minidns.iterative;
+
+import org.junit.Test;
+
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsname.DnsName;
+import org.minidns.iterative.DelegationCache.Delegation;
+
+import static org.minidns.DnsWorld.a;
+import static org.minidns.DnsWorld.ns;
+import static org.minidns.DnsWorld.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DelegationCacheTest {
+
+    @Test
+    public void testClosestEnclosing() {
+        DelegationCache cache = new DelegationCache();
+        cache.offer(referral("co.uk", "ns.co.uk", "192.0.2.1"), DnsName.from("uk"));
+        cache.offer(referral("example.co.uk", "ns.example.co.uk", "192.0.2.2"), DnsName.from("co.uk"));
+
+        Delegation delegation = cache.getClosestEnclosing(DnsName.from("a.b.c.example.co.uk"));
+        assertNotNull(delegation);
+        assertEquals(DnsName.from("example.co.uk"), delegation.zone);
+        assertEquals(1, delegation.nameservers.size());
+        assertEquals(1, delegation.ipv4Glue.size());
+
+        delegation = cache.getClosestEnclosing(DnsName.from("www.other.co.uk"));
+        assertNotNull(delegation);
+        assertEquals(DnsName.from("co.uk"), delegation.zone);
+
+        assertNull(cache.getClosestEnclosing(DnsName.from("example.com")));
+    }
+
+    @Test
+    public void testBailiwick() {
+        DelegationCache cache = new DelegationCache();
+
+        // A server of example.org can not delegate example.com.
+        cache.offer(referral("example.com", "ns.example.com", "192.0.2.1"), DnsName.from("example.org"));
+        assertEquals(0, cache.size());
+
+        // Glue outside of the zone of the referring server is not cached.
+        DnsMessage referral = DnsMessage.builder()
+                .addNameserverRecords(record("example.org", ns("ns.example.net")))
+                .addAdditionalResourceRecord(record("ns.example.net", a("192.0.2.2")))
+                .setReceiveTimestamp(System.currentTimeMillis())
+                .build();
+        cache.offer(referral, DnsName.from("org"));
+        Delegation delegation = cache.get(DnsName.from("example.org"));
+        assertNotNull(delegation);
+        assertTrue(delegation.ipv4Glue.isEmpty());
+    }
+
+    @Test
+    public void testExpiry() {
+        DelegationCache cache = new DelegationCache();
+        DnsMessage referral = referral("example.org", "ns.example.org", "192.0.2.1").asBuilder()
+                .setReceiveTimestamp(System.currentTimeMillis() - 7200 * 1000)
+                .build();
+        cache.offer(referral, DnsName.from("org"));
+        assertEquals(1, cache.size());
+        assertNull(cache.get(DnsName.from("example.org")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testNameserverAnswer() {
+        DelegationCache cache = new DelegationCache();
+        DnsMessage.Builder priming = DnsMessage.builder()
+                .addAnswer(record(".", ns("a.root-servers.net")))
+                .addAdditionalResourceRecord(record("a.root-servers.net", a("198.41.0.4")))
+                .setReceiveTimestamp(System.currentTimeMillis());
+
+        // Only authoritative answers are cached.
+        cache.offerNameserverAnswer(priming.build(), DnsName.ROOT, DnsName.ROOT);
+        assertEquals(0, cache.size());
+
+        cache.offerNameserverAnswer(priming.setAuthoritativeAnswer(true).build(), DnsName.ROOT, DnsName.ROOT);
+        Delegation delegation = cache.get(DnsName.ROOT);
+        assertNotNull(delegation);
+        assertEquals(DnsName.from("a.root-servers.net"), delegation.nameservers.get(0));
+        assertEquals(1, delegation.ipv4Glue.size());
+    }
+
+    private static DnsMessage referral(String zone, String nameserver, String address) {
+        return DnsMessage.builder()
+                .addNameserverRecords(record(zone, ns(nameserver)))
+                .addAdditionalResourceRecord(record(nameserver, a(address)))
+                .setReceiveTimestamp(System.currentTimeMillis())
+                .build();
+    }
+}
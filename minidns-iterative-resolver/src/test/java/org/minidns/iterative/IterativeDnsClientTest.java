@@ -11,15 +11,34 @@
 package org.minidns.iterative;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.minidns.AbstractDnsClient.IpVersionSetting;
+import org.minidns.DnsWorld;
+import org.minidns.MiniDnsFuture;
+import org.minidns.MiniDnsFuture.InternalMiniDnsFuture;
 import org.minidns.cache.LruCache;
+import org.minidns.cache.RrSetCache;
 import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsname.DnsName;
+import org.minidns.dnsqueryresult.CachedDnsQueryResult;
 import org.minidns.dnsqueryresult.DnsQueryResult;
+import org.minidns.dnsqueryresult.TestWorldDnsQueryResult;
+import org.minidns.iterative.DelegationCache.Delegation;
 import org.minidns.record.A;
 import org.minidns.record.Data;
 import org.minidns.record.Record;
 import org.minidns.record.Record.TYPE;
+import org.minidns.source.AbstractDnsDataSource;
 import org.junit.Test;
 
 import static org.minidns.DnsWorld.a;
@@ -30,7 +49,11 @@ import static org.minidns.DnsWorld.rootZone;
 import static org.minidns.DnsWorld.zone;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class IterativeDnsClientTest {
 
@@ -101,4 +124,569 @@ public class IterativeDnsClientTest {
         assertEquals(TYPE.A, answers.get(0).type);
         assertArrayEquals(new byte[]{1, 1, 1, 3}, ((A) answers.get(0).payloadData).getIp());
     }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void lameDelegationTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        final DnsWorld world = applyZones(client,
+                rootZone(
+                        record("com", ns("ns.com")),
+                        record("ns.com", a("1.1.1.1"))
+                ), zone("com", "ns.com", "1.1.1.1",
+                        record("example.com", ns("lame.example.com")),
+                        record("example.com", ns("ns.example.com")),
+                        record("lame.example.com", a("1.1.1.2")),
+                        record("ns.example.com", a("1.1.1.4"))
+                ), zone("example.com", "ns.example.com", "1.1.1.4",
+                        record("www.example.com", a("1.1.1.3"))
+                )
+        );
+        final InetAddress lameServer = InetAddress.getByAddress(new byte[] { 1, 1, 1, 2 });
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                if (address.equals(lameServer)) {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    throw new SocketTimeoutException();
+                }
+                return world.query(message, address, port);
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        DnsQueryResult result = client.query("www.example.com", TYPE.A);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        List<Record<? extends Data>> answers = result.response.answerSection;
+        assertEquals(1, answers.size());
+        assertArrayEquals(new byte[]{1, 1, 1, 3}, ((A) answers.get(0).payloadData).getIp());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(timeout = 60000)
+    public void lameDelegationIgnoringInterruptsTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        final DnsWorld world = applyZones(client,
+                rootZone(
+                        record("com", ns("ns.com")),
+                        record("ns.com", a("1.1.1.1"))
+                ), zone("com", "ns.com", "1.1.1.1",
+                        record("example.com", ns("lame.example.com")),
+                        record("example.com", ns("ns.example.com")),
+                        record("lame.example.com", a("1.1.1.2")),
+                        record("ns.example.com", a("1.1.1.4"))
+                ), zone("example.com", "ns.example.com", "1.1.1.4",
+                        record("www.example.com", a("1.1.1.3"))
+                )
+        );
+        client.setStaggerDelay(10);
+        final Thread caller = Thread.currentThread();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger blockedQueries = new AtomicInteger();
+        final AtomicInteger sequentialQueries = new AtomicInteger();
+        final InetAddress lameServer = InetAddress.getByAddress(new byte[] { 1, 1, 1, 2 });
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                if (!address.equals(lameServer)) {
+                    return world.query(message, address, port);
+                }
+                // Like blocking socket I/O, the lame nameserver ignores interrupts.
+                if (Thread.currentThread() == caller) {
+                    sequentialQueries.incrementAndGet();
+                    throw new SocketTimeoutException();
+                }
+                blockedQueries.incrementAndGet();
+                boolean interrupted = false;
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new SocketTimeoutException();
+            }
+        });
+
+        final int queryCount = IterativeDnsClient.MAX_EXECUTOR_THREADS + 4;
+        try {
+            for (int i = 0; i < queryCount; i++) {
+                DnsQueryResult result = client.query("www.example.com", TYPE.A);
+                assertEquals(1, result.response.answerSection.size());
+            }
+            assertTrue(blockedQueries.get() <= IterativeDnsClient.MAX_EXECUTOR_THREADS);
+            assertEquals(queryCount, blockedQueries.get() + sequentialQueries.get());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void nonBlockingLameDelegationTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        DnsWorld world = applyZones(client,
+                rootZone(
+                        record("com", ns("ns.com")),
+                        record("ns.com", a("1.1.1.1"))
+                ), zone("com", "ns.com", "1.1.1.1",
+                        record("example.com", ns("lame.example.com")),
+                        record("example.com", ns("ns.example.com")),
+                        record("lame.example.com", a("1.1.1.2")),
+                        record("ns.example.com", a("1.1.1.4"))
+                ), zone("example.com", "ns.example.com", "1.1.1.4",
+                        record("www.example.com", a("1.1.1.3"))
+                )
+        );
+        NonBlockingDataSource dataSource = new NonBlockingDataSource(world,
+                InetAddress.getByAddress(new byte[] { 1, 1, 1, 2 }));
+        client.setDataSource(dataSource);
+
+        // The synchronous resolution races the futures of the data source, so that the losers can be cancelled.
+        DnsQueryResult result = client.query("www.example.com", TYPE.A);
+        List<Record<? extends Data>> answers = result.response.answerSection;
+        assertEquals(1, answers.size());
+        assertArrayEquals(new byte[]{1, 1, 1, 3}, ((A) answers.get(0).payloadData).getIp());
+        assertEquals(0, dataSource.blockingQueryCount.get());
+        assertEquals(1, dataSource.lameQueries.size());
+        assertTrue(dataSource.lameQueries.get(0).isCancelled());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void rrSetCacheZoneCutTest() throws IOException {
+        final List<DnsName> nsLookups = new CopyOnWriteArrayList<>();
+        RrSetCache cache = new RrSetCache() {
+            @Override
+            protected CachedDnsQueryResult getNormalized(DnsMessage q) {
+                if (q.getQuestion().type == TYPE.NS) {
+                    nsLookups.add(q.getQuestion().name);
+                }
+                return super.getNormalized(q);
+            }
+        };
+        IterativeDnsClient client = new IterativeDnsClient(cache);
+        client.setDelegationCache(null);
+        final DnsWorld world = applyZones(client,
+                rootZone(
+                        record("com", ns("ns.com")),
+                        record("ns.com", a("1.1.1.1"))
+                ), zone("com", "ns.com", "1.1.1.1",
+                        record("example.com", ns("ns.example.com")),
+                        record("ns.example.com", a("1.1.1.2"))
+                ), zone("example.com", "ns.example.com", "1.1.1.2",
+                        record("www.example.com", a("1.1.1.3")),
+                        record("a.b.c.example.com", a("1.1.1.4"))
+                )
+        );
+        final AtomicInteger queryCount = new AtomicInteger();
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                queryCount.incrementAndGet();
+                // The RRset cache only caches responses with a receive timestamp.
+                DnsMessage response = world.query(message, address, port).response.asBuilder()
+                        .setReceiveTimestamp(System.currentTimeMillis())
+                        .build();
+                return new TestWorldDnsQueryResult(message, response);
+            }
+        });
+
+        client.query("www.example.com", TYPE.A);
+        assertEquals(3, queryCount.get());
+
+        // The closest cached NS RRset is found without asking the cache for the nameservers of every ancestor.
+        queryCount.set(0);
+        nsLookups.clear();
+        DnsQueryResult result = client.query("a.b.c.example.com", TYPE.A);
+        assertEquals(1, queryCount.get());
+        assertEquals(1, result.response.answerSection.size());
+        assertFalse(nsLookups.contains(DnsName.from("b.c.example.com")));
+        assertFalse(nsLookups.contains(DnsName.from("c.example.com")));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void prefetchTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(10));
+        final DnsWorld world = applyZones(client,
+                rootZone(
+                        record("com", ns("ns.com")),
+                        record("ns.com", a("1.1.1.1"))
+                ), zone("com", "ns.com", "1.1.1.1",
+                        record("example.com", ns("ns.example.com")),
+                        record("ns.example.com", a("1.1.1.2"))
+                ), zone("example.com", "ns.example.com", "1.1.1.2",
+                        record("www.example.com", a("1.1.1.3"))
+                )
+        );
+        client.setPrefetchThreshold(0.5f);
+        client.setPrefetchExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        final AtomicLong age = new AtomicLong();
+        final AtomicInteger queryCount = new AtomicInteger();
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                queryCount.incrementAndGet();
+                DnsMessage response = world.query(message, address, port).response.asBuilder()
+                        .setReceiveTimestamp(System.currentTimeMillis() - age.get())
+                        .build();
+                return new TestWorldDnsQueryResult(message, response);
+            }
+        });
+
+        // 60% of the TTL have passed when the responses are received.
+        age.set(3600 * 600);
+        client.query("www.example.com", TYPE.A);
+        assertTrue(queryCount.get() > 0);
+
+        // Answered from the cache, but refreshed in the background, even though the nameservers are queried in
+        // parallel on other threads.
+        age.set(0);
+        queryCount.set(0);
+        long prefetchStart = System.currentTimeMillis();
+        DnsQueryResult result = client.query("www.example.com", TYPE.A);
+        assertEquals(DnsQueryResult.QueryMethod.cachedDirect, result.queryMethod);
+        assertTrue(queryCount.get() > 0);
+
+        // The cached result was replaced by the refreshed one.
+        queryCount.set(0);
+        result = client.query("www.example.com", TYPE.A);
+        assertEquals(0, queryCount.get());
+        assertTrue(result.response.receiveTimestamp >= prefetchStart);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void closestZoneCutTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        final DnsWorld world = applyZones(client,
+                rootZone(
+                        record("com", ns("ns.com")),
+                        record("ns.com", a("1.1.1.1"))
+                ), zone("com", "ns.com", "1.1.1.1",
+                        record("example.com", ns("ns.example.com")),
+                        record("ns.example.com", a("1.1.1.2"))
+                ), zone("example.com", "ns.example.com", "1.1.1.2",
+                        record("www.example.com", a("1.1.1.3")),
+                        record("a.b.c.example.com", a("1.1.1.4"))
+                )
+        );
+        final AtomicInteger queryCount = new AtomicInteger();
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                queryCount.incrementAndGet();
+                return world.query(message, address, port);
+            }
+        });
+
+        client.query("www.example.com", TYPE.A);
+        assertEquals(3, queryCount.get());
+
+        // The delegation of example.com is known, so the resolution of a deeper name starts there.
+        queryCount.set(0);
+        DnsQueryResult result = client.query("a.b.c.example.com", TYPE.A);
+        assertEquals(1, queryCount.get());
+        assertArrayEquals(new byte[]{1, 1, 1, 4}, ((A) result.response.answerSection.get(0).payloadData).getIp());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void asyncIterativeTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        DnsWorld world = applyZones(client,
+                rootZone(
+                        record("com", ns("ns.com")),
+                        record("ns.com", a("1.1.1.1"))
+                ), zone("com", "ns.com", "1.1.1.1",
+                        record("example.com", ns("lame.example.com")),
+                        record("example.com", ns("ns.example.com")),
+                        record("lame.example.com", a("1.1.1.2")),
+                        record("ns.example.com", a("1.1.1.4"))
+                ), zone("example.com", "ns.example.com", "1.1.1.4",
+                        record("www.example.com", a("1.1.1.3"))
+                )
+        );
+        NonBlockingDataSource dataSource = new NonBlockingDataSource(world,
+                InetAddress.getByAddress(new byte[] { 1, 1, 1, 2 }));
+        client.setDataSource(dataSource);
+
+        // The lame nameserver never responds, so the other one has to be queried in parallel.
+        DnsQueryResult result = client.queryAsync("www.example.com", TYPE.A).getOrThrow();
+        List<Record<? extends Data>> answers = result.response.answerSection;
+        assertEquals(1, answers.size());
+        assertArrayEquals(new byte[]{1, 1, 1, 3}, ((A) answers.get(0).payloadData).getIp());
+        assertEquals(0, dataSource.blockingQueryCount.get());
+        assertTrue(dataSource.asyncQueryCount.get() > 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void asyncNotGluedNsTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        DnsWorld world = applyZones(client,
+                rootZone(
+                        record("com", ns("ns.com")),
+                        record("net", ns("ns.net")),
+                        record("ns.com", a("1.1.1.1")),
+                        record("ns.net", a("1.1.2.1"))
+                ), zone("com", "ns.com", "1.1.1.1",
+                        record("example.com", ns("example.ns.net"))
+                ), zone("net", "ns.net", "1.1.2.1",
+                        record("example.ns.net", a("1.1.2.2"))
+                ), zone("example.com", "example.ns.net", "1.1.2.2",
+                        record("www.example.com", a("1.1.1.3"))
+                )
+        );
+        NonBlockingDataSource dataSource = new NonBlockingDataSource(world, null);
+        client.setDataSource(dataSource);
+
+        DnsQueryResult result = client.queryAsync("www.example.com", TYPE.A).getOrThrow();
+        List<Record<? extends Data>> answers = result.response.answerSection;
+        assertEquals(1, answers.size());
+        assertArrayEquals(new byte[]{1, 1, 1, 3}, ((A) answers.get(0).payloadData).getIp());
+        assertEquals(0, dataSource.blockingQueryCount.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(expected = IterativeClientException.LoopDetected.class)
+    public void asyncLoopIterativeTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        DnsWorld world = applyZones(client,
+                rootZone(
+                        record("a", ns("a.ns")),
+                        record("b", ns("b.ns")),
+                        record("a.ns", a("1.1.1.1")),
+                        record("b.ns", a("1.1.1.2"))
+                ), zone("a", "a.ns", "1.1.1.1",
+                        record("test.a", ns("a.test.b"))
+                ), zone("b", "b.ns", "1.1.1.2",
+                        record("test.b", ns("b.test.a"))
+                )
+        );
+        client.setDataSource(new NonBlockingDataSource(world, null));
+        client.queryAsync("www.test.a", TYPE.A).getOrThrow();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void prewarmTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        final DnsWorld world = applyZones(client,
+                rootZone(
+                        record("com", ns("ns.com")),
+                        record("ns.com", a("1.1.1.1")),
+                        record(".", ns("a.root-servers.net")),
+                        record("a.root-servers.net", a("198.41.0.4"))
+                ), zone("com", "ns.com", "1.1.1.1",
+                        record("example.com", ns("ns.example.com")),
+                        record("ns.example.com", a("1.1.1.2"))
+                ), zone("example.com", "ns.example.com", "1.1.1.2",
+                        record("www.example.com", a("1.1.1.3"))
+                )
+        );
+        final InetAddress aRootServer = IterativeDnsClient.getRootServer('a', IpVersionSetting.v4only).get(0);
+        final AtomicInteger queryCount = new AtomicInteger();
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                queryCount.incrementAndGet();
+                if (address.equals(aRootServer)) {
+                    // The world recognizes root servers by their host name, which the primed address lacks.
+                    address = aRootServer;
+                }
+                return world.query(message, address, port);
+            }
+        });
+
+        // There is no delegation of the "invalid" zone.
+        assertEquals(2, client.prewarm(Arrays.asList("com", "invalid")));
+        Delegation root = client.getDelegationCache().get(DnsName.ROOT);
+        assertNotNull(root);
+        assertArrayEquals(new byte[]{(byte) 198, 41, 0, 4}, root.ipv4Glue.iterator().next().getIp());
+        assertNotNull(client.getDelegationCache().get(DnsName.from("com")));
+
+        // The resolution starts at the nameservers of com instead of the root servers.
+        queryCount.set(0);
+        DnsQueryResult result = client.query("www.example.com", TYPE.A);
+        assertEquals(2, queryCount.get());
+        assertArrayEquals(new byte[]{1, 1, 1, 3}, ((A) result.response.answerSection.get(0).payloadData).getIp());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(expected = IterativeClientException.MaxGlueDepthReached.class)
+    public void maxGlueDepthTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        applyZones(client,
+                rootZone(
+                        record("com", ns("ns.com")),
+                        record("net", ns("ns.net")),
+                        record("ns.com", a("1.1.1.1")),
+                        record("ns.net", a("1.1.2.1"))
+                ), zone("com", "ns.com", "1.1.1.1",
+                        record("example.com", ns("example.ns.net"))
+                ), zone("net", "ns.net", "1.1.2.1",
+                        record("example.ns.net", a("1.1.2.2"))
+                ), zone("example.com", "example.ns.net", "1.1.2.2",
+                        record("www.example.com", a("1.1.1.3"))
+                )
+        );
+        // The nameserver of example.com has no glue, so its address can not be resolved.
+        client.setMaxGlueDepth(0);
+        client.query("www.example.com", TYPE.A);
+    }
+
+    @Test
+    public void resolutionTimeoutTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        client.setDataSource(new AbstractDnsDataSource() {
+            @Override
+            public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                throw new SocketTimeoutException();
+            }
+        });
+        client.setResolutionTimeout(500);
+
+        long start = System.currentTimeMillis();
+        try {
+            client.query("www.example.com", TYPE.A);
+            fail();
+        } catch (IterativeClientException.ResolutionTimeoutReached e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void asyncResolutionTimeoutTest() throws IOException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        NeverAnsweringDataSource dataSource = new NeverAnsweringDataSource();
+        client.setDataSource(dataSource);
+        client.setResolutionTimeout(500);
+
+        long start = System.currentTimeMillis();
+        try {
+            client.queryAsync("www.example.com", TYPE.A).getOrThrow();
+            fail();
+        } catch (IterativeClientException.ResolutionTimeoutReached e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+
+        // The queries in flight are cancelled once the resolution timed out.
+        assertFalse(dataSource.queries.isEmpty());
+        for (MiniDnsFuture<DnsQueryResult, IOException> query : dataSource.queries) {
+            assertTrue(query.isCancelled());
+        }
+    }
+
+    @Test
+    public void asyncResolutionCancelTest() throws InterruptedException {
+        IterativeDnsClient client = new IterativeDnsClient(new LruCache(0));
+        NeverAnsweringDataSource dataSource = new NeverAnsweringDataSource();
+        client.setDataSource(dataSource);
+
+        MiniDnsFuture<DnsQueryResult, IOException> future = client.queryAsync("www.example.com", TYPE.A);
+        for (int i = 0; i < 100 && dataSource.queries.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(dataSource.queries.isEmpty());
+
+        future.cancel(true);
+        for (MiniDnsFuture<DnsQueryResult, IOException> query : dataSource.queries) {
+            assertTrue(query.isCancelled());
+        }
+    }
+
+    /**
+     * A non-blocking data source which never answers.
+     */
+    private static final class NeverAnsweringDataSource extends AbstractDnsDataSource {
+        private final List<MiniDnsFuture<DnsQueryResult, IOException>> queries = new CopyOnWriteArrayList<>();
+
+        @Override
+        public boolean isAsyncQueryNonBlocking() {
+            return true;
+        }
+
+        @Override
+        public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+            throw new AssertionError();
+        }
+
+        @Override
+        public MiniDnsFuture<DnsQueryResult, IOException> queryAsync(DnsMessage message, InetAddress address,
+                int port, OnResponseCallback onResponseCallback) {
+            MiniDnsFuture<DnsQueryResult, IOException> future = new InternalMiniDnsFuture<>();
+            queries.add(future);
+            return future;
+        }
+    }
+
+    /**
+     * A non-blocking data source answering from a {@link DnsWorld} on another thread. Queries to the given lame server
+     * are never answered.
+     */
+    private static final class NonBlockingDataSource extends AbstractDnsDataSource {
+        private final DnsWorld world;
+        private final InetAddress lameServer;
+        private final AtomicInteger blockingQueryCount = new AtomicInteger();
+        private final AtomicInteger asyncQueryCount = new AtomicInteger();
+        private final List<MiniDnsFuture<DnsQueryResult, IOException>> lameQueries = new CopyOnWriteArrayList<>();
+
+        private NonBlockingDataSource(DnsWorld world, InetAddress lameServer) {
+            this.world = world;
+            this.lameServer = lameServer;
+        }
+
+        @Override
+        public boolean isAsyncQueryNonBlocking() {
+            return true;
+        }
+
+        @Override
+        public DnsQueryResult query(DnsMessage message, InetAddress address, int port) throws IOException {
+            blockingQueryCount.incrementAndGet();
+            return world.query(message, address, port);
+        }
+
+        @Override
+        public MiniDnsFuture<DnsQueryResult, IOException> queryAsync(final DnsMessage message,
+                final InetAddress address, final int port, final OnResponseCallback onResponseCallback) {
+            asyncQueryCount.incrementAndGet();
+            final InternalMiniDnsFuture<DnsQueryResult, IOException> future = new InternalMiniDnsFuture<>();
+            if (address.equals(lameServer)) {
+                lameQueries.add(future);
+                return future;
+            }
+            new Thread() {
+                @Override
+                public void run() {
+                    DnsQueryResult result = world.query(message, address, port);
+                    if (onResponseCallback != null) {
+                        onResponseCallback.onResponse(message, result);
+                    }
+                    future.setResult(result);
+                }
+            }.start();
+            return future;
+        }
+    }
 }